@@ -143,6 +143,7 @@ public abstract class AbstractLlmInferenceService implements LlmInferenceService
         return CompletionResponse.builder()
                 .text(response.getContent())
                 .setMetadata(response.getMetadata())
+                .logprobs(response.getLogprobs())
                 .build();
     }
 
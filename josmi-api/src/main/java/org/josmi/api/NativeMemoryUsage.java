@@ -0,0 +1,15 @@
+package org.josmi.api;
+
+/**
+ * Implemented by services that hold model memory outside the Java heap and can report its size,
+ * so that a {@link org.josmi.api.manager.ModelManager} can account for it.
+ */
+public interface NativeMemoryUsage {
+
+    /**
+     * Gets the native memory held by the loaded model: its weights and reserved caches.
+     *
+     * @return the native memory in bytes
+     */
+    long getNativeMemoryBytes();
+}
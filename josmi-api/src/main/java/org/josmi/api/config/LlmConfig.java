@@ -1,5 +1,6 @@
 package org.josmi.api.config;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,11 +25,63 @@ public class LlmConfig {
     public static final String PRESENCE_PENALTY = "presence.penalty";
     public static final String FREQUENCY_PENALTY = "frequency.penalty";
     public static final String SEED = "seed";
+    public static final String LOGIT_BIAS = "logit.bias";
+    public static final String REGEX = "regex";
+    public static final String JSON_SCHEMA = "json.schema";
+    public static final String RESPONSE_FORMAT = "response.format";
+    public static final String STOP = "stop";
+    public static final String N = "n";
+    public static final String BEST_OF = "best.of";
+    public static final String NUM_BEAMS = "num.beams";
+    public static final String LENGTH_PENALTY = "length.penalty";
+    public static final String EARLY_STOPPING = "early.stopping";
+    public static final String LOGPROBS = "logprobs";
+    public static final String TOP_LOGPROBS = "top.logprobs";
+    public static final String PRIORITY = "priority";
     public static final String THREADS = "threads";
     public static final String DEVICE = "device";
     public static final String ENDPOINT_URL = "endpoint.url";
     public static final String API_KEY = "api.key";
     public static final String TIMEOUT_MS = "timeout.ms";
+    public static final String ENGINE = "engine";
+    public static final String CONTEXT_LENGTH = "context.length";
+    public static final String MAX_BATCH_SIZE = "max.batch.size";
+    public static final String KV_CACHE_MEMORY_MB = "kv.cache.memory.mb";
+    public static final String KV_BLOCK_SIZE = "kv.block.size";
+    public static final String PREFIX_CACHING = "prefix.caching";
+    public static final String PREFILL_CHUNK = "prefill.chunk";
+    public static final String KV_SWAP_MEMORY_MB = "kv.swap.memory.mb";
+    public static final String KV_SWAP_PATH = "kv.swap.path";
+    public static final String DRAFT_MODEL_PATH = "draft.model.path";
+    public static final String DRAFT_MODEL_ID = "draft.model.id";
+    public static final String SPECULATIVE_TOKENS = "speculative.tokens";
+    public static final String PROMPT_LOOKUP = "prompt.lookup";
+    public static final String PROMPT_LOOKUP_MAX_NGRAM = "prompt.lookup.max.ngram";
+    public static final String KV_WINDOW = "kv.window";
+    public static final String ATTENTION_SINKS = "attention.sinks";
+    public static final String OPTIMIZATION_LEVEL = "optimization.level";
+    public static final String OPTIMIZED_MODEL_PATH = "optimized.model.path";
+    public static final String EXECUTION_MODE = "execution.mode";
+    public static final String WEIGHTS_MMAP = "weights.mmap";
+    public static final String WEIGHTS_PREPACKING = "weights.prepacking";
+    public static final String CPU_ARENA = "cpu.arena";
+    public static final String ARENA_SHRINKAGE = "arena.shrinkage";
+    public static final String INTER_OP_THREADS = "inter.op.threads";
+    public static final String GLOBAL_THREAD_POOLS = "global.thread.pools";
+    public static final String THREAD_SPINNING = "thread.spinning";
+    public static final String THREAD_AFFINITY = "thread.affinity";
+    public static final String AUTO_TUNE = "auto.tune";
+    public static final String AUTO_TUNE_PATH = "auto.tune.path";
+    public static final String MODEL_VARIANT_POLICY = "model.variant.policy";
+    public static final String MODEL_VARIANT_ACCURACY_FLOOR = "model.variant.accuracy.floor";
+    public static final String MODEL_VARIANT_REPORT = "model.variant.report";
+    public static final String MODELS = "models";
+    public static final String DEFAULT_MODEL = "default.model";
+    public static final String MODEL_MEMORY_BUDGET_MB = "model.memory.budget.mb";
+    public static final String ADAPTER = "adapter";
+    public static final String LORA_ADAPTER_PATH = "lora.adapter.path";
+    public static final String LORA_ADAPTERS = "lora.adapters";
+    public static final String LORA_MAX_ADAPTERS = "lora.max.adapters";
 
     private final Map<String, Object> configMap;
 
@@ -308,6 +361,50 @@ public class LlmConfig {
             return set(SEED, seed);
         }
 
+        /**
+         * Adds a bias to the logit of a token, e.g. -100 to ban it.
+         *
+         * @param token the token id
+         * @param bias the bias added to the logit of the token
+         * @return this Builder instance for method chaining
+         */
+        @SuppressWarnings("unchecked")
+        public Builder logitBias(int token, double bias) {
+            ((Map<String, Object>) configMap.computeIfAbsent(LOGIT_BIAS, key -> new HashMap<String, Object>()))
+                    .put(Integer.toString(token), bias);
+            return this;
+        }
+
+        /**
+         * Constrains generated text to the full matches of a regular expression.
+         *
+         * @param regex the regular expression
+         * @return this Builder instance for method chaining
+         */
+        public Builder regex(String regex) {
+            return set(REGEX, regex);
+        }
+
+        /**
+         * Constrains generated text to JSON valid against a schema.
+         *
+         * @param jsonSchema the JSON schema
+         * @return this Builder instance for method chaining
+         */
+        public Builder jsonSchema(String jsonSchema) {
+            return set(JSON_SCHEMA, jsonSchema);
+        }
+
+        /**
+         * Sets the sequences that end generation, which are left out of the generated text.
+         *
+         * @param stop the stop sequences
+         * @return this Builder instance for method chaining
+         */
+        public Builder stop(String... stop) {
+            return set(STOP, Arrays.asList(stop));
+        }
+
         /**
          * Sets the number of threads to use.
          *
@@ -319,7 +416,9 @@ public class LlmConfig {
         }
 
         /**
-         * Sets the device to use (e.g., "CPU", "CUDA", "DirectML").
+         * Sets the device to use: the CPU execution providers to try in order of preference,
+         * e.g. "dnnl,xnnpack", or "gpu" with the djl-ort implementation. Other names are logged
+         * and ignored, falling back to "cpu".
          *
          * @param device the device name
          * @return this Builder instance for method chaining
@@ -358,6 +457,414 @@ public class LlmConfig {
             return set(TIMEOUT_MS, timeoutMs);
         }
 
+        /**
+         * Sets the generation engine to use (e.g., "genai", "native").
+         *
+         * @param engine the engine name
+         * @return this Builder instance for method chaining
+         */
+        public Builder engine(String engine) {
+            return set(ENGINE, engine);
+        }
+
+        /**
+         * Sets the maximum context length (prompt plus generated tokens).
+         *
+         * @param contextLength the context length in tokens
+         * @return this Builder instance for method chaining
+         */
+        public Builder contextLength(int contextLength) {
+            return set(CONTEXT_LENGTH, contextLength);
+        }
+
+        /**
+         * Sets the maximum number of sequences decoded together by continuous batching.
+         *
+         * @param maxBatchSize the maximum batch size, 1 to disable batching
+         * @return this Builder instance for method chaining
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            return set(MAX_BATCH_SIZE, maxBatchSize);
+        }
+
+        /**
+         * Sets the memory budget of the paged key/value cache.
+         *
+         * @param kvCacheMemoryMb the budget in megabytes
+         * @return this Builder instance for method chaining
+         */
+        public Builder kvCacheMemoryMb(int kvCacheMemoryMb) {
+            return set(KV_CACHE_MEMORY_MB, kvCacheMemoryMb);
+        }
+
+        /**
+         * Sets the number of token positions per key/value cache block.
+         *
+         * @param kvBlockSize the block size in tokens
+         * @return this Builder instance for method chaining
+         */
+        public Builder kvBlockSize(int kvBlockSize) {
+            return set(KV_BLOCK_SIZE, kvBlockSize);
+        }
+
+        /**
+         * Sets whether computed prompt prefixes are cached and reused across requests.
+         *
+         * @param prefixCaching true to enable prefix caching
+         * @return this Builder instance for method chaining
+         */
+        public Builder prefixCaching(boolean prefixCaching) {
+            return set(PREFIX_CACHING, prefixCaching);
+        }
+
+        /**
+         * Sets the maximum number of prompt tokens prefilled between two decode steps of the
+         * batched sequences.
+         *
+         * @param prefillChunk the chunk size in tokens
+         * @return this Builder instance for method chaining
+         */
+        public Builder prefillChunk(int prefillChunk) {
+            return set(PREFILL_CHUNK, prefillChunk);
+        }
+
+        /**
+         * Sets the memory budget for the key/value cache of preempted sequences, which enables
+         * preemption in continuous batching.
+         *
+         * @param kvSwapMemoryMb the budget in megabytes, 0 to disable preemption
+         * @return this Builder instance for method chaining
+         */
+        public Builder kvSwapMemoryMb(int kvSwapMemoryMb) {
+            return set(KV_SWAP_MEMORY_MB, kvSwapMemoryMb);
+        }
+
+        /**
+         * Sets the directory of the memory-mapped files holding the key/value cache of preempted
+         * sequences, instead of heap memory.
+         *
+         * @param kvSwapPath the swap directory
+         * @return this Builder instance for method chaining
+         */
+        public Builder kvSwapPath(String kvSwapPath) {
+            return set(KV_SWAP_PATH, kvSwapPath);
+        }
+
+        /**
+         * Sets the path of the draft model used for speculative decoding.
+         *
+         * @param draftModelPath the draft model directory
+         * @return this Builder instance for method chaining
+         */
+        public Builder draftModelPath(String draftModelPath) {
+            return set(DRAFT_MODEL_PATH, draftModelPath);
+        }
+
+        /**
+         * Sets the file name of the draft model within its directory.
+         *
+         * @param draftModelId the draft model ID
+         * @return this Builder instance for method chaining
+         */
+        public Builder draftModelId(String draftModelId) {
+            return set(DRAFT_MODEL_ID, draftModelId);
+        }
+
+        /**
+         * Sets the maximum number of speculative tokens verified per forward pass.
+         *
+         * @param speculativeTokens the number of speculative tokens
+         * @return this Builder instance for method chaining
+         */
+        public Builder speculativeTokens(int speculativeTokens) {
+            return set(SPECULATIVE_TOKENS, speculativeTokens);
+        }
+
+        /**
+         * Sets whether speculative tokens are looked up in the prompt, without a draft model.
+         *
+         * @param promptLookup true to enable prompt lookup decoding
+         * @return this Builder instance for method chaining
+         */
+        public Builder promptLookup(boolean promptLookup) {
+            return set(PROMPT_LOOKUP, promptLookup);
+        }
+
+        /**
+         * Sets the longest n-gram matched by prompt lookup decoding.
+         *
+         * @param maxNgram the maximum n-gram size
+         * @return this Builder instance for method chaining
+         */
+        public Builder promptLookupMaxNgram(int maxNgram) {
+            return set(PROMPT_LOOKUP_MAX_NGRAM, maxNgram);
+        }
+
+        /**
+         * Bounds the key/value cache of each sequence to the attention sinks and a sliding window
+         * of its most recent tokens, so long conversations run at constant memory.
+         *
+         * @param kvWindow the number of recent tokens kept, 0 to keep the full context
+         * @return this Builder instance for method chaining
+         */
+        public Builder kvWindow(int kvWindow) {
+            return set(KV_WINDOW, kvWindow);
+        }
+
+        /**
+         * Sets the number of leading tokens kept in a bounded key/value cache.
+         *
+         * @param attentionSinks the number of attention sink tokens
+         * @return this Builder instance for method chaining
+         */
+        public Builder attentionSinks(int attentionSinks) {
+            return set(ATTENTION_SINKS, attentionSinks);
+        }
+
+        /**
+         * Sets the graph optimization level ("none", "basic", "extended" or "all").
+         *
+         * @param optimizationLevel the optimization level
+         * @return this Builder instance for method chaining
+         */
+        public Builder optimizationLevel(String optimizationLevel) {
+            return set(OPTIMIZATION_LEVEL, optimizationLevel);
+        }
+
+        /**
+         * Sets the directory where optimized models are cached for reuse on later starts.
+         *
+         * @param optimizedModelPath the optimized model directory
+         * @return this Builder instance for method chaining
+         */
+        public Builder optimizedModelPath(String optimizedModelPath) {
+            return set(OPTIMIZED_MODEL_PATH, optimizedModelPath);
+        }
+
+        /**
+         * Sets the graph execution mode ("sequential" or "parallel").
+         *
+         * @param executionMode the execution mode
+         * @return this Builder instance for method chaining
+         */
+        public Builder executionMode(String executionMode) {
+            return set(EXECUTION_MODE, executionMode);
+        }
+
+        /**
+         * Sets whether external weight files are memory-mapped instead of read into private memory.
+         *
+         * @param weightsMmap true to memory-map external weights
+         * @return this Builder instance for method chaining
+         */
+        public Builder weightsMmap(boolean weightsMmap) {
+            return set(WEIGHTS_MMAP, weightsMmap);
+        }
+
+        /**
+         * Sets whether weights are prepacked into a private, kernel-specific layout at load time.
+         *
+         * @param weightsPrepacking true to prepack weights
+         * @return this Builder instance for method chaining
+         */
+        public Builder weightsPrepacking(boolean weightsPrepacking) {
+            return set(WEIGHTS_PREPACKING, weightsPrepacking);
+        }
+
+        /**
+         * Sets whether the CPU memory arena is used.
+         *
+         * @param cpuArena true to use the CPU memory arena
+         * @return this Builder instance for method chaining
+         */
+        public Builder cpuArena(boolean cpuArena) {
+            return set(CPU_ARENA, cpuArena);
+        }
+
+        /**
+         * Sets whether unused CPU arena memory is released after each prompt prefill.
+         *
+         * @param arenaShrinkage true to shrink the arena after prefill
+         * @return this Builder instance for method chaining
+         */
+        public Builder arenaShrinkage(boolean arenaShrinkage) {
+            return set(ARENA_SHRINKAGE, arenaShrinkage);
+        }
+
+        /**
+         * Sets the number of threads that run independent graph nodes in parallel.
+         *
+         * @param interOpThreads the number of inter-op threads
+         * @return this Builder instance for method chaining
+         */
+        public Builder interOpThreads(int interOpThreads) {
+            return set(INTER_OP_THREADS, interOpThreads);
+        }
+
+        /**
+         * Sets whether all sessions in the JVM share global thread pools instead of creating their own.
+         *
+         * @param globalThreadPools true to use global thread pools
+         * @return this Builder instance for method chaining
+         */
+        public Builder globalThreadPools(boolean globalThreadPools) {
+            return set(GLOBAL_THREAD_POOLS, globalThreadPools);
+        }
+
+        /**
+         * Sets whether idle worker threads spin before sleeping.
+         *
+         * @param threadSpinning true to let idle threads spin
+         * @return this Builder instance for method chaining
+         */
+        public Builder threadSpinning(boolean threadSpinning) {
+            return set(THREAD_SPINNING, threadSpinning);
+        }
+
+        /**
+         * Sets the CPU affinity of the intra-op threads, in ONNX Runtime's format: one entry per
+         * thread after the first, separated by ';', each a ',' separated list of logical processors
+         * or a "first-last" range (e.g. "1,2;3,4" or "1-2;3-4").
+         *
+         * @param threadAffinity the thread affinity
+         * @return this Builder instance for method chaining
+         */
+        public Builder threadAffinity(String threadAffinity) {
+            return set(THREAD_AFFINITY, threadAffinity);
+        }
+
+        /**
+         * Sets whether the service benchmarks its thread and batch settings at startup, the first
+         * time it loads a model on a host, and reuses the best settings afterwards.
+         *
+         * @param autoTune true to auto-tune
+         * @return this Builder instance for method chaining
+         */
+        public Builder autoTune(boolean autoTune) {
+            return set(AUTO_TUNE, autoTune);
+        }
+
+        /**
+         * Sets the directory holding the auto-tuning results.
+         *
+         * @param autoTunePath the path to the tuning directory
+         * @return this Builder instance for method chaining
+         */
+        public Builder autoTunePath(String autoTunePath) {
+            return set(AUTO_TUNE_PATH, autoTunePath);
+        }
+
+        /**
+         * Sets the policy that picks among the precision variants (fp32, fp16, int8, int4) found in
+         * the model path instead of the model id: "fastest", "smallest" or "accuracy-floor".
+         *
+         * @param modelVariantPolicy the variant policy
+         * @return this Builder instance for method chaining
+         */
+        public Builder modelVariantPolicy(String modelVariantPolicy) {
+            return set(MODEL_VARIANT_POLICY, modelVariantPolicy);
+        }
+
+        /**
+         * Sets the accuracy floor of the "accuracy-floor" variant policy: the least precise
+         * precision allowed (e.g. "int8"), or the maximum relative perplexity increase over fp32
+         * measured in the variant report (e.g. "0.05").
+         *
+         * @param modelVariantAccuracyFloor the accuracy floor
+         * @return this Builder instance for method chaining
+         */
+        public Builder modelVariantAccuracyFloor(String modelVariantAccuracyFloor) {
+            return set(MODEL_VARIANT_ACCURACY_FLOOR, modelVariantAccuracyFloor);
+        }
+
+        /**
+         * Sets the path to the report of measured model variants.
+         *
+         * @param modelVariantReport the path to the variant report
+         * @return this Builder instance for method chaining
+         */
+        public Builder modelVariantReport(String modelVariantReport) {
+            return set(MODEL_VARIANT_REPORT, modelVariantReport);
+        }
+
+        /**
+         * Adds a model to the models a {@link org.josmi.api.manager.ModelManager} serves.
+         *
+         * @param name the model name that requests select it by
+         * @param modelConfig the configuration of the model, overriding the shared configuration
+         * @return this Builder instance for method chaining
+         */
+        @SuppressWarnings("unchecked")
+        public Builder model(String name, Map<String, Object> modelConfig) {
+            ((Map<String, Object>) configMap.computeIfAbsent(MODELS, key -> new HashMap<String, Object>()))
+                    .put(name, new HashMap<>(modelConfig));
+            return this;
+        }
+
+        /**
+         * Sets the model that requests without a model name are served by.
+         *
+         * @param defaultModel the model name
+         * @return this Builder instance for method chaining
+         */
+        public Builder defaultModel(String defaultModel) {
+            return set(DEFAULT_MODEL, defaultModel);
+        }
+
+        /**
+         * Sets the memory budget of the models a model manager keeps loaded.
+         *
+         * @param modelMemoryBudgetMb the memory budget in MB
+         * @return this Builder instance for method chaining
+         */
+        public Builder modelMemoryBudgetMb(int modelMemoryBudgetMb) {
+            return set(MODEL_MEMORY_BUDGET_MB, modelMemoryBudgetMb);
+        }
+
+        /**
+         * Sets the LoRA adapter that requests without an adapter parameter are served with.
+         *
+         * @param adapter the adapter name
+         * @return this Builder instance for method chaining
+         */
+        public Builder adapter(String adapter) {
+            return set(ADAPTER, adapter);
+        }
+
+        /**
+         * Sets the directory of the LoRA adapters, found there by name as "&lt;name&gt;.onnx_adapter".
+         *
+         * @param loraAdapterPath the adapter directory
+         * @return this Builder instance for method chaining
+         */
+        public Builder loraAdapterPath(String loraAdapterPath) {
+            return set(LORA_ADAPTER_PATH, loraAdapterPath);
+        }
+
+        /**
+         * Adds a LoRA adapter file that requests select by name.
+         *
+         * @param name the adapter name
+         * @param file the adapter file
+         * @return this Builder instance for method chaining
+         */
+        @SuppressWarnings("unchecked")
+        public Builder loraAdapter(String name, String file) {
+            ((Map<String, Object>) configMap.computeIfAbsent(LORA_ADAPTERS, key -> new HashMap<String, Object>()))
+                    .put(name, file);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of idle LoRA adapters kept loaded.
+         *
+         * @param loraMaxAdapters the maximum number of adapters
+         * @return this Builder instance for method chaining
+         */
+        public Builder loraMaxAdapters(int loraMaxAdapters) {
+            return set(LORA_MAX_ADAPTERS, loraMaxAdapters);
+        }
+
         /**
          * Builds a new LlmConfig instance.
          *
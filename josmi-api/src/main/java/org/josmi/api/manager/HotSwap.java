@@ -0,0 +1,161 @@
+package org.josmi.api.manager;
+
+import org.josmi.api.LlmInferenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Consumer;
+
+/**
+ * Switches the requests of a service between versions of its model without interrupting them.
+ * <p>
+ * Each request holds a lease on the version that was current when it started. Swapping in a
+ * new version only affects later requests: the previous version is retired and closed once
+ * the last request holding it finishes, so a model update drops no requests and, with the new
+ * version loaded and warmed up before the swap, adds no cold start.
+ *
+ * @param <T> the type of the model versions
+ */
+public class HotSwap<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotSwap.class);
+
+    /**
+     * A request's hold on a model version, released by closing it.
+     *
+     * @param <T> the type of the model versions
+     */
+    public static final class Lease<T> implements AutoCloseable {
+        private final HotSwap<T> owner;
+        private final Version<T> version;
+        private boolean released;
+
+        private Lease(HotSwap<T> owner, Version<T> version) {
+            this.owner = owner;
+            this.version = version;
+        }
+
+        /**
+         * Gets the leased model version.
+         *
+         * @return the model version
+         */
+        public T get() {
+            return version.model;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                owner.release(version);
+            }
+        }
+    }
+
+    /**
+     * A model version and the requests using it, guarded by the owner.
+     */
+    private static final class Version<T> {
+        private final T model;
+        private int users;
+        private boolean retired;
+
+        private Version(T model) {
+            this.model = model;
+        }
+    }
+
+    private final Consumer<T> closer;
+    private Version<T> current;
+    private boolean closed;
+
+    /**
+     * Constructs a new HotSwap.
+     *
+     * @param initial the initial model version
+     * @param closer releases the resources of a retired model version
+     */
+    public HotSwap(T initial, Consumer<T> closer) {
+        this.current = new Version<>(initial);
+        this.closer = closer;
+    }
+
+    /**
+     * Leases the current model version for a request.
+     *
+     * @return the lease, to be closed when the request finishes
+     * @throws LlmInferenceException if the service is closed
+     */
+    public synchronized Lease<T> acquire() throws LlmInferenceException {
+        if (closed) {
+            throw new LlmInferenceException("Service is closed");
+        }
+        current.users++;
+        return new Lease<>(this, current);
+    }
+
+    /**
+     * Gets the current model version, without leasing it.
+     *
+     * @return the current model version
+     */
+    public synchronized T getCurrent() {
+        return current.model;
+    }
+
+    /**
+     * Makes a model version current for new requests. The previous version is closed at once
+     * if idle, or else when its last request finishes.
+     *
+     * @param next the new model version, ready to serve
+     * @throws LlmInferenceException if the service is closed
+     */
+    public void swap(T next) throws LlmInferenceException {
+        Version<T> previous;
+        synchronized (this) {
+            if (closed) {
+                throw new LlmInferenceException("Service is closed");
+            }
+            previous = current;
+            current = new Version<>(next);
+            previous.retired = true;
+            if (previous.users > 0) {
+                logger.info("Retired model version, closing it after {} in-flight requests", previous.users);
+                return;
+            }
+        }
+        closer.accept(previous.model);
+    }
+
+    private void release(Version<T> version) {
+        synchronized (this) {
+            version.users--;
+            if (version.users > 0 || !version.retired) {
+                return;
+            }
+        }
+        closer.accept(version.model);
+    }
+
+    /**
+     * Rejects new requests and retires the current model version, which is closed at once if
+     * idle, or else when its last request finishes, like the versions retired before it.
+     */
+    public void close() {
+        Version<T> last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = current;
+            last.retired = true;
+            if (last.users > 0) {
+                logger.info("Closing the model version after {} in-flight requests", last.users);
+                return;
+            }
+        }
+        closer.accept(last.model);
+    }
+}
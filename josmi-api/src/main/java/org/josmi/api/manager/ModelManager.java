@@ -0,0 +1,422 @@
+package org.josmi.api.manager;
+
+import org.josmi.api.AbstractLlmInferenceService;
+import org.josmi.api.LlmInferenceException;
+import org.josmi.api.LlmInferenceService;
+import org.josmi.api.LlmInferenceServiceFactory;
+import org.josmi.api.NativeMemoryUsage;
+import org.josmi.api.config.LlmConfig;
+import org.josmi.api.model.ChatRequest;
+import org.josmi.api.model.ChatResponse;
+import org.josmi.api.model.CompletionRequest;
+import org.josmi.api.model.CompletionResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Serves many models from one service, choosing the model of each request by its
+ * "model" parameter.
+ * <p>
+ * Models are registered by name with their own configuration, which overrides the shared
+ * configuration of the manager, and are loaded with the factory of the manager when first
+ * requested. Concurrent requests for a model that is loading wait for the same load. The
+ * memory of each loaded model is accounted, as reported by services implementing
+ * {@link NativeMemoryUsage} or else as the growth of the resident memory of the process
+ * during its load, and the least recently used models are unloaded to keep the total
+ * within {@link LlmConfig#MODEL_MEMORY_BUDGET_MB}. Idle models are unloaded first; a model
+ * that is still generating is unloaded once its in-flight requests finish.
+ */
+public class ModelManager extends AbstractLlmInferenceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelManager.class);
+
+    /** Request parameter naming the model that serves the request. */
+    public static final String MODEL_PARAMETER = "model";
+
+    /**
+     * A loaded model and the requests using it, guarded by the manager.
+     */
+    private static final class LoadedModel {
+        private final String name;
+        private final LlmInferenceService service;
+        private final long memoryBytes;
+        private int users;
+        private boolean evicted;
+
+        private LoadedModel(String name, LlmInferenceService service, long memoryBytes) {
+            this.name = name;
+            this.service = service;
+            this.memoryBytes = memoryBytes;
+        }
+    }
+
+    private final LlmInferenceServiceFactory factory;
+    private final long memoryBudgetBytes;
+    private final Map<String, Map<String, Object>> models = new ConcurrentHashMap<>();
+    private final Map<String, Long> measuredMemoryBytes = new ConcurrentHashMap<>();
+    // In access order, least recently used first
+    private final LinkedHashMap<String, LoadedModel> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<LoadedModel>> loading = new HashMap<>();
+    private long loadedBytes;
+    private boolean closed;
+
+    /**
+     * Constructs a new ModelManager.
+     *
+     * @param factory the factory that loads the models
+     * @param config the configuration shared by the models, with the models of {@link LlmConfig#MODELS}
+     * @throws LlmInferenceException if a model configuration is invalid
+     */
+    public ModelManager(LlmInferenceServiceFactory factory, Map<String, Object> config) throws LlmInferenceException {
+        super("models", config);
+        this.factory = factory;
+        this.memoryBudgetBytes = getConfigInt(LlmConfig.MODEL_MEMORY_BUDGET_MB, 0) * 1024L * 1024L;
+
+        Object modelConfigs = this.config.remove(LlmConfig.MODELS);
+        if (modelConfigs instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) modelConfigs).entrySet()) {
+                if (!(entry.getValue() instanceof Map)) {
+                    throw new LlmInferenceException("Configuration of model " + entry.getKey() + " is not a map");
+                }
+                register(entry.getKey().toString(), toConfig((Map<?, ?>) entry.getValue()));
+            }
+        } else if (modelConfigs != null) {
+            throw new LlmInferenceException("Models configuration is not a map of model names to configurations");
+        }
+        ready = true;
+        logger.info("Model manager serving {} models with {} factory, memory budget {}", models.size(),
+                factory.getFactoryName(), memoryBudgetBytes > 0 ? memoryBudgetBytes / (1024 * 1024) + " MB"
+                        : "unlimited");
+    }
+
+    /**
+     * Registers a model, or replaces the configuration of a registered one for its next load.
+     *
+     * @param name the model name that requests select it by
+     * @param modelConfig the configuration of the model, overriding the shared configuration
+     */
+    public void register(String name, Map<String, Object> modelConfig) {
+        Map<String, Object> merged = new HashMap<>(config);
+        merged.remove(LlmConfig.DEFAULT_MODEL);
+        merged.remove(LlmConfig.MODEL_MEMORY_BUDGET_MB);
+        merged.putAll(modelConfig);
+        models.put(name, merged);
+        measuredMemoryBytes.remove(name);
+    }
+
+    /**
+     * Gets the names of the registered models.
+     *
+     * @return the model names
+     */
+    public List<String> getModels() {
+        return new ArrayList<>(models.keySet());
+    }
+
+    /**
+     * Gets the names of the loaded models, least recently used first.
+     *
+     * @return the model names
+     */
+    public synchronized List<String> getLoadedModels() {
+        return new ArrayList<>(loaded.keySet());
+    }
+
+    /**
+     * Gets the accounted memory of the loaded models.
+     *
+     * @return the memory in bytes
+     */
+    public synchronized long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+    /**
+     * Unloads a model, once its in-flight requests finish if it is in use.
+     *
+     * @param name the model name
+     * @return true if the model was loaded
+     */
+    public boolean unload(String name) {
+        LoadedModel model;
+        synchronized (this) {
+            model = loaded.get(name);
+            if (model == null) {
+                return false;
+            }
+            evict(model);
+            if (model.users > 0) {
+                return true;
+            }
+        }
+        closeModel(model);
+        return true;
+    }
+
+    @Override
+    protected ChatResponse doChatInference(ChatRequest request) throws Exception {
+        LoadedModel model = acquire(getModelName(request.getParameters()));
+        try {
+            ChatResponse response = model.service.chat(request);
+            response.getMetadata().put(MODEL_PARAMETER, model.name);
+            return response;
+        } finally {
+            release(model);
+        }
+    }
+
+    @Override
+    protected CompletionResponse doCompletionInference(CompletionRequest request) throws Exception {
+        LoadedModel model = acquire(getModelName(request.getParameters()));
+        try {
+            CompletionResponse response = model.service.complete(request);
+            response.getMetadata().put(MODEL_PARAMETER, model.name);
+            return response;
+        } finally {
+            release(model);
+        }
+    }
+
+    private String getModelName(Map<String, Object> parameters) throws LlmInferenceException {
+        Object name = parameters != null ? parameters.get(MODEL_PARAMETER) : null;
+        String modelName = name != null ? name.toString() : getConfigString(LlmConfig.DEFAULT_MODEL, null);
+        if (modelName == null) {
+            throw new LlmInferenceException("Request names no model and no default model is configured");
+        }
+        return modelName;
+    }
+
+    /**
+     * Gets a loaded model for a request, loading it if needed, and counts the request as its user.
+     *
+     * @param name the model name
+     * @return the model, to be released after the request
+     * @throws LlmInferenceException if the model is unknown or cannot be loaded
+     */
+    private LoadedModel acquire(String name) throws LlmInferenceException {
+        while (true) {
+            CompletableFuture<LoadedModel> load;
+            Map<String, Object> modelConfig = null;
+            List<LoadedModel> unloaded = new ArrayList<>();
+            synchronized (this) {
+                if (closed) {
+                    throw new LlmInferenceException("Model manager is closed");
+                }
+                LoadedModel model = loaded.get(name);
+                if (model != null) {
+                    model.users++;
+                    return model;
+                }
+                load = loading.get(name);
+                if (load == null) {
+                    modelConfig = models.get(name);
+                    if (modelConfig == null) {
+                        throw new LlmInferenceException("Unknown model: " + name);
+                    }
+                    load = new CompletableFuture<>();
+                    loading.put(name, load);
+                    // Make room up front for a model whose memory was measured by an earlier load
+                    Long expectedBytes = measuredMemoryBytes.get(name);
+                    if (expectedBytes != null) {
+                        evictFor(expectedBytes, null, unloaded);
+                    }
+                }
+            }
+            closeModels(unloaded);
+
+            if (modelConfig != null) {
+                return load(name, modelConfig, load);
+            }
+            try {
+                load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LlmInferenceException("Interrupted while waiting for model " + name, e);
+            } catch (ExecutionException e) {
+                throw new LlmInferenceException("Failed to load model " + name, e.getCause());
+            }
+            // Loaded by another request: take it from the loaded models, unless it was unloaded meanwhile
+        }
+    }
+
+    private LoadedModel load(String name, Map<String, Object> modelConfig, CompletableFuture<LoadedModel> load)
+            throws LlmInferenceException {
+        LoadedModel model;
+        try {
+            logger.info("Loading model {}", name);
+            long start = System.currentTimeMillis();
+            long residentBefore = residentBytes();
+            LlmInferenceService service = factory.create(modelConfig);
+            long memoryBytes;
+            if (service instanceof NativeMemoryUsage) {
+                memoryBytes = ((NativeMemoryUsage) service).getNativeMemoryBytes();
+            } else {
+                // Approximate: concurrent loads and allocations of other models are counted too
+                long residentAfter = residentBytes();
+                memoryBytes = residentBefore >= 0 && residentAfter >= 0 ? Math.max(0, residentAfter - residentBefore)
+                        : 0;
+            }
+            model = new LoadedModel(name, service, memoryBytes);
+            logger.info("Loaded model {} in {} ms, {} MB", name, System.currentTimeMillis() - start,
+                    memoryBytes / (1024 * 1024));
+        } catch (LlmInferenceException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(name);
+            }
+            load.completeExceptionally(e);
+            throw e instanceof LlmInferenceException ? (LlmInferenceException) e
+                    : new LlmInferenceException("Failed to load model " + name, e);
+        }
+
+        List<LoadedModel> unloaded = new ArrayList<>();
+        boolean wasClosed;
+        synchronized (this) {
+            loading.remove(name);
+            wasClosed = closed;
+            if (!wasClosed) {
+                measuredMemoryBytes.put(name, model.memoryBytes);
+                model.users = 1;
+                loaded.put(name, model);
+                loadedBytes += model.memoryBytes;
+                evictFor(0, model, unloaded);
+            }
+        }
+        load.complete(model);
+        closeModels(unloaded);
+        if (wasClosed) {
+            closeModel(model);
+            throw new LlmInferenceException("Model manager is closed");
+        }
+        return model;
+    }
+
+    private void release(LoadedModel model) {
+        synchronized (this) {
+            model.users--;
+            if (model.users > 0 || !model.evicted) {
+                return;
+            }
+        }
+        closeModel(model);
+    }
+
+    /**
+     * Unloads least recently used models until the loaded models and the given memory fit the budget:
+     * idle models first, then models in use, which are closed by their last request. Guarded by the manager.
+     *
+     * @param bytes the memory to make room for
+     * @param keep the model that must stay loaded, or null
+     * @param unloaded collects the idle models to close outside the lock
+     */
+    private void evictFor(long bytes, LoadedModel keep, List<LoadedModel> unloaded) {
+        if (memoryBudgetBytes <= 0) {
+            return;
+        }
+        for (boolean idle : new boolean[]{true, false}) {
+            Iterator<LoadedModel> models = loaded.values().iterator();
+            while (loadedBytes + bytes > memoryBudgetBytes && models.hasNext()) {
+                LoadedModel model = models.next();
+                if (model != keep && (model.users == 0) == idle) {
+                    models.remove();
+                    loadedBytes -= model.memoryBytes;
+                    model.evicted = true;
+                    logger.info("Unloading least recently used model {} ({} MB{})", model.name,
+                            model.memoryBytes / (1024 * 1024), idle ? "" : ", after its in-flight requests");
+                    if (idle) {
+                        unloaded.add(model);
+                    }
+                }
+            }
+        }
+        if (loadedBytes + bytes > memoryBudgetBytes) {
+            logger.warn("Models need {} MB, over the memory budget of {} MB",
+                    (loadedBytes + bytes) / (1024 * 1024), memoryBudgetBytes / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Removes a model from the loaded models. Guarded by the manager.
+     */
+    private void evict(LoadedModel model) {
+        loaded.remove(model.name);
+        loadedBytes -= model.memoryBytes;
+        model.evicted = true;
+    }
+
+    private void closeModels(List<LoadedModel> models) {
+        for (LoadedModel model : models) {
+            closeModel(model);
+        }
+    }
+
+    private void closeModel(LoadedModel model) {
+        try {
+            model.service.close();
+            logger.info("Unloaded model {}", model.name);
+        } catch (RuntimeException e) {
+            logger.error("Error unloading model {}", model.name, e);
+        }
+    }
+
+    /**
+     * Reads the resident memory of the process on Linux.
+     *
+     * @return the resident memory in bytes, or -1 if unknown
+     */
+    private static long residentBytes() {
+        Path status = Paths.get("/proc/self/status");
+        try {
+            if (Files.isReadable(status)) {
+                for (String line : Files.readAllLines(status)) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.debug("Cannot read {}", status, e);
+        }
+        return -1;
+    }
+
+    private static Map<String, Object> toConfig(Map<?, ?> map) {
+        Map<String, Object> modelConfig = new HashMap<>();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            modelConfig.put(entry.getKey().toString(), entry.getValue());
+        }
+        return modelConfig;
+    }
+
+    @Override
+    public void close() {
+        List<LoadedModel> unloaded = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            ready = false;
+            for (LoadedModel model : loaded.values()) {
+                model.evicted = true;
+                if (model.users == 0) {
+                    unloaded.add(model);
+                }
+            }
+            loaded.clear();
+            loadedBytes = 0;
+        }
+        closeModels(unloaded);
+        logger.info("Model manager closed");
+    }
+}
@@ -1,6 +1,7 @@
 package org.josmi.api.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -117,6 +118,51 @@ public class ChatRequest {
             return this;
         }
 
+        public Builder jsonSchema(String jsonSchema) {
+            this.parameters.put("json_schema", jsonSchema);
+            return this;
+        }
+
+        public Builder regex(String regex) {
+            this.parameters.put("regex", regex);
+            return this;
+        }
+
+        public Builder stop(String... stop) {
+            this.parameters.put("stop", Arrays.asList(stop));
+            return this;
+        }
+
+        public Builder n(int n) {
+            this.parameters.put("n", n);
+            return this;
+        }
+
+        public Builder bestOf(int bestOf) {
+            this.parameters.put("best_of", bestOf);
+            return this;
+        }
+
+        public Builder numBeams(int numBeams) {
+            this.parameters.put("num_beams", numBeams);
+            return this;
+        }
+
+        public Builder logprobs(boolean logprobs) {
+            this.parameters.put("logprobs", logprobs);
+            return this;
+        }
+
+        public Builder topLogprobs(int topLogprobs) {
+            this.parameters.put("top_logprobs", topLogprobs);
+            return this;
+        }
+
+        public Builder priority(int priority) {
+            this.parameters.put("priority", priority);
+            return this;
+        }
+
         public ChatRequest build() {
             return new ChatRequest(new ArrayList<>(messages), new HashMap<>(parameters));
         }
@@ -10,6 +10,7 @@ import java.util.Objects;
 public class ChatResponse {
     private Message response;
     private Map<String, Object> metadata;
+    private TokenLogprobs logprobs;
 
     public ChatResponse() {
         this.metadata = new HashMap<>();
@@ -20,6 +21,12 @@ public class ChatResponse {
         this.metadata = metadata;
     }
 
+    public ChatResponse(Message response, Map<String, Object> metadata, TokenLogprobs logprobs) {
+        this.response = response;
+        this.metadata = metadata;
+        this.logprobs = logprobs;
+    }
+
     public Message getResponse() {
         return response;
     }
@@ -36,6 +43,20 @@ public class ChatResponse {
         this.metadata = metadata;
     }
 
+    /**
+     * Gets the log probabilities of the generated tokens, if the request asked for them
+     * ("logprobs", and "top_logprobs" for alternatives) and the backend reports them.
+     *
+     * @return the token log probabilities, or null
+     */
+    public TokenLogprobs getLogprobs() {
+        return logprobs;
+    }
+
+    public void setLogprobs(TokenLogprobs logprobs) {
+        this.logprobs = logprobs;
+    }
+
     /**
      * Gets the content of the response message.
      *
@@ -50,12 +71,13 @@ public class ChatResponse {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ChatResponse that = (ChatResponse) o;
-        return Objects.equals(response, that.response) && Objects.equals(metadata, that.metadata);
+        return Objects.equals(response, that.response) && Objects.equals(metadata, that.metadata)
+                && Objects.equals(logprobs, that.logprobs);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(response, metadata);
+        return Objects.hash(response, metadata, logprobs);
     }
 
     @Override
@@ -63,6 +85,7 @@ public class ChatResponse {
         return "ChatResponse{" +
                 "response=" + response +
                 ", metadata=" + metadata +
+                (logprobs != null ? ", logprobs=" + logprobs : "") +
                 '}';
     }
 
@@ -72,6 +95,7 @@ public class ChatResponse {
     public static class Builder {
         private Message response;
         private final Map<String, Object> metadata = new HashMap<>();
+        private TokenLogprobs logprobs;
 
         public Builder response(Message response) {
             this.response = response;
@@ -113,8 +137,13 @@ public class ChatResponse {
             return this;
         }
 
+        public Builder logprobs(TokenLogprobs logprobs) {
+            this.logprobs = logprobs;
+            return this;
+        }
+
         public ChatResponse build() {
-            return new ChatResponse(response, new HashMap<>(metadata));
+            return new ChatResponse(response, new HashMap<>(metadata), logprobs);
         }
     }
 
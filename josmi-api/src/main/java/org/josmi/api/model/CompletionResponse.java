@@ -10,6 +10,7 @@ import java.util.Objects;
 public class CompletionResponse {
     private String text;
     private Map<String, Object> metadata;
+    private TokenLogprobs logprobs;
 
     public CompletionResponse() {
         this.metadata = new HashMap<>();
@@ -20,6 +21,12 @@ public class CompletionResponse {
         this.metadata = metadata;
     }
 
+    public CompletionResponse(String text, Map<String, Object> metadata, TokenLogprobs logprobs) {
+        this.text = text;
+        this.metadata = metadata;
+        this.logprobs = logprobs;
+    }
+
     public String getText() {
         return text;
     }
@@ -36,17 +43,32 @@ public class CompletionResponse {
         this.metadata = metadata;
     }
 
+    /**
+     * Gets the log probabilities of the generated tokens, if the request asked for them
+     * ("logprobs", and "top_logprobs" for alternatives) and the backend reports them.
+     *
+     * @return the token log probabilities, or null
+     */
+    public TokenLogprobs getLogprobs() {
+        return logprobs;
+    }
+
+    public void setLogprobs(TokenLogprobs logprobs) {
+        this.logprobs = logprobs;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         CompletionResponse that = (CompletionResponse) o;
-        return Objects.equals(text, that.text) && Objects.equals(metadata, that.metadata);
+        return Objects.equals(text, that.text) && Objects.equals(metadata, that.metadata)
+                && Objects.equals(logprobs, that.logprobs);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(text, metadata);
+        return Objects.hash(text, metadata, logprobs);
     }
 
     @Override
@@ -54,6 +76,7 @@ public class CompletionResponse {
         return "CompletionResponse{" +
                 "text='" + text + '\'' +
                 ", metadata=" + metadata +
+                (logprobs != null ? ", logprobs=" + logprobs : "") +
                 '}';
     }
 
@@ -63,6 +86,7 @@ public class CompletionResponse {
     public static class Builder {
         private String text;
         private final Map<String, Object> metadata = new HashMap<>();
+        private TokenLogprobs logprobs;
 
         public Builder text(String text) {
             this.text = text;
@@ -99,8 +123,13 @@ public class CompletionResponse {
             return this;
         }
 
+        public Builder logprobs(TokenLogprobs logprobs) {
+            this.logprobs = logprobs;
+            return this;
+        }
+
         public CompletionResponse build() {
-            return new CompletionResponse(text, new HashMap<>(metadata));
+            return new CompletionResponse(text, new HashMap<>(metadata), logprobs);
         }
     }
 
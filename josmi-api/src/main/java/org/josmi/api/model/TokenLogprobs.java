@@ -0,0 +1,239 @@
+package org.josmi.api.model;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Log probabilities of the generated tokens of a response, and optionally of the most likely
+ * alternatives at each position.
+ * <p>
+ * The values are kept in flat primitive arrays rather than an object per token: the
+ * alternatives of token i are at [i * topCount, (i + 1) * topCount), most likely first, with a
+ * null token and a NaN log probability where fewer alternatives were reported.
+ */
+public final class TokenLogprobs {
+    private final String[] tokens;
+    private final float[] logprobs;
+    private final int topCount;
+    private final String[] topTokens;
+    private final float[] topLogprobs;
+
+    /**
+     * Constructs a new TokenLogprobs over the given arrays, which are not copied.
+     *
+     * @param tokens the text of each token
+     * @param logprobs the log probability of each token
+     * @param topCount the number of alternatives per token, 0 if none were requested
+     * @param topTokens the text of the alternatives, tokens.length * topCount entries
+     * @param topLogprobs the log probabilities of the alternatives, tokens.length * topCount entries
+     */
+    public TokenLogprobs(String[] tokens, float[] logprobs, int topCount, String[] topTokens, float[] topLogprobs) {
+        if (logprobs.length != tokens.length || topTokens.length != tokens.length * topCount
+                || topLogprobs.length != topTokens.length) {
+            throw new IllegalArgumentException("Array lengths do not match " + tokens.length + " tokens with "
+                    + topCount + " alternatives each");
+        }
+        this.tokens = tokens;
+        this.logprobs = logprobs;
+        this.topCount = topCount;
+        this.topTokens = topTokens;
+        this.topLogprobs = topLogprobs;
+    }
+
+    /**
+     * Gets the number of tokens.
+     *
+     * @return the number of tokens
+     */
+    public int size() {
+        return tokens.length;
+    }
+
+    public String getToken(int index) {
+        return tokens[index];
+    }
+
+    public float getLogprob(int index) {
+        return logprobs[index];
+    }
+
+    /**
+     * Gets the log probabilities of all tokens. The array is shared and must not be modified.
+     *
+     * @return the log probability of each token
+     */
+    public float[] getLogprobs() {
+        return logprobs;
+    }
+
+    /**
+     * Gets the number of alternatives reported per token.
+     *
+     * @return the number of alternatives, 0 if none were requested
+     */
+    public int getTopCount() {
+        return topCount;
+    }
+
+    /**
+     * Gets the text of an alternative.
+     *
+     * @param index the token index
+     * @param rank the rank of the alternative, 0 for the most likely
+     * @return the text, or null if fewer alternatives were reported
+     */
+    public String getTopToken(int index, int rank) {
+        return topTokens[index * topCount + rank];
+    }
+
+    /**
+     * Gets the log probability of an alternative.
+     *
+     * @param index the token index
+     * @param rank the rank of the alternative, 0 for the most likely
+     * @return the log probability, or NaN if fewer alternatives were reported
+     */
+    public float getTopLogprob(int index, int rank) {
+        return topLogprobs[index * topCount + rank];
+    }
+
+    /**
+     * Gets the sum of the log probabilities of the tokens, the log probability of the whole text.
+     *
+     * @return the sum of the log probabilities
+     */
+    public double getSum() {
+        double sum = 0.0;
+        for (float logprob : logprobs) {
+            sum += logprob;
+        }
+        return sum;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TokenLogprobs that = (TokenLogprobs) o;
+        return topCount == that.topCount && Arrays.equals(tokens, that.tokens)
+                && Arrays.equals(logprobs, that.logprobs) && Arrays.equals(topTokens, that.topTokens)
+                && Arrays.equals(topLogprobs, that.topLogprobs);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(Arrays.hashCode(tokens), Arrays.hashCode(logprobs), topCount);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenLogprobs{" +
+                "tokens=" + tokens.length +
+                ", topCount=" + topCount +
+                ", sum=" + getSum() +
+                '}';
+    }
+
+    /**
+     * Builder appending tokens one at a time.
+     */
+    public static class Builder {
+        private final int topCount;
+        private String[] tokens = new String[16];
+        private float[] logprobs = new float[16];
+        private String[] topTokens;
+        private float[] topLogprobs;
+        private int size;
+        private int topSize;
+
+        private Builder(int topCount) {
+            this.topCount = topCount;
+            this.topTokens = new String[16 * topCount];
+            this.topLogprobs = new float[16 * topCount];
+        }
+
+        /**
+         * Adds a token. Its alternatives are added after it, with {@link #addTop(String, float)}.
+         *
+         * @param token the text of the token
+         * @param logprob the log probability of the token
+         * @return this builder
+         */
+        public Builder add(String token, float logprob) {
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, size * 2);
+                logprobs = Arrays.copyOf(logprobs, size * 2);
+                topTokens = Arrays.copyOf(topTokens, size * 2 * topCount);
+                topLogprobs = Arrays.copyOf(topLogprobs, size * 2 * topCount);
+            }
+            // Pad the alternatives of the previous token
+            Arrays.fill(topTokens, topSize, size * topCount, null);
+            Arrays.fill(topLogprobs, topSize, size * topCount, Float.NaN);
+            topSize = size * topCount;
+            tokens[size] = token;
+            logprobs[size] = logprob;
+            size++;
+            return this;
+        }
+
+        /**
+         * Adds an alternative of the last added token, in descending order of log probability.
+         * Alternatives beyond the top count are ignored.
+         *
+         * @param token the text of the alternative
+         * @param logprob the log probability of the alternative
+         * @return this builder
+         */
+        public Builder addTop(String token, float logprob) {
+            if (size > 0 && topSize < size * topCount) {
+                topTokens[topSize] = token;
+                topLogprobs[topSize] = logprob;
+                topSize++;
+            }
+            return this;
+        }
+
+        /**
+         * Cuts the tokens to a prefix of their concatenated text, such as the text before a stop
+         * sequence: tokens past the end are dropped, with their alternatives, and the last kept
+         * token is trimmed to the end.
+         *
+         * @param length the length of the text kept
+         * @return this builder
+         */
+        public Builder truncateText(int length) {
+            int end = 0;
+            for (int i = 0; i < size; i++) {
+                if (end >= length) {
+                    size = i;
+                    break;
+                }
+                end += tokens[i].length();
+                if (end > length) {
+                    tokens[i] = tokens[i].substring(0, tokens[i].length() - (end - length));
+                    size = i + 1;
+                    break;
+                }
+            }
+            topSize = Math.min(topSize, size * topCount);
+            return this;
+        }
+
+        public TokenLogprobs build() {
+            Arrays.fill(topTokens, topSize, size * topCount, null);
+            Arrays.fill(topLogprobs, topSize, size * topCount, Float.NaN);
+            return new TokenLogprobs(Arrays.copyOf(tokens, size), Arrays.copyOf(logprobs, size), topCount,
+                    Arrays.copyOf(topTokens, size * topCount), Arrays.copyOf(topLogprobs, size * topCount));
+        }
+    }
+
+    /**
+     * Creates a new builder for TokenLogprobs.
+     *
+     * @param topCount the number of alternatives per token, 0 for none
+     * @return a new builder instance
+     */
+    public static Builder builder(int topCount) {
+        return new Builder(topCount);
+    }
+}
@@ -0,0 +1,249 @@
+package org.josmi.api.tuning;
+
+import org.josmi.api.LlmInferenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Calibrates the thread and batch settings of a service by benchmarking them, and
+ * persists the best settings per host and model fingerprint for later starts.
+ * <p>
+ * The search is staged over the grid rather than exhaustive: the intra-op thread
+ * counts are benchmarked first, then the inter-op settings with the best thread
+ * count, then the batch sizes with the best of both. A dimension with a single
+ * value, e.g. one fixed by the configuration, is not searched. The host part of
+ * the fingerprint describes the hardware (CPU model, processor count, architecture)
+ * rather than the host name, so instances of the same type share their results
+ * when the tuning directory is shared.
+ */
+public class AutoTuner {
+
+    private static final Logger logger = LoggerFactory.getLogger(AutoTuner.class);
+
+    public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".josmi", "tuning");
+
+    /**
+     * Measures the throughput of a candidate.
+     */
+    @FunctionalInterface
+    public interface Benchmark {
+
+        /**
+         * Runs the benchmark with the settings of a candidate.
+         *
+         * @param candidate the candidate settings
+         * @return the throughput in tokens per second
+         * @throws Exception if the candidate cannot be benchmarked
+         */
+        double measure(TuningCandidate candidate) throws Exception;
+    }
+
+    private final Path directory;
+
+    /**
+     * Constructs a new AutoTuner.
+     *
+     * @param directory the directory holding the tuning results, created if missing
+     */
+    public AutoTuner(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Computes the fingerprint of a host and model.
+     *
+     * @param serviceName the name of the service
+     * @param modelFile the model file
+     * @param settings other settings that change the performance of the model, e.g. the engine
+     * @return the fingerprint
+     * @throws LlmInferenceException if the model file cannot be read
+     */
+    public static String fingerprint(String serviceName, Path modelFile, Map<String, ?> settings)
+            throws LlmInferenceException {
+        try {
+            Path source = modelFile.toAbsolutePath().normalize();
+            String key = getCpuModel() + "|" + Runtime.getRuntime().availableProcessors() + "|"
+                    + System.getProperty("os.arch") + "|" + serviceName + "|" + source + "|" + Files.size(source)
+                    + "|" + Files.getLastModifiedTime(source).toMillis() + "|" + new TreeMap<>(settings);
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder fingerprint = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                fingerprint.append(String.format("%02x", hash[i]));
+            }
+            return fingerprint.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new LlmInferenceException("Failed to fingerprint model " + modelFile, e);
+        }
+    }
+
+    /**
+     * Gets the intra-op thread counts worth benchmarking on this host: powers of two, half
+     * the processors and all of them.
+     *
+     * @return the thread counts in increasing order
+     */
+    public static List<Integer> threadCounts() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        TreeSet<Integer> counts = new TreeSet<>();
+        for (int threads = 1; threads < processors; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(Math.max(1, processors / 2));
+        counts.add(processors);
+        return new ArrayList<>(counts);
+    }
+
+    /**
+     * Loads the persisted result of a fingerprint.
+     *
+     * @param fingerprint the fingerprint
+     * @return the tuned settings, or null if the fingerprint has not been tuned
+     */
+    public TuningCandidate load(String fingerprint) {
+        Path file = directory.resolve(fingerprint + ".properties");
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            Properties properties = new Properties();
+            properties.load(in);
+            return TuningCandidate.load(properties);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable tuning result {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Benchmarks the grid and persists the best settings.
+     *
+     * @param fingerprint the fingerprint the result is stored under
+     * @param start the settings the search starts from
+     * @param threadCounts the intra-op thread counts to try, or null to keep the start value
+     * @param interOpThreadCounts the inter-op thread counts to try (0 for sequential execution), or null
+     * @param batchSizes the batch sizes to try, or null
+     * @param benchmark measures the throughput of a candidate
+     * @return the best settings
+     * @throws LlmInferenceException if no candidate could be benchmarked
+     */
+    public TuningCandidate tune(String fingerprint, TuningCandidate start, List<Integer> threadCounts,
+                               List<Integer> interOpThreadCounts, List<Integer> batchSizes, Benchmark benchmark)
+            throws LlmInferenceException {
+        logger.info("Auto-tuning {} from {}", fingerprint, start);
+        long startTime = System.currentTimeMillis();
+        Trial best = new Trial(start, -1);
+
+        // Step 1: Intra-op threads
+        best = search(best, orStart(threadCounts, start.getThreads()), TuningCandidate::withThreads, benchmark);
+
+        // Step 2: Inter-op parallelism with the best thread count
+        best = search(best, orStart(interOpThreadCounts, start.getInterOpThreads()),
+                TuningCandidate::withInterOpThreads, benchmark);
+
+        // Step 3: Batch sizes with the best threads
+        best = search(best, orStart(batchSizes, start.getBatchSize()), TuningCandidate::withBatchSize, benchmark);
+
+        if (best.throughput < 0) {
+            throw new LlmInferenceException("No auto-tuning candidate could be benchmarked");
+        }
+        logger.info("Auto-tuned {} in {} s: {} ({} tokens/s)", fingerprint,
+                (System.currentTimeMillis() - startTime) / 1000, best.candidate,
+                String.format("%.1f", best.throughput));
+        store(fingerprint, best.candidate);
+        return best.candidate;
+    }
+
+    private Trial search(Trial best, List<Integer> values, Variation variation, Benchmark benchmark) {
+        Trial result = best;
+        for (int value : values) {
+            TuningCandidate candidate = variation.apply(best.candidate, value);
+            // The best of the previous stages has been measured already
+            if ((candidate.equals(best.candidate) && best.throughput >= 0)
+                    || (candidate.equals(result.candidate) && result.throughput >= 0)) {
+                continue;
+            }
+            try {
+                double throughput = benchmark.measure(candidate);
+                logger.info("Auto-tuning candidate {}: {} tokens/s", candidate, String.format("%.1f", throughput));
+                if (throughput > result.throughput) {
+                    result = new Trial(candidate, throughput);
+                }
+            } catch (Exception e) {
+                logger.warn("Auto-tuning candidate {} failed: {}", candidate, e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private void store(String fingerprint, TuningCandidate candidate) {
+        Path file = directory.resolve(fingerprint + ".properties");
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, fingerprint, ".tmp");
+            Properties properties = new Properties();
+            candidate.store(properties);
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                properties.store(out, "Auto-tuned settings");
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Failed to persist tuning result {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static List<Integer> orStart(List<Integer> values, int start) {
+        return values == null || values.isEmpty() ? Collections.singletonList(start) : values;
+    }
+
+    /**
+     * Reads the CPU model name on Linux, or returns an empty string.
+     */
+    private static String getCpuModel() {
+        Path cpuInfo = Paths.get("/proc/cpuinfo");
+        try {
+            if (Files.isReadable(cpuInfo)) {
+                for (String line : Files.readAllLines(cpuInfo)) {
+                    if (line.startsWith("model name")) {
+                        return line.substring(line.indexOf(':') + 1).trim();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Cannot read {}", cpuInfo, e);
+        }
+        return "";
+    }
+
+    @FunctionalInterface
+    private interface Variation {
+        TuningCandidate apply(TuningCandidate candidate, int value);
+    }
+
+    private static final class Trial {
+        private final TuningCandidate candidate;
+        private final double throughput;
+
+        private Trial(TuningCandidate candidate, double throughput) {
+            this.candidate = candidate;
+            this.throughput = throughput;
+        }
+    }
+}
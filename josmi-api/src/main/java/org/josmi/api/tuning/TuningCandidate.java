@@ -0,0 +1,121 @@
+package org.josmi.api.tuning;
+
+import org.josmi.api.config.LlmConfig;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * One point of the auto-tuning grid: the thread and batch settings of a service.
+ */
+public class TuningCandidate {
+
+    private final int threads;
+    private final int interOpThreads;
+    private final int batchSize;
+
+    /**
+     * Constructs a new TuningCandidate.
+     *
+     * @param threads the number of intra-op threads, 0 for the runtime default
+     * @param interOpThreads the number of inter-op threads, 0 for sequential execution
+     * @param batchSize the maximum batch size, 0 if the service does not batch
+     */
+    public TuningCandidate(int threads, int interOpThreads, int batchSize) {
+        this.threads = threads;
+        this.interOpThreads = interOpThreads;
+        this.batchSize = batchSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getInterOpThreads() {
+        return interOpThreads;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public TuningCandidate withThreads(int threads) {
+        return new TuningCandidate(threads, interOpThreads, batchSize);
+    }
+
+    public TuningCandidate withInterOpThreads(int interOpThreads) {
+        return new TuningCandidate(threads, interOpThreads, batchSize);
+    }
+
+    public TuningCandidate withBatchSize(int batchSize) {
+        return new TuningCandidate(threads, interOpThreads, batchSize);
+    }
+
+    /**
+     * Adds the settings of this candidate to a configuration map, keeping the values it already has.
+     *
+     * @param config the configuration map
+     */
+    public void apply(Map<String, Object> config) {
+        if (threads > 0) {
+            config.putIfAbsent(LlmConfig.THREADS, threads);
+        }
+        if (!config.containsKey(LlmConfig.EXECUTION_MODE) && !config.containsKey(LlmConfig.INTER_OP_THREADS)) {
+            config.put(LlmConfig.EXECUTION_MODE, interOpThreads > 0 ? "parallel" : "sequential");
+            if (interOpThreads > 0) {
+                config.put(LlmConfig.INTER_OP_THREADS, interOpThreads);
+            }
+        }
+        if (batchSize > 0) {
+            config.putIfAbsent(LlmConfig.MAX_BATCH_SIZE, batchSize);
+        }
+    }
+
+    /**
+     * Writes this candidate to properties.
+     *
+     * @param properties the properties
+     */
+    public void store(Properties properties) {
+        properties.setProperty(LlmConfig.THREADS, Integer.toString(threads));
+        properties.setProperty(LlmConfig.INTER_OP_THREADS, Integer.toString(interOpThreads));
+        properties.setProperty(LlmConfig.MAX_BATCH_SIZE, Integer.toString(batchSize));
+    }
+
+    /**
+     * Reads a candidate from properties.
+     *
+     * @param properties the properties
+     * @return the candidate
+     * @throws NumberFormatException if a setting is missing or malformed
+     */
+    public static TuningCandidate load(Properties properties) {
+        return new TuningCandidate(
+                Integer.parseInt(properties.getProperty(LlmConfig.THREADS)),
+                Integer.parseInt(properties.getProperty(LlmConfig.INTER_OP_THREADS)),
+                Integer.parseInt(properties.getProperty(LlmConfig.MAX_BATCH_SIZE)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TuningCandidate)) {
+            return false;
+        }
+        TuningCandidate that = (TuningCandidate) o;
+        return threads == that.threads && interOpThreads == that.interOpThreads && batchSize == that.batchSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(threads, interOpThreads, batchSize);
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + threads + ", interOpThreads=" + interOpThreads + ", batchSize=" + batchSize;
+    }
+}
@@ -0,0 +1,71 @@
+package org.josmi.api.manager;
+
+import org.josmi.api.LlmInferenceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link HotSwap}.
+ */
+public class HotSwapTest {
+
+    private final List<String> closed = new ArrayList<>();
+    private final HotSwap<String> versions = new HotSwap<>("v1", closed::add);
+
+    @Test
+    public void testSwapWhenIdle() throws Exception {
+        versions.swap("v2");
+        assertEquals(Collections.singletonList("v1"), closed);
+        try (HotSwap.Lease<String> lease = versions.acquire()) {
+            assertEquals("v2", lease.get());
+        }
+        assertEquals(Collections.singletonList("v1"), closed);
+    }
+
+    @Test
+    public void testSwapWithLeases() throws Exception {
+        HotSwap.Lease<String> first = versions.acquire();
+        HotSwap.Lease<String> second = versions.acquire();
+        versions.swap("v2");
+        assertEquals("v2", versions.getCurrent());
+        assertTrue(closed.isEmpty());
+
+        // The retired version is closed by its last lease only, and once
+        first.close();
+        first.close();
+        assertTrue(closed.isEmpty());
+        second.close();
+        assertEquals(Collections.singletonList("v1"), closed);
+    }
+
+    @Test
+    public void testCloseWithLeases() throws Exception {
+        HotSwap.Lease<String> lease = versions.acquire();
+        versions.close();
+        assertTrue(closed.isEmpty());
+        assertThrows(LlmInferenceException.class, versions::acquire);
+        assertThrows(LlmInferenceException.class, () -> versions.swap("v2"));
+
+        assertEquals("v1", lease.get());
+        lease.close();
+        assertEquals(Collections.singletonList("v1"), closed);
+        versions.close();
+        assertEquals(Collections.singletonList("v1"), closed);
+    }
+
+    @Test
+    public void testCloseClosesRetiredVersionsWithTheirLastLease() throws Exception {
+        HotSwap.Lease<String> lease = versions.acquire();
+        versions.swap("v2");
+        versions.close();
+        assertEquals(Collections.singletonList("v2"), closed);
+        lease.close();
+        assertEquals(Arrays.asList("v2", "v1"), closed);
+    }
+}
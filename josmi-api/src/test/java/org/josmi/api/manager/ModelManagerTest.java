@@ -0,0 +1,247 @@
+package org.josmi.api.manager;
+
+import org.josmi.api.LlmInferenceException;
+import org.josmi.api.LlmInferenceService;
+import org.josmi.api.LlmInferenceServiceFactory;
+import org.josmi.api.NativeMemoryUsage;
+import org.josmi.api.config.LlmConfig;
+import org.josmi.api.model.ChatRequest;
+import org.josmi.api.model.ChatResponse;
+import org.josmi.api.model.CompletionRequest;
+import org.josmi.api.model.CompletionResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ModelManager}, with a factory of fake services.
+ */
+public class ModelManagerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private final FakeFactory factory = new FakeFactory();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testEvictsIdleModelsBeforeModelsInUse() throws Exception {
+        ModelManager manager = manager(250, "a", 100, "b", 100, "c", 100, "big", 200);
+        Future<CompletionResponse> inFlight = executor.submit(() -> complete(manager, "a", true));
+        assertTrue(factory.entered.await(10, TimeUnit.SECONDS));
+        complete(manager, "b");
+
+        // b is idle and a is in use, so b goes
+        complete(manager, "c");
+        assertTrue(factory.service("b").closed);
+        assertFalse(factory.service("a").closed);
+        assertEquals(Arrays.asList("a", "c"), manager.getLoadedModels());
+        assertEquals(200 * MB, manager.getLoadedBytes());
+
+        // c goes first as it is idle, then a, which stays open until its request finishes
+        complete(manager, "big");
+        assertTrue(factory.service("c").closed);
+        assertFalse(factory.service("a").closed);
+        assertEquals(Collections.singletonList("big"), manager.getLoadedModels());
+        assertEquals(200 * MB, manager.getLoadedBytes());
+
+        factory.gate.countDown();
+        assertEquals("a", inFlight.get(10, TimeUnit.SECONDS).getMetadata().get(ModelManager.MODEL_PARAMETER));
+        assertTrue(factory.service("a").closed);
+        assertFalse(factory.service("big").closed);
+        manager.close();
+    }
+
+    @Test
+    public void testConcurrentAcquireSharesOneLoad() throws Exception {
+        ModelManager manager = manager(0, "a", 100);
+        factory.loadGate = new CountDownLatch(1);
+        List<Future<CompletionResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            responses.add(executor.submit(() -> complete(manager, "a", false)));
+        }
+        assertTrue(factory.loading.await(10, TimeUnit.SECONDS));
+        factory.loadGate.countDown();
+        for (Future<CompletionResponse> response : responses) {
+            assertEquals("ok", response.get(10, TimeUnit.SECONDS).getText());
+        }
+        assertEquals(1, factory.creates.get());
+        assertEquals(Collections.singletonList("a"), manager.getLoadedModels());
+        manager.close();
+    }
+
+    @Test
+    public void testUnloadModelInUse() throws Exception {
+        ModelManager manager = manager(0, "a", 100, "b", 100);
+        Future<CompletionResponse> inFlight = executor.submit(() -> complete(manager, "a", true));
+        assertTrue(factory.entered.await(10, TimeUnit.SECONDS));
+
+        assertTrue(manager.unload("a"));
+        assertFalse(factory.service("a").closed);
+        assertTrue(manager.getLoadedModels().isEmpty());
+        assertEquals(0, manager.getLoadedBytes());
+
+        factory.gate.countDown();
+        inFlight.get(10, TimeUnit.SECONDS);
+        assertTrue(factory.service("a").closed);
+
+        // Idle models are closed right away, and unloaded models load again on their next request
+        complete(manager, "b");
+        assertTrue(manager.unload("b"));
+        assertTrue(factory.service("b").closed);
+        assertFalse(manager.unload("b"));
+        complete(manager, "a");
+        assertEquals(3, factory.creates.get());
+        manager.close();
+        assertTrue(factory.service("a").closed);
+    }
+
+    /**
+     * Creates a manager of models given as name and memory in megabytes pairs.
+     */
+    private ModelManager manager(int budgetMb, Object... models) throws LlmInferenceException {
+        Map<String, Object> modelConfigs = new HashMap<>();
+        for (int i = 0; i < models.length; i += 2) {
+            Map<String, Object> modelConfig = new HashMap<>();
+            modelConfig.put(LlmConfig.MODEL_ID, models[i]);
+            modelConfig.put("memory.mb", models[i + 1]);
+            modelConfigs.put((String) models[i], modelConfig);
+        }
+        Map<String, Object> config = new HashMap<>();
+        config.put(LlmConfig.MODELS, modelConfigs);
+        config.put(LlmConfig.MODEL_MEMORY_BUDGET_MB, budgetMb);
+        return new ModelManager(factory, config);
+    }
+
+    private static CompletionResponse complete(ModelManager manager, String model) throws LlmInferenceException {
+        return complete(manager, model, false);
+    }
+
+    /**
+     * Sends a request to a model; a waiting request stays in flight until the gate of the factory opens.
+     */
+    private static CompletionResponse complete(ModelManager manager, String model, boolean wait)
+            throws LlmInferenceException {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(ModelManager.MODEL_PARAMETER, model);
+        parameters.put("wait", wait);
+        return manager.complete(CompletionRequest.builder().prompt("prompt").setParameters(parameters).build());
+    }
+
+    /**
+     * Creates fake services, optionally waiting for the load gate to open.
+     */
+    private static final class FakeFactory implements LlmInferenceServiceFactory {
+        private final Map<String, FakeService> services = new ConcurrentHashMap<>();
+        private final AtomicInteger creates = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final CountDownLatch loading = new CountDownLatch(1);
+        private volatile CountDownLatch loadGate;
+
+        @Override
+        public LlmInferenceService create(Map<String, Object> config) throws LlmInferenceException {
+            creates.incrementAndGet();
+            loading.countDown();
+            if (loadGate != null) {
+                await(loadGate);
+            }
+            String name = (String) config.get(LlmConfig.MODEL_ID);
+            FakeService service = new FakeService(this, ((Number) config.get("memory.mb")).longValue() * MB);
+            services.put(name, service);
+            return service;
+        }
+
+        private FakeService service(String name) {
+            return services.get(name);
+        }
+
+        @Override
+        public String getFactoryName() {
+            return "fake";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Fake services for tests";
+        }
+    }
+
+    private static final class FakeService implements LlmInferenceService, NativeMemoryUsage {
+        private final FakeFactory factory;
+        private final long memoryBytes;
+        private volatile boolean closed;
+
+        private FakeService(FakeFactory factory, long memoryBytes) {
+            this.factory = factory;
+            this.memoryBytes = memoryBytes;
+        }
+
+        @Override
+        public ChatResponse chat(ChatRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionResponse complete(CompletionRequest request) throws LlmInferenceException {
+            if (closed) {
+                throw new LlmInferenceException("Service is closed");
+            }
+            if (Boolean.TRUE.equals(request.getParameters().get("wait"))) {
+                factory.entered.countDown();
+                await(factory.gate);
+            }
+            return new CompletionResponse("ok", new HashMap<>());
+        }
+
+        @Override
+        public long getNativeMemoryBytes() {
+            return memoryBytes;
+        }
+
+        @Override
+        public String getServiceName() {
+            return "fake";
+        }
+
+        @Override
+        public boolean isReady() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws LlmInferenceException {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new LlmInferenceException("Timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LlmInferenceException("Interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.josmi.api.tuning;
+
+import org.josmi.api.LlmInferenceException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link AutoTuner}, with a fake benchmark.
+ */
+public class AutoTunerTest {
+
+    private static final String FINGERPRINT = "0123456789abcdef";
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Records the benchmarked candidates and scores them by their distance to a best candidate.
+     */
+    private static final class FakeBenchmark implements AutoTuner.Benchmark {
+        private final TuningCandidate peak;
+        private final List<TuningCandidate> measured = new ArrayList<>();
+
+        private FakeBenchmark(TuningCandidate peak) {
+            this.peak = peak;
+        }
+
+        @Override
+        public double measure(TuningCandidate candidate) {
+            measured.add(candidate);
+            return 1000.0 - Math.abs(candidate.getThreads() - peak.getThreads()) * 100
+                    - Math.abs(candidate.getInterOpThreads() - peak.getInterOpThreads()) * 10
+                    - Math.abs(candidate.getBatchSize() - peak.getBatchSize());
+        }
+    }
+
+    @Test
+    public void testStagedSearch() throws Exception {
+        AutoTuner tuner = new AutoTuner(directory);
+        FakeBenchmark benchmark = new FakeBenchmark(new TuningCandidate(4, 0, 4));
+        TuningCandidate best = tuner.tune(FINGERPRINT, new TuningCandidate(2, 1, 1), Arrays.asList(1, 2, 4, 8),
+                Arrays.asList(0, 1, 2), Arrays.asList(1, 4, 16), benchmark);
+        assertEquals(new TuningCandidate(4, 0, 4), best);
+
+        // Each stage starts from the best of the previous ones and skips the candidate already measured
+        assertEquals(Arrays.asList(
+                new TuningCandidate(1, 1, 1), new TuningCandidate(2, 1, 1), new TuningCandidate(4, 1, 1),
+                new TuningCandidate(8, 1, 1),
+                new TuningCandidate(4, 0, 1), new TuningCandidate(4, 2, 1),
+                new TuningCandidate(4, 0, 4), new TuningCandidate(4, 0, 16)), benchmark.measured);
+    }
+
+    @Test
+    public void testFixedDimensionsAreNotSearched() throws Exception {
+        AutoTuner tuner = new AutoTuner(directory);
+        TuningCandidate start = new TuningCandidate(2, 0, 8);
+
+        // Missing, empty and single-value dimensions keep the start value and are not benchmarked again
+        FakeBenchmark benchmark = new FakeBenchmark(new TuningCandidate(1, 2, 1));
+        assertEquals(new TuningCandidate(1, 0, 8), tuner.tune(FINGERPRINT, start, Arrays.asList(1, 2), null,
+                Collections.emptyList(), benchmark));
+        assertEquals(Arrays.asList(new TuningCandidate(1, 0, 8), new TuningCandidate(2, 0, 8)), benchmark.measured);
+
+        // Nothing to search still measures the start once
+        benchmark = new FakeBenchmark(start);
+        assertEquals(start, tuner.tune(FINGERPRINT, start, null, Collections.singletonList(0), null, benchmark));
+        assertEquals(Collections.singletonList(start), benchmark.measured);
+    }
+
+    @Test
+    public void testFailedCandidatesAreSkipped() throws Exception {
+        AutoTuner tuner = new AutoTuner(directory);
+        FakeBenchmark fake = new FakeBenchmark(new TuningCandidate(8, 0, 1));
+        AutoTuner.Benchmark benchmark = candidate -> {
+            if (candidate.getThreads() == 8) {
+                throw new IllegalStateException("Out of memory");
+            }
+            return fake.measure(candidate);
+        };
+        assertEquals(new TuningCandidate(4, 0, 1), tuner.tune(FINGERPRINT, new TuningCandidate(1, 0, 1),
+                Arrays.asList(1, 4, 8), null, null, benchmark));
+
+        // No result is stored when every candidate fails
+        AutoTuner.Benchmark failing = candidate -> {
+            throw new IllegalStateException("No model");
+        };
+        assertThrows(LlmInferenceException.class, () -> tuner.tune("fedcba9876543210", new TuningCandidate(1, 0, 1),
+                Arrays.asList(1, 2), null, null, failing));
+        assertNull(tuner.load("fedcba9876543210"));
+    }
+
+    @Test
+    public void testResultIsPersisted() throws Exception {
+        Path tuningDirectory = directory.resolve("tuning");
+        AutoTuner tuner = new AutoTuner(tuningDirectory);
+        assertNull(tuner.load(FINGERPRINT));
+
+        tuner.tune(FINGERPRINT, new TuningCandidate(1, 0, 1), Arrays.asList(1, 2), null, null,
+                new FakeBenchmark(new TuningCandidate(2, 0, 1)));
+        assertEquals(new TuningCandidate(2, 0, 1), new AutoTuner(tuningDirectory).load(FINGERPRINT));
+
+        // Tuning again replaces the result, and the temporary files are moved into place
+        tuner.tune(FINGERPRINT, new TuningCandidate(1, 0, 1), Arrays.asList(1, 2), null, Arrays.asList(1, 4),
+                new FakeBenchmark(new TuningCandidate(1, 0, 4)));
+        assertEquals(new TuningCandidate(1, 0, 4), tuner.load(FINGERPRINT));
+        assertEquals(Collections.singletonList(FINGERPRINT + ".properties"), list(tuningDirectory));
+    }
+
+    @Test
+    public void testUnreadableResultIsIgnored() throws Exception {
+        AutoTuner tuner = new AutoTuner(directory);
+        Files.write(directory.resolve(FINGERPRINT + ".properties"), "threads=four\n".getBytes());
+        assertNull(tuner.load(FINGERPRINT));
+    }
+
+    @Test
+    public void testFingerprint() throws Exception {
+        Path model = directory.resolve("model.onnx");
+        Files.write(model, new byte[]{1, 2, 3});
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("engine", "native");
+        settings.put("device", "cpu");
+        String fingerprint = AutoTuner.fingerprint("ort", model, settings);
+        assertTrue(fingerprint.matches("[0-9a-f]{16}"));
+
+        // The order of the settings does not matter
+        Map<String, Object> reordered = new LinkedHashMap<>();
+        reordered.put("device", "cpu");
+        reordered.put("engine", "native");
+        assertEquals(fingerprint, AutoTuner.fingerprint("ort", model, reordered));
+        assertEquals(fingerprint, AutoTuner.fingerprint("ort", directory.resolve("./model.onnx"), settings));
+
+        // The service, the settings and the model file do
+        assertNotEquals(fingerprint, AutoTuner.fingerprint("djl-ort", model, settings));
+        assertNotEquals(fingerprint, AutoTuner.fingerprint("ort", model, Collections.singletonMap("engine", "genai")));
+        FileTime modified = Files.getLastModifiedTime(model);
+        Files.write(model, new byte[]{1, 2, 3, 4});
+        Files.setLastModifiedTime(model, modified);
+        String resized = AutoTuner.fingerprint("ort", model, settings);
+        assertNotEquals(fingerprint, resized);
+        Files.setLastModifiedTime(model, FileTime.fromMillis(modified.toMillis() + 60_000));
+        assertNotEquals(resized, AutoTuner.fingerprint("ort", model, settings));
+
+        assertThrows(LlmInferenceException.class,
+                () -> AutoTuner.fingerprint("ort", directory.resolve("missing.onnx"), settings));
+    }
+
+    @Test
+    public void testThreadCounts() {
+        List<Integer> counts = AutoTuner.threadCounts();
+        int processors = Runtime.getRuntime().availableProcessors();
+        assertEquals(1, counts.get(0));
+        assertEquals(processors, counts.get(counts.size() - 1));
+        assertTrue(counts.contains(Math.max(1, processors / 2)));
+        for (int i = 1; i < counts.size(); i++) {
+            assertTrue(counts.get(i) > counts.get(i - 1));
+        }
+    }
+
+    private static List<String> list(Path directory) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> names.add(file.getFileName().toString()));
+        }
+        return names;
+    }
+}
@@ -1,48 +1,92 @@
 package org.josmi.djl.ort;
 
 import ai.djl.Device;
-import ai.djl.MalformedModelException;
+import ai.djl.Model;
+import ai.djl.engine.Engine;
 import ai.djl.inference.Predictor;
 import ai.djl.ndarray.NDList;
 import ai.djl.onnxruntime.engine.OrtEngine;
-import ai.djl.repository.zoo.Criteria;
-import ai.djl.repository.zoo.ModelNotFoundException;
-import ai.djl.repository.zoo.ModelZoo;
+import ai.djl.onnxruntime.engine.OrtNDManager;
+import ai.djl.onnxruntime.engine.OrtSymbolBlock;
 import ai.djl.repository.zoo.ZooModel;
 import ai.djl.translate.TranslateException;
 import ai.djl.translate.Translator;
 import ai.djl.translate.TranslatorContext;
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtProvider;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
 import org.josmi.api.AbstractLlmInferenceService;
 import org.josmi.api.LlmInferenceException;
 import org.josmi.api.config.LlmConfig;
+import org.josmi.api.manager.HotSwap;
 import org.josmi.api.model.ChatRequest;
 import org.josmi.api.model.ChatResponse;
 import org.josmi.api.model.CompletionRequest;
 import org.josmi.api.model.CompletionResponse;
 import org.josmi.api.model.Message;
+import org.josmi.api.tuning.AutoTuner;
+import org.josmi.api.tuning.TuningCandidate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implementation of LlmInferenceService using Deep Java Library with ONNX Runtime engine.
+ * <p>
+ * {@link #swapModel(Map)} replaces the model of a live service: requests started before
+ * the swap finish on the previous model, see {@link HotSwap}.
  */
 public class DjlOrtLlmInferenceService extends AbstractLlmInferenceService {
 
     private static final Logger logger = LoggerFactory.getLogger(DjlOrtLlmInferenceService.class);
 
+    /**
+     * System property set once the ONNX Runtime environment of the JVM has been created with global thread pools.
+     */
+    static final String GLOBAL_THREAD_POOLS_PROPERTY = "josmi.ort.globalThreadPools";
+
+    private static final String DJL_THREADS_PROPERTY = "ai.djl.onnxruntime.num_threads";
+    private static final String DJL_INTER_OP_THREADS_PROPERTY = "ai.djl.onnxruntime.num_interop_threads";
+
+    private static final String PROVIDER_CPU = "cpu";
+    private static final String PROVIDER_DNNL = "dnnl";
+    private static final String PROVIDER_XNNPACK = "xnnpack";
+
+    /** Size of the symbolic dimensions, other than the batch, of the auto-tuning inputs. */
+    private static final int BENCHMARK_SEQUENCE_LENGTH = 32;
+    private static final int BENCHMARK_RUNS = 8;
+
     private ZooModel<String, String> model;
+    private OrtSession session;
+    private OrtSession.SessionOptions sessionOptions;
+    private boolean globalThreadPools;
     private Predictor<String, String> predictor;
     private final AtomicBoolean initialized = new AtomicBoolean(false);
     private final String modelPath;
     private final Device device;
+    private final String executionProvider;
     private final int threads;
+    // The service, or the versions of its model swapped in after it, serve the requests
+    private final HotSwap<DjlOrtLlmInferenceService> versions =
+            new HotSwap<>(this, DjlOrtLlmInferenceService::closeModel);
+    private Map<String, Object> loadConfig;
 
     /**
      * Constructs a new DjlOrtLlmInferenceService with the specified configuration.
@@ -52,6 +96,8 @@ public class DjlOrtLlmInferenceService extends AbstractLlmInferenceService {
      */
     public DjlOrtLlmInferenceService(Map<String, Object> config) throws LlmInferenceException {
         super("djl-ort", config);
+        // Before auto-tuning adds the settings tuned for this model
+        this.loadConfig = new HashMap<>(config);
         
         try {
             this.modelPath = getConfigString(LlmConfig.MODEL_PATH, null);
@@ -60,13 +106,21 @@ public class DjlOrtLlmInferenceService extends AbstractLlmInferenceService {
                 throw new LlmInferenceException("Model path is required");
             }
             
-            // Get device configuration
+            // Get device configuration: "gpu", or the CPU execution providers in order of preference
             String deviceName = getConfigString(LlmConfig.DEVICE, "cpu").toLowerCase();
             this.device = "gpu".equals(deviceName) ? Device.gpu() : Device.cpu();
+            this.executionProvider = "gpu".equals(deviceName) ? PROVIDER_CPU : selectExecutionProvider(deviceName);
+            
+            if (getConfigBoolean(LlmConfig.AUTO_TUNE, false)) {
+                autoTune();
+            }
             
             // Get thread configuration
             this.threads = getConfigInt(LlmConfig.THREADS, 0);
             
+            // Size the global thread pools before DJL's engine creates them
+            createEnvironment();
+            
             initialize();
         } catch (Exception e) {
             throw new LlmInferenceException("Failed to create DjlOrtLlmInferenceService", e);
@@ -86,33 +140,431 @@ public class DjlOrtLlmInferenceService extends AbstractLlmInferenceService {
         try {
             logger.info("Initializing DjlOrtLlmInferenceService with model: {}", modelPath);
             
-            // Create criteria for loading the model
-            Criteria.Builder<String, String> criteriaBuilder = Criteria.builder()
-                    .setTypes(String.class, String.class)
-                    .optModelPath(Paths.get(modelPath))
-                    .optEngine(OrtEngine.ENGINE_NAME)
-                    .optDevice(device)
-                    .optTranslator(new LlmTranslator());
-            
-            // Set thread configuration if specified
-            if (threads > 0) {
-                criteriaBuilder.optOption("intra_op_num_threads", String.valueOf(threads));
-            }
-            
-            // Load the model
-            model = ModelZoo.loadModel(criteriaBuilder.build());
+            // Load the model with session options built from the configuration, which DJL
+            // cannot receive through Criteria options, into a session of our own as DJL does,
+            // so that it can be warmed up
+            Path modelDirectory = Paths.get(modelPath);
+            sessionOptions = createSessionOptions();
+            Model ortModel = Model.newInstance(modelDirectory.getFileName().toString(), device, OrtEngine.ENGINE_NAME);
+            session = OrtEnvironment.getEnvironment().createSession(findModelFile(modelDirectory).toString(),
+                    sessionOptions);
+            ortModel.setBlock(new OrtSymbolBlock(session, (OrtNDManager) ortModel.getNDManager()));
+            model = new ZooModel<>(ortModel, new LlmTranslator());
             predictor = model.newPredictor();
             
             initialized.set(true);
             ready = true;
             logger.info("DjlOrtLlmInferenceService initialized successfully");
-        } catch (IOException | ModelNotFoundException | MalformedModelException e) {
+        } catch (OrtException e) {
             throw new LlmInferenceException("Failed to initialize DjlOrtLlmInferenceService", e);
         }
     }
 
+    /**
+     * Sets up global thread pools if configured. DJL's engine creates the ONNX Runtime
+     * environment of the JVM with global pools sized by system properties, so the first
+     * service to start the engine sizes the pools, and every later session in the JVM
+     * shares them.
+     */
+    private void createEnvironment() {
+        if (!getConfigBoolean(LlmConfig.GLOBAL_THREAD_POOLS, false)) {
+            return;
+        }
+        
+        synchronized (OrtEnvironment.class) {
+            if (threads > 0 && System.getProperty(DJL_THREADS_PROPERTY) == null) {
+                System.setProperty(DJL_THREADS_PROPERTY, String.valueOf(threads));
+            }
+            int interOpThreads = getConfigInt(LlmConfig.INTER_OP_THREADS, 0);
+            if (interOpThreads > 0 && System.getProperty(DJL_INTER_OP_THREADS_PROPERTY) == null) {
+                System.setProperty(DJL_INTER_OP_THREADS_PROPERTY, String.valueOf(interOpThreads));
+            }
+            Engine.getEngine(OrtEngine.ENGINE_NAME);
+            System.setProperty(GLOBAL_THREAD_POOLS_PROPERTY, "true");
+            globalThreadPools = true;
+        }
+        
+        if (!getConfigBoolean(LlmConfig.THREAD_SPINNING, true)
+                || getConfigString(LlmConfig.THREAD_AFFINITY, null) != null) {
+            logger.warn("Thread spinning and affinity cannot be set on DJL's global thread pools and are ignored");
+        }
+    }
+
+    /**
+     * Selects the first CPU execution provider of a device setting that this ONNX Runtime build
+     * supports and that loads, falling back to the default CPU provider.
+     *
+     * @param deviceName the device setting, a ',' separated list of "cpu", "dnnl" and "xnnpack";
+     *                   other names are logged and skipped
+     * @return the selected provider
+     */
+    private String selectExecutionProvider(String deviceName) {
+        for (String name : deviceName.split(",")) {
+            String provider = name.trim();
+            OrtProvider ortProvider;
+            switch (provider) {
+                case PROVIDER_CPU:
+                    return PROVIDER_CPU;
+                case PROVIDER_DNNL:
+                    ortProvider = OrtProvider.DNNL;
+                    break;
+                case PROVIDER_XNNPACK:
+                    ortProvider = OrtProvider.XNNPACK;
+                    break;
+                default:
+                    logger.warn("Ignoring device {}, which is not a CPU execution provider", provider);
+                    continue;
+            }
+            if (!OrtEnvironment.getAvailableProviders().contains(ortProvider)) {
+                logger.warn("Execution provider {} is not included in this ONNX Runtime build", provider);
+                continue;
+            }
+            // Shared providers can be listed and still fail to load their library
+            try (OrtSession.SessionOptions probe = new OrtSession.SessionOptions()) {
+                addExecutionProvider(probe, provider, config);
+                logger.info("Using execution provider {}", provider);
+                return provider;
+            } catch (OrtException e) {
+                logger.warn("Execution provider {} cannot be loaded: {}", provider, e.getMessage());
+            }
+        }
+        return PROVIDER_CPU;
+    }
+
+    /**
+     * Adds a CPU execution provider to session options. The default CPU provider needs no registration.
+     *
+     * @param options the session options
+     * @param provider the provider name
+     * @param config the configuration
+     * @throws OrtException if the provider cannot be loaded
+     */
+    private static void addExecutionProvider(OrtSession.SessionOptions options, String provider,
+                                             Map<String, Object> config) throws OrtException {
+        LlmConfig settings = new LlmConfig(config);
+        if (PROVIDER_DNNL.equals(provider)) {
+            options.addDnnl(settings.getBoolean(LlmConfig.CPU_ARENA, true));
+        } else if (PROVIDER_XNNPACK.equals(provider)) {
+            // XNNPACK has its own thread pool, sized like the intra-op pool
+            int threads = settings.getInt(LlmConfig.THREADS, 0);
+            options.addXnnpack(threads > 0
+                    ? Collections.singletonMap("intra_op_num_threads", Integer.toString(threads))
+                    : Collections.emptyMap());
+        }
+    }
+
+    /**
+     * Applies the auto-tuned thread settings of the model on this host, benchmarking them
+     * first if the model has not been tuned yet. The model is benchmarked by running its
+     * session on synthetic inputs, as the translator does not generate text. Settings in the
+     * configuration are kept and not searched.
+     *
+     * @throws Exception if the model cannot be benchmarked
+     */
+    private void autoTune() throws Exception {
+        if (getConfigBoolean(LlmConfig.GLOBAL_THREAD_POOLS, false)) {
+            logger.warn("Auto-tuning searches per-session thread settings and is ignored with global thread pools");
+            return;
+        }
+        Path modelFile = findModelFile(Paths.get(modelPath));
+        AutoTuner tuner = new AutoTuner(Paths.get(getConfigString(LlmConfig.AUTO_TUNE_PATH,
+                AutoTuner.DEFAULT_DIRECTORY.toString())));
+        Map<String, Object> settings = new TreeMap<>();
+        settings.put(LlmConfig.DEVICE, executionProvider);
+        for (String key : Arrays.asList(LlmConfig.THREADS, LlmConfig.INTER_OP_THREADS, LlmConfig.EXECUTION_MODE)) {
+            // Settings fixed by the configuration are part of what was tuned
+            if (config.containsKey(key)) {
+                settings.put(key, config.get(key));
+            }
+        }
+        String fingerprint = AutoTuner.fingerprint(serviceName, modelFile, settings);
+
+        TuningCandidate tuned = tuner.load(fingerprint);
+        if (tuned == null) {
+            boolean threadsFixed = config.containsKey(LlmConfig.THREADS);
+            boolean interOpFixed = config.containsKey(LlmConfig.INTER_OP_THREADS)
+                    || config.containsKey(LlmConfig.EXECUTION_MODE);
+            int processors = Runtime.getRuntime().availableProcessors();
+            TuningCandidate start = new TuningCandidate(getConfigInt(LlmConfig.THREADS, 0),
+                    getConfigInt(LlmConfig.INTER_OP_THREADS, 0), 0);
+            // DJL's engine must create the environment of the JVM before any session
+            Engine.getEngine(OrtEngine.ENGINE_NAME);
+            OrtEnvironment environment = OrtEnvironment.getEnvironment();
+            tuned = tuner.tune(fingerprint, start,
+                    threadsFixed ? null : AutoTuner.threadCounts(),
+                    interOpFixed || processors < 2 ? null : Arrays.asList(0, 2),
+                    null,
+                    candidate -> benchmark(environment, modelFile, candidate, threadsFixed, interOpFixed));
+        }
+        tuned.apply(config);
+        logger.info("Using auto-tuned settings: {}", tuned);
+    }
+
+    /**
+     * Measures the throughput of a model with the settings of a tuning candidate, on a trial session.
+     *
+     * @param environment the ONNX Runtime environment
+     * @param modelFile the model file
+     * @param candidate the candidate settings
+     * @param threadsFixed whether the intra-op threads are fixed by the configuration
+     * @param interOpFixed whether the inter-op settings are fixed by the configuration
+     * @return the throughput in input tokens per second
+     * @throws Exception if the trial session cannot be created or run
+     */
+    private double benchmark(OrtEnvironment environment, Path modelFile, TuningCandidate candidate,
+                             boolean threadsFixed, boolean interOpFixed) throws Exception {
+        Map<String, Object> trialConfig = new HashMap<>(config);
+        if (!threadsFixed) {
+            trialConfig.remove(LlmConfig.THREADS);
+        }
+        if (!interOpFixed) {
+            trialConfig.remove(LlmConfig.INTER_OP_THREADS);
+            trialConfig.remove(LlmConfig.EXECUTION_MODE);
+        }
+        candidate.apply(trialConfig);
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try (OrtSession.SessionOptions options = createSessionOptions(trialConfig);
+             OrtSession session = environment.createSession(modelFile.toString(), options)) {
+            for (NodeInfo input : session.getInputInfo().values()) {
+                inputs.put(input.getName(), createBenchmarkInput(environment, input));
+            }
+            session.run(inputs).close();
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_RUNS; i++) {
+                session.run(inputs).close();
+            }
+            return (double) BENCHMARK_RUNS * BENCHMARK_SEQUENCE_LENGTH * 1e9 / (System.nanoTime() - start);
+        } finally {
+            inputs.values().forEach(OnnxTensor::close);
+        }
+    }
+
+    /**
+     * Creates a synthetic input of one sequence for a model input: ones for integer inputs
+     * such as token ids and masks, zeros for floating point inputs. Symbolic dimensions
+     * named after the past sequence are empty.
+     *
+     * @param environment the ONNX Runtime environment
+     * @param input the input description
+     * @return the input tensor
+     * @throws OrtException if the tensor cannot be created
+     * @throws LlmInferenceException if the input is not a tensor of a supported type
+     */
+    private static OnnxTensor createBenchmarkInput(OrtEnvironment environment, NodeInfo input)
+            throws OrtException, LlmInferenceException {
+        if (!(input.getInfo() instanceof TensorInfo)) {
+            throw new LlmInferenceException("Cannot benchmark non-tensor input " + input.getName());
+        }
+        TensorInfo info = (TensorInfo) input.getInfo();
+        long[] shape = info.getShape();
+        String[] dimensionNames = info.getDimensionNames();
+        long elements = 1;
+        for (int i = 0; i < shape.length; i++) {
+            if (shape[i] < 0) {
+                // An empty cache for past key/value inputs, so the sequence lengths of all inputs agree
+                boolean past = dimensionNames[i] != null && dimensionNames[i].toLowerCase().contains("past");
+                shape[i] = i == 0 ? 1 : past ? 0 : BENCHMARK_SEQUENCE_LENGTH;
+            }
+            elements *= shape[i];
+        }
+        OnnxJavaType type = info.type;
+        if (type != OnnxJavaType.INT64 && type != OnnxJavaType.INT32 && type != OnnxJavaType.FLOAT) {
+            throw new LlmInferenceException("Cannot benchmark input " + input.getName() + " of type " + type);
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) (elements * type.size)).order(ByteOrder.nativeOrder());
+        for (long i = 0; i < elements; i++) {
+            if (type == OnnxJavaType.INT64) {
+                data.putLong(1L);
+            } else if (type == OnnxJavaType.INT32) {
+                data.putInt(1);
+            } else {
+                data.putFloat(0f);
+            }
+        }
+        data.rewind();
+        return OnnxTensor.createTensor(environment, data, shape, type);
+    }
+
+    /**
+     * Finds the ONNX file DJL loads from a model directory: the file named after the
+     * directory, or model.onnx.
+     *
+     * @param modelDirectory the model directory, or the model file itself
+     * @return the model file
+     * @throws LlmInferenceException if no model file is found
+     */
+    private static Path findModelFile(Path modelDirectory) throws LlmInferenceException {
+        if (Files.isRegularFile(modelDirectory)) {
+            return modelDirectory;
+        }
+        for (String name : Arrays.asList(modelDirectory.getFileName() + ".onnx", "model.onnx")) {
+            Path modelFile = modelDirectory.resolve(name);
+            if (Files.isRegularFile(modelFile)) {
+                return modelFile;
+            }
+        }
+        throw new LlmInferenceException("No ONNX model file found in " + modelDirectory);
+    }
+
+    /**
+     * Creates the session options from the thread configuration.
+     *
+     * @return the session options
+     * @throws OrtException if an option is invalid
+     * @throws LlmInferenceException if the execution mode is unknown
+     */
+    private OrtSession.SessionOptions createSessionOptions() throws OrtException, LlmInferenceException {
+        OrtSession.SessionOptions options = createSessionOptions(config);
+        if (globalThreadPools) {
+            options.disablePerSessionThreads();
+        }
+        return options;
+    }
+
+    /**
+     * Creates session options from a configuration.
+     *
+     * @param config the configuration
+     * @return the session options
+     * @throws OrtException if an option is invalid
+     * @throws LlmInferenceException if the execution mode is unknown
+     */
+    private OrtSession.SessionOptions createSessionOptions(Map<String, Object> config)
+            throws OrtException, LlmInferenceException {
+        return createSessionOptions(config, device, executionProvider, globalThreadPools);
+    }
+
+    /**
+     * Creates session options from a configuration. As the sessions are created here rather than
+     * by DJL, a GPU device registers the CUDA execution provider, with the CPU for the operators
+     * it does not run.
+     *
+     * @param config the configuration
+     * @param device the device of the model
+     * @param executionProvider the CPU execution provider
+     * @param globalThreadPools whether the sessions share the global thread pools
+     * @return the session options
+     * @throws OrtException if an option is invalid or CUDA cannot be loaded
+     * @throws LlmInferenceException if the execution mode is unknown
+     */
+    static OrtSession.SessionOptions createSessionOptions(Map<String, Object> config, Device device,
+                                                         String executionProvider, boolean globalThreadPools)
+            throws OrtException, LlmInferenceException {
+        LlmConfig settings = new LlmConfig(config);
+        OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+        String executionMode = settings.getString(LlmConfig.EXECUTION_MODE, "sequential");
+        switch (executionMode.toLowerCase()) {
+            case "sequential":
+                options.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.SEQUENTIAL);
+                break;
+            case "parallel":
+                options.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.PARALLEL);
+                break;
+            default:
+                options.close();
+                throw new LlmInferenceException("Unknown execution mode: " + executionMode);
+        }
+        try {
+            if (device.isGpu()) {
+                options.addCUDA(device.getDeviceId());
+            }
+            addExecutionProvider(options, executionProvider, config);
+        } catch (OrtException e) {
+            options.close();
+            throw e;
+        }
+        if (globalThreadPools) {
+            return options;
+        }
+        
+        // Set number of threads if specified
+        int threads = settings.getInt(LlmConfig.THREADS, 0);
+        if (threads > 0) {
+            options.setIntraOpNumThreads(threads);
+        }
+        int interOpThreads = settings.getInt(LlmConfig.INTER_OP_THREADS, 0);
+        if (interOpThreads > 0) {
+            options.setInterOpNumThreads(interOpThreads);
+        }
+        String spinning = settings.getBoolean(LlmConfig.THREAD_SPINNING, true) ? "1" : "0";
+        options.addConfigEntry("session.intra_op.allow_spinning", spinning);
+        options.addConfigEntry("session.inter_op.allow_spinning", spinning);
+        String affinity = settings.getString(LlmConfig.THREAD_AFFINITY, null);
+        if (affinity != null) {
+            options.addConfigEntry("session.intra_op_thread_affinities", affinity);
+        }
+        return options;
+    }
+
     @Override
     protected ChatResponse doChatInference(ChatRequest request) throws Exception {
+        try (HotSwap.Lease<DjlOrtLlmInferenceService> model = versions.acquire()) {
+            return model.get().generateChat(request);
+        }
+    }
+
+    @Override
+    protected CompletionResponse doCompletionInference(CompletionRequest request) throws Exception {
+        try (HotSwap.Lease<DjlOrtLlmInferenceService> model = versions.acquire()) {
+            return model.get().generateCompletion(request);
+        }
+    }
+
+    /**
+     * Loads a new version of the model and switches the service to it without interrupting requests.
+     * The new version is loaded and warmed up while the current one keeps serving; then new requests
+     * go to the new version, and the current one is closed once its in-flight requests finish.
+     * If the new version fails to load, the current one stays in service.
+     *
+     * @param modelConfig the configuration of the new version, e.g. its model path, over the
+     *                    configuration of the current one
+     * @throws LlmInferenceException if the new version cannot be loaded or the service is closed
+     */
+    public void swapModel(Map<String, Object> modelConfig) throws LlmInferenceException {
+        synchronized (versions) {
+            Map<String, Object> nextConfig = new HashMap<>(loadConfig);
+            nextConfig.putAll(modelConfig);
+            logger.info("Loading new model version from {}", nextConfig.get(LlmConfig.MODEL_PATH));
+            long start = System.currentTimeMillis();
+            DjlOrtLlmInferenceService next = new DjlOrtLlmInferenceService(nextConfig);
+            boolean swapped = false;
+            try {
+                next.warmUp();
+                versions.swap(next);
+                swapped = true;
+            } finally {
+                // Whatever failed, the new version never served a request
+                if (!swapped) {
+                    next.closeModel();
+                }
+            }
+            loadConfig = nextConfig;
+            logger.info("Switched to model {} in {} ms", next.modelPath, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Runs the session on synthetic inputs so that the first requests do not pay for its first runs.
+     *
+     * @throws LlmInferenceException if the session fails to run
+     */
+    private void warmUp() throws LlmInferenceException {
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            for (NodeInfo input : session.getInputInfo().values()) {
+                inputs.put(input.getName(), createBenchmarkInput(environment, input));
+            }
+            session.run(inputs).close();
+        } catch (OrtException e) {
+            throw new LlmInferenceException("Failed to warm up model " + modelPath, e);
+        } finally {
+            inputs.values().forEach(OnnxTensor::close);
+        }
+    }
+
+    private ChatResponse generateChat(ChatRequest request) throws Exception {
         if (!initialized.get()) {
             throw new LlmInferenceException("Service not initialized");
         }
@@ -151,8 +603,7 @@ public class DjlOrtLlmInferenceService extends AbstractLlmInferenceService {
         }
     }
 
-    @Override
-    protected CompletionResponse doCompletionInference(CompletionRequest request) throws Exception {
+    private CompletionResponse generateCompletion(CompletionRequest request) throws Exception {
         if (!initialized.get()) {
             throw new LlmInferenceException("Service not initialized");
         }
@@ -235,6 +686,15 @@ public class DjlOrtLlmInferenceService extends AbstractLlmInferenceService {
 
     @Override
     public void close() {
+        versions.close();
+        ready = false;
+        logger.info("DjlOrtLlmInferenceService closed");
+    }
+
+    /**
+     * Releases the model, its session and its session options.
+     */
+    private void closeModel() {
         if (initialized.get()) {
             try {
                 if (predictor != null) {
@@ -243,11 +703,13 @@ public class DjlOrtLlmInferenceService extends AbstractLlmInferenceService {
                 if (model != null) {
                     model.close();
                 }
+                if (sessionOptions != null) {
+                    sessionOptions.close();
+                }
                 initialized.set(false);
-                ready = false;
-                logger.info("DjlOrtLlmInferenceService closed");
+                logger.info("Closed model {}", modelPath);
             } catch (Exception e) {
-                logger.error("Error closing DjlOrtLlmInferenceService", e);
+                logger.error("Error closing model {}", modelPath, e);
             }
         }
     }
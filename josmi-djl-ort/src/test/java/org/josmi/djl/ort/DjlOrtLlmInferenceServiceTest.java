@@ -0,0 +1,53 @@
+package org.josmi.djl.ort;
+
+import ai.djl.Device;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtProvider;
+import ai.onnxruntime.OrtSession;
+import org.josmi.api.LlmInferenceException;
+import org.josmi.api.config.LlmConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the session options of {@link DjlOrtLlmInferenceService}.
+ */
+public class DjlOrtLlmInferenceServiceTest {
+
+    @Test
+    public void testGpuDeviceRegistersCuda() throws Exception {
+        Map<String, Object> config = Collections.singletonMap(LlmConfig.DEVICE, "gpu");
+        if (OrtEnvironment.getAvailableProviders().contains(OrtProvider.CUDA)) {
+            DjlOrtLlmInferenceService.createSessionOptions(config, Device.gpu(), "cpu", false).close();
+        } else {
+            // Without CUDA the options fail rather than silently running on the CPU
+            OrtException e = assertThrows(OrtException.class,
+                    () -> DjlOrtLlmInferenceService.createSessionOptions(config, Device.gpu(), "cpu", false));
+            assertTrue(e.getMessage().contains("CUDA"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCpuDevice() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put(LlmConfig.DEVICE, "cpu");
+        config.put(LlmConfig.THREADS, 2);
+        try (OrtSession.SessionOptions options =
+                     DjlOrtLlmInferenceService.createSessionOptions(config, Device.cpu(), "cpu", false)) {
+            assertNotNull(options);
+        }
+    }
+
+    @Test
+    public void testUnknownExecutionMode() {
+        Map<String, Object> config = Collections.singletonMap(LlmConfig.EXECUTION_MODE, "eager");
+        assertThrows(LlmInferenceException.class,
+                () -> DjlOrtLlmInferenceService.createSessionOptions(config, Device.cpu(), "cpu", false));
+    }
+}
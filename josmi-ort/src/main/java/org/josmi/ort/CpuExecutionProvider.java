@@ -0,0 +1,154 @@
+package org.josmi.ort;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtProvider;
+import ai.onnxruntime.OrtSession;
+import org.josmi.api.LlmInferenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ONNX Runtime execution providers that run a model on the CPU.
+ * <p>
+ * The {@link org.josmi.api.config.LlmConfig#DEVICE} setting lists them in order of
+ * preference, e.g. "dnnl,xnnpack": the first one that this ONNX Runtime build supports
+ * is used, and the default CPU provider is always the last resort. Nodes that an
+ * accelerated provider cannot run fall back to the default CPU provider within the
+ * same session.
+ */
+public enum CpuExecutionProvider {
+
+    /** The default CPU kernels (MLAS). */
+    DEFAULT("cpu", OrtProvider.CPU),
+
+    /** The oneDNN kernels, tuned for recent Intel and AMD CPUs. */
+    DNNL("dnnl", OrtProvider.DNNL),
+
+    /** The XNNPACK kernels, tuned for ARM and mobile CPUs. */
+    XNNPACK("xnnpack", OrtProvider.XNNPACK);
+
+    private static final Logger logger = LoggerFactory.getLogger(CpuExecutionProvider.class);
+
+    private final String name;
+    private final OrtProvider provider;
+
+    CpuExecutionProvider(String name, OrtProvider provider) {
+        this.name = name;
+        this.provider = provider;
+    }
+
+    /**
+     * Gets the name of the provider in the {@link org.josmi.api.config.LlmConfig#DEVICE} setting.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds the provider to session options. The default CPU provider needs no registration.
+     *
+     * @param options the session options
+     * @param threads the number of intra-op threads, 0 for the default
+     * @param cpuArena whether the provider allocates from an arena
+     * @throws OrtException if this ONNX Runtime build cannot load the provider
+     */
+    public void addTo(OrtSession.SessionOptions options, int threads, boolean cpuArena) throws OrtException {
+        switch (this) {
+            case DNNL:
+                options.addDnnl(cpuArena);
+                break;
+            case XNNPACK:
+                // XNNPACK has its own thread pool, sized like the intra-op pool
+                options.addXnnpack(threads > 0
+                        ? Collections.singletonMap("intra_op_num_threads", Integer.toString(threads))
+                        : Collections.emptyMap());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Parses a provider name.
+     *
+     * @param name the provider name ("cpu", "dnnl" or "xnnpack")
+     * @return the provider
+     * @throws LlmInferenceException if the name is unknown
+     */
+    public static CpuExecutionProvider fromName(String name) throws LlmInferenceException {
+        for (CpuExecutionProvider provider : values()) {
+            if (provider.name.equalsIgnoreCase(name.trim())) {
+                return provider;
+            }
+        }
+        throw new LlmInferenceException("Unknown CPU execution provider: " + name);
+    }
+
+    /**
+     * Parses a device setting into the providers it lists, in order of preference. Names that
+     * are not CPU execution providers, such as "cuda", are logged and skipped, so the model
+     * runs on the providers that remain.
+     *
+     * @param device the device setting, a ',' separated list of provider names
+     * @return the providers, ending with the default CPU provider
+     */
+    public static List<CpuExecutionProvider> parse(String device) {
+        List<CpuExecutionProvider> providers = new ArrayList<>();
+        for (String name : device.split(",")) {
+            CpuExecutionProvider provider;
+            try {
+                provider = fromName(name);
+            } catch (LlmInferenceException e) {
+                logger.warn("Ignoring device {}, which is not a CPU execution provider", name.trim());
+                continue;
+            }
+            if (!providers.contains(provider)) {
+                providers.add(provider);
+            }
+        }
+        if (!providers.contains(DEFAULT)) {
+            providers.add(DEFAULT);
+        }
+        return providers;
+    }
+
+    /**
+     * Selects the first provider that this ONNX Runtime build supports and that loads.
+     *
+     * @param providers the providers in order of preference
+     * @param threads the number of intra-op threads, 0 for the default
+     * @param cpuArena whether the provider allocates from an arena
+     * @return the selected provider, the default CPU provider if none other loads
+     */
+    public static CpuExecutionProvider select(List<CpuExecutionProvider> providers, int threads, boolean cpuArena) {
+        for (CpuExecutionProvider provider : providers) {
+            if (provider == DEFAULT) {
+                return DEFAULT;
+            }
+            if (!OrtEnvironment.getAvailableProviders().contains(provider.provider)) {
+                logger.warn("Execution provider {} is not included in this ONNX Runtime build", provider.name);
+                continue;
+            }
+            // Shared providers can be listed and still fail to load their library
+            try (OrtSession.SessionOptions probe = new OrtSession.SessionOptions()) {
+                provider.addTo(probe, threads, cpuArena);
+                return provider;
+            } catch (OrtException e) {
+                logger.warn("Execution provider {} cannot be loaded: {}", provider.name, e.getMessage());
+            }
+        }
+        return DEFAULT;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,109 @@
+package org.josmi.ort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Prefill and decode throughput of a model with each CPU execution provider, as
+ * measured by {@link OrtLlmInferenceService#compareExecutionProviders()}.
+ */
+public class ExecutionProviderComparison {
+
+    /**
+     * The measurements of one execution provider.
+     */
+    public static class Result {
+        private final CpuExecutionProvider provider;
+        private final double prefillTokensPerSecond;
+        private final double decodeTokensPerSecond;
+        private final String error;
+
+        /**
+         * Constructs a new Result.
+         *
+         * @param provider the execution provider
+         * @param prefillTokensPerSecond the prompt processing throughput
+         * @param decodeTokensPerSecond the token generation throughput
+         * @param error why the provider could not be measured, or null
+         */
+        public Result(CpuExecutionProvider provider, double prefillTokensPerSecond, double decodeTokensPerSecond,
+                      String error) {
+            this.provider = provider;
+            this.prefillTokensPerSecond = prefillTokensPerSecond;
+            this.decodeTokensPerSecond = decodeTokensPerSecond;
+            this.error = error;
+        }
+
+        public CpuExecutionProvider getProvider() {
+            return provider;
+        }
+
+        public double getPrefillTokensPerSecond() {
+            return prefillTokensPerSecond;
+        }
+
+        public double getDecodeTokensPerSecond() {
+            return decodeTokensPerSecond;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isAvailable() {
+            return error == null;
+        }
+    }
+
+    private final List<Result> results;
+
+    /**
+     * Constructs a new ExecutionProviderComparison.
+     *
+     * @param results the measurements of each provider
+     */
+    public ExecutionProviderComparison(List<Result> results) {
+        this.results = Collections.unmodifiableList(new ArrayList<>(results));
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * Gets the provider with the highest decode throughput, which dominates the latency of long generations.
+     *
+     * @return the fastest provider, or null if none could be measured
+     */
+    public CpuExecutionProvider getFastestDecode() {
+        Result fastest = null;
+        for (Result result : results) {
+            if (result.isAvailable() && (fastest == null
+                    || result.decodeTokensPerSecond > fastest.decodeTokensPerSecond)) {
+                fastest = result;
+            }
+        }
+        return fastest != null ? fastest.provider : null;
+    }
+
+    /**
+     * Formats the measurements as a table.
+     *
+     * @return the table
+     */
+    @Override
+    public String toString() {
+        StringBuilder table = new StringBuilder(String.format("%-10s %16s %16s%n", "provider", "prefill tok/s",
+                "decode tok/s"));
+        for (Result result : results) {
+            if (result.isAvailable()) {
+                table.append(String.format("%-10s %16.1f %16.1f%n", result.provider, result.prefillTokensPerSecond,
+                        result.decodeTokensPerSecond));
+            } else {
+                table.append(String.format("%-10s %s%n", result.provider, result.error));
+            }
+        }
+        return table.toString();
+    }
+}
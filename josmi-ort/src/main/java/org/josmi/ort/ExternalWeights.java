@@ -0,0 +1,316 @@
+package org.josmi.ort;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxTensorLike;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import org.josmi.api.LlmInferenceException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory-mapped initializers of a model whose weights are stored in external data files.
+ * <p>
+ * ONNX Runtime reads external data into private heap memory. Instead, the initializer
+ * tensors listed in the model graph are mapped read-only from their data files and
+ * handed to the session as external initializers, which it uses in place. The pages
+ * then belong to the page cache and are shared by every process on the host that maps
+ * the same files, and they are only loaded as they are touched. Initializers of a type
+ * that cannot be wrapped, or of more than 2 GiB, which one buffer cannot map, are left to
+ * ONNX Runtime.
+ * <p>
+ * The tensors must stay open for as long as a session created with them.
+ */
+public class ExternalWeights implements AutoCloseable {
+
+    // ONNX protobuf field numbers
+    private static final int MODEL_GRAPH = 7;
+    private static final int GRAPH_INITIALIZER = 5;
+    private static final int TENSOR_DIMS = 1;
+    private static final int TENSOR_DATA_TYPE = 2;
+    private static final int TENSOR_NAME = 8;
+    private static final int TENSOR_EXTERNAL_DATA = 13;
+    private static final int TENSOR_DATA_LOCATION = 14;
+    private static final int ENTRY_KEY = 1;
+    private static final int ENTRY_VALUE = 2;
+    private static final int DATA_LOCATION_EXTERNAL = 1;
+
+    /**
+     * Smaller initializers, such as shapes, are left to ONNX Runtime: shape inference must
+     * be able to read them, and mapping them would not save memory.
+     */
+    private static final long MIN_MAPPED_BYTES = 1024;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private final Map<String, OnnxTensor> tensors;
+    private final long mappedBytes;
+
+    private ExternalWeights(Map<String, OnnxTensor> tensors, long mappedBytes) {
+        this.tensors = tensors;
+        this.mappedBytes = mappedBytes;
+    }
+
+    /**
+     * Maps the external initializers of a model.
+     *
+     * @param environment the ONNX Runtime environment
+     * @param modelFile the model file
+     * @return the mapped initializers, empty if the model has no external data
+     * @throws LlmInferenceException if the model or a data file cannot be read
+     */
+    public static ExternalWeights map(OrtEnvironment environment, Path modelFile) throws LlmInferenceException {
+        Map<String, OnnxTensor> tensors = new LinkedHashMap<>();
+        long mappedBytes = 0;
+        try {
+            List<Initializer> initializers = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(modelFile, StandardOpenOption.READ)) {
+                readModel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), initializers);
+            }
+
+            Map<Path, FileChannel> dataFiles = new HashMap<>();
+            try {
+                for (Initializer initializer : initializers) {
+                    OnnxJavaType type = javaType(initializer.dataType);
+                    if (type == null || initializer.location == null) {
+                        continue;
+                    }
+                    long bytes = initializer.elements() * type.size;
+                    if (bytes < MIN_MAPPED_BYTES || bytes > Integer.MAX_VALUE
+                            || initializer.length >= 0 && initializer.length != bytes) {
+                        continue;
+                    }
+                    Path dataFile = modelFile.resolveSibling(initializer.location);
+                    FileChannel channel = dataFiles.get(dataFile);
+                    if (channel == null) {
+                        channel = FileChannel.open(dataFile, StandardOpenOption.READ);
+                        dataFiles.put(dataFile, channel);
+                    }
+                    ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, initializer.offset, bytes)
+                            .order(ByteOrder.nativeOrder());
+                    tensors.put(initializer.name, OnnxTensor.createTensor(environment, data, initializer.dims, type));
+                    mappedBytes += bytes;
+                }
+            } finally {
+                // Mappings stay valid after their channel is closed
+                for (FileChannel channel : dataFiles.values()) {
+                    channel.close();
+                }
+            }
+            return new ExternalWeights(tensors, mappedBytes);
+        } catch (IOException | OrtException | RuntimeException e) {
+            tensors.values().forEach(OnnxTensor::close);
+            throw new LlmInferenceException("Failed to map external weights of " + modelFile, e);
+        }
+    }
+
+    /**
+     * Gets the mapped initializers, to pass to the session options as external initializers.
+     *
+     * @return the initializer tensors by name
+     */
+    public Map<String, OnnxTensorLike> getInitializers() {
+        return new HashMap<>(tensors);
+    }
+
+    public int getCount() {
+        return tensors.size();
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Closes the tensors. The mappings are released once they are garbage collected.
+     */
+    @Override
+    public void close() {
+        for (OnnxTensor tensor : tensors.values()) {
+            tensor.close();
+        }
+        tensors.clear();
+    }
+
+    private static OnnxJavaType javaType(int onnxType) {
+        switch (onnxType) {
+            case 1:
+                return OnnxJavaType.FLOAT;
+            case 2:
+                return OnnxJavaType.UINT8;
+            case 3:
+                return OnnxJavaType.INT8;
+            case 5:
+                return OnnxJavaType.INT16;
+            case 6:
+                return OnnxJavaType.INT32;
+            case 7:
+                return OnnxJavaType.INT64;
+            case 9:
+                return OnnxJavaType.BOOL;
+            case 10:
+                return OnnxJavaType.FLOAT16;
+            case 11:
+                return OnnxJavaType.DOUBLE;
+            case 16:
+                return OnnxJavaType.BFLOAT16;
+            default:
+                return null;
+        }
+    }
+
+    private static void readModel(ByteBuffer model, List<Initializer> initializers) {
+        while (model.hasRemaining()) {
+            long key = readVarint(model);
+            if ((int) (key >>> 3) == MODEL_GRAPH && (int) (key & 7) == WIRE_LENGTH_DELIMITED) {
+                readGraph(readMessage(model), initializers);
+            } else {
+                skip(model, (int) (key & 7));
+            }
+        }
+    }
+
+    private static void readGraph(ByteBuffer graph, List<Initializer> initializers) {
+        while (graph.hasRemaining()) {
+            long key = readVarint(graph);
+            if ((int) (key >>> 3) == GRAPH_INITIALIZER && (int) (key & 7) == WIRE_LENGTH_DELIMITED) {
+                Initializer initializer = readTensor(readMessage(graph));
+                if (initializer.external) {
+                    initializers.add(initializer);
+                }
+            } else {
+                skip(graph, (int) (key & 7));
+            }
+        }
+    }
+
+    private static Initializer readTensor(ByteBuffer tensor) {
+        Initializer initializer = new Initializer();
+        List<Long> dims = new ArrayList<>();
+        while (tensor.hasRemaining()) {
+            long key = readVarint(tensor);
+            int field = (int) (key >>> 3);
+            int wireType = (int) (key & 7);
+            if (field == TENSOR_DIMS && wireType == WIRE_VARINT) {
+                dims.add(readVarint(tensor));
+            } else if (field == TENSOR_DIMS && wireType == WIRE_LENGTH_DELIMITED) {
+                ByteBuffer packed = readMessage(tensor);
+                while (packed.hasRemaining()) {
+                    dims.add(readVarint(packed));
+                }
+            } else if (field == TENSOR_DATA_TYPE && wireType == WIRE_VARINT) {
+                initializer.dataType = (int) readVarint(tensor);
+            } else if (field == TENSOR_NAME && wireType == WIRE_LENGTH_DELIMITED) {
+                initializer.name = readString(tensor);
+            } else if (field == TENSOR_EXTERNAL_DATA && wireType == WIRE_LENGTH_DELIMITED) {
+                readExternalData(readMessage(tensor), initializer);
+            } else if (field == TENSOR_DATA_LOCATION && wireType == WIRE_VARINT) {
+                initializer.external = readVarint(tensor) == DATA_LOCATION_EXTERNAL;
+            } else {
+                skip(tensor, wireType);
+            }
+        }
+        initializer.dims = dims.stream().mapToLong(Long::longValue).toArray();
+        return initializer;
+    }
+
+    private static void readExternalData(ByteBuffer entry, Initializer initializer) {
+        String key = null;
+        String value = null;
+        while (entry.hasRemaining()) {
+            long tag = readVarint(entry);
+            int field = (int) (tag >>> 3);
+            if (field == ENTRY_KEY && (int) (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                key = readString(entry);
+            } else if (field == ENTRY_VALUE && (int) (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                value = readString(entry);
+            } else {
+                skip(entry, (int) (tag & 7));
+            }
+        }
+        if ("location".equals(key)) {
+            initializer.location = value;
+        } else if ("offset".equals(key)) {
+            initializer.offset = Long.parseLong(value);
+        } else if ("length".equals(key)) {
+            initializer.length = Long.parseLong(value);
+        }
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static ByteBuffer readMessage(ByteBuffer buffer) {
+        int length = (int) readVarint(buffer);
+        ByteBuffer message = buffer.slice();
+        message.limit(length);
+        buffer.position(buffer.position() + length);
+        return message;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        ByteBuffer bytes = readMessage(buffer);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    private static void skip(ByteBuffer buffer, int wireType) {
+        switch (wireType) {
+            case WIRE_VARINT:
+                readVarint(buffer);
+                break;
+            case WIRE_FIXED64:
+                buffer.position(buffer.position() + 8);
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                readMessage(buffer);
+                break;
+            case WIRE_FIXED32:
+                buffer.position(buffer.position() + 4);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported wire type " + wireType);
+        }
+    }
+
+    private static final class Initializer {
+        private String name;
+        private int dataType;
+        private long[] dims;
+        private boolean external;
+        private String location;
+        private long offset;
+        private long length = -1;
+
+        private long elements() {
+            long elements = 1;
+            for (long dim : dims) {
+                elements *= dim;
+            }
+            return elements;
+        }
+    }
+}
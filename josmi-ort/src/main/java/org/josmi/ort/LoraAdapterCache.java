@@ -0,0 +1,309 @@
+package org.josmi.ort;
+
+import org.josmi.api.LlmInferenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the LoRA adapters of a base model resident, loading them when a request first selects
+ * them and unloading the least recently used idle ones above a maximum count.
+ * <p>
+ * Adapters are found by name, either in the configured map of adapter files or as
+ * "&lt;name&gt;.onnx_adapter" in the adapter directory. Concurrent requests for an adapter
+ * that is loading wait for the same load, and an adapter is never unloaded while a request
+ * holds it.
+ *
+ * @param <T> the type of the loaded adapters
+ */
+public class LoraAdapterCache<T> implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoraAdapterCache.class);
+
+    /** File extension of ONNX Runtime adapter files. */
+    public static final String FILE_EXTENSION = ".onnx_adapter";
+    public static final int DEFAULT_MAX_ADAPTERS = 16;
+
+    private static final Pattern ADAPTER_NAME = Pattern.compile("[A-Za-z0-9_][A-Za-z0-9._-]*");
+
+    /**
+     * Loads adapters into and unloads them from a base model.
+     *
+     * @param <T> the type of the loaded adapters
+     */
+    public interface Backend<T> {
+
+        /**
+         * Loads an adapter.
+         *
+         * @param name the adapter name
+         * @param file the adapter file
+         * @return the loaded adapter
+         * @throws Exception if the adapter cannot be loaded
+         */
+        T load(String name, Path file) throws Exception;
+
+        /**
+         * Unloads an adapter.
+         *
+         * @param name the adapter name
+         * @param adapter the loaded adapter
+         * @throws Exception if the adapter cannot be unloaded
+         */
+        void unload(String name, T adapter) throws Exception;
+    }
+
+    /**
+     * A request's hold on a resident adapter, released by closing it.
+     *
+     * @param <T> the type of the loaded adapters
+     */
+    public static final class Lease<T> implements AutoCloseable {
+        private final LoraAdapterCache<T> owner;
+        private final Entry<T> entry;
+        private boolean released;
+
+        private Lease(LoraAdapterCache<T> owner, Entry<T> entry) {
+            this.owner = owner;
+            this.entry = entry;
+        }
+
+        public String getName() {
+            return entry.name;
+        }
+
+        public T getAdapter() {
+            return entry.adapter;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                owner.release(entry);
+            }
+        }
+    }
+
+    /**
+     * A resident adapter and the requests using it, guarded by the cache.
+     */
+    private static final class Entry<T> {
+        private final String name;
+        private final T adapter;
+        private int users;
+
+        private Entry(String name, T adapter) {
+            this.name = name;
+            this.adapter = adapter;
+        }
+    }
+
+    private final Path directory;
+    private final Map<String, Path> files;
+    private final int maxAdapters;
+    private final Backend<T> backend;
+    // In access order, least recently used first
+    private final LinkedHashMap<String, Entry<T>> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry<T>>> loading = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * Constructs a new LoraAdapterCache.
+     *
+     * @param directory the directory of the adapter files, or null
+     * @param files the adapter files by adapter name
+     * @param maxAdapters the maximum number of idle resident adapters
+     * @param backend loads and unloads the adapters
+     */
+    public LoraAdapterCache(Path directory, Map<String, Path> files, int maxAdapters, Backend<T> backend) {
+        this.directory = directory;
+        this.files = new HashMap<>(files);
+        this.maxAdapters = Math.max(1, maxAdapters);
+        this.backend = backend;
+    }
+
+    /**
+     * Parses the adapter files setting: a map of adapter names to files, or a string of
+     * "name=file" pairs separated by ','.
+     *
+     * @param setting the setting, or null
+     * @return the adapter files by adapter name
+     * @throws LlmInferenceException if the setting is malformed
+     */
+    public static Map<String, Path> parseFiles(Object setting) throws LlmInferenceException {
+        Map<String, Path> files = new HashMap<>();
+        if (setting instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) setting).entrySet()) {
+                files.put(entry.getKey().toString(), Paths.get(entry.getValue().toString()));
+            }
+        } else if (setting != null) {
+            for (String pair : setting.toString().split(",")) {
+                int separator = pair.indexOf('=');
+                if (separator <= 0) {
+                    throw new LlmInferenceException("Malformed LoRA adapter entry: " + pair);
+                }
+                files.put(pair.substring(0, separator).trim(), Paths.get(pair.substring(separator + 1).trim()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Gets the names of the resident adapters, least recently used first.
+     *
+     * @return the adapter names
+     */
+    public synchronized List<String> getResidentAdapters() {
+        return new ArrayList<>(resident.keySet());
+    }
+
+    /**
+     * Leases an adapter for a request, loading it if it is not resident.
+     *
+     * @param name the adapter name
+     * @return the lease, to be closed when the request finishes
+     * @throws LlmInferenceException if the adapter is unknown or cannot be loaded
+     */
+    public Lease<T> acquire(String name) throws LlmInferenceException {
+        while (true) {
+            CompletableFuture<Entry<T>> load;
+            Path file = null;
+            synchronized (this) {
+                if (closed) {
+                    throw new LlmInferenceException("LoRA adapter cache is closed");
+                }
+                Entry<T> entry = resident.get(name);
+                if (entry != null) {
+                    entry.users++;
+                    return new Lease<>(this, entry);
+                }
+                load = loading.get(name);
+                if (load == null) {
+                    file = resolve(name);
+                    load = new CompletableFuture<>();
+                    loading.put(name, load);
+                }
+            }
+
+            if (file != null) {
+                return new Lease<>(this, load(name, file, load));
+            }
+            try {
+                load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LlmInferenceException("Interrupted while waiting for LoRA adapter " + name, e);
+            } catch (ExecutionException e) {
+                throw new LlmInferenceException("Failed to load LoRA adapter " + name, e.getCause());
+            }
+            // Loaded by another request: take it from the resident adapters, unless it was unloaded meanwhile
+        }
+    }
+
+    private Path resolve(String name) throws LlmInferenceException {
+        Path file = files.get(name);
+        if (file == null && directory != null && ADAPTER_NAME.matcher(name).matches()) {
+            file = directory.resolve(name + FILE_EXTENSION);
+        }
+        if (file == null || !Files.isRegularFile(file)) {
+            throw new LlmInferenceException("Unknown LoRA adapter: " + name);
+        }
+        return file;
+    }
+
+    private Entry<T> load(String name, Path file, CompletableFuture<Entry<T>> load) throws LlmInferenceException {
+        Entry<T> entry;
+        try {
+            long start = System.currentTimeMillis();
+            entry = new Entry<>(name, backend.load(name, file));
+            logger.info("Loaded LoRA adapter {} from {} in {} ms", name, file, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            synchronized (this) {
+                loading.remove(name);
+            }
+            load.completeExceptionally(e);
+            throw new LlmInferenceException("Failed to load LoRA adapter " + name, e);
+        }
+
+        List<Entry<T>> unloaded = new ArrayList<>();
+        boolean closedWhileLoading;
+        synchronized (this) {
+            loading.remove(name);
+            entry.users = 1;
+            closedWhileLoading = closed;
+            if (closedWhileLoading) {
+                unloaded.add(entry);
+            } else {
+                resident.put(name, entry);
+                evictIdle(unloaded);
+            }
+        }
+        load.complete(entry);
+        unload(unloaded);
+        if (closedWhileLoading) {
+            throw new LlmInferenceException("LoRA adapter cache is closed");
+        }
+        return entry;
+    }
+
+    private void release(Entry<T> entry) {
+        List<Entry<T>> unloaded = new ArrayList<>();
+        synchronized (this) {
+            entry.users--;
+            evictIdle(unloaded);
+        }
+        unload(unloaded);
+    }
+
+    /**
+     * Removes least recently used idle adapters while more than the maximum are resident. Guarded by the cache.
+     */
+    private void evictIdle(List<Entry<T>> unloaded) {
+        Iterator<Entry<T>> entries = resident.values().iterator();
+        while (resident.size() > maxAdapters && entries.hasNext()) {
+            Entry<T> entry = entries.next();
+            if (entry.users == 0) {
+                entries.remove();
+                unloaded.add(entry);
+            }
+        }
+    }
+
+    private void unload(List<Entry<T>> entries) {
+        for (Entry<T> entry : entries) {
+            try {
+                backend.unload(entry.name, entry.adapter);
+                logger.info("Unloaded LoRA adapter {}", entry.name);
+            } catch (Exception e) {
+                logger.warn("Failed to unload LoRA adapter {}: {}", entry.name, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Unloads the resident adapters. Requests still holding an adapter must finish first.
+     */
+    @Override
+    public void close() {
+        List<Entry<T>> unloaded;
+        synchronized (this) {
+            closed = true;
+            unloaded = new ArrayList<>(resident.values());
+            resident.clear();
+        }
+        unload(unloaded);
+    }
+}
@@ -0,0 +1,320 @@
+package org.josmi.ort;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.josmi.api.LlmInferenceException;
+import org.josmi.ort.engine.GenAIModelConfig;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * One precision variant of a model, e.g. the int4 export next to the fp32 one.
+ * <p>
+ * Variants are either ONNX files of a model directory ("model.onnx", "model_int8.onnx")
+ * or GenAI model directories below it ("cpu-int4-rtn-block-32/"), each with its own
+ * genai_config.json. The precision is recognized from the file and directory names;
+ * a name without a precision marker is taken as fp32.
+ */
+public class ModelVariant {
+
+    public static final String POLICY_FASTEST = "fastest";
+    public static final String POLICY_SMALLEST = "smallest";
+    public static final String POLICY_ACCURACY_FLOOR = "accuracy-floor";
+
+    private static final Pattern SEPARATOR = Pattern.compile("[^a-z0-9]+");
+
+    /**
+     * Numeric precision of the weights of a variant.
+     */
+    public enum Precision {
+        FP32(32, "fp32", "float32", "f32"),
+        FP16(16, "fp16", "float16", "f16", "half"),
+        INT8(8, "int8", "uint8", "qint8", "q8", "8bit", "quantized"),
+        INT4(4, "int4", "uint4", "q4", "q4f16", "4bit", "w4");
+
+        private final int bits;
+        private final String[] markers;
+
+        Precision(int bits, String... markers) {
+            this.bits = bits;
+            this.markers = markers;
+        }
+
+        public int getBits() {
+            return bits;
+        }
+
+        /**
+         * Parses a precision name ("fp32", "fp16", "int8" or "int4").
+         *
+         * @param name the precision name
+         * @return the precision
+         * @throws LlmInferenceException if the name is unknown
+         */
+        public static Precision fromName(String name) throws LlmInferenceException {
+            for (Precision precision : values()) {
+                if (precision.markers[0].equalsIgnoreCase(name.trim())) {
+                    return precision;
+                }
+            }
+            throw new LlmInferenceException("Unknown precision: " + name);
+        }
+
+        /**
+         * Recognizes the precision marked in a file or directory name, checking the narrowest first.
+         *
+         * @param name the name
+         * @return the precision, fp32 if the name has no marker
+         */
+        static Precision detect(String name) {
+            List<String> words = List.of(SEPARATOR.split(name.toLowerCase(Locale.ROOT)));
+            for (Precision precision : new Precision[]{INT4, INT8, FP16}) {
+                for (String marker : precision.markers) {
+                    if (words.contains(marker)) {
+                        return precision;
+                    }
+                }
+            }
+            return FP32;
+        }
+
+        @Override
+        public String toString() {
+            return markers[0];
+        }
+    }
+
+    private final Path directory;
+    private final String modelFile;
+    private final Precision precision;
+    private final long sizeBytes;
+
+    /**
+     * Constructs a new ModelVariant.
+     *
+     * @param directory the model directory, holding the GenAI configuration and tokenizer
+     * @param modelFile the ONNX file name within the directory
+     * @param precision the precision of the weights
+     * @param sizeBytes the size of the model file and its external data
+     */
+    public ModelVariant(Path directory, String modelFile, Precision precision, long sizeBytes) {
+        this.directory = directory;
+        this.modelFile = modelFile;
+        this.precision = precision;
+        this.sizeBytes = sizeBytes;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public String getModelFile() {
+        return modelFile;
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Gets the identifier of the variant within its root model directory, e.g. "cpu-int4/model.onnx".
+     *
+     * @param root the root model directory the variant was discovered in
+     * @return the identifier
+     */
+    public String getId(Path root) {
+        return root.relativize(directory.resolve(modelFile)).toString().replace('\\', '/');
+    }
+
+    /**
+     * Discovers the variants of a model directory: its ONNX files, and the decoder files of
+     * GenAI model directories directly below it.
+     *
+     * @param modelDirectory the model directory
+     * @return the variants, most precise first
+     * @throws LlmInferenceException if the directory cannot be listed
+     */
+    public static List<ModelVariant> discover(Path modelDirectory) throws LlmInferenceException {
+        List<ModelVariant> variants = new ArrayList<>();
+        try {
+            addFileVariants(modelDirectory, "", variants);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(modelDirectory, Files::isDirectory)) {
+                for (Path subdirectory : entries) {
+                    if (Files.isRegularFile(subdirectory.resolve(GenAIModelConfig.FILE_NAME))) {
+                        addGenAIVariant(subdirectory, variants);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new LlmInferenceException("Failed to discover model variants in " + modelDirectory, e);
+        }
+        variants.sort(Comparator.comparingInt((ModelVariant variant) -> -variant.precision.bits)
+                .thenComparing(variant -> variant.getId(modelDirectory)));
+        return variants;
+    }
+
+    /**
+     * Selects a variant according to a policy.
+     * <ul>
+     *   <li>"fastest": the highest measured decode throughput, or without measurements the
+     *       narrowest precision (int4, int8, fp32, then fp16, which most CPUs emulate)</li>
+     *   <li>"smallest": the smallest files</li>
+     *   <li>"accuracy-floor": the fastest variant within the accuracy floor, either a precision
+     *       name (e.g. "int8": at least as precise as int8) or the maximum relative perplexity
+     *       increase over fp32 measured in the report (e.g. "0.05")</li>
+     * </ul>
+     *
+     * @param root the root model directory of the variants
+     * @param variants the discovered variants
+     * @param policy the policy name
+     * @param accuracyFloor the accuracy floor of the "accuracy-floor" policy
+     * @param report the measurements of the variants, or null
+     * @return the selected variant
+     * @throws LlmInferenceException if the policy is unknown or no variant qualifies
+     */
+    public static ModelVariant select(Path root, List<ModelVariant> variants, String policy, String accuracyFloor,
+                                      ModelVariantReport report) throws LlmInferenceException {
+        if (variants.isEmpty()) {
+            throw new LlmInferenceException("No model variants found in " + root);
+        }
+
+        List<ModelVariant> candidates = variants;
+        switch (policy.toLowerCase(Locale.ROOT)) {
+            case POLICY_SMALLEST:
+                return variants.stream().min(Comparator.comparingLong(ModelVariant::getSizeBytes)).get();
+            case POLICY_FASTEST:
+                break;
+            case POLICY_ACCURACY_FLOOR:
+                candidates = withinAccuracyFloor(root, variants, accuracyFloor, report);
+                if (candidates.isEmpty()) {
+                    throw new LlmInferenceException("No model variant in " + root + " meets the accuracy floor "
+                            + accuracyFloor);
+                }
+                break;
+            default:
+                throw new LlmInferenceException("Unknown model variant policy: " + policy);
+        }
+        return fastest(root, candidates, report);
+    }
+
+    private static List<ModelVariant> withinAccuracyFloor(Path root, List<ModelVariant> variants,
+                                                          String accuracyFloor, ModelVariantReport report)
+            throws LlmInferenceException {
+        double maxPerplexityDelta;
+        try {
+            maxPerplexityDelta = Double.parseDouble(accuracyFloor);
+        } catch (NumberFormatException e) {
+            int minBits = Precision.fromName(accuracyFloor).bits;
+            return variants.stream().filter(variant -> variant.precision.bits >= minBits)
+                    .collect(Collectors.toList());
+        }
+
+        if (report == null) {
+            throw new LlmInferenceException("A perplexity accuracy floor requires a model variant report");
+        }
+        List<ModelVariant> candidates = new ArrayList<>();
+        for (ModelVariant variant : variants) {
+            ModelVariantReport.Entry entry = report.get(variant.getId(root));
+            if (entry != null && entry.getPerplexityDelta() <= maxPerplexityDelta) {
+                candidates.add(variant);
+            }
+        }
+        return candidates;
+    }
+
+    private static ModelVariant fastest(Path root, List<ModelVariant> candidates, ModelVariantReport report) {
+        ModelVariant fastest = null;
+        double fastestThroughput = -1;
+        if (report != null) {
+            for (ModelVariant variant : candidates) {
+                ModelVariantReport.Entry entry = report.get(variant.getId(root));
+                if (entry != null && entry.getDecodeTokensPerSecond() > fastestThroughput) {
+                    fastest = variant;
+                    fastestThroughput = entry.getDecodeTokensPerSecond();
+                }
+            }
+        }
+        if (fastest != null) {
+            return fastest;
+        }
+        return candidates.stream().min(Comparator.comparingInt(ModelVariant::speedRank)
+                .thenComparingLong(ModelVariant::getSizeBytes)).get();
+    }
+
+    /**
+     * Ranks the expected CPU decode speed of a precision, fastest first: decoding is bound by
+     * memory bandwidth, so narrower weights are faster, except fp16 which most CPUs convert.
+     */
+    private int speedRank() {
+        switch (precision) {
+            case INT4:
+                return 0;
+            case INT8:
+                return 1;
+            case FP32:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    private static void addFileVariants(Path directory, String context, List<ModelVariant> variants)
+            throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.onnx")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                variants.add(new ModelVariant(directory, name, Precision.detect(context + " " + name),
+                        size(directory, name)));
+            }
+        }
+    }
+
+    /**
+     * Adds the decoder of a GenAI model directory, named in its genai_config.json, or its only ONNX file.
+     */
+    private static void addGenAIVariant(Path directory, List<ModelVariant> variants) throws IOException {
+        String name = directory.getFileName().toString();
+        String decoder = new ObjectMapper().readTree(directory.resolve(GenAIModelConfig.FILE_NAME).toFile())
+                .path("model").path("decoder").path("filename").asText(null);
+        if (decoder != null && Files.isRegularFile(directory.resolve(decoder))) {
+            variants.add(new ModelVariant(directory, decoder, Precision.detect(name + " " + decoder),
+                    size(directory, decoder)));
+            return;
+        }
+        List<ModelVariant> files = new ArrayList<>();
+        addFileVariants(directory, name, files);
+        if (files.size() == 1) {
+            variants.addAll(files);
+        }
+    }
+
+    /**
+     * Sums the size of a model file and of its external data files, e.g. "model.onnx.data".
+     */
+    static long size(Path directory, String modelFile) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, modelFile + "*")) {
+            for (Path file : files) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return directory.resolve(modelFile) + " (" + precision + ", " + sizeBytes / (1024 * 1024) + " MB)";
+    }
+}
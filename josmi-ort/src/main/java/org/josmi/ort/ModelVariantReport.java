@@ -0,0 +1,202 @@
+package org.josmi.ort;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.josmi.api.LlmInferenceException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measured speed, memory and accuracy of the variants of a model, written by the
+ * {@code ModelVariantEvaluator} tool of the test sources and read when a service selects a variant.
+ */
+public class ModelVariantReport {
+
+    /** File name of the report in the model directory. */
+    public static final String FILE_NAME = "josmi-variants.json";
+
+    /**
+     * The measurements of one variant.
+     */
+    public static class Entry {
+        private final String id;
+        private final ModelVariant.Precision precision;
+        private final long sizeBytes;
+        private final long residentBytes;
+        private final double prefillTokensPerSecond;
+        private final double decodeTokensPerSecond;
+        private final double perplexity;
+        private final double perplexityDelta;
+
+        /**
+         * Constructs a new Entry.
+         *
+         * @param id the variant identifier within the model directory
+         * @param precision the precision of the weights
+         * @param sizeBytes the size of the model files
+         * @param residentBytes the resident memory added by loading and running the variant, or -1 if unknown
+         * @param prefillTokensPerSecond the prompt processing throughput
+         * @param decodeTokensPerSecond the token generation throughput
+         * @param perplexity the perplexity on the evaluation text
+         * @param perplexityDelta the relative perplexity increase over the reference variant
+         */
+        public Entry(String id, ModelVariant.Precision precision, long sizeBytes, long residentBytes,
+                     double prefillTokensPerSecond, double decodeTokensPerSecond, double perplexity,
+                     double perplexityDelta) {
+            this.id = id;
+            this.precision = precision;
+            this.sizeBytes = sizeBytes;
+            this.residentBytes = residentBytes;
+            this.prefillTokensPerSecond = prefillTokensPerSecond;
+            this.decodeTokensPerSecond = decodeTokensPerSecond;
+            this.perplexity = perplexity;
+            this.perplexityDelta = perplexityDelta;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public ModelVariant.Precision getPrecision() {
+            return precision;
+        }
+
+        public long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        public long getResidentBytes() {
+            return residentBytes;
+        }
+
+        public double getPrefillTokensPerSecond() {
+            return prefillTokensPerSecond;
+        }
+
+        public double getDecodeTokensPerSecond() {
+            return decodeTokensPerSecond;
+        }
+
+        public double getPerplexity() {
+            return perplexity;
+        }
+
+        public double getPerplexityDelta() {
+            return perplexityDelta;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    /**
+     * Constructs a new ModelVariantReport.
+     *
+     * @param entries the measurements of each variant
+     */
+    public ModelVariantReport(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets the measurements of a variant.
+     *
+     * @param id the variant identifier within the model directory
+     * @return the measurements, or null if the variant was not measured
+     */
+    public Entry get(String id) {
+        for (Entry entry : entries) {
+            if (entry.id.equals(id)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a report.
+     *
+     * @param file the report file
+     * @return the report, or null if the file does not exist
+     * @throws LlmInferenceException if the file cannot be parsed
+     */
+    public static ModelVariantReport load(Path file) throws LlmInferenceException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            List<Entry> entries = new ArrayList<>();
+            for (JsonNode variant : new ObjectMapper().readTree(file.toFile()).path("variants")) {
+                entries.add(new Entry(
+                        variant.path("id").asText(),
+                        ModelVariant.Precision.fromName(variant.path("precision").asText()),
+                        variant.path("size_bytes").asLong(),
+                        variant.path("resident_bytes").asLong(-1),
+                        variant.path("prefill_tokens_per_second").asDouble(),
+                        variant.path("decode_tokens_per_second").asDouble(),
+                        variant.path("perplexity").asDouble(),
+                        variant.path("perplexity_delta").asDouble()));
+            }
+            return new ModelVariantReport(entries);
+        } catch (IOException e) {
+            throw new LlmInferenceException("Failed to read model variant report " + file, e);
+        }
+    }
+
+    /**
+     * Writes this report.
+     *
+     * @param file the report file
+     * @throws LlmInferenceException if the file cannot be written
+     */
+    public void store(Path file) throws LlmInferenceException {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode report = mapper.createObjectNode();
+        ArrayNode variants = report.putArray("variants");
+        for (Entry entry : entries) {
+            variants.addObject()
+                    .put("id", entry.id)
+                    .put("precision", entry.precision.toString())
+                    .put("size_bytes", entry.sizeBytes)
+                    .put("resident_bytes", entry.residentBytes)
+                    .put("prefill_tokens_per_second", entry.prefillTokensPerSecond)
+                    .put("decode_tokens_per_second", entry.decodeTokensPerSecond)
+                    .put("perplexity", entry.perplexity)
+                    .put("perplexity_delta", entry.perplexityDelta);
+        }
+        try {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(file.toFile(), report);
+        } catch (IOException e) {
+            throw new LlmInferenceException("Failed to write model variant report " + file, e);
+        }
+    }
+
+    /**
+     * Formats the measurements as a table.
+     *
+     * @return the table
+     */
+    @Override
+    public String toString() {
+        StringBuilder table = new StringBuilder(String.format("%-40s %-5s %9s %9s %13s %13s %10s %8s%n", "variant",
+                "prec", "size MB", "rss MB", "prefill tok/s", "decode tok/s", "perplexity", "delta"));
+        for (Entry entry : entries) {
+            table.append(String.format("%-40s %-5s %9d %9s %13.1f %13.1f %10.3f %+7.1f%%%n", entry.id,
+                    entry.precision, entry.sizeBytes / (1024 * 1024),
+                    entry.residentBytes >= 0 ? Long.toString(entry.residentBytes / (1024 * 1024)) : "-",
+                    entry.prefillTokensPerSecond, entry.decodeTokensPerSecond, entry.perplexity,
+                    entry.perplexityDelta * 100));
+        }
+        return table.toString();
+    }
+}
@@ -0,0 +1,200 @@
+package org.josmi.ort;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.josmi.api.LlmInferenceException;
+import org.josmi.ort.engine.GenAIModelConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Directory of models whose graph has already been optimized by ONNX Runtime.
+ * <p>
+ * The first session created for a model at a given optimization level writes the
+ * optimized graph to the cache; later sessions load it with graph optimizations
+ * disabled, skipping the optimization work at startup. Each entry is a directory
+ * named after a fingerprint of the source model file (path, size, modification
+ * time), the ONNX Runtime version, the optimization level and the session
+ * settings that affect the optimized graph, so a changed model or runtime never
+ * reuses a stale graph. Optimized graphs are hardware specific and should not be
+ * shared between hosts with different CPUs.
+ */
+public class OptimizedModelCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(OptimizedModelCache.class);
+
+    /** Initializers at least this large are written to the external data file of an optimized model. */
+    private static final int EXTERNAL_INITIALIZER_MIN_BYTES = 1024;
+
+    private final Path directory;
+
+    /**
+     * Creates a session from a model file, e.g. after adding initializers for it to the options.
+     */
+    @FunctionalInterface
+    public interface SessionLoader {
+
+        /**
+         * Creates a session.
+         *
+         * @param modelFile the model file to load
+         * @param options the session options
+         * @return the session
+         * @throws OrtException if the session cannot be created
+         * @throws LlmInferenceException if the model files cannot be prepared
+         */
+        OrtSession load(Path modelFile, OrtSession.SessionOptions options) throws OrtException, LlmInferenceException;
+    }
+
+    /**
+     * Constructs a new OptimizedModelCache.
+     *
+     * @param directory the directory holding the optimized models, created if missing
+     */
+    public OptimizedModelCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the cache entry directory of a model.
+     *
+     * @param environment the ONNX Runtime environment
+     * @param modelFile the source model file
+     * @param level the optimization level
+     * @param settings the session settings that affect the optimized graph, e.g. the execution provider
+     * @return the entry directory, which may not exist yet
+     * @throws LlmInferenceException if the model file cannot be read
+     */
+    public Path getEntry(OrtEnvironment environment, Path modelFile, OrtSession.SessionOptions.OptLevel level,
+                         String settings) throws LlmInferenceException {
+        try {
+            Path source = modelFile.toAbsolutePath().normalize();
+            String key = source + "|" + Files.size(source) + "|" + Files.getLastModifiedTime(source).toMillis()
+                    + "|" + environment.getVersion() + "|" + level + "|" + settings;
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(stem(source)).append('-');
+            for (int i = 0; i < 8; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return directory.resolve(name.toString());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new LlmInferenceException("Failed to fingerprint model " + modelFile, e);
+        }
+    }
+
+    /**
+     * Creates a session for a model, loading its optimized graph from the cache or
+     * optimizing it and storing the result.
+     *
+     * @param environment the ONNX Runtime environment
+     * @param modelFile the source model file
+     * @param options the session options, whose optimization level must be {@code level};
+     *                the options are modified and should not be reused
+     * @param level the optimization level
+     * @param settings the session settings that affect the optimized graph
+     * @param loader creates the session from the cached or the source model file
+     * @return the session
+     * @throws LlmInferenceException if the session cannot be created
+     */
+    public OrtSession createSession(OrtEnvironment environment, Path modelFile, OrtSession.SessionOptions options,
+                                    OrtSession.SessionOptions.OptLevel level, String settings, SessionLoader loader)
+            throws LlmInferenceException {
+        Path entry = getEntry(environment, modelFile, level, settings);
+        Path optimized = entry.resolve(modelFile.getFileName());
+        try {
+            if (Files.isRegularFile(optimized)) {
+                logger.info("Loading optimized model from {}", optimized);
+                options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.NO_OPT);
+                return loader.load(optimized, options);
+            }
+
+            // Step 1: Let ONNX Runtime write the optimized graph next to its final name
+            Files.createDirectories(entry);
+            Path temporary = entry.resolve(modelFile.getFileName() + ".tmp");
+            options.setOptimizedModelFilePath(temporary.toString());
+            options.addConfigEntry("session.optimized_model_external_initializers_file_name",
+                    modelFile.getFileName() + ".data");
+            options.addConfigEntry("session.optimized_model_external_initializers_min_size_in_bytes",
+                    Integer.toString(EXTERNAL_INITIALIZER_MIN_BYTES));
+            long start = System.nanoTime();
+            OrtSession session = loader.load(modelFile, options);
+
+            // Step 2: Publish it atomically so an interrupted write is never loaded
+            Files.move(temporary, optimized, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            logger.info("Optimized model {} in {} ms, cached at {}", modelFile,
+                    (System.nanoTime() - start) / 1_000_000, optimized);
+            return session;
+        } catch (OrtException | IOException e) {
+            throw new LlmInferenceException("Failed to create session for " + modelFile, e);
+        }
+    }
+
+    /**
+     * Prepares a GenAI model directory that uses the cached optimized graph of a model.
+     * The other files of the source directory are linked into the entry directory, and
+     * its genai_config.json disables graph optimizations.
+     *
+     * @param environment the ONNX Runtime environment
+     * @param modelDirectory the source GenAI model directory
+     * @param modelFile the decoder model file within the directory
+     * @param level the optimization level
+     * @param settings the session settings that affect the optimized graph
+     * @return the directory to load with GenAI, or the source directory if the model has not been optimized yet
+     * @throws LlmInferenceException if the directory cannot be prepared
+     */
+    public Path prepareGenAIModel(OrtEnvironment environment, Path modelDirectory, String modelFile,
+                                  OrtSession.SessionOptions.OptLevel level, String settings)
+            throws LlmInferenceException {
+        Path entry = getEntry(environment, modelDirectory.resolve(modelFile), level, settings);
+        Path configFile = modelDirectory.resolve(GenAIModelConfig.FILE_NAME);
+        if (!Files.isRegularFile(entry.resolve(modelFile)) || !Files.isRegularFile(configFile)) {
+            return modelDirectory;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(modelDirectory)) {
+            for (Path file : files) {
+                Path target = entry.resolve(file.getFileName());
+                String name = file.getFileName().toString();
+                if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)
+                        || name.equals(GenAIModelConfig.FILE_NAME) || name.startsWith(modelFile)) {
+                    continue;
+                }
+                try {
+                    Files.createSymbolicLink(target, file.toAbsolutePath());
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.copy(file, target);
+                }
+            }
+
+            ObjectMapper mapper = new ObjectMapper();
+            ObjectNode config = (ObjectNode) mapper.readTree(configFile.toFile());
+            ObjectNode sessionOptions = config.withObject("/model/decoder/session_options");
+            sessionOptions.put("graph_optimization_level", "ORT_DISABLE_ALL");
+            mapper.writerWithDefaultPrettyPrinter().writeValue(entry.resolve(GenAIModelConfig.FILE_NAME).toFile(),
+                    config);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            throw new LlmInferenceException("Failed to prepare optimized GenAI model in " + entry, e);
+        }
+    }
+
+    private static String stem(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
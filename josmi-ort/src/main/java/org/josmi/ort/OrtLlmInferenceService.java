@@ -1,41 +1,117 @@
 package org.josmi.ort;
 
 import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtLoggingLevel;
+import ai.onnxruntime.OrtLoraAdapter;
 import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.genai.Adapters;
+import ai.onnxruntime.genai.Generator;
+import ai.onnxruntime.genai.Model;
+import ai.onnxruntime.genai.Sequences;
 import ai.onnxruntime.genai.SimpleGenAI;
 import ai.onnxruntime.genai.GeneratorParams;
 import ai.onnxruntime.genai.GenAIException;
+import ai.onnxruntime.genai.Tokenizer;
+import ai.onnxruntime.genai.TokenizerStream;
 import org.josmi.api.AbstractLlmInferenceService;
 import org.josmi.api.LlmInferenceException;
+import org.josmi.api.NativeMemoryUsage;
 import org.josmi.api.config.LlmConfig;
+import org.josmi.api.manager.HotSwap;
 import org.josmi.api.model.ChatRequest;
 import org.josmi.api.model.ChatResponse;
 import org.josmi.api.model.CompletionRequest;
 import org.josmi.api.model.CompletionResponse;
 import org.josmi.api.model.Message;
+import org.josmi.api.tuning.AutoTuner;
+import org.josmi.api.tuning.TuningCandidate;
+import org.josmi.ort.engine.AttentionSinkWindow;
+import org.josmi.ort.engine.DecoderBenchmark;
+import org.josmi.ort.engine.DecoderModel;
+import org.josmi.ort.engine.DraftModelSpeculator;
+import org.josmi.ort.engine.GenAIModelConfig;
+import org.josmi.ort.engine.GenAITokenizer;
+import org.josmi.ort.engine.GenerationParameters;
+import org.josmi.ort.engine.GenerationResult;
+import org.josmi.ort.engine.KvBlockPool;
+import org.josmi.ort.engine.NativeEngineOptions;
+import org.josmi.ort.engine.NativeGenerationEngine;
+import org.josmi.ort.engine.NativeGenerator;
+import org.josmi.ort.engine.PromptLookupSpeculator;
+import org.josmi.ort.engine.RotaryEmbedding;
+import org.josmi.ort.engine.StopSequences;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implementation of LlmInferenceService using ONNX Runtime Java API.
+ * <p>
+ * Generation runs either through ONNX Runtime GenAI ("genai" engine, the default)
+ * or through a decode loop that drives the ONNX Runtime session directly
+ * ("native" engine, see {@link NativeGenerationEngine}).
+ * <p>
+ * The sessions run on the CPU execution provider selected by
+ * {@link LlmConfig#DEVICE}, see {@link CpuExecutionProvider}.
+ * <p>
+ * {@link #swapModel(Map)} replaces the model of a live service: requests started before
+ * the swap finish on the previous model, see {@link HotSwap}.
+ * <p>
+ * With LoRA adapters configured ({@link LlmConfig#LORA_ADAPTER_PATH} or
+ * {@link LlmConfig#LORA_ADAPTERS}), the base model is loaded once and each request may select
+ * an adapter by name with the {@link LlmConfig#ADAPTER} parameter. Adapters are loaded on first
+ * use and kept resident up to {@link LlmConfig#LORA_MAX_ADAPTERS}, see {@link LoraAdapterCache}.
  */
-public class OrtLlmInferenceService extends AbstractLlmInferenceService {
+public class OrtLlmInferenceService extends AbstractLlmInferenceService implements NativeMemoryUsage {
 
     private static final Logger logger = LoggerFactory.getLogger(OrtLlmInferenceService.class);
 
+    public static final String ENGINE_GENAI = "genai";
+    public static final String ENGINE_NATIVE = "native";
+    public static final int DEFAULT_MAX_BATCH_SIZE = 8;
+
+    private static final int WARM_UP_PROMPT_TOKENS = 16;
+    private static final int WARM_UP_GENERATED_TOKENS = 4;
+
+    /**
+     * System property set once the ONNX Runtime environment of the JVM has been created with global thread pools.
+     */
+    static final String GLOBAL_THREAD_POOLS_PROPERTY = "josmi.ort.globalThreadPools";
+
     private final OrtEnvironment environment;
     private OrtSession session;
+    private OrtSession draftSession;
     private SimpleGenAI simpleGenAI;
+    private Model genAIModel;
+    private Tokenizer genAITokenizer;
+    private Adapters genAIAdapters;
+    private LoraAdapterCache<String> genAIAdapterCache;
+    private LoraAdapterCache<NativeLoraAdapter> nativeAdapterCache;
+    private NativeGenerationEngine nativeEngine;
+    private OptimizedModelCache optimizedModelCache;
+    private OrtSession.SessionOptions.OptLevel optimizationLevel;
+    private CpuExecutionProvider executionProvider;
+    private OrtSession.RunOptions prefillRunOptions;
+    private final List<ExternalWeights> externalWeights = new ArrayList<>();
+    private boolean globalThreadPools;
     private final AtomicBoolean initialized = new AtomicBoolean(false);
     private final String modelPath;
     private final String modelID;
+    // The service, or the versions of its model swapped in after it, serve the requests
+    private final HotSwap<OrtLlmInferenceService> versions = new HotSwap<>(this, OrtLlmInferenceService::closeModel);
+    private Map<String, Object> loadConfig;
 
     /**
      * Constructs a new OrtLlmInferenceService with the specified configuration.
@@ -45,11 +121,21 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
      */
     public OrtLlmInferenceService(Map<String, Object> config) throws LlmInferenceException {
         super("ort", config);
+        // Before auto-tuning adds the settings tuned for this model
+        this.loadConfig = new HashMap<>(config);
         
         try {
-            this.environment = OrtEnvironment.getEnvironment();
-            this.modelPath = getConfigString(LlmConfig.MODEL_PATH, null);
-            this.modelID = getConfigString(LlmConfig.MODEL_ID, null);
+            this.environment = createEnvironment();
+            String path = getConfigString(LlmConfig.MODEL_PATH, null);
+            String id = getConfigString(LlmConfig.MODEL_ID, null);
+            String variantPolicy = getConfigString(LlmConfig.MODEL_VARIANT_POLICY, null);
+            if (path != null && variantPolicy != null) {
+                ModelVariant variant = selectModelVariant(Paths.get(path), variantPolicy);
+                path = variant.getDirectory().toString();
+                id = variant.getModelFile();
+            }
+            this.modelPath = path;
+            this.modelID = id;
             
             if (modelPath == null) {
                 throw new LlmInferenceException("Model path is required");
@@ -64,6 +150,74 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
         }
     }
 
+    /**
+     * Gets the ONNX Runtime environment of the JVM. With global thread pools configured, the
+     * first service to initialize ONNX Runtime creates the environment with pools sized from
+     * its configuration, and every later session in the JVM shares them.
+     *
+     * @return the environment
+     * @throws OrtException if the threading options are invalid
+     */
+    private OrtEnvironment createEnvironment() throws OrtException {
+        if (!getConfigBoolean(LlmConfig.GLOBAL_THREAD_POOLS, false)) {
+            return OrtEnvironment.getEnvironment();
+        }
+        
+        synchronized (OrtEnvironment.class) {
+            if (Boolean.getBoolean(GLOBAL_THREAD_POOLS_PROPERTY)) {
+                globalThreadPools = true;
+                return OrtEnvironment.getEnvironment();
+            }
+            
+            try (OrtEnvironment.ThreadingOptions threadingOptions = new OrtEnvironment.ThreadingOptions()) {
+                int threads = getConfigInt(LlmConfig.THREADS, 0);
+                if (threads > 0) {
+                    threadingOptions.setGlobalIntraOpNumThreads(threads);
+                }
+                int interOpThreads = getConfigInt(LlmConfig.INTER_OP_THREADS, 0);
+                if (interOpThreads > 0) {
+                    threadingOptions.setGlobalInterOpNumThreads(interOpThreads);
+                }
+                threadingOptions.setGlobalSpinControl(getConfigBoolean(LlmConfig.THREAD_SPINNING, true));
+                if (getConfigString(LlmConfig.THREAD_AFFINITY, null) != null) {
+                    logger.warn("Thread affinity is not supported with global thread pools and is ignored");
+                }
+                
+                OrtEnvironment ortEnvironment = OrtEnvironment.getEnvironment(
+                        OrtLoggingLevel.ORT_LOGGING_LEVEL_WARNING, OrtEnvironment.DEFAULT_NAME, threadingOptions);
+                System.setProperty(GLOBAL_THREAD_POOLS_PROPERTY, "true");
+                globalThreadPools = true;
+                logger.info("Created ONNX Runtime global thread pools ({} intra-op, {} inter-op threads)",
+                        threads > 0 ? threads : "default", interOpThreads > 0 ? interOpThreads : "default");
+                return ortEnvironment;
+            } catch (IllegalStateException e) {
+                logger.warn("ONNX Runtime was initialized without global thread pools, using per-session threads");
+                return OrtEnvironment.getEnvironment();
+            }
+        }
+    }
+
+    /**
+     * Selects the precision variant of the model to load according to the configured policy,
+     * using the measurements of the variant report if there is one.
+     *
+     * @param root the model directory holding the variants
+     * @param policy the variant policy
+     * @return the selected variant
+     * @throws LlmInferenceException if no variant qualifies
+     */
+    private ModelVariant selectModelVariant(Path root, String policy) throws LlmInferenceException {
+        List<ModelVariant> variants = ModelVariant.discover(root);
+        Path reportFile = Paths.get(getConfigString(LlmConfig.MODEL_VARIANT_REPORT,
+                root.resolve(ModelVariantReport.FILE_NAME).toString()));
+        ModelVariantReport report = ModelVariantReport.load(reportFile);
+        ModelVariant variant = ModelVariant.select(root, variants, policy,
+                getConfigString(LlmConfig.MODEL_VARIANT_ACCURACY_FLOOR, "int8"), report);
+        logger.info("Selected model variant {} of {} by policy {}{}", variant, variants.size(), policy,
+                report != null ? " with report " + reportFile : "");
+        return variant;
+    }
+
     /**
      * Initializes the ONNX Runtime session and SimpleGenAI instance.
      *
@@ -77,21 +231,77 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
         try {
             logger.info("Initializing OrtLlmInferenceService with model: {}", modelPath);
             
-            // Create session options
-            OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions();
-            
-            // Set number of threads if specified
-            int threads = getConfigInt(LlmConfig.THREADS, 0);
-            if (threads > 0) {
-                sessionOptions.setIntraOpNumThreads(threads);
+            String cachePath = getConfigString(LlmConfig.OPTIMIZED_MODEL_PATH, null);
+            optimizedModelCache = cachePath != null ? new OptimizedModelCache(Paths.get(cachePath)) : null;
+            optimizationLevel = parseOptimizationLevel(getConfigString(LlmConfig.OPTIMIZATION_LEVEL, "all"));
+            executionProvider = CpuExecutionProvider.select(
+                    CpuExecutionProvider.parse(getConfigString(LlmConfig.DEVICE, "cpu")),
+                    getConfigInt(LlmConfig.THREADS, 0), getConfigBoolean(LlmConfig.CPU_ARENA, true));
+            logger.info("Using execution provider {}", executionProvider);
+
+            Path modelFilePath = Paths.get(modelPath, modelID);
+            String engine = getConfigString(LlmConfig.ENGINE, ENGINE_GENAI);
+            if (getConfigBoolean(LlmConfig.AUTO_TUNE, false)) {
+                if (ENGINE_NATIVE.equalsIgnoreCase(engine)) {
+                    autoTune(modelFilePath);
+                } else {
+                    logger.warn("Auto-tuning requires the native engine and is ignored");
+                }
             }
-            
+
             // Load the model
-            Path modelFilePath = Paths.get(modelPath, modelID);
-            session = environment.createSession(modelFilePath.toString(), sessionOptions);
+            session = createSession(modelFilePath);
             
-            // Initialize SimpleGenAI
-            simpleGenAI = new SimpleGenAI(modelPath);
+            boolean loraAdapters = getConfigString(LlmConfig.LORA_ADAPTER_PATH, null) != null
+                    || config.get(LlmConfig.LORA_ADAPTERS) != null;
+            if (ENGINE_NATIVE.equalsIgnoreCase(engine)) {
+                // Drive the session directly, using GenAI only for tokenization
+                nativeEngine = createNativeEngine();
+                if (loraAdapters) {
+                    nativeAdapterCache = createAdapterCache(new LoraAdapterCache.Backend<NativeLoraAdapter>() {
+                        @Override
+                        public NativeLoraAdapter load(String name, Path file) throws Exception {
+                            return NativeLoraAdapter.load(file);
+                        }
+
+                        @Override
+                        public void unload(String name, NativeLoraAdapter adapter) {
+                            adapter.close();
+                        }
+                    });
+                }
+            } else {
+                if (executionProvider != CpuExecutionProvider.DEFAULT) {
+                    logger.warn("The GenAI engine runs on the providers of genai_config.json, not {}",
+                            executionProvider);
+                }
+                // Initialize SimpleGenAI, on the optimized graph written by the session if cached
+                String genAIModelPath = modelPath;
+                if (optimizedModelCache != null) {
+                    genAIModelPath = optimizedModelCache.prepareGenAIModel(environment, Paths.get(modelPath), modelID,
+                            optimizationLevel, getSessionSettings(executionProvider)).toString();
+                }
+                if (loraAdapters) {
+                    // The generator loop of SimpleGenAI cannot activate adapters
+                    genAIModel = new Model(genAIModelPath);
+                    genAITokenizer = new Tokenizer(genAIModel);
+                    genAIAdapters = new Adapters(genAIModel);
+                    genAIAdapterCache = createAdapterCache(new LoraAdapterCache.Backend<String>() {
+                        @Override
+                        public String load(String name, Path file) throws Exception {
+                            genAIAdapters.loadAdapter(file.toString(), name);
+                            return name;
+                        }
+
+                        @Override
+                        public void unload(String name, String adapter) throws Exception {
+                            genAIAdapters.unloadAdapter(name);
+                        }
+                    });
+                } else {
+                    simpleGenAI = new SimpleGenAI(genAIModelPath);
+                }
+            }
             
             initialized.set(true);
             ready = true;
@@ -103,6 +313,76 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
 
     @Override
     protected ChatResponse doChatInference(ChatRequest request) throws Exception {
+        try (HotSwap.Lease<OrtLlmInferenceService> model = versions.acquire()) {
+            return model.get().generateChat(request);
+        }
+    }
+
+    @Override
+    protected CompletionResponse doCompletionInference(CompletionRequest request) throws Exception {
+        try (HotSwap.Lease<OrtLlmInferenceService> model = versions.acquire()) {
+            return model.get().generateCompletion(request);
+        }
+    }
+
+    /**
+     * Loads a new version of the model and switches the service to it without interrupting requests.
+     * The new version is loaded and warmed up while the current one keeps serving; then new requests
+     * go to the new version, and the current one is closed once its in-flight requests finish.
+     * If the new version fails to load, the current one stays in service.
+     *
+     * @param modelConfig the configuration of the new version, e.g. its model path, over the
+     *                    configuration of the current one
+     * @throws LlmInferenceException if the new version cannot be loaded or the service is closed
+     */
+    public void swapModel(Map<String, Object> modelConfig) throws LlmInferenceException {
+        synchronized (versions) {
+            Map<String, Object> nextConfig = new HashMap<>(loadConfig);
+            nextConfig.putAll(modelConfig);
+            logger.info("Loading new model version from {}", nextConfig.get(LlmConfig.MODEL_PATH));
+            long start = System.currentTimeMillis();
+            OrtLlmInferenceService next = new OrtLlmInferenceService(nextConfig);
+            boolean swapped = false;
+            try {
+                next.warmUp();
+                versions.swap(next);
+                swapped = true;
+            } finally {
+                // Whatever failed, the new version never served a request
+                if (!swapped) {
+                    next.closeModel();
+                }
+            }
+            loadConfig = nextConfig;
+            logger.info("Switched to model {} in {} ms", next.modelPath, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Runs a short generation so that the first requests do not pay for the first runs of the sessions.
+     *
+     * @throws LlmInferenceException if the model fails to generate
+     */
+    private void warmUp() throws LlmInferenceException {
+        try {
+            if (nativeEngine != null) {
+                new DecoderBenchmark(nativeEngine.getModel(), GenAIModelConfig.load(Paths.get(modelPath)),
+                        WARM_UP_PROMPT_TOKENS, WARM_UP_GENERATED_TOKENS).warmUp();
+            } else if (genAIModel != null) {
+                generateWithAdapters("Hello", Collections.singletonMap(LlmConfig.MAX_TOKENS, WARM_UP_PROMPT_TOKENS),
+                        null);
+            } else {
+                GeneratorParams params = simpleGenAI.createGeneratorParams("Hello");
+                applyGenerationParameters(params, Collections.singletonMap(LlmConfig.MAX_TOKENS,
+                        WARM_UP_PROMPT_TOKENS));
+                simpleGenAI.generate(params, token -> { });
+            }
+        } catch (GenAIException e) {
+            throw new LlmInferenceException("Failed to warm up model " + modelPath, e);
+        }
+    }
+
+    private ChatResponse generateChat(ChatRequest request) throws Exception {
         if (!initialized.get()) {
             throw new LlmInferenceException("Service not initialized");
         }
@@ -112,6 +392,17 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
         try {
             // Format all messages into a single prompt
             String prompt = formatChatMessages(request.getMessages());
+            String adapter = getAdapterName(request.getParameters());
+            
+            if (nativeEngine != null) {
+                List<GenerationResult> results = generateNative(prompt, request.getParameters(), adapter);
+                return new ChatResponse(Message.assistant(results.get(0).getText()),
+                        createMetadata(results, adapter), results.get(0).getLogprobs());
+            }
+            if (genAIModel != null) {
+                String text = generateWithAdapters(prompt, request.getParameters(), adapter);
+                return new ChatResponse(Message.assistant(text), createMetadata(adapter));
+            }
             
             // Create generator parameters
             GeneratorParams params = simpleGenAI.createGeneratorParams(prompt);
@@ -123,9 +414,8 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
             StringBuilder generatedText = new StringBuilder();
             simpleGenAI.generate(params, token -> {
                 generatedText.append(token);
-                System.out.println("** token:" + token);
             });
-            String result = generatedText.toString();
+            String result = truncateAtStop(generatedText.toString(), request.getParameters());
             
             // Create response
             Message responseMessage = Message.assistant(result);
@@ -141,8 +431,7 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
         }
     }
 
-    @Override
-    protected CompletionResponse doCompletionInference(CompletionRequest request) throws Exception {
+    private CompletionResponse generateCompletion(CompletionRequest request) throws Exception {
         if (!initialized.get()) {
             throw new LlmInferenceException("Service not initialized");
         }
@@ -151,6 +440,17 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
                 request.getPrompt() != null ? request.getPrompt().length() : 0);
         
         try {
+            String adapter = getAdapterName(request.getParameters());
+            if (nativeEngine != null) {
+                List<GenerationResult> results = generateNative(request.getPrompt(), request.getParameters(), adapter);
+                return new CompletionResponse(results.get(0).getText(), createMetadata(results, adapter),
+                        results.get(0).getLogprobs());
+            }
+            if (genAIModel != null) {
+                String text = generateWithAdapters(request.getPrompt(), request.getParameters(), adapter);
+                return new CompletionResponse(text, createMetadata(adapter));
+            }
+            
             // Create generator parameters
             GeneratorParams params = simpleGenAI.createGeneratorParams(request.getPrompt());
             
@@ -160,7 +460,7 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
             // Generate response
             StringBuilder generatedText = new StringBuilder();
             simpleGenAI.generate(params, token -> generatedText.append(token));
-            String result = generatedText.toString();
+            String result = truncateAtStop(generatedText.toString(), request.getParameters());
             
             // Get metadata
             Map<String, Object> metadata = new HashMap<>();
@@ -173,6 +473,509 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
         }
     }
 
+    /**
+     * Gets the LoRA adapter a request selects, or else the configured default adapter.
+     *
+     * @param parameters the request parameters
+     * @return the adapter name, or null for the base model
+     * @throws LlmInferenceException if an adapter is selected but no adapters are configured
+     */
+    private String getAdapterName(Map<String, Object> parameters) throws LlmInferenceException {
+        Object adapter = parameters != null ? parameters.get(LlmConfig.ADAPTER) : null;
+        String name = adapter != null ? adapter.toString() : getConfigString(LlmConfig.ADAPTER, null);
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        if (nativeAdapterCache == null && genAIAdapterCache == null) {
+            throw new LlmInferenceException("No LoRA adapters are configured, cannot serve adapter " + name);
+        }
+        return name;
+    }
+
+    private <T> LoraAdapterCache<T> createAdapterCache(LoraAdapterCache.Backend<T> backend)
+            throws LlmInferenceException {
+        String directory = getConfigString(LlmConfig.LORA_ADAPTER_PATH, null);
+        return new LoraAdapterCache<>(directory != null ? Paths.get(directory) : null,
+                LoraAdapterCache.parseFiles(config.get(LlmConfig.LORA_ADAPTERS)),
+                getConfigInt(LlmConfig.LORA_MAX_ADAPTERS, LoraAdapterCache.DEFAULT_MAX_ADAPTERS), backend);
+    }
+
+    /**
+     * Generates with the native engine, with the passes of the request running the adapter's run options.
+     */
+    private List<GenerationResult> generateNative(String prompt, Map<String, Object> parameters, String adapter)
+            throws LlmInferenceException {
+        try (LoraAdapterCache.Lease<NativeLoraAdapter> lease =
+                     adapter != null ? nativeAdapterCache.acquire(adapter) : null) {
+            return nativeEngine.generateChoices(prompt, GenerationParameters.from(parameters, config),
+                    lease != null ? lease.getAdapter().runOptions : null);
+        }
+    }
+
+    /**
+     * Generates with the GenAI model of a service with LoRA adapters, activating the adapter of the request.
+     */
+    private String generateWithAdapters(String prompt, Map<String, Object> parameters, String adapter)
+            throws GenAIException, LlmInferenceException {
+        try (LoraAdapterCache.Lease<String> lease = adapter != null ? genAIAdapterCache.acquire(adapter) : null;
+             Sequences input = genAITokenizer.encode(prompt);
+             GeneratorParams params = new GeneratorParams(genAIModel)) {
+            applyGenerationParameters(params, parameters);
+            params.setInput(input);
+            try (Generator generator = new Generator(genAIModel, params);
+                 TokenizerStream stream = genAITokenizer.createStream()) {
+                if (lease != null) {
+                    generator.setActiveAdapter(genAIAdapters, lease.getName());
+                }
+                StopSequences stopSequences = getStopSequences(parameters);
+                int stopState = stopSequences != null ? stopSequences.getInitialState() : 0;
+                StringBuilder text = new StringBuilder();
+                while (!generator.isDone()) {
+                    generator.computeLogits();
+                    generator.generateNextToken();
+                    int start = text.length();
+                    text.append(stream.decode(generator.getLastTokenInSequence(0)));
+                    for (int i = start; stopSequences != null && i < text.length(); i++) {
+                        stopState = stopSequences.step(stopState, text.charAt(i));
+                        int matchLength = stopSequences.getMatchLength(stopState);
+                        if (matchLength > 0) {
+                            text.setLength(i + 1 - matchLength);
+                            return text.toString();
+                        }
+                    }
+                }
+                return text.toString();
+            }
+        }
+    }
+
+    /**
+     * Gets the stop sequences of a request, or else the configured ones.
+     */
+    private StopSequences getStopSequences(Map<String, Object> parameters) {
+        Object stop = parameters != null ? parameters.get(LlmConfig.STOP) : null;
+        return StopSequences.of(stop != null ? stop : config.get(LlmConfig.STOP));
+    }
+
+    /**
+     * Cuts a text generated to the end at its first stop sequence, for the generation paths
+     * that cannot stop early.
+     */
+    private String truncateAtStop(String text, Map<String, Object> parameters) {
+        StopSequences stopSequences = getStopSequences(parameters);
+        int index = stopSequences != null ? stopSequences.indexIn(text) : -1;
+        return index >= 0 ? text.substring(0, index) : text;
+    }
+
+    /**
+     * Creates the native engine on the loaded session, with a draft model session or prompt lookup
+     * speculation if configured.
+     *
+     * @return the native engine
+     * @throws Exception if a model cannot be loaded
+     */
+    private NativeGenerationEngine createNativeEngine() throws Exception {
+        GenAIModelConfig modelConfig = GenAIModelConfig.load(Paths.get(modelPath));
+        DecoderModel decoderModel = DecoderModel.inspect(environment, session, modelConfig);
+        if (getConfigBoolean(LlmConfig.ARENA_SHRINKAGE, false)) {
+            // Release the arena memory taken by long prompts after each prefill pass
+            prefillRunOptions = new OrtSession.RunOptions();
+            prefillRunOptions.addRunConfigEntry("memory.enable_memory_arena_shrinkage", "cpu:0");
+            decoderModel.setPrefillRunOptions(prefillRunOptions);
+        }
+        int contextLength = getConfigInt(LlmConfig.CONTEXT_LENGTH, modelConfig.getContextLength());
+
+        NativeEngineOptions.Builder options = NativeEngineOptions.builder()
+                .contextLength(contextLength)
+                .maxBatchSize(getConfigInt(LlmConfig.MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE))
+                .kvCacheBytes(getConfigInt(LlmConfig.KV_CACHE_MEMORY_MB, 0) * 1024L * 1024L)
+                .blockSize(getConfigInt(LlmConfig.KV_BLOCK_SIZE, KvBlockPool.DEFAULT_BLOCK_SIZE))
+                .prefixCaching(getConfigBoolean(LlmConfig.PREFIX_CACHING, true))
+                .prefillChunk(getConfigInt(LlmConfig.PREFILL_CHUNK, NativeGenerator.DEFAULT_PREFILL_CHUNK));
+
+        int kvSwapMemoryMb = getConfigInt(LlmConfig.KV_SWAP_MEMORY_MB, 0);
+        if (kvSwapMemoryMb > 0) {
+            String kvSwapPath = getConfigString(LlmConfig.KV_SWAP_PATH, null);
+            options.kvSwap(kvSwapMemoryMb * 1024L * 1024L, kvSwapPath != null ? Paths.get(kvSwapPath) : null);
+            logger.info("Preemption enabled, preempted sequences swapped to {} ({} MB)",
+                    kvSwapPath != null ? kvSwapPath : "heap memory", kvSwapMemoryMb);
+        }
+
+        String draftModelPath = getConfigString(LlmConfig.DRAFT_MODEL_PATH, null);
+        if (draftModelPath != null) {
+            String draftModelId = getConfigString(LlmConfig.DRAFT_MODEL_ID, modelID);
+            draftSession = createSession(Paths.get(draftModelPath, draftModelId));
+            GenAIModelConfig draftConfig = GenAIModelConfig.load(Paths.get(draftModelPath));
+            DecoderModel draftModel = DecoderModel.inspect(environment, draftSession, draftConfig);
+            int speculativeTokens = getConfigInt(LlmConfig.SPECULATIVE_TOKENS,
+                    NativeEngineOptions.DEFAULT_SPECULATIVE_TOKENS);
+            int targetVocabSize = decoderModel.getVocabSize();
+            options.speculation(() -> new DraftModelSpeculator(draftModel, draftConfig, targetVocabSize,
+                    contextLength, speculativeTokens), speculativeTokens);
+            logger.info("Speculative decoding with draft model {} ({} tokens per step)", draftModelPath,
+                    speculativeTokens);
+        } else if (getConfigBoolean(LlmConfig.PROMPT_LOOKUP, false)) {
+            int maxNgram = getConfigInt(LlmConfig.PROMPT_LOOKUP_MAX_NGRAM, PromptLookupSpeculator.DEFAULT_MAX_NGRAM);
+            int speculativeTokens = getConfigInt(LlmConfig.SPECULATIVE_TOKENS,
+                    NativeEngineOptions.DEFAULT_SPECULATIVE_TOKENS);
+            options.speculation(() -> new PromptLookupSpeculator(maxNgram, 1), speculativeTokens);
+            logger.info("Prompt lookup speculative decoding with n-grams up to {} ({} tokens per step)", maxNgram,
+                    speculativeTokens);
+        }
+
+        int windowTokens = getConfigInt(LlmConfig.KV_WINDOW, 0);
+        if (windowTokens > 0) {
+            int sinkTokens = getConfigInt(LlmConfig.ATTENTION_SINKS, AttentionSinkWindow.DEFAULT_SINK_TOKENS);
+            RotaryEmbedding rotary = RotaryEmbedding.load(Paths.get(modelPath), decoderModel.getHeadDim());
+            options.attentionSinkWindow(new AttentionSinkWindow(sinkTokens, windowTokens, rotary));
+            logger.info("Key/value cache bounded to {} attention sinks and a window of {} tokens{}", sinkTokens,
+                    windowTokens, rotary != null ? "" : ", keys moved without rotation");
+        }
+
+        return new NativeGenerationEngine(decoderModel, modelConfig, new GenAITokenizer(modelPath), options.build());
+    }
+
+    /**
+     * Applies the auto-tuned thread and batch settings of the model on this host, benchmarking
+     * them first if the model has not been tuned yet. Settings in the configuration are kept
+     * and not searched; the thread settings are not searched with global thread pools either.
+     *
+     * @param modelFile the model file
+     * @throws Exception if the model cannot be benchmarked
+     */
+    private void autoTune(Path modelFile) throws Exception {
+        AutoTuner tuner = new AutoTuner(Paths.get(getConfigString(LlmConfig.AUTO_TUNE_PATH,
+                AutoTuner.DEFAULT_DIRECTORY.toString())));
+        Map<String, Object> settings = new TreeMap<>();
+        settings.put("engine", ENGINE_NATIVE);
+        settings.put("session", getSessionSettings(executionProvider));
+        settings.put(LlmConfig.OPTIMIZATION_LEVEL, optimizationLevel);
+        settings.put(LlmConfig.GLOBAL_THREAD_POOLS, globalThreadPools);
+        for (String key : Arrays.asList(LlmConfig.THREADS, LlmConfig.INTER_OP_THREADS, LlmConfig.EXECUTION_MODE,
+                LlmConfig.MAX_BATCH_SIZE)) {
+            // Settings fixed by the configuration are part of what was tuned
+            if (config.containsKey(key)) {
+                settings.put(key, config.get(key));
+            }
+        }
+        String fingerprint = AutoTuner.fingerprint(serviceName, modelFile, settings);
+
+        TuningCandidate tuned = tuner.load(fingerprint);
+        if (tuned == null) {
+            boolean threadsFixed = globalThreadPools || config.containsKey(LlmConfig.THREADS);
+            boolean interOpFixed = globalThreadPools || config.containsKey(LlmConfig.INTER_OP_THREADS)
+                    || config.containsKey(LlmConfig.EXECUTION_MODE);
+            boolean batchFixed = config.containsKey(LlmConfig.MAX_BATCH_SIZE)
+                    || getConfigString(LlmConfig.DRAFT_MODEL_PATH, null) != null
+                    || getConfigBoolean(LlmConfig.PROMPT_LOOKUP, false);
+            List<String> tunedKeys = new ArrayList<>();
+            if (!threadsFixed) {
+                tunedKeys.add(LlmConfig.THREADS);
+            }
+            if (!interOpFixed) {
+                tunedKeys.addAll(Arrays.asList(LlmConfig.INTER_OP_THREADS, LlmConfig.EXECUTION_MODE));
+            }
+            if (!batchFixed) {
+                tunedKeys.add(LlmConfig.MAX_BATCH_SIZE);
+            }
+
+            int processors = Runtime.getRuntime().availableProcessors();
+            TuningCandidate start = new TuningCandidate(getConfigInt(LlmConfig.THREADS, 0),
+                    getConfigInt(LlmConfig.INTER_OP_THREADS, 0),
+                    getConfigInt(LlmConfig.MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE));
+            GenAIModelConfig modelConfig = GenAIModelConfig.load(Paths.get(modelPath));
+            tuned = tuner.tune(fingerprint, start,
+                    threadsFixed ? null : AutoTuner.threadCounts(),
+                    interOpFixed || processors < 2 ? null : Arrays.asList(0, 2),
+                    batchFixed ? null : Arrays.asList(1, 2, 4, 8, 16),
+                    candidate -> benchmark(modelFile, modelConfig, candidate, tunedKeys));
+        }
+        tuned.apply(config);
+        logger.info("Using auto-tuned settings: {}", tuned);
+    }
+
+    /**
+     * Measures the throughput of a model with the settings of a tuning candidate, on a trial session.
+     *
+     * @param modelFile the model file
+     * @param modelConfig the GenAI model configuration
+     * @param candidate the candidate settings
+     * @param tunedKeys the configuration keys set from the candidate
+     * @return the throughput in tokens per second
+     * @throws Exception if the trial session cannot be created or run
+     */
+    private double benchmark(Path modelFile, GenAIModelConfig modelConfig, TuningCandidate candidate,
+                             List<String> tunedKeys) throws Exception {
+        Map<String, Object> saved = new HashMap<>(config);
+        List<ExternalWeights> trialWeights = new ArrayList<>();
+        config.keySet().removeAll(tunedKeys);
+        candidate.apply(config);
+        try (OrtSession trialSession = createSession(modelFile, executionProvider, trialWeights)) {
+            DecoderModel decoderModel = DecoderModel.inspect(environment, trialSession, modelConfig);
+            return new DecoderBenchmark(decoderModel, modelConfig, DecoderBenchmark.DEFAULT_PROMPT_TOKENS,
+                    DecoderBenchmark.DEFAULT_GENERATED_TOKENS).measure(candidate.getBatchSize());
+        } finally {
+            config.clear();
+            config.putAll(saved);
+            closeAll(trialWeights);
+        }
+    }
+
+    /**
+     * Measures the prefill and decode throughput of the model with each CPU execution provider,
+     * on trial sessions with the configured session options. Providers that this ONNX Runtime
+     * build cannot load are reported as unavailable. The service keeps its selected provider.
+     *
+     * @return the measurements of each provider
+     * @throws LlmInferenceException if the model configuration cannot be loaded
+     */
+    public ExecutionProviderComparison compareExecutionProviders() throws LlmInferenceException {
+        // The lease keeps the model version open until the trials are done
+        try (HotSwap.Lease<OrtLlmInferenceService> model = versions.acquire()) {
+            return model.get().measureExecutionProviders();
+        }
+    }
+
+    private ExecutionProviderComparison measureExecutionProviders() throws LlmInferenceException {
+        GenAIModelConfig modelConfig = GenAIModelConfig.load(Paths.get(modelPath));
+        Path modelFile = Paths.get(modelPath, modelID);
+        List<ExecutionProviderComparison.Result> results = new ArrayList<>();
+        for (CpuExecutionProvider provider : CpuExecutionProvider.values()) {
+            CpuExecutionProvider loaded = CpuExecutionProvider.select(Collections.singletonList(provider),
+                    getConfigInt(LlmConfig.THREADS, 0), getConfigBoolean(LlmConfig.CPU_ARENA, true));
+            if (loaded != provider) {
+                results.add(new ExecutionProviderComparison.Result(provider, 0, 0, "not available"));
+                continue;
+            }
+
+            List<ExternalWeights> trialWeights = new ArrayList<>();
+            try (OrtSession trialSession = createSession(modelFile, provider, trialWeights)) {
+                DecoderModel decoderModel = DecoderModel.inspect(environment, trialSession, modelConfig);
+                DecoderBenchmark benchmark = new DecoderBenchmark(decoderModel, modelConfig,
+                        DecoderBenchmark.DEFAULT_PROMPT_TOKENS, DecoderBenchmark.DEFAULT_GENERATED_TOKENS);
+                results.add(new ExecutionProviderComparison.Result(provider, benchmark.measurePrefill(),
+                        benchmark.measureDecode(), null));
+            } catch (Exception e) {
+                logger.warn("Failed to benchmark execution provider {}", provider, e);
+                results.add(new ExecutionProviderComparison.Result(provider, 0, 0, e.getMessage()));
+            } finally {
+                closeAll(trialWeights);
+            }
+        }
+        return new ExecutionProviderComparison(results);
+    }
+
+    /**
+     * Closes the external weights mapped for a trial session.
+     *
+     * @param weights the mapped weights
+     */
+    private static void closeAll(List<ExternalWeights> weights) {
+        for (ExternalWeights mapped : weights) {
+            mapped.close();
+        }
+        weights.clear();
+    }
+
+    /**
+     * Creates a session for a model file with the configured session options, reusing
+     * its cached optimized graph if an optimized model path is configured.
+     *
+     * @param modelFile the model file
+     * @return the session
+     * @throws Exception if the model cannot be loaded
+     */
+    private OrtSession createSession(Path modelFile) throws Exception {
+        return createSession(modelFile, executionProvider, externalWeights);
+    }
+
+    /**
+     * Creates a session for a model file with the configured session options and a CPU
+     * execution provider, reusing its cached optimized graph if an optimized model path is
+     * configured.
+     *
+     * @param modelFile the model file
+     * @param provider the CPU execution provider
+     * @param mappedWeights receives the external weights mapped for the session, to be closed after it
+     * @return the session
+     * @throws Exception if the model cannot be loaded
+     */
+    private OrtSession createSession(Path modelFile, CpuExecutionProvider provider,
+                                     List<ExternalWeights> mappedWeights) throws Exception {
+        try (OrtSession.SessionOptions sessionOptions = createSessionOptions(provider)) {
+            if (optimizedModelCache != null) {
+                return optimizedModelCache.createSession(environment, modelFile, sessionOptions, optimizationLevel,
+                        getSessionSettings(provider), (file, options) -> loadSession(file, options, mappedWeights));
+            }
+            return loadSession(modelFile, sessionOptions, mappedWeights);
+        }
+    }
+
+    /**
+     * Creates a session from a model file, memory-mapping its external weights if configured.
+     *
+     * @param modelFile the model file
+     * @param sessionOptions the session options
+     * @param mappedWeights receives the mapped external weights
+     * @return the session
+     * @throws OrtException if the session cannot be created
+     * @throws LlmInferenceException if the external weights cannot be mapped
+     */
+    private OrtSession loadSession(Path modelFile, OrtSession.SessionOptions sessionOptions,
+                                   List<ExternalWeights> mappedWeights) throws OrtException, LlmInferenceException {
+        if (getConfigBoolean(LlmConfig.WEIGHTS_MMAP, false)) {
+            ExternalWeights weights = ExternalWeights.map(environment, modelFile);
+            // The mapped tensors must outlive the session
+            mappedWeights.add(weights);
+            if (weights.getCount() > 0) {
+                sessionOptions.addExternalInitializers(weights.getInitializers());
+                logger.info("Memory-mapped {} external initializers ({} MB) of {}", weights.getCount(),
+                        weights.getMappedBytes() / (1024 * 1024), modelFile);
+            }
+        }
+        return environment.createSession(modelFile.toString(), sessionOptions);
+    }
+
+    /**
+     * Creates the session options from the configuration.
+     *
+     * @param provider the CPU execution provider
+     * @return the session options
+     * @throws Exception if an option is invalid
+     */
+    private OrtSession.SessionOptions createSessionOptions(CpuExecutionProvider provider) throws Exception {
+        OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions();
+        
+        if (globalThreadPools) {
+            sessionOptions.disablePerSessionThreads();
+        } else {
+            // Set number of threads if specified
+            int threads = getConfigInt(LlmConfig.THREADS, 0);
+            if (threads > 0) {
+                sessionOptions.setIntraOpNumThreads(threads);
+            }
+            int interOpThreads = getConfigInt(LlmConfig.INTER_OP_THREADS, 0);
+            if (interOpThreads > 0) {
+                sessionOptions.setInterOpNumThreads(interOpThreads);
+            }
+            String spinning = getConfigBoolean(LlmConfig.THREAD_SPINNING, true) ? "1" : "0";
+            sessionOptions.addConfigEntry("session.intra_op.allow_spinning", spinning);
+            sessionOptions.addConfigEntry("session.inter_op.allow_spinning", spinning);
+            String affinity = getConfigString(LlmConfig.THREAD_AFFINITY, null);
+            if (affinity != null) {
+                sessionOptions.addConfigEntry("session.intra_op_thread_affinities", affinity);
+            }
+        }
+        
+        sessionOptions.setOptimizationLevel(optimizationLevel);
+        String executionMode = getConfigString(LlmConfig.EXECUTION_MODE, "sequential");
+        switch (executionMode.toLowerCase()) {
+            case "sequential":
+                sessionOptions.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.SEQUENTIAL);
+                break;
+            case "parallel":
+                sessionOptions.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.PARALLEL);
+                break;
+            default:
+                sessionOptions.close();
+                throw new LlmInferenceException("Unknown execution mode: " + executionMode);
+        }
+
+        // Memory: prepacked weights are private copies, which defeats sharing memory-mapped weights
+        sessionOptions.setCPUArenaAllocator(getConfigBoolean(LlmConfig.CPU_ARENA, true));
+        if (!getConfigBoolean(LlmConfig.WEIGHTS_PREPACKING, true)) {
+            sessionOptions.addConfigEntry("session.disable_prepacking", "1");
+        }
+        
+        try {
+            provider.addTo(sessionOptions, globalThreadPools ? 0 : getConfigInt(LlmConfig.THREADS, 0),
+                    getConfigBoolean(LlmConfig.CPU_ARENA, true));
+        } catch (OrtException e) {
+            sessionOptions.close();
+            throw e;
+        }
+        return sessionOptions;
+    }
+
+    /**
+     * Describes the session settings that change the optimized graph, as part of its cache key.
+     *
+     * @param provider the CPU execution provider
+     * @return the settings description
+     */
+    private static String getSessionSettings(CpuExecutionProvider provider) {
+        return provider.getName();
+    }
+
+    /**
+     * Parses a graph optimization level name.
+     *
+     * @param level the level name ("none", "basic", "extended" or "all")
+     * @return the optimization level
+     * @throws LlmInferenceException if the name is unknown
+     */
+    private static OrtSession.SessionOptions.OptLevel parseOptimizationLevel(String level)
+            throws LlmInferenceException {
+        switch (level.toLowerCase()) {
+            case "none":
+                return OrtSession.SessionOptions.OptLevel.NO_OPT;
+            case "basic":
+                return OrtSession.SessionOptions.OptLevel.BASIC_OPT;
+            case "extended":
+                return OrtSession.SessionOptions.OptLevel.EXTENDED_OPT;
+            case "all":
+                return OrtSession.SessionOptions.OptLevel.ALL_OPT;
+            default:
+                throw new LlmInferenceException("Unknown optimization level: " + level);
+        }
+    }
+
+    /**
+     * Creates the response metadata of a native engine generation. With several completions,
+     * "choices" and "finish_reasons" list the text and finish reason of each, best first.
+     *
+     * @param results the generation results, the one in the response first
+     * @return the metadata map
+     */
+    private Map<String, Object> createMetadata(List<GenerationResult> results, String adapter) {
+        Map<String, Object> metadata = createMetadata(adapter);
+        GenerationResult result = results.get(0);
+        int completionTokens = 0;
+        for (GenerationResult choice : results) {
+            completionTokens += choice.getCompletionTokens();
+        }
+        metadata.put("prompt_tokens", result.getPromptTokens());
+        metadata.put("completion_tokens", completionTokens);
+        metadata.put("total_tokens", result.getPromptTokens() + completionTokens);
+        metadata.put("finish_reason", result.getFinishReason().getValue());
+        if (results.size() > 1) {
+            List<String> choices = new ArrayList<>(results.size());
+            List<String> finishReasons = new ArrayList<>(results.size());
+            for (GenerationResult choice : results) {
+                choices.add(choice.getText());
+                finishReasons.add(choice.getFinishReason().getValue());
+            }
+            metadata.put("choices", choices);
+            metadata.put("finish_reasons", finishReasons);
+        }
+        return metadata;
+    }
+
+    /**
+     * Creates the response metadata naming the model and the LoRA adapter used.
+     *
+     * @param adapter the adapter name, or null
+     * @return the metadata map
+     */
+    private Map<String, Object> createMetadata(String adapter) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("model", modelPath);
+        if (adapter != null) {
+            metadata.put(LlmConfig.ADAPTER, adapter);
+        }
+        return metadata;
+    }
+
     /**
      * Formats a list of chat messages into a single prompt string.
      *
@@ -238,28 +1041,63 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
         
         try {
             // Apply temperature
-            if (parameters.containsKey(LlmConfig.TEMPERATURE)) {
-                double temperature = getDoubleParameter(parameters, LlmConfig.TEMPERATURE, 1.0);
-                params.setSearchOption("temperature", temperature);
+            if (has(parameters, LlmConfig.TEMPERATURE)) {
+                params.setSearchOption("temperature", number(parameters, 1.0, LlmConfig.TEMPERATURE));
             }
-            
+
             // Apply top-p
-            if (parameters.containsKey(LlmConfig.TOP_P)) {
-                double topP = getDoubleParameter(parameters, LlmConfig.TOP_P, 1.0);
-                params.setSearchOption("top_p", topP);
+            if (has(parameters, LlmConfig.TOP_P, "top_p")) {
+                params.setSearchOption("top_p", number(parameters, 1.0, LlmConfig.TOP_P, "top_p"));
             }
-            
+
             // Apply max tokens
-            if (parameters.containsKey(LlmConfig.MAX_TOKENS) || parameters.containsKey("max_tokens")) {
-                int maxTokens = getIntParameter(parameters, LlmConfig.MAX_TOKENS, 
-                        getIntParameter(parameters, "max_tokens", 1024));
-                params.setSearchOption("max_length", (double)maxTokens);
+            if (has(parameters, LlmConfig.MAX_TOKENS, "max_tokens")) {
+                params.setSearchOption("max_length",
+                        (int) number(parameters, 1024, LlmConfig.MAX_TOKENS, "max_tokens"));
             }
-            
+
             // Apply repetition penalty
-            if (parameters.containsKey(LlmConfig.REPETITION_PENALTY)) {
-                double repetitionPenalty = getDoubleParameter(parameters, LlmConfig.REPETITION_PENALTY, 1.0);
-                params.setSearchOption("repetition_penalty", repetitionPenalty);
+            if (has(parameters, LlmConfig.REPETITION_PENALTY, "repetition_penalty")) {
+                params.setSearchOption("repetition_penalty",
+                        number(parameters, 1.0, LlmConfig.REPETITION_PENALTY, "repetition_penalty"));
+            }
+
+            // Apply top-k
+            if (has(parameters, LlmConfig.TOP_K, "top_k")) {
+                params.setSearchOption("top_k", (int) number(parameters, 0, LlmConfig.TOP_K, "top_k"));
+            }
+
+            // Apply the random seed
+            if (has(parameters, LlmConfig.SEED)) {
+                params.setSearchOption("random_seed", (int) number(parameters, 0, LlmConfig.SEED));
+            }
+
+            // Apply beam search, which GenAI implements itself
+            int numBeams = (int) number(parameters, 1, LlmConfig.NUM_BEAMS, "num_beams");
+            if (numBeams > 1) {
+                params.setSearchOption("num_beams", numBeams);
+                params.setSearchOption("length_penalty",
+                        number(parameters, 1.0, LlmConfig.LENGTH_PENALTY, "length_penalty"));
+                Object earlyStopping = GenerationParameters.lookup(parameters, LlmConfig.EARLY_STOPPING,
+                        "early_stopping");
+                if (earlyStopping != null) {
+                    params.setSearchOption("early_stopping", Boolean.parseBoolean(earlyStopping.toString()));
+                }
+            }
+
+            if (has(parameters, LlmConfig.PRESENCE_PENALTY, "presence_penalty", LlmConfig.FREQUENCY_PENALTY,
+                    "frequency_penalty", LlmConfig.LOGIT_BIAS, "logit_bias")) {
+                logger.warn("Presence and frequency penalties and logit bias are applied by the native engine only");
+            }
+            if (has(parameters, LlmConfig.N, LlmConfig.BEST_OF, "best_of")) {
+                logger.warn("Several completions per request are generated by the native engine only");
+            }
+            if (has(parameters, LlmConfig.LOGPROBS, LlmConfig.TOP_LOGPROBS, "top_logprobs")) {
+                logger.warn("Token log probabilities are reported by the native engine only");
+            }
+            if (has(parameters, LlmConfig.REGEX, LlmConfig.JSON_SCHEMA, "json_schema", LlmConfig.RESPONSE_FORMAT,
+                    "response_format")) {
+                logger.warn("Output constraints are applied by the native engine only, generating free text");
             }
         } catch (GenAIException e) {
             logger.warn("Error setting search options: {}", e.getMessage());
@@ -268,63 +1106,141 @@ public class OrtLlmInferenceService extends AbstractLlmInferenceService {
     }
 
     /**
-     * Gets a double parameter from a map.
+     * Checks whether a request sets a parameter under any of its key spellings.
      *
-     * @param parameters the parameter map
-     * @param key the parameter key
-     * @param defaultValue the default value to return if the parameter is not found or not a double
-     * @return the parameter value as a double, or the default value if not found or not a double
-     */
-    private double getDoubleParameter(Map<String, Object> parameters, String key, double defaultValue) {
-        Object value = parameters.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).doubleValue();
-        } else if (value instanceof String) {
-            try {
-                return Double.parseDouble((String) value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }
-        }
-        return defaultValue;
+     * @param parameters the request parameters
+     * @param keys the keys to look up
+     * @return true if any of the keys has a value
+     */
+    private static boolean has(Map<String, Object> parameters, String... keys) {
+        return GenerationParameters.lookup(parameters, keys) != null;
     }
 
     /**
-     * Gets an integer parameter from a map.
+     * Gets a numeric request parameter under any of its key spellings.
      *
-     * @param parameters the parameter map
-     * @param key the parameter key
-     * @param defaultValue the default value to return if the parameter is not found or not an integer
-     * @return the parameter value as an integer, or the default value if not found or not an integer
-     */
-    private int getIntParameter(Map<String, Object> parameters, String key, int defaultValue) {
-        Object value = parameters.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).intValue();
-        } else if (value instanceof String) {
-            try {
-                return Integer.parseInt((String) value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
+     * @param parameters the request parameters
+     * @param defaultValue the value to return if no key is found or the value is not a number
+     * @param keys the keys to look up
+     * @return the parameter value
+     */
+    private static double number(Map<String, Object> parameters, double defaultValue, String... keys) {
+        return GenerationParameters.getNumber(parameters, null, defaultValue, keys);
+    }
+
+    /**
+     * Gets the native memory of the loaded model: the size of its weights, twice with the GenAI
+     * engine and with the native engine, whose tokenizer loads a GenAI model of its own, the draft
+     * model weights and the KV cache budget of the native engine. Memory-mapped weights are
+     * counted as they become resident when used.
+     *
+     * @return the native memory in bytes
+     */
+    @Override
+    public long getNativeMemoryBytes() {
+        return versions.getCurrent().getModelMemoryBytes();
+    }
+
+    private long getModelMemoryBytes() {
+        long bytes = 0;
+        try {
+            long weights = ModelVariant.size(Paths.get(modelPath), modelID);
+            // Every engine holds two copies: the session next to the GenAI model of the GenAI engine,
+            // and next to the GenAI model the native engine loads only to create its tokenizer
+            bytes += 2 * weights;
+            String draftModelPath = getConfigString(LlmConfig.DRAFT_MODEL_PATH, null);
+            if (draftSession != null && draftModelPath != null) {
+                bytes += ModelVariant.size(Paths.get(draftModelPath),
+                        getConfigString(LlmConfig.DRAFT_MODEL_ID, modelID));
             }
+        } catch (IOException e) {
+            logger.warn("Cannot read the size of model {}: {}", modelPath, e.getMessage());
+        }
+        if (nativeEngine != null) {
+            bytes += nativeEngine.getKvCacheBytes();
         }
-        return defaultValue;
+        return bytes;
     }
 
     @Override
     public void close() {
+        versions.close();
+        ready = false;
+        logger.info("OrtLlmInferenceService closed");
+    }
+
+    /**
+     * Releases the sessions and engines of the model.
+     */
+    private void closeModel() {
         if (initialized.get()) {
             try {
                 // SimpleGenAI doesn't have a close method
+                if (genAIAdapterCache != null) {
+                    genAIAdapterCache.close();
+                    genAIAdapters.close();
+                    genAITokenizer.close();
+                    genAIModel.close();
+                }
+                if (nativeAdapterCache != null) {
+                    nativeAdapterCache.close();
+                }
+                if (nativeEngine != null) {
+                    nativeEngine.close();
+                }
+                if (draftSession != null) {
+                    draftSession.close();
+                }
                 if (session != null) {
                     session.close();
                 }
+                if (prefillRunOptions != null) {
+                    prefillRunOptions.close();
+                }
+                for (ExternalWeights weights : externalWeights) {
+                    weights.close();
+                }
+                externalWeights.clear();
                 initialized.set(false);
-                ready = false;
-                logger.info("OrtLlmInferenceService closed");
+                logger.info("Closed model {}", modelPath);
             } catch (Exception e) {
-                logger.error("Error closing OrtLlmInferenceService", e);
+                logger.error("Error closing model {}", modelPath, e);
             }
         }
     }
+
+    /**
+     * A LoRA adapter of the native engine, with the run options that activate it.
+     */
+    private static final class NativeLoraAdapter implements AutoCloseable {
+        private final OrtLoraAdapter adapter;
+        private final OrtSession.RunOptions runOptions;
+
+        private NativeLoraAdapter(OrtLoraAdapter adapter, OrtSession.RunOptions runOptions) {
+            this.adapter = adapter;
+            this.runOptions = runOptions;
+        }
+
+        private static NativeLoraAdapter load(Path file) throws OrtException {
+            OrtLoraAdapter adapter = OrtLoraAdapter.create(file.toString());
+            OrtSession.RunOptions runOptions = null;
+            try {
+                runOptions = new OrtSession.RunOptions();
+                runOptions.addActiveLoraAdapter(adapter);
+                return new NativeLoraAdapter(adapter, runOptions);
+            } catch (OrtException e) {
+                if (runOptions != null) {
+                    runOptions.close();
+                }
+                adapter.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            runOptions.close();
+            adapter.close();
+        }
+    }
 }
@@ -0,0 +1,106 @@
+package org.josmi.ort.engine;
+
+/**
+ * Bounded key/value cache of a sequence that may outgrow the context, such as a long
+ * conversation: the cache keeps the first sink tokens of the sequence, on which attention
+ * concentrates whatever their content, and a sliding window of its most recent tokens.
+ * <p>
+ * When a forward pass would not fit, the oldest positions after the sinks are evicted and the
+ * rest of the window moves down, so positions stay within the cache and the memory and cost of
+ * a step stay constant however long the sequence runs. Evicting a fraction of the window at a
+ * time amortizes the copy of the cache over many steps. A prompt longer than the cache is cut to
+ * its sink tokens and its most recent tokens before it is prefilled, which keeps the same tokens
+ * that streaming it through the window would.
+ * <p>
+ * The policy is stateless and may be shared by the generators of an engine.
+ */
+public final class AttentionSinkWindow {
+
+    public static final int DEFAULT_SINK_TOKENS = 4;
+
+    private final int sinkTokens;
+    private final int windowTokens;
+    private final int evictionTokens;
+    private final RotaryEmbedding rotary;
+
+    /**
+     * Constructs a new AttentionSinkWindow.
+     *
+     * @param sinkTokens the number of leading tokens that are never evicted
+     * @param windowTokens the number of most recent tokens kept besides the sinks
+     * @param rotary the rotary embedding that moves cached keys to their new positions, or null
+     *               to move them unchanged, for models that do not rotate keys by position
+     */
+    public AttentionSinkWindow(int sinkTokens, int windowTokens, RotaryEmbedding rotary) {
+        if (sinkTokens < 0 || windowTokens < 2) {
+            throw new IllegalArgumentException("Invalid attention sink window of " + sinkTokens + " sink and "
+                    + windowTokens + " window tokens");
+        }
+        this.sinkTokens = sinkTokens;
+        this.windowTokens = windowTokens;
+        this.evictionTokens = Math.max(1, windowTokens / 8);
+        this.rotary = rotary;
+    }
+
+    public int getSinkTokens() {
+        return sinkTokens;
+    }
+
+    public int getWindowTokens() {
+        return windowTokens;
+    }
+
+    public RotaryEmbedding getRotary() {
+        return rotary;
+    }
+
+    /**
+     * Gets the number of positions the cache holds at most.
+     *
+     * @return the sink plus window tokens
+     */
+    public int getCapacity() {
+        return sinkTokens + windowTokens;
+    }
+
+    /**
+     * Cuts a prompt to the tokens the cache keeps of it, leaving room for an eviction's worth of
+     * generated tokens.
+     *
+     * @param prompt the prompt token ids
+     * @return the prompt itself if it fits, otherwise its sink tokens followed by its most recent tokens
+     */
+    public int[] retainPrompt(int[] prompt) {
+        int limit = getCapacity() - evictionTokens;
+        if (prompt.length <= limit) {
+            return prompt;
+        }
+        int[] retained = new int[limit];
+        System.arraycopy(prompt, 0, retained, 0, sinkTokens);
+        System.arraycopy(prompt, prompt.length - (limit - sinkTokens), retained, sinkTokens, limit - sinkTokens);
+        return retained;
+    }
+
+    /**
+     * Evicts the oldest positions after the sinks from a cache, and the same tokens from the
+     * sequence, so that a number of further positions fit.
+     *
+     * @param cache the cache
+     * @param tokens the sequence tokens in cache order, of which the first cache-length are cached
+     * @param length the number of sequence tokens
+     * @param needed the number of positions to free at least
+     * @return the number of evicted positions, by which the sequence got shorter
+     */
+    public int evict(KvCache cache, int[] tokens, int length, int needed) {
+        if (needed <= 0) {
+            return 0;
+        }
+        int count = Math.min(Math.max(needed, evictionTokens), cache.getLength() - sinkTokens);
+        if (count < needed) {
+            throw new IllegalStateException("Cannot free " + needed + " positions of a window of " + windowTokens);
+        }
+        cache.evict(sinkTokens, count, rotary);
+        System.arraycopy(tokens, sinkTokens + count, tokens, sinkTokens, length - sinkTokens - count);
+        return count;
+    }
+}
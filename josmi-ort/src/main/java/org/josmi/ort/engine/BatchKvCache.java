@@ -0,0 +1,241 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Key/value cache of a running batch, laid out as [batch, heads, length, headDim]
+ * with every sequence left-padded to the batch length.
+ * <p>
+ * Like {@link KvCache}, the batch cache ping-pongs between two direct buffers per
+ * tensor so the present cache can be bound as a pinned output. It is a working
+ * copy: the positions of every sequence live in the blocks of its
+ * {@link BlockTable}, each step writes the new position back to them, and when the
+ * batch composition changes the sequences are gathered from their blocks into a
+ * new layout (see {@link #beginLayout(int, int)}). Buffers grow geometrically and
+ * are reused across steps and layouts.
+ * <p>
+ * Beam search uses the batch cache as the only copy of its beams: the prompt is copied in
+ * from a single-sequence cache and the slots are rearranged as beams are reselected (see
+ * {@link #reorder(int[], int)}).
+ */
+public class BatchKvCache {
+
+    private static final int ZERO_CHUNK = 64 * 1024;
+    private static final ByteBuffer ZEROS = DecoderModel.allocate(ZERO_CHUNK);
+
+    private final DecoderModel model;
+    private final int rowBytes;
+    private ByteBuffer[] past;
+    private ByteBuffer[] present;
+    private int batchSize;
+    private int length;
+    private int layoutBatchSize;
+    private int layoutLength;
+
+    /**
+     * Constructs a new, empty BatchKvCache.
+     *
+     * @param model the decoder model
+     */
+    public BatchKvCache(DecoderModel model) {
+        this.model = model;
+        this.rowBytes = model.getKvRowBytes();
+        this.past = new ByteBuffer[model.getNumKvTensors()];
+        this.present = new ByteBuffer[model.getNumKvTensors()];
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Starts building a new layout, filled with {@link #copyFrom(BlockTable, int)} and made
+     * current by {@link #commitLayout()}.
+     *
+     * @param newBatchSize the batch size of the new layout
+     * @param newLength the padded length of the new layout
+     */
+    public void beginLayout(int newBatchSize, int newLength) {
+        // Room for the layout plus the position the next step appends
+        ensureCapacity(present, newBatchSize * (newLength + 1L) * model.getKvTokenBytes());
+        layoutBatchSize = newBatchSize;
+        layoutLength = newLength;
+    }
+
+    /**
+     * Gathers the positions of a block table into a slot of the new layout.
+     *
+     * @param table the block table of the sequence
+     * @param targetSlot the slot in the new layout
+     */
+    public void copyFrom(BlockTable table, int targetSlot) {
+        int heads = model.getNumKvHeads();
+        int count = table.getLength();
+        int padding = layoutLength - count;
+        long headStride = (long) layoutLength * rowBytes;
+        for (int i = 0; i < present.length; i++) {
+            ByteBuffer to = present[i].duplicate();
+            for (int head = 0; head < heads; head++) {
+                long row = ((long) targetSlot * heads + head) * headStride;
+                to.limit(to.capacity()).position((int) row);
+                zero(to, (long) padding * rowBytes);
+            }
+            table.read(i, 0, count, present[i], (long) targetSlot * heads * headStride
+                    + (long) padding * rowBytes, headStride);
+        }
+    }
+
+    /**
+     * Copies the positions of a single-sequence cache into a slot of the new layout.
+     *
+     * @param cache the cache of the sequence
+     * @param targetSlot the slot in the new layout
+     */
+    public void copyFrom(KvCache cache, int targetSlot) {
+        int heads = model.getNumKvHeads();
+        int count = cache.getLength();
+        int padding = layoutLength - count;
+        long headStride = (long) layoutLength * rowBytes;
+        for (int i = 0; i < present.length; i++) {
+            ByteBuffer from = cache.getBuffer(i).duplicate();
+            ByteBuffer to = present[i].duplicate();
+            for (int head = 0; head < heads; head++) {
+                long row = ((long) targetSlot * heads + head) * headStride;
+                to.limit(to.capacity()).position((int) row);
+                zero(to, (long) padding * rowBytes);
+                int source = head * count * rowBytes;
+                from.limit(source + count * rowBytes).position(source);
+                to.put(from);
+            }
+        }
+    }
+
+    /**
+     * Rearranges the current layout so that slot i holds the positions of former slot
+     * sources[i], e.g. when beam search moves beams onto the history of others. The layout
+     * keeps its length and gets room for the next step.
+     *
+     * @param sources the former slot of each new slot
+     * @param newBatchSize the number of slots of the new layout
+     */
+    public void reorder(int[] sources, int newBatchSize) {
+        ensureCapacity(present, newBatchSize * (length + 1L) * model.getKvTokenBytes());
+        int slotBytes = model.getNumKvHeads() * length * rowBytes;
+        for (int i = 0; i < past.length; i++) {
+            ByteBuffer from = past[i].duplicate();
+            ByteBuffer to = present[i].duplicate();
+            for (int slot = 0; slot < newBatchSize; slot++) {
+                from.limit(sources[slot] * slotBytes + slotBytes).position(sources[slot] * slotBytes);
+                to.limit(to.capacity()).position(slot * slotBytes);
+                to.put(from);
+            }
+        }
+        ByteBuffer[] swap = past;
+        past = present;
+        present = swap;
+        batchSize = newBatchSize;
+        ensureCapacity(present, batchSize * (length + 1L) * model.getKvTokenBytes());
+    }
+
+    /**
+     * Writes the position appended by the last step for a slot to the block table of its sequence.
+     * The position must have been reserved in the table.
+     *
+     * @param slot the slot in the current layout
+     * @param table the block table of the sequence
+     * @param position the sequence position of the appended entry
+     */
+    public void copyLastTo(int slot, BlockTable table, int position) {
+        int heads = model.getNumKvHeads();
+        long headStride = (long) length * rowBytes;
+        for (int i = 0; i < past.length; i++) {
+            table.write(i, past[i], (long) slot * heads * headStride + (long) (length - 1) * rowBytes,
+                    headStride, position, 1);
+        }
+    }
+
+    /**
+     * Makes the new layout current.
+     */
+    public void commitLayout() {
+        ByteBuffer[] swap = past;
+        past = present;
+        present = swap;
+        batchSize = layoutBatchSize;
+        length = layoutLength;
+        // The former past buffers may be smaller than the new layout requires
+        ensureCapacity(present, batchSize * (length + 1L) * model.getKvTokenBytes());
+    }
+
+    /**
+     * Checks whether one more position fits in the current buffers.
+     *
+     * @return true if a step can run without a new layout
+     */
+    public boolean hasRoomForStep() {
+        long required = batchSize * (length + 1L) * model.getKvTokenBytes();
+        return past[0] != null && past[0].capacity() >= required && present[0].capacity() >= required;
+    }
+
+    /**
+     * Binds the past buffers as inputs and the present buffers as pinned outputs for a one-token step.
+     *
+     * @param inputs the input map to fill
+     * @param outputs the pinned output map to fill
+     * @param created receives the created tensor views, which the caller must close
+     * @throws OrtException if a tensor view cannot be created
+     */
+    public void bind(Map<String, OnnxTensor> inputs, Map<String, OnnxTensor> outputs,
+                     List<OnnxTensor> created) throws OrtException {
+        for (int i = 0; i < past.length; i++) {
+            OnnxTensor in = model.kvTensor(past[i], batchSize, length);
+            created.add(in);
+            inputs.put(model.getPastName(i), in);
+            OnnxTensor out = model.kvTensor(present[i], batchSize, length + 1);
+            created.add(out);
+            outputs.put(model.getPresentName(i), out);
+        }
+    }
+
+    /**
+     * Commits a one-token step: the present buffers become the past.
+     */
+    public void advance() {
+        ByteBuffer[] swap = past;
+        past = present;
+        present = swap;
+        length++;
+    }
+
+    /**
+     * Replaces buffers smaller than the required size; their content is not kept.
+     */
+    private static void ensureCapacity(ByteBuffer[] buffers, long required) {
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == null || buffers[i].capacity() < required) {
+                buffers[i] = DecoderModel.allocate(Math.min(Integer.MAX_VALUE, required + required / 2));
+            }
+        }
+    }
+
+    /**
+     * Writes zeros at the position of a buffer and advances it.
+     */
+    private static void zero(ByteBuffer to, long bytes) {
+        while (bytes > 0) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(ZERO_CHUNK, bytes));
+            to.put(zeros);
+            bytes -= zeros.limit();
+        }
+    }
+}
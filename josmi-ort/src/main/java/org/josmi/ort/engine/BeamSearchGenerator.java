@@ -0,0 +1,475 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import org.josmi.api.LlmInferenceException;
+
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Beam search decode loop over one prompt.
+ * <p>
+ * The prompt is prefilled once, by a {@link NativeGenerator}, and its cache copied into every
+ * slot of a {@link BatchKvCache}; each step then extends all beams in one batched forward pass.
+ * A beam that extends the beam in its own slot keeps its cached positions, so the batch cache is
+ * only gathered anew on the steps where the selection moves a beam onto the history of another.
+ * <p>
+ * Every step scores each (beam, token) continuation by the cumulative log probability of the
+ * beam plus that of the token, after the logits processors and output constraint of the request
+ * (temperature, top-k and top-p do not apply), and keeps the num_beams best of the 2 * num_beams
+ * best scoring continuations. A continuation with an end-of-sequence token instead becomes a
+ * finished hypothesis, ranked by its log probability divided by its length raised to the length
+ * penalty. The search ends once num_beams hypotheses are finished and, without early stopping,
+ * no running beam can still beat the worst of them; beams running at the length limit are
+ * finished as they are.
+ * <p>
+ * A generator processes one request at a time and can be reused for further requests.
+ */
+public class BeamSearchGenerator {
+
+    private final DecoderModel model;
+    private final GenAIModelConfig modelConfig;
+    private final int capacity;
+    private final NativeGenerator prefiller;
+    private final BatchKvCache batchCache;
+    private final Sampler sampler;
+    private final float[] logprobs;
+    private int maxBeams;
+    private LongBuffer inputIds;
+    private LongBuffer positionIds;
+    private LongBuffer attentionMask;
+    private FloatBuffer logits;
+    private OrtSession.RunOptions runOptions;
+
+    /**
+     * A finished sequence.
+     */
+    static final class Hypothesis {
+        private final int[] tokens;
+        private final float[] logprobs;
+        private final double score;
+        private final int eosToken;
+        private final float eosLogprob;
+        // The alternatives of every token, and of the end-of-sequence token, if the request asks for them
+        private int[] topTokens;
+        private float[] topLogprobs;
+        private int[] topCounts;
+
+        Hypothesis(int[] tokens, float[] logprobs, double score, int eosToken, float eosLogprob) {
+            this.tokens = tokens;
+            this.logprobs = logprobs;
+            this.score = score;
+            this.eosToken = eosToken;
+            this.eosLogprob = eosLogprob;
+        }
+    }
+
+    /**
+     * Constructs a new BeamSearchGenerator.
+     *
+     * @param model the decoder model
+     * @param modelConfig the GenAI model configuration
+     * @param capacity the maximum number of tokens (prompt plus generated) of a sequence
+     */
+    public BeamSearchGenerator(DecoderModel model, GenAIModelConfig modelConfig, int capacity) {
+        this.model = model;
+        this.modelConfig = modelConfig;
+        this.capacity = capacity;
+        this.prefiller = new NativeGenerator(model, modelConfig, capacity);
+        this.batchCache = new BatchKvCache(model);
+        this.sampler = new Sampler(model.getVocabSize());
+        this.logprobs = new float[model.getVocabSize()];
+    }
+
+    /**
+     * Sets the run options of the forward passes of this generator, e.g. with a LoRA adapter
+     * activated. The options are owned by the caller and must stay open while they are set.
+     *
+     * @param runOptions the run options, or null for the model's own
+     */
+    public void setRunOptions(OrtSession.RunOptions runOptions) {
+        this.runOptions = runOptions;
+        prefiller.setRunOptions(runOptions);
+    }
+
+    /**
+     * Searches the most likely continuations of a prompt.
+     *
+     * @param prompt the prompt token ids
+     * @param params the generation parameters, with num_beams above one
+     * @param listeners the listeners notified of the tokens of the best sequences, best first;
+     *                  at most num_beams
+     * @return the reason why each sequence ended
+     * @throws LlmInferenceException if generation fails
+     */
+    public FinishReason[] generate(int[] prompt, GenerationParameters params, TokenListener[] listeners)
+            throws LlmInferenceException {
+        int numBeams = params.getNumBeams();
+        int vocabSize = model.getVocabSize();
+        ensureBeams(numBeams);
+        int maxTokens = Math.min(params.getMaxTokens(), capacity - prompt.length);
+
+        int offset = prefiller.prefill(prompt);
+        SamplingState[] states = newStates(numBeams);
+        SamplingState[] nextStates = newStates(numBeams);
+        states[0].reset(params, prompt, prompt.length);
+        int[][] tokens = new int[numBeams][maxTokens];
+        int[][] nextTokens = new int[numBeams][maxTokens];
+        float[][] tokenLogprobs = new float[numBeams][maxTokens];
+        float[][] nextTokenLogprobs = new float[numBeams][maxTokens];
+        double[] scores = new double[numBeams];
+        double[] nextScores = new double[numBeams];
+        int[] parents = new int[numBeams];
+        int[] lastTokens = new int[numBeams];
+        // The alternatives of the tokens of each beam, if the request asks for them
+        int topCount = params.getTopLogprobs();
+        int topLength = topCount > 0 ? maxTokens : 0;
+        int[][] topTokens = new int[numBeams][topLength * topCount];
+        int[][] nextTopTokens = new int[numBeams][topLength * topCount];
+        float[][] topLogprobs = new float[numBeams][topLength * topCount];
+        float[][] nextTopLogprobs = new float[numBeams][topLength * topCount];
+        int[][] topCounts = new int[numBeams][topLength];
+        int[][] nextTopCounts = new int[numBeams][topLength];
+        int[] stepTopTokens = new int[numBeams * topCount];
+        float[] stepTopLogprobs = new float[numBeams * topCount];
+        int[] stepTopCounts = new int[numBeams];
+        // The best candidates of a step, kept as a min-heap on their score while the beams are scanned
+        int maxCandidates = 2 * numBeams;
+        double[] candidateScores = new double[maxCandidates];
+        int[] candidateBeams = new int[maxCandidates];
+        int[] candidateTokens = new int[maxCandidates];
+        List<Hypothesis> finished = new ArrayList<>();
+
+        FloatBuffer rows = prefiller.getLogits();
+        int beams = 1;
+        for (int step = 0; maxTokens > 0; step++) {
+            int candidates = 0;
+            for (int beam = 0; beam < beams; beam++) {
+                sampler.logProbabilities(rows, offset + beam * vocabSize, params, states[beam], logprobs);
+                stepTopCounts[beam] = Sampler.selectTop(logprobs, vocabSize, topCount, stepTopTokens, stepTopLogprobs,
+                        beam * topCount);
+                for (int token = 0; token < vocabSize; token++) {
+                    double score = scores[beam] + logprobs[token];
+                    if (score == Double.NEGATIVE_INFINITY) {
+                        continue;
+                    }
+                    if (candidates < maxCandidates) {
+                        candidateScores[candidates] = score;
+                        candidateBeams[candidates] = beam;
+                        candidateTokens[candidates] = token;
+                        siftUp(candidateScores, candidateBeams, candidateTokens, candidates++);
+                    } else if (score > candidateScores[0]) {
+                        candidateScores[0] = score;
+                        candidateBeams[0] = beam;
+                        candidateTokens[0] = token;
+                        siftDown(candidateScores, candidateBeams, candidateTokens, candidates);
+                    }
+                }
+            }
+
+            // Emptying the heap yields the candidates from the worst to the best
+            int[] order = new int[candidates];
+            double[] sortedScores = new double[candidates];
+            for (int i = candidates - 1; i >= 0; i--) {
+                order[i] = candidateBeams[0] * vocabSize + candidateTokens[0];
+                sortedScores[i] = candidateScores[0];
+                int last = i;
+                candidateScores[0] = candidateScores[last];
+                candidateBeams[0] = candidateBeams[last];
+                candidateTokens[0] = candidateTokens[last];
+                siftDown(candidateScores, candidateBeams, candidateTokens, last);
+            }
+
+            int next = 0;
+            for (int rank = 0; rank < candidates && next < numBeams; rank++) {
+                int beam = order[rank] / vocabSize;
+                int token = order[rank] % vocabSize;
+                float logprob = (float) (sortedScores[rank] - scores[beam]);
+                if (modelConfig.isEos(token)) {
+                    // An end of sequence below the best num_beams candidates would not have been kept as a beam
+                    if (rank < numBeams) {
+                        Hypothesis hypothesis = new Hypothesis(Arrays.copyOf(tokens[beam], step),
+                                Arrays.copyOf(tokenLogprobs[beam], step), normalize(sortedScores[rank], step, params),
+                                token, logprob);
+                        if (topCount > 0) {
+                            hypothesis.topTokens = Arrays.copyOf(topTokens[beam], (step + 1) * topCount);
+                            hypothesis.topLogprobs = Arrays.copyOf(topLogprobs[beam], (step + 1) * topCount);
+                            hypothesis.topCounts = Arrays.copyOf(topCounts[beam], step + 1);
+                            System.arraycopy(stepTopTokens, beam * topCount, hypothesis.topTokens, step * topCount,
+                                    topCount);
+                            System.arraycopy(stepTopLogprobs, beam * topCount, hypothesis.topLogprobs,
+                                    step * topCount, topCount);
+                            hypothesis.topCounts[step] = stepTopCounts[beam];
+                        }
+                        addHypothesis(finished, numBeams, hypothesis);
+                    }
+                    continue;
+                }
+                parents[next] = beam;
+                lastTokens[next] = token;
+                nextScores[next] = sortedScores[rank];
+                System.arraycopy(tokens[beam], 0, nextTokens[next], 0, step);
+                System.arraycopy(tokenLogprobs[beam], 0, nextTokenLogprobs[next], 0, step);
+                nextTokens[next][step] = token;
+                nextTokenLogprobs[next][step] = logprob;
+                if (topCount > 0) {
+                    System.arraycopy(topTokens[beam], 0, nextTopTokens[next], 0, step * topCount);
+                    System.arraycopy(topLogprobs[beam], 0, nextTopLogprobs[next], 0, step * topCount);
+                    System.arraycopy(topCounts[beam], 0, nextTopCounts[next], 0, step);
+                    System.arraycopy(stepTopTokens, beam * topCount, nextTopTokens[next], step * topCount, topCount);
+                    System.arraycopy(stepTopLogprobs, beam * topCount, nextTopLogprobs[next], step * topCount,
+                            topCount);
+                    nextTopCounts[next][step] = stepTopCounts[beam];
+                }
+                nextStates[next].copyFrom(states[beam]);
+                nextStates[next].accept(token);
+                next++;
+            }
+            int[][] swapTokens = tokens;
+            tokens = nextTokens;
+            nextTokens = swapTokens;
+            float[][] swapLogprobs = tokenLogprobs;
+            tokenLogprobs = nextTokenLogprobs;
+            nextTokenLogprobs = swapLogprobs;
+            double[] swapScores = scores;
+            scores = nextScores;
+            nextScores = swapScores;
+            int[][] swapTopTokens = topTokens;
+            topTokens = nextTopTokens;
+            nextTopTokens = swapTopTokens;
+            float[][] swapTopLogprobs = topLogprobs;
+            topLogprobs = nextTopLogprobs;
+            nextTopLogprobs = swapTopLogprobs;
+            int[][] swapTopCounts = topCounts;
+            topCounts = nextTopCounts;
+            nextTopCounts = swapTopCounts;
+            SamplingState[] swapStates = states;
+            states = nextStates;
+            nextStates = swapStates;
+
+            int length = step + 1;
+            if (next == 0 || isDone(finished, numBeams, scores[0], length, params)) {
+                break;
+            }
+            if (length >= maxTokens) {
+                for (int beam = 0; beam < next; beam++) {
+                    Hypothesis hypothesis = new Hypothesis(Arrays.copyOf(tokens[beam], length),
+                            Arrays.copyOf(tokenLogprobs[beam], length), normalize(scores[beam], length, params),
+                            -1, Float.NaN);
+                    hypothesis.topTokens = topTokens[beam].clone();
+                    hypothesis.topLogprobs = topLogprobs[beam].clone();
+                    hypothesis.topCounts = topCounts[beam].clone();
+                    addHypothesis(finished, numBeams, hypothesis);
+                }
+                break;
+            }
+
+            if (step == 0) {
+                batchCache.beginLayout(next, prompt.length);
+                for (int beam = 0; beam < next; beam++) {
+                    batchCache.copyFrom(prefiller.getKvCache(), beam);
+                }
+                batchCache.commitLayout();
+            } else if (!isIdentity(parents, next, beams) || !batchCache.hasRoomForStep()) {
+                batchCache.reorder(parents, next);
+            }
+            beams = next;
+            forward(lastTokens, beams);
+            rows = logits;
+            offset = 0;
+        }
+
+        FinishReason[] finishReasons = new FinishReason[listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            finishReasons[i] = i < finished.size() ? replay(finished.get(i), topCount, listeners[i])
+                    : FinishReason.STOP;
+        }
+        return finishReasons;
+    }
+
+    /**
+     * Notifies a listener of the tokens of a finished sequence.
+     */
+    private static FinishReason replay(Hypothesis hypothesis, int topCount, TokenListener listener)
+            throws LlmInferenceException {
+        for (int i = 0; i < hypothesis.tokens.length; i++) {
+            if (topCount > 0) {
+                listener.onTopLogprobs(hypothesis.topTokens, hypothesis.topLogprobs, i * topCount,
+                        hypothesis.topCounts[i]);
+            }
+            if (!listener.onToken(hypothesis.tokens[i], hypothesis.logprobs[i])) {
+                return FinishReason.STOP;
+            }
+        }
+        if (hypothesis.eosToken < 0) {
+            return FinishReason.LENGTH;
+        }
+        if (topCount > 0) {
+            int last = hypothesis.tokens.length;
+            listener.onTopLogprobs(hypothesis.topTokens, hypothesis.topLogprobs, last * topCount,
+                    hypothesis.topCounts[last]);
+        }
+        listener.onEndOfSequence(hypothesis.eosToken, hypothesis.eosLogprob);
+        return FinishReason.STOP;
+    }
+
+    /**
+     * Inserts a hypothesis by descending score, keeping the best num_beams.
+     */
+    static void addHypothesis(List<Hypothesis> finished, int numBeams, Hypothesis hypothesis) {
+        int index = finished.size();
+        while (index > 0 && finished.get(index - 1).score < hypothesis.score) {
+            index--;
+        }
+        if (index < numBeams) {
+            finished.add(index, hypothesis);
+            if (finished.size() > numBeams) {
+                finished.remove(numBeams);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the finished hypotheses are final, given the best running beam.
+     */
+    static boolean isDone(List<Hypothesis> finished, int numBeams, double bestScore, int length,
+                          GenerationParameters params) {
+        if (finished.size() < numBeams) {
+            return false;
+        }
+        return params.isEarlyStopping()
+                || finished.get(numBeams - 1).score >= normalize(bestScore, length, params);
+    }
+
+    static double normalize(double score, int length, GenerationParameters params) {
+        return score / Math.pow(Math.max(1, length), params.getLengthPenalty());
+    }
+
+    private static boolean isIdentity(int[] parents, int count, int previousCount) {
+        if (count != previousCount) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (parents[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void siftUp(double[] scores, int[] beams, int[] tokens, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (scores[parent] <= scores[index]) {
+                return;
+            }
+            swap(scores, beams, tokens, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(double[] scores, int[] beams, int[] tokens, int size) {
+        int index = 0;
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            if (left < size && scores[left] < scores[smallest]) {
+                smallest = left;
+            }
+            if (left + 1 < size && scores[left + 1] < scores[smallest]) {
+                smallest = left + 1;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(scores, beams, tokens, smallest, index);
+            index = smallest;
+        }
+    }
+
+    private static void swap(double[] scores, int[] beams, int[] tokens, int i, int j) {
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+        int beam = beams[i];
+        beams[i] = beams[j];
+        beams[j] = beam;
+        int token = tokens[i];
+        tokens[i] = tokens[j];
+        tokens[j] = token;
+    }
+
+    private SamplingState[] newStates(int count) {
+        SamplingState[] states = new SamplingState[count];
+        for (int i = 0; i < count; i++) {
+            states[i] = new SamplingState(model.getVocabSize());
+        }
+        return states;
+    }
+
+    /**
+     * Grows the step buffers to a number of beams.
+     */
+    private void ensureBeams(int numBeams) {
+        if (numBeams <= maxBeams) {
+            return;
+        }
+        maxBeams = numBeams;
+        inputIds = DecoderModel.allocate((long) numBeams * Long.BYTES).asLongBuffer();
+        positionIds = DecoderModel.allocate((long) numBeams * Long.BYTES).asLongBuffer();
+        attentionMask = DecoderModel.allocate((long) numBeams * (capacity + 1) * Long.BYTES).asLongBuffer();
+        for (int i = 0; i < attentionMask.capacity(); i++) {
+            attentionMask.put(i, 1L);
+        }
+        logits = DecoderModel.allocate((long) numBeams * model.getVocabSize() * Float.BYTES).asFloatBuffer();
+    }
+
+    /**
+     * Runs one batched forward pass that appends a token to every beam. Beams are never padded,
+     * so the attention mask is all ones.
+     */
+    private void forward(int[] lastTokens, int beams) throws LlmInferenceException {
+        int length = batchCache.getLength();
+        for (int beam = 0; beam < beams; beam++) {
+            inputIds.put(beam, lastTokens[beam]);
+            positionIds.put(beam, length);
+        }
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        Map<String, OnnxTensor> outputs = new HashMap<>();
+        List<OnnxTensor> created = new ArrayList<>();
+        try {
+            OnnxTensor ids = model.longTensor(inputIds, beams, 1);
+            created.add(ids);
+            inputs.put(DecoderModel.INPUT_IDS, ids);
+            OnnxTensor mask = model.longTensor(attentionMask, beams, length + 1);
+            created.add(mask);
+            inputs.put(DecoderModel.ATTENTION_MASK, mask);
+            if (model.hasPositionIds()) {
+                OnnxTensor positions = model.longTensor(positionIds, beams, 1);
+                created.add(positions);
+                inputs.put(DecoderModel.POSITION_IDS, positions);
+            }
+            OnnxTensor logitsView = model.logitsTensor(logits, beams, 1);
+            created.add(logitsView);
+            outputs.put(DecoderModel.LOGITS, logitsView);
+            batchCache.bind(inputs, outputs, created);
+
+            model.run(inputs, outputs, false, runOptions);
+            batchCache.advance();
+        } catch (OrtException e) {
+            throw new LlmInferenceException("Beam search forward pass failed", e);
+        } finally {
+            for (OnnxTensor tensor : created) {
+                tensor.close();
+            }
+        }
+    }
+}
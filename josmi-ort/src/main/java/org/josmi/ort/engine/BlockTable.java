@@ -0,0 +1,202 @@
+package org.josmi.ort.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Maps the token positions of one sequence to blocks of a {@link KvBlockPool}.
+ * <p>
+ * Blocks are taken from the pool as the sequence grows, and a table can be forked
+ * so that several sequences share the blocks of a common prefix; a shared block
+ * is copied before it is written.
+ */
+public class BlockTable implements KvBlockPool.BlockHolder {
+
+    private final KvBlockPool pool;
+    private int[] blocks;
+    private int numBlocks;
+    private int length;
+
+    /**
+     * Constructs a new, empty BlockTable registered with its pool.
+     *
+     * @param pool the block pool
+     */
+    public BlockTable(KvBlockPool pool) {
+        this.pool = pool;
+        this.blocks = new int[4];
+        pool.register(this);
+    }
+
+    public KvBlockPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Gets the number of positions written to the table.
+     *
+     * @return the number of cached positions
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * Gets the id of a block of the table.
+     *
+     * @param index the block index within the table
+     * @return the block id
+     */
+    public int getBlock(int index) {
+        return blocks[index];
+    }
+
+    /**
+     * Appends a block shared with another holder, such as a cached prefix.
+     *
+     * @param block the block id, whose reference count is incremented
+     */
+    public void append(int block) {
+        pool.retain(block);
+        if (numBlocks == blocks.length) {
+            blocks = Arrays.copyOf(blocks, numBlocks * 2);
+        }
+        blocks[numBlocks++] = block;
+    }
+
+    /**
+     * Makes positions [from, to) writable, taking new blocks and copying shared ones as needed.
+     *
+     * @param from the first position to be written
+     * @param to the end of the positions to be written
+     * @return false if the pool is exhausted, in which case blocks taken so far are kept
+     */
+    public boolean reserve(int from, int to) {
+        int blockSize = pool.getBlockSize();
+        int needed = pool.blocksFor(to);
+        while (numBlocks < needed) {
+            int block = pool.allocate();
+            if (block < 0) {
+                return false;
+            }
+            if (numBlocks == blocks.length) {
+                blocks = Arrays.copyOf(blocks, numBlocks * 2);
+            }
+            blocks[numBlocks++] = block;
+        }
+        for (int index = from / blockSize; index < needed; index++) {
+            int block = pool.copyOnWrite(blocks[index]);
+            if (block < 0) {
+                return false;
+            }
+            blocks[index] = block;
+        }
+        return true;
+    }
+
+    /**
+     * Writes positions of a cache tensor from a buffer with a [heads, length, headDim] layout.
+     * The positions must have been reserved.
+     *
+     * @param tensor the cache tensor index
+     * @param source the source buffer
+     * @param sourceOffset the byte offset in the source of the first position of head 0
+     * @param headStride the byte distance between heads in the source
+     * @param from the first sequence position to write
+     * @param count the number of positions
+     */
+    public void write(int tensor, ByteBuffer source, long sourceOffset, long headStride, int from, int count) {
+        int blockSize = pool.getBlockSize();
+        long rowBytes = pool.getRowBytes();
+        int done = 0;
+        while (done < count) {
+            int position = from + done;
+            int chunk = Math.min(count - done, blockSize - position % blockSize);
+            pool.copyIn(source, sourceOffset + done * rowBytes, headStride,
+                    blocks[position / blockSize], tensor, position % blockSize, chunk);
+            done += chunk;
+        }
+    }
+
+    /**
+     * Reads positions of a cache tensor into a buffer with a [heads, length, headDim] layout.
+     *
+     * @param tensor the cache tensor index
+     * @param from the first sequence position to read
+     * @param count the number of positions
+     * @param target the target buffer
+     * @param targetOffset the byte offset in the target of the first position of head 0
+     * @param headStride the byte distance between heads in the target
+     */
+    public void read(int tensor, int from, int count, ByteBuffer target, long targetOffset, long headStride) {
+        int blockSize = pool.getBlockSize();
+        long rowBytes = pool.getRowBytes();
+        int done = 0;
+        while (done < count) {
+            int position = from + done;
+            int chunk = Math.min(count - done, blockSize - position % blockSize);
+            pool.copyOut(blocks[position / blockSize], tensor, position % blockSize, chunk,
+                    target, targetOffset + done * rowBytes, headStride);
+            done += chunk;
+        }
+    }
+
+    /**
+     * Records the number of positions written to the table.
+     *
+     * @param length the number of cached positions
+     */
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Creates a table that shares the blocks holding the first positions of this one.
+     *
+     * @param prefixLength the number of positions to share
+     * @return the new table
+     */
+    public BlockTable fork(int prefixLength) {
+        BlockTable fork = new BlockTable(pool);
+        int shared = pool.blocksFor(prefixLength);
+        fork.blocks = Arrays.copyOf(blocks, Math.max(4, shared));
+        for (int index = 0; index < shared; index++) {
+            pool.retain(blocks[index]);
+        }
+        fork.numBlocks = shared;
+        fork.length = prefixLength;
+        return fork;
+    }
+
+    /**
+     * Drops the positions from a given length on, releasing the blocks no longer needed.
+     *
+     * @param newLength the number of positions to keep
+     */
+    public void truncate(int newLength) {
+        int keep = pool.blocksFor(newLength);
+        while (numBlocks > keep) {
+            pool.release(blocks[--numBlocks]);
+        }
+        length = Math.min(length, newLength);
+    }
+
+    /**
+     * Releases all blocks and unregisters the table from its pool.
+     */
+    public void free() {
+        truncate(0);
+        pool.unregister(this);
+    }
+
+    @Override
+    public void remap(int[] mapping) {
+        for (int index = 0; index < numBlocks; index++) {
+            blocks[index] = mapping[blocks[index]];
+        }
+    }
+}
@@ -0,0 +1,847 @@
+package org.josmi.ort.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic finite automaton over UTF-16 characters that accepts the full matches of a
+ * regular expression, used to constrain generated text.
+ * <p>
+ * The expression is parsed into a Thompson NFA and determinized by subset construction.
+ * States from which no accepting state can be reached are dropped, so that every state the
+ * automaton enters can still complete a match. Transitions are stored as sorted character
+ * ranges, with a dense table for ASCII, the characters of almost all JSON.
+ * <p>
+ * The supported syntax is the common subset of Java and ECMAScript patterns: literals and
+ * escapes, '.', character classes with ranges and negation, the class escapes \d \w \s and
+ * their negations, groups (capturing, non-capturing and named, all treated alike),
+ * alternation and the quantifiers *, +, ?, {n}, {n,} and {n,m}; lazy and possessive forms
+ * match like the greedy ones. '^' and '$' are ignored, as the whole text always has to match.
+ * Backreferences, lookaround and word boundaries are rejected.
+ */
+public class CharacterAutomaton {
+
+    /**
+     * Maximum number of NFA nodes, which bounds the expansion of counted repetitions.
+     */
+    public static final int MAX_NFA_NODES = 200_000;
+
+    /**
+     * Maximum number of DFA states.
+     */
+    public static final int MAX_STATES = 20_000;
+
+    private static final int ASCII = 128;
+    private static final int MAX_CHAR = 0xFFFF;
+
+    private final int stateCount;
+    private final boolean[] accepting;
+    // Transitions of state s are at [transitionStart[s], transitionStart[s + 1]), sorted by character
+    private final int[] transitionStart;
+    private final char[] rangeFrom;
+    private final char[] rangeTo;
+    private final int[] rangeTarget;
+    private final int[] asciiTargets;
+
+    private CharacterAutomaton(boolean[] accepting, int[] transitionStart, char[] rangeFrom, char[] rangeTo,
+                               int[] rangeTarget) {
+        this.stateCount = accepting.length;
+        this.accepting = accepting;
+        this.transitionStart = transitionStart;
+        this.rangeFrom = rangeFrom;
+        this.rangeTo = rangeTo;
+        this.rangeTarget = rangeTarget;
+        this.asciiTargets = new int[stateCount * ASCII];
+        Arrays.fill(asciiTargets, -1);
+        for (int state = 0; state < stateCount; state++) {
+            for (int i = transitionStart[state]; i < transitionStart[state + 1] && rangeFrom[i] < ASCII; i++) {
+                for (int c = rangeFrom[i]; c <= Math.min(rangeTo[i], ASCII - 1); c++) {
+                    asciiTargets[state * ASCII + c] = rangeTarget[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles a regular expression.
+     *
+     * @param regex the regular expression
+     * @return the automaton accepting the full matches of the expression
+     * @throws IllegalArgumentException if the expression is malformed, unsupported, matches nothing
+     *                                  or needs more than {@value #MAX_STATES} states
+     */
+    public static CharacterAutomaton compile(String regex) {
+        Node expression = new Parser(regex).parse();
+        Nfa nfa = new Nfa();
+        int accept = nfa.newNode();
+        int start = nfa.build(expression, accept);
+        return determinize(nfa, start, accept, regex);
+    }
+
+    public int getInitialState() {
+        return 0;
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * Checks whether the text read so far is a full match.
+     *
+     * @param state the state
+     * @return true if the state is accepting
+     */
+    public boolean isAccepting(int state) {
+        return accepting[state];
+    }
+
+    /**
+     * Reads a character.
+     *
+     * @param state the current state
+     * @param c the character
+     * @return the next state, or -1 if no match continues with the character
+     */
+    public int step(int state, char c) {
+        if (c < ASCII) {
+            return asciiTargets[state * ASCII + c];
+        }
+        int low = transitionStart[state];
+        int high = transitionStart[state + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (rangeTo[middle] < c) {
+                low = middle + 1;
+            } else if (rangeFrom[middle] > c) {
+                high = middle - 1;
+            } else {
+                return rangeTarget[middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a text.
+     *
+     * @param state the current state
+     * @param text the text
+     * @return the state after the text, or -1 if no match continues with the text
+     */
+    public int step(int state, CharSequence text) {
+        for (int i = 0; i < text.length() && state >= 0; i++) {
+            state = step(state, text.charAt(i));
+        }
+        return state;
+    }
+
+    /**
+     * Gets the only character a state can continue with, if the state must continue.
+     *
+     * @param state the state
+     * @return the character, or -1 if the state is accepting or has a choice of characters
+     */
+    public int getForcedCharacter(int state) {
+        int first = transitionStart[state];
+        if (accepting[state] || transitionStart[state + 1] - first != 1 || rangeFrom[first] != rangeTo[first]) {
+            return -1;
+        }
+        return rangeFrom[first];
+    }
+
+    private static CharacterAutomaton determinize(Nfa nfa, int start, int accept, String regex) {
+        Map<NodeSet, Integer> states = new HashMap<>();
+        List<NodeSet> sets = new ArrayList<>();
+        List<int[]> transitions = new ArrayList<>();
+        int[] marks = new int[nfa.size()];
+        int[] stack = new int[nfa.size()];
+        int[] targets = new int[nfa.size()];
+
+        NodeSet initial = nfa.closure(new int[]{start}, 1, marks, stack);
+        states.put(initial, 0);
+        sets.add(initial);
+        for (int index = 0; index < sets.size(); index++) {
+            NodeSet set = sets.get(index);
+            // Elementary intervals between the boundaries of the ranges leaving the set
+            int[] points = nfa.boundaries(set);
+            List<Integer> stateTransitions = new ArrayList<>();
+            for (int p = 0; p + 1 < points.length; p++) {
+                int from = points[p];
+                int to = points[p + 1] - 1;
+                int count = nfa.targets(set, from, targets);
+                if (count == 0) {
+                    continue;
+                }
+                NodeSet next = nfa.closure(targets, count, marks, stack);
+                Integer target = states.get(next);
+                if (target == null) {
+                    if (sets.size() == MAX_STATES) {
+                        throw new IllegalArgumentException("Pattern needs more than " + MAX_STATES
+                                + " automaton states: " + abbreviate(regex));
+                    }
+                    target = sets.size();
+                    states.put(next, target);
+                    sets.add(next);
+                }
+                int last = stateTransitions.size() - 3;
+                if (last >= 0 && stateTransitions.get(last + 1) == from - 1
+                        && stateTransitions.get(last + 2).equals(target)) {
+                    stateTransitions.set(last + 1, to);
+                } else {
+                    stateTransitions.add(from);
+                    stateTransitions.add(to);
+                    stateTransitions.add(target);
+                }
+            }
+            int[] flat = new int[stateTransitions.size()];
+            for (int i = 0; i < flat.length; i++) {
+                flat[i] = stateTransitions.get(i);
+            }
+            transitions.add(flat);
+        }
+
+        int count = sets.size();
+        boolean[] accepting = new boolean[count];
+        for (int state = 0; state < count; state++) {
+            accepting[state] = sets.get(state).contains(accept);
+        }
+        boolean[] live = liveStates(accepting, transitions);
+        if (!live[0]) {
+            throw new IllegalArgumentException("Pattern matches no text: " + abbreviate(regex));
+        }
+
+        int[] transitionStart = new int[count + 1];
+        int total = 0;
+        for (int state = 0; state < count; state++) {
+            int[] flat = transitions.get(state);
+            for (int i = 0; i < flat.length; i += 3) {
+                if (live[state] && live[flat[i + 2]]) {
+                    total++;
+                }
+            }
+        }
+        char[] rangeFrom = new char[total];
+        char[] rangeTo = new char[total];
+        int[] rangeTarget = new int[total];
+        int position = 0;
+        for (int state = 0; state < count; state++) {
+            transitionStart[state] = position;
+            int[] flat = transitions.get(state);
+            for (int i = 0; i < flat.length; i += 3) {
+                if (live[state] && live[flat[i + 2]]) {
+                    rangeFrom[position] = (char) flat[i];
+                    rangeTo[position] = (char) flat[i + 1];
+                    rangeTarget[position] = flat[i + 2];
+                    position++;
+                }
+            }
+        }
+        transitionStart[count] = position;
+        return new CharacterAutomaton(accepting, transitionStart, rangeFrom, rangeTo, rangeTarget);
+    }
+
+    /**
+     * Finds the states from which an accepting state can be reached.
+     */
+    private static boolean[] liveStates(boolean[] accepting, List<int[]> transitions) {
+        int count = accepting.length;
+        boolean[] live = accepting.clone();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int state = count - 1; state >= 0; state--) {
+                if (live[state]) {
+                    continue;
+                }
+                int[] flat = transitions.get(state);
+                for (int i = 2; i < flat.length; i += 3) {
+                    if (live[flat[i]]) {
+                        live[state] = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return live;
+    }
+
+    private static String abbreviate(String regex) {
+        return regex.length() <= 80 ? regex : regex.substring(0, 77) + "...";
+    }
+
+    /**
+     * Sorted set of NFA nodes, the identity of a DFA state.
+     */
+    private static final class NodeSet {
+        private final int[] nodes;
+        private final int hash;
+
+        private NodeSet(int[] nodes) {
+            this.nodes = nodes;
+            this.hash = Arrays.hashCode(nodes);
+        }
+
+        private boolean contains(int node) {
+            return Arrays.binarySearch(nodes, node) >= 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof NodeSet && hash == ((NodeSet) o).hash && Arrays.equals(nodes, ((NodeSet) o).nodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Thompson NFA: every node has character ranges to one target, epsilon edges, or neither.
+     */
+    private static final class Nfa {
+        private final List<int[]> ranges = new ArrayList<>();
+        private final List<Integer> rangeTargets = new ArrayList<>();
+        private final List<int[]> epsilons = new ArrayList<>();
+
+        int size() {
+            return ranges.size();
+        }
+
+        int newNode() {
+            if (ranges.size() == MAX_NFA_NODES) {
+                throw new IllegalArgumentException("Pattern expands to more than " + MAX_NFA_NODES + " nodes");
+            }
+            ranges.add(null);
+            rangeTargets.add(-1);
+            epsilons.add(null);
+            return ranges.size() - 1;
+        }
+
+        private void addEpsilon(int node, int target) {
+            int[] edges = epsilons.get(node);
+            edges = edges == null ? new int[1] : Arrays.copyOf(edges, edges.length + 1);
+            edges[edges.length - 1] = target;
+            epsilons.set(node, edges);
+        }
+
+        /**
+         * Adds the nodes matching an expression, continuing to the given node.
+         *
+         * @return the entry node of the expression
+         */
+        int build(Node node, int next) {
+            switch (node.kind) {
+                case Node.CHARACTERS: {
+                    int entry = newNode();
+                    ranges.set(entry, node.characters);
+                    rangeTargets.set(entry, next);
+                    return entry;
+                }
+                case Node.SEQUENCE: {
+                    int entry = next;
+                    for (int i = node.children.size() - 1; i >= 0; i--) {
+                        entry = build(node.children.get(i), entry);
+                    }
+                    return entry;
+                }
+                case Node.ALTERNATION: {
+                    int entry = newNode();
+                    for (Node child : node.children) {
+                        addEpsilon(entry, build(child, next));
+                    }
+                    return entry;
+                }
+                default: {
+                    Node child = node.children.get(0);
+                    int entry = next;
+                    if (node.max < 0) {
+                        // child* loops back to its own entry
+                        int loop = newNode();
+                        addEpsilon(loop, build(child, loop));
+                        addEpsilon(loop, next);
+                        entry = loop;
+                    } else {
+                        for (int i = node.min; i < node.max; i++) {
+                            int optional = newNode();
+                            addEpsilon(optional, build(child, entry));
+                            addEpsilon(optional, next);
+                            entry = optional;
+                        }
+                    }
+                    for (int i = 0; i < node.min; i++) {
+                        entry = build(child, entry);
+                    }
+                    return entry;
+                }
+            }
+        }
+
+        /**
+         * Computes the epsilon closure of nodes, using marks and stack as scratch space.
+         */
+        NodeSet closure(int[] seeds, int count, int[] marks, int[] stack) {
+            int[] members = new int[16];
+            int size = 0;
+            int top = 0;
+            // Members are marked with -1 while the closure is computed, and unmarked at the end
+            for (int i = 0; i < count; i++) {
+                if (marks[seeds[i]] != -1) {
+                    marks[seeds[i]] = -1;
+                    stack[top++] = seeds[i];
+                }
+            }
+            while (top > 0) {
+                int node = stack[--top];
+                if (size == members.length) {
+                    members = Arrays.copyOf(members, size * 2);
+                }
+                members[size++] = node;
+                int[] edges = epsilons.get(node);
+                if (edges != null) {
+                    for (int target : edges) {
+                        if (marks[target] != -1) {
+                            marks[target] = -1;
+                            stack[top++] = target;
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                marks[members[i]] = 0;
+            }
+            int[] nodes = Arrays.copyOf(members, size);
+            Arrays.sort(nodes);
+            return new NodeSet(nodes);
+        }
+
+        /**
+         * Collects the sorted boundaries of the character ranges leaving a set of nodes.
+         */
+        int[] boundaries(NodeSet set) {
+            int[] points = new int[8];
+            int count = 0;
+            for (int node : set.nodes) {
+                int[] nodeRanges = ranges.get(node);
+                if (nodeRanges == null) {
+                    continue;
+                }
+                for (int i = 0; i < nodeRanges.length; i += 2) {
+                    if (count + 2 > points.length) {
+                        points = Arrays.copyOf(points, points.length * 2);
+                    }
+                    points[count++] = nodeRanges[i];
+                    points[count++] = nodeRanges[i + 1] + 1;
+                }
+            }
+            Arrays.sort(points, 0, count);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || points[unique - 1] != points[i]) {
+                    points[unique++] = points[i];
+                }
+            }
+            return Arrays.copyOf(points, unique);
+        }
+
+        /**
+         * Collects the nodes a character leads to from a set of nodes.
+         *
+         * @return the number of targets written
+         */
+        int targets(NodeSet set, int c, int[] targets) {
+            int count = 0;
+            for (int node : set.nodes) {
+                int[] nodeRanges = ranges.get(node);
+                if (nodeRanges != null && CharacterSet.contains(nodeRanges, c)) {
+                    targets[count++] = rangeTargets.get(node);
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Parsed regular expression.
+     */
+    private static final class Node {
+        static final int CHARACTERS = 0;
+        static final int SEQUENCE = 1;
+        static final int ALTERNATION = 2;
+        static final int REPETITION = 3;
+
+        final int kind;
+        final int[] characters;
+        final List<Node> children;
+        final int min;
+        final int max;
+
+        private Node(int kind, int[] characters, List<Node> children, int min, int max) {
+            this.kind = kind;
+            this.characters = characters;
+            this.children = children;
+            this.min = min;
+            this.max = max;
+        }
+
+        static Node characters(int[] ranges) {
+            return new Node(CHARACTERS, ranges, null, 0, 0);
+        }
+
+        static Node sequence(List<Node> children) {
+            return children.size() == 1 ? children.get(0) : new Node(SEQUENCE, null, children, 0, 0);
+        }
+
+        static Node alternation(List<Node> children) {
+            return children.size() == 1 ? children.get(0) : new Node(ALTERNATION, null, children, 0, 0);
+        }
+
+        static Node repetition(Node child, int min, int max) {
+            List<Node> children = new ArrayList<>(1);
+            children.add(child);
+            return new Node(REPETITION, null, children, min, max);
+        }
+    }
+
+    /**
+     * Character sets as sorted, disjoint, non-adjacent ranges [from0, to0, from1, to1, ...].
+     */
+    static final class CharacterSet {
+        static final int[] ANY = {0, MAX_CHAR};
+        static final int[] DIGITS = {'0', '9'};
+        static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+        static final int[] SPACE = {'\t', '\r', ' ', ' '};
+
+        private CharacterSet() {
+        }
+
+        static int[] of(int c) {
+            return new int[]{c, c};
+        }
+
+        static boolean contains(int[] set, int c) {
+            for (int i = 0; i < set.length && set[i] <= c; i += 2) {
+                if (c <= set[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static int[] union(int[] a, int[] b) {
+            int[] all = new int[a.length + b.length];
+            System.arraycopy(a, 0, all, 0, a.length);
+            System.arraycopy(b, 0, all, a.length, b.length);
+            return normalize(all);
+        }
+
+        static int[] complement(int[] set) {
+            int[] result = new int[set.length + 2];
+            int count = 0;
+            int next = 0;
+            for (int i = 0; i < set.length; i += 2) {
+                if (set[i] > next) {
+                    result[count++] = next;
+                    result[count++] = set[i] - 1;
+                }
+                next = set[i + 1] + 1;
+            }
+            if (next <= MAX_CHAR) {
+                result[count++] = next;
+                result[count++] = MAX_CHAR;
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        /**
+         * Sorts and merges ranges given in any order.
+         */
+        static int[] normalize(int[] ranges) {
+            int pairs = ranges.length / 2;
+            long[] packed = new long[pairs];
+            for (int i = 0; i < pairs; i++) {
+                packed[i] = ((long) ranges[2 * i] << 32) | ranges[2 * i + 1];
+            }
+            Arrays.sort(packed);
+            int[] result = new int[ranges.length];
+            int count = 0;
+            for (long range : packed) {
+                int from = (int) (range >>> 32);
+                int to = (int) range;
+                if (count > 0 && from <= result[count - 1] + 1) {
+                    result[count - 1] = Math.max(result[count - 1], to);
+                } else {
+                    result[count++] = from;
+                    result[count++] = to;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+    }
+
+    /**
+     * Recursive descent parser of the supported syntax.
+     */
+    private static final class Parser {
+        private final String pattern;
+        private int position;
+
+        Parser(String pattern) {
+            this.pattern = pattern;
+        }
+
+        Node parse() {
+            Node node = parseAlternation();
+            if (position < pattern.length()) {
+                throw error("Unmatched ')'");
+            }
+            return node;
+        }
+
+        private Node parseAlternation() {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(parseSequence());
+            while (position < pattern.length() && pattern.charAt(position) == '|') {
+                position++;
+                alternatives.add(parseSequence());
+            }
+            return Node.alternation(alternatives);
+        }
+
+        private Node parseSequence() {
+            List<Node> items = new ArrayList<>();
+            while (position < pattern.length() && pattern.charAt(position) != '|'
+                    && pattern.charAt(position) != ')') {
+                Node atom = parseAtom();
+                if (atom != null) {
+                    items.add(parseQuantifiers(atom));
+                }
+            }
+            return Node.sequence(items);
+        }
+
+        private Node parseQuantifiers(Node atom) {
+            while (position < pattern.length()) {
+                char c = pattern.charAt(position);
+                int min;
+                int max;
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    position++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    position++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    position++;
+                } else if (c == '{' && isCountedQuantifier()) {
+                    position++;
+                    min = parseNumber();
+                    max = min;
+                    if (pattern.charAt(position) == ',') {
+                        position++;
+                        max = pattern.charAt(position) == '}' ? -1 : parseNumber();
+                    }
+                    position++;
+                    if (max >= 0 && max < min) {
+                        throw error("Repetition maximum below its minimum");
+                    }
+                } else {
+                    return atom;
+                }
+                // Lazy and possessive quantifiers match the same texts
+                if (position < pattern.length()
+                        && (pattern.charAt(position) == '?' || pattern.charAt(position) == '+')) {
+                    position++;
+                }
+                atom = Node.repetition(atom, min, max);
+            }
+            return atom;
+        }
+
+        private boolean isCountedQuantifier() {
+            int i = position + 1;
+            int digits = 0;
+            while (i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+                i++;
+                digits++;
+            }
+            if (digits == 0 || i >= pattern.length()) {
+                return false;
+            }
+            if (pattern.charAt(i) == ',') {
+                i++;
+                while (i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+                    i++;
+                }
+            }
+            return i < pattern.length() && pattern.charAt(i) == '}';
+        }
+
+        private int parseNumber() {
+            int start = position;
+            while (Character.isDigit(pattern.charAt(position))) {
+                position++;
+            }
+            try {
+                return Integer.parseInt(pattern.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw error("Repetition count too large");
+            }
+        }
+
+        /**
+         * Parses an atom.
+         *
+         * @return the atom, or null for an anchor
+         */
+        private Node parseAtom() {
+            char c = pattern.charAt(position++);
+            switch (c) {
+                case '(':
+                    if (pattern.startsWith("?:", position)) {
+                        position += 2;
+                    } else if (pattern.startsWith("?<", position) && !pattern.startsWith("?<=", position)
+                            && !pattern.startsWith("?<!", position)) {
+                        position = pattern.indexOf('>', position) + 1;
+                    } else if (pattern.startsWith("?P<", position)) {
+                        position = pattern.indexOf('>', position) + 1;
+                    } else if (pattern.startsWith("?", position)) {
+                        throw error("Unsupported group");
+                    }
+                    if (position == 0) {
+                        throw error("Unterminated group name");
+                    }
+                    Node group = parseAlternation();
+                    if (position >= pattern.length() || pattern.charAt(position) != ')') {
+                        throw error("Missing ')'");
+                    }
+                    position++;
+                    return group;
+                case '[':
+                    return Node.characters(parseClass());
+                case '.':
+                    return Node.characters(CharacterSet.complement(CharacterSet.of('\n')));
+                case '^':
+                case '$':
+                    return null;
+                case '\\':
+                    return Node.characters(parseEscape(false));
+                case '*':
+                case '+':
+                case '?':
+                    throw error("Nothing to repeat");
+                default:
+                    return Node.characters(CharacterSet.of(c));
+            }
+        }
+
+        private int[] parseClass() {
+            boolean negated = position < pattern.length() && pattern.charAt(position) == '^';
+            if (negated) {
+                position++;
+            }
+            int[] set = new int[0];
+            boolean first = true;
+            while (true) {
+                if (position >= pattern.length()) {
+                    throw error("Missing ']'");
+                }
+                char c = pattern.charAt(position++);
+                if (c == ']' && !first) {
+                    break;
+                }
+                first = false;
+                int[] item = c == '\\' ? parseEscape(true) : CharacterSet.of(c);
+                boolean single = item.length == 2 && item[0] == item[1];
+                if (single && position + 1 < pattern.length() && pattern.charAt(position) == '-'
+                        && pattern.charAt(position + 1) != ']') {
+                    position++;
+                    char next = pattern.charAt(position++);
+                    int[] end = next == '\\' ? parseEscape(true) : CharacterSet.of(next);
+                    if (end.length != 2 || end[0] != end[1] || end[0] < item[0]) {
+                        throw error("Invalid character range");
+                    }
+                    item = new int[]{item[0], end[0]};
+                }
+                set = CharacterSet.union(set, item);
+            }
+            return negated ? CharacterSet.complement(set) : set;
+        }
+
+        private int[] parseEscape(boolean inClass) {
+            if (position >= pattern.length()) {
+                throw error("Trailing '\\'");
+            }
+            char c = pattern.charAt(position++);
+            switch (c) {
+                case 'd':
+                    return CharacterSet.DIGITS;
+                case 'D':
+                    return CharacterSet.complement(CharacterSet.DIGITS);
+                case 'w':
+                    return CharacterSet.WORD;
+                case 'W':
+                    return CharacterSet.complement(CharacterSet.WORD);
+                case 's':
+                    return CharacterSet.SPACE;
+                case 'S':
+                    return CharacterSet.complement(CharacterSet.SPACE);
+                case 'n':
+                    return CharacterSet.of('\n');
+                case 'r':
+                    return CharacterSet.of('\r');
+                case 't':
+                    return CharacterSet.of('\t');
+                case 'f':
+                    return CharacterSet.of('\f');
+                case 'v':
+                    return CharacterSet.of(0x0B);
+                case '0':
+                    return CharacterSet.of(0);
+                case 'x':
+                    return CharacterSet.of(parseHex(2));
+                case 'u':
+                    return CharacterSet.of(parseHex(4));
+                case 'b':
+                    if (inClass) {
+                        return CharacterSet.of('\b');
+                    }
+                    throw error("Word boundaries are not supported");
+                case 'B':
+                    throw error("Word boundaries are not supported");
+                default:
+                    if (Character.isDigit(c)) {
+                        throw error("Backreferences are not supported");
+                    }
+                    return CharacterSet.of(c);
+            }
+        }
+
+        private int parseHex(int digits) {
+            if (position + digits > pattern.length()) {
+                throw error("Truncated escape");
+            }
+            try {
+                int value = Integer.parseInt(pattern.substring(position, position + digits), 16);
+                position += digits;
+                return value;
+            } catch (NumberFormatException e) {
+                throw error("Malformed escape");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at index " + position + " of pattern: "
+                    + abbreviate(pattern));
+        }
+    }
+}
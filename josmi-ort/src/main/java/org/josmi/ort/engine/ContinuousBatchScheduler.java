@@ -0,0 +1,753 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import org.josmi.api.LlmInferenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Iteration-level scheduler that runs concurrent sequences as one batch.
+ * <p>
+ * A single scheduler thread owns all forward passes. On every iteration it admits
+ * a waiting sequence (prefilled on its own, then joined into the batch), runs one
+ * batched decode step for every running sequence and retires the sequences that
+ * finished, so requests join and leave the running batch between steps instead
+ * of each owning a generator. Batching relies on left padding, which requires the
+ * model to take position_ids.
+ * <p>
+ * Prompts are prefilled in chunks of a fixed number of tokens, one chunk per iteration,
+ * so a long prompt is interleaved with the decode steps of the running sequences
+ * instead of stalling them until it is done. One sequence is prefilled at a time; the
+ * next one is admitted once it has joined the batch.
+ * <p>
+ * The cached positions of every sequence are kept in blocks of a {@link KvBlockPool},
+ * taken as the sequence grows. A waiting sequence is admitted once the pool has
+ * room for its prompt plus one block of headroom per running sequence. With a
+ * {@link PrefixCache}, a sequence starts from the cached blocks of its longest
+ * known prompt prefix and only prefills the rest; cached blocks are evicted when
+ * the pool runs short.
+ * <p>
+ * The completions of a request with n above one are admitted together: the prompt is
+ * prefilled once and each completion forks its block table, sharing the prompt blocks
+ * until it writes to them.
+ * <p>
+ * Waiting sequences are admitted by priority, then in submission order. With a
+ * {@link KvSwapSpace}, a sequence that does not fit preempts running sequences of lower
+ * priority, and a running sequence that cannot get a block for its next step preempts the
+ * lowest priority, most recently submitted one instead of failing. A preempted sequence has
+ * its cached positions swapped out of the pool, and is swapped back in to resume once the
+ * batch and the pool have room and no waiting sequence outranks it, without recomputing
+ * anything.
+ */
+public class ContinuousBatchScheduler implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContinuousBatchScheduler.class);
+
+    // Block pool segments are dropped once the scheduler has been idle this long, keeping a spare one
+    private static final long IDLE_DEFRAGMENT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int SPARE_SEGMENTS = 1;
+
+    // Highest priority first, then in submission order
+    private static final Comparator<Sequence> PRIORITY_ORDER = Comparator.comparingInt(Sequence::priority)
+            .reversed().thenComparingLong(sequence -> sequence.order);
+
+    private final DecoderModel model;
+    private final GenAIModelConfig modelConfig;
+    private final int maxBatchSize;
+    private final int contextLength;
+    private final int prefillChunk;
+    private final NativeGenerator prefiller;
+    private final BatchKvCache batchCache;
+    private final KvBlockPool blockPool;
+    private final PrefixCache prefixCache;
+    private final KvSwapSpace swapSpace;
+    private final Sampler sampler;
+    private final LongBuffer inputIds;
+    private final LongBuffer positionIds;
+    private final LongBuffer attentionMask;
+    private final FloatBuffer logits;
+    private final int[] topTokens = new int[GenerationParameters.MAX_TOP_LOGPROBS];
+    private final float[] topLogprobs = new float[GenerationParameters.MAX_TOP_LOGPROBS];
+    private final BlockingQueue<Sequence> waiting = new PriorityBlockingQueue<>(11, PRIORITY_ORDER);
+    private final AtomicLong submissions = new AtomicLong();
+    private final List<Sequence> running = new ArrayList<>();
+    // Preempted sequences, whose cached positions are in the swap space
+    private final List<Sequence> swapped = new ArrayList<>();
+    private Sequence pending;
+    // The sequence whose prompt is being run through the prefiller, chunk by chunk
+    private Sequence prefilling;
+    // Whether sequences were preempted or resumed since the last batch layout
+    private boolean relayout;
+    private boolean idle;
+    private long idleSince;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a new ContinuousBatchScheduler and starts its thread.
+     *
+     * @param model the decoder model, which must take position_ids
+     * @param modelConfig the GenAI model configuration
+     * @param maxBatchSize the maximum number of sequences decoded together
+     * @param contextLength the maximum number of tokens (prompt plus generated) of a sequence
+     * @param blockPool the pool holding the cached positions, used by the scheduler thread only
+     * @param prefixCaching whether computed prompt blocks are cached for later sequences
+     */
+    public ContinuousBatchScheduler(DecoderModel model, GenAIModelConfig modelConfig, int maxBatchSize,
+                                    int contextLength, KvBlockPool blockPool, boolean prefixCaching) {
+        this(model, modelConfig, maxBatchSize, contextLength, blockPool, prefixCaching,
+                NativeGenerator.DEFAULT_PREFILL_CHUNK);
+    }
+
+    /**
+     * Constructs a new ContinuousBatchScheduler and starts its thread.
+     *
+     * @param model the decoder model, which must take position_ids
+     * @param modelConfig the GenAI model configuration
+     * @param maxBatchSize the maximum number of sequences decoded together
+     * @param contextLength the maximum number of tokens (prompt plus generated) of a sequence
+     * @param blockPool the pool holding the cached positions, used by the scheduler thread only
+     * @param prefixCaching whether computed prompt blocks are cached for later sequences
+     * @param prefillChunk the maximum number of prompt tokens run between two decode steps
+     */
+    public ContinuousBatchScheduler(DecoderModel model, GenAIModelConfig modelConfig, int maxBatchSize,
+                                    int contextLength, KvBlockPool blockPool, boolean prefixCaching,
+                                    int prefillChunk) {
+        this(model, modelConfig, maxBatchSize, contextLength, blockPool, prefixCaching, prefillChunk, null);
+    }
+
+    /**
+     * Constructs a new ContinuousBatchScheduler and starts its thread.
+     *
+     * @param model the decoder model, which must take position_ids
+     * @param modelConfig the GenAI model configuration
+     * @param maxBatchSize the maximum number of sequences decoded together
+     * @param contextLength the maximum number of tokens (prompt plus generated) of a sequence
+     * @param blockPool the pool holding the cached positions, used by the scheduler thread only
+     * @param prefixCaching whether computed prompt blocks are cached for later sequences
+     * @param prefillChunk the maximum number of prompt tokens run between two decode steps
+     * @param swapSpace the space preempted sequences are swapped to, used by the scheduler thread
+     *                  only, or null to disable preemption
+     */
+    public ContinuousBatchScheduler(DecoderModel model, GenAIModelConfig modelConfig, int maxBatchSize,
+                                    int contextLength, KvBlockPool blockPool, boolean prefixCaching,
+                                    int prefillChunk, KvSwapSpace swapSpace) {
+        if (!model.hasPositionIds()) {
+            throw new IllegalArgumentException("Batched decoding requires a model with position_ids");
+        }
+        this.model = model;
+        this.modelConfig = modelConfig;
+        this.maxBatchSize = maxBatchSize;
+        this.contextLength = contextLength;
+        this.prefillChunk = Math.max(1, prefillChunk);
+        this.prefiller = new NativeGenerator(model, modelConfig, contextLength, this.prefillChunk);
+        this.batchCache = new BatchKvCache(model);
+        this.blockPool = blockPool;
+        this.prefixCache = prefixCaching ? new PrefixCache(blockPool) : null;
+        this.swapSpace = swapSpace;
+        this.sampler = new Sampler(model.getVocabSize());
+        this.inputIds = DecoderModel.allocate((long) maxBatchSize * Long.BYTES).asLongBuffer();
+        this.positionIds = DecoderModel.allocate((long) maxBatchSize * Long.BYTES).asLongBuffer();
+        this.attentionMask = DecoderModel.allocate((long) maxBatchSize * (contextLength + 1) * Long.BYTES)
+                .asLongBuffer();
+        this.logits = DecoderModel.allocate((long) maxBatchSize * model.getVocabSize() * Float.BYTES)
+                .asFloatBuffer();
+        this.thread = new Thread(this::run, "josmi-ort-scheduler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Checks whether the scheduler thread still runs, and so will complete the queued sequences.
+     *
+     * @return false once the thread has ended
+     */
+    public boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    /**
+     * Queues a sequence for generation.
+     *
+     * @param prompt the prompt token ids
+     * @param params the generation parameters
+     * @param listener the listener notified of every generated token, on the scheduler thread
+     * @return a future completed with the finish reason when the sequence ends
+     * @throws LlmInferenceException if the prompt is empty or does not fit in the context length
+     */
+    public CompletableFuture<FinishReason> submit(int[] prompt, GenerationParameters params, TokenListener listener)
+            throws LlmInferenceException {
+        return submit(prompt, params, new TokenListener[]{listener}).get(0);
+    }
+
+    /**
+     * Queues several completions of one prompt. The prompt is prefilled once for every group of
+     * completions that fits in a batch.
+     *
+     * @param prompt the prompt token ids
+     * @param params the generation parameters
+     * @param listeners the listeners notified of the generated tokens, one per completion, on the scheduler thread
+     * @return a future per completion, completed with the finish reason when the completion ends
+     * @throws LlmInferenceException if the prompt is empty or does not fit in the context length
+     */
+    public List<CompletableFuture<FinishReason>> submit(int[] prompt, GenerationParameters params,
+                                                        TokenListener[] listeners) throws LlmInferenceException {
+        if (prompt.length == 0) {
+            throw new LlmInferenceException("Prompt is empty");
+        }
+        if (prompt.length >= contextLength) {
+            throw new LlmInferenceException("Prompt of " + prompt.length + " tokens exceeds the context length of "
+                    + contextLength);
+        }
+        List<CompletableFuture<FinishReason>> results = new ArrayList<>(listeners.length);
+        for (int first = 0; first < listeners.length; first += maxBatchSize) {
+            Sequence sequence = new Sequence(prompt, params, listeners[first], contextLength, model.getVocabSize(),
+                    first);
+            sequence.order = submissions.getAndIncrement();
+            sequence.forks = new Sequence[Math.min(maxBatchSize, listeners.length - first) - 1];
+            results.add(sequence.result);
+            for (int i = 0; i < sequence.forks.length; i++) {
+                sequence.forks[i] = new Sequence(prompt, params, listeners[first + 1 + i], contextLength,
+                        model.getVocabSize(), first + 1 + i);
+                results.add(sequence.forks[i].result);
+            }
+            waiting.add(sequence);
+            // The scheduler thread may have drained the queue between the add and a concurrent close;
+            // whichever side removes the sequence fails it
+            if (closed && waiting.remove(sequence)) {
+                failGroup(sequence, new LlmInferenceException("Scheduler is closed"));
+            }
+        }
+        return results;
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                if (!swapped.isEmpty()) {
+                    resume();
+                }
+                Sequence admitted = prefilling == null && (running.size() < maxBatchSize || swapSpace != null)
+                        ? admit() : null;
+                if (admitted != null) {
+                    startPrefill(admitted);
+                }
+                List<Sequence> joining = prefilling != null ? prefillChunk() : Collections.emptyList();
+                reserveStep();
+                if (relayout || !joining.isEmpty() || running.size() != batchCache.getBatchSize()
+                        || !batchCache.hasRoomForStep()) {
+                    layout(joining);
+                }
+                if (!running.isEmpty()) {
+                    step();
+                    idle = false;
+                } else if (pending == null && prefilling == null) {
+                    releaseIdleSegments();
+                } else {
+                    idle = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (LlmInferenceException | RuntimeException e) {
+                logger.error("Batched decode step failed", e);
+                for (Sequence sequence : running) {
+                    fail(sequence, e);
+                }
+                running.clear();
+            }
+        }
+
+        LlmInferenceException closedException = new LlmInferenceException("Scheduler is closed");
+        for (Sequence sequence : running) {
+            fail(sequence, closedException);
+        }
+        running.clear();
+        for (Sequence sequence : swapped) {
+            fail(sequence, closedException);
+        }
+        swapped.clear();
+        if (prefilling != null) {
+            failGroup(prefilling, closedException);
+        }
+        if (pending != null) {
+            failGroup(pending, closedException);
+        }
+        Sequence sequence;
+        while ((sequence = waiting.poll()) != null) {
+            failGroup(sequence, closedException);
+        }
+    }
+
+    /**
+     * Takes the next sequence to join the batch, with its forks, if the batch and the block pool
+     * have room for them, preempting running sequences of lower priority to make room.
+     *
+     * @return the sequence, or null if none is waiting or the batch or pool is full
+     */
+    private Sequence admit() throws InterruptedException {
+        Sequence sequence = pending;
+        pending = null;
+        if (sequence != null && waiting.peek() != null && PRIORITY_ORDER.compare(waiting.peek(), sequence) < 0) {
+            // A sequence of higher priority arrived while this one waited for room
+            waiting.add(sequence);
+            sequence = null;
+        }
+        if (sequence == null) {
+            sequence = running.isEmpty() && swapped.isEmpty() ? waiting.poll(100, TimeUnit.MILLISECONDS)
+                    : waiting.poll();
+            if (sequence == null) {
+                return null;
+            }
+        }
+        if (!swapped.isEmpty() && sequence.priority() <= Collections.min(swapped, PRIORITY_ORDER).priority()) {
+            // Preempted sequences resume first
+            pending = sequence;
+            return null;
+        }
+
+        // Each fork takes its own block for the first position it writes
+        int blocks = blockPool.blocksFor(sequence.promptLength + 1) + sequence.forks.length;
+        if (blocks <= blockPool.getMaxBlocks()) {
+            do {
+                int needed = blocks + running.size();
+                if (running.size() + 1 + sequence.forks.length <= maxBatchSize) {
+                    if (needed > blockPool.getAvailableBlocks() && prefixCache != null) {
+                        prefixCache.evict(needed - blockPool.getAvailableBlocks());
+                    }
+                    if (needed <= blockPool.getAvailableBlocks()) {
+                        return sequence;
+                    }
+                }
+            } while (preempt(victim(sequence)));
+        }
+        if (running.isEmpty()) {
+            failGroup(sequence, new LlmInferenceException("Prompt of " + sequence.promptLength
+                    + " tokens does not fit in the key/value cache"));
+        } else {
+            // Retry once running sequences have released blocks
+            pending = sequence;
+        }
+        return null;
+    }
+
+    /**
+     * Swaps preempted sequences back into the batch, highest priority first, while the batch and
+     * the block pool have room for them and no waiting sequence outranks them.
+     */
+    private void resume() {
+        while (!swapped.isEmpty()) {
+            Sequence sequence = Collections.min(swapped, PRIORITY_ORDER);
+            Sequence next = waiting.peek();
+            if (pending != null && (next == null || PRIORITY_ORDER.compare(pending, next) < 0)) {
+                next = pending;
+            }
+            int joining = prefilling != null ? 1 + prefilling.forks.length : 0;
+            if (next != null && next.priority() > sequence.priority() || running.size() + joining >= maxBatchSize) {
+                return;
+            }
+            int needed = blockPool.blocksFor(sequence.cachedLength() + 1) + running.size();
+            if (needed > blockPool.getAvailableBlocks() && prefixCache != null) {
+                prefixCache.evict(needed - blockPool.getAvailableBlocks());
+            }
+            if (needed > blockPool.getAvailableBlocks() && (!running.isEmpty() || prefilling != null)) {
+                return;
+            }
+
+            swapped.remove(sequence);
+            sequence.blocks = new BlockTable(blockPool);
+            if (!reserve(sequence.blocks, 0, sequence.cachedLength() + 1)) {
+                fail(sequence, new LlmInferenceException("Key/value cache memory exhausted"));
+                continue;
+            }
+            swapSpace.swapIn(sequence.swap, sequence.blocks);
+            sequence.swap = null;
+            running.add(sequence);
+            relayout = true;
+            logger.debug("Resumed a sequence of priority {} at {} cached positions", sequence.priority(),
+                    sequence.cachedLength());
+        }
+    }
+
+    /**
+     * Picks the running sequence to preempt: the one of lowest priority, most recently submitted.
+     *
+     * @param candidate the sequence that needs room, which only preempts lower priorities, or null
+     *                  to consider every running sequence
+     * @return the sequence to preempt, or null if there is none or preemption is disabled
+     */
+    private Sequence victim(Sequence candidate) {
+        Sequence victim = null;
+        if (swapSpace == null) {
+            return null;
+        }
+        for (Sequence sequence : running) {
+            if ((candidate == null || sequence.priority() < candidate.priority())
+                    && (victim == null || PRIORITY_ORDER.compare(sequence, victim) > 0)) {
+                victim = sequence;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Swaps the cached positions of a running sequence out of the block pool and takes it out of
+     * the batch until it resumes.
+     *
+     * @param sequence the sequence, or null
+     * @return true if the sequence was preempted, false if there is none or the swap space is full
+     */
+    private boolean preempt(Sequence sequence) {
+        if (sequence == null) {
+            return false;
+        }
+        KvSwapSpace.Entry swap;
+        try {
+            swap = swapSpace.swapOut(sequence.blocks);
+        } catch (LlmInferenceException e) {
+            logger.warn("Cannot swap out a sequence", e);
+            return false;
+        }
+        if (swap == null) {
+            return false;
+        }
+        release(sequence);
+        sequence.swap = swap;
+        running.remove(sequence);
+        swapped.add(sequence);
+        relayout = true;
+        logger.debug("Preempted a sequence of priority {} at {} cached positions", sequence.priority(),
+                swap.getLength());
+        return true;
+    }
+
+    /**
+     * Starts the prefill of a sequence: loads the cached blocks of its longest known prompt prefix
+     * into the single-sequence cache and reserves the blocks of the rest of the prompt.
+     */
+    private void startPrefill(Sequence sequence) {
+        try {
+            int[] prompt = Arrays.copyOf(sequence.tokens, sequence.promptLength);
+            // At least the last prompt token is run to get its logits
+            sequence.blocks = prefixCache != null
+                    ? prefixCache.match(prompt, prompt.length - 1)
+                    : new BlockTable(blockPool);
+            int cached = sequence.blocks.getLength();
+            if (cached > 0) {
+                logger.debug("Reusing {} cached prompt positions of {}", cached, prompt.length);
+            }
+            prefiller.getKvCache().copyFrom(sequence.blocks, cached);
+            // Includes the position its first decode step writes
+            if (!reserve(sequence.blocks, cached, prompt.length + 1)) {
+                throw new LlmInferenceException("Key/value cache memory exhausted");
+            }
+            prefilling = sequence;
+        } catch (LlmInferenceException | RuntimeException e) {
+            failGroup(sequence, e);
+        }
+    }
+
+    /**
+     * Runs the next chunk of the prompt of the prefilling sequence and stores it in blocks. After
+     * the last chunk, forks the blocks for the other completions of the prompt and samples their
+     * first tokens.
+     *
+     * @return the sequences that continue and must join the batch, empty until the prompt is done
+     */
+    private List<Sequence> prefillChunk() {
+        Sequence sequence = prefilling;
+        List<Sequence> joining = new ArrayList<>(1 + sequence.forks.length);
+        int offset;
+        try {
+            int from = prefiller.getKvCache().getLength();
+            int to = prefillChunkEnd(from, sequence.promptLength, prefillChunk);
+            offset = prefiller.extend(sequence.tokens, from, to);
+            prefiller.getKvCache().copyTo(sequence.blocks, from, to - from);
+            if (to < sequence.promptLength) {
+                return joining;
+            }
+
+            prefilling = null;
+            sequence.blocks.setLength(sequence.promptLength);
+            if (prefixCache != null) {
+                prefixCache.insert(Arrays.copyOf(sequence.tokens, sequence.promptLength), sequence.blocks);
+            }
+            for (Sequence fork : sequence.forks) {
+                fork.blocks = sequence.blocks.fork(sequence.promptLength);
+                if (!reserve(fork.blocks, sequence.promptLength, sequence.promptLength + 1)) {
+                    throw new LlmInferenceException("Key/value cache memory exhausted");
+                }
+            }
+        } catch (LlmInferenceException | RuntimeException e) {
+            prefilling = null;
+            failGroup(sequence, e);
+            return joining;
+        }
+
+        for (int i = 0; i <= sequence.forks.length; i++) {
+            Sequence member = i == 0 ? sequence : sequence.forks[i - 1];
+            try {
+                if (sampleNext(member, prefiller.getLogits(), offset)) {
+                    joining.add(member);
+                }
+            } catch (LlmInferenceException | RuntimeException e) {
+                fail(member, e);
+            }
+        }
+        return joining;
+    }
+
+    /**
+     * Gets the end of the prompt chunk prefilled from a position. The first chunk starts after the
+     * cached prefix, which need not be a multiple of the chunk size; the last one ends the prompt.
+     *
+     * @param from the first position of the chunk
+     * @param promptLength the number of prompt tokens
+     * @param chunk the maximum number of tokens in a chunk
+     * @return the position after the last one of the chunk
+     */
+    static int prefillChunkEnd(int from, int promptLength, int chunk) {
+        return Math.min(promptLength, from + chunk);
+    }
+
+    /**
+     * Defragments the block pool once the scheduler has been idle for a while, and only if
+     * that drops segments beyond a spare one, so that a burst of requests right after the
+     * previous one reuses the segments instead of allocating new ones.
+     */
+    private void releaseIdleSegments() {
+        long now = System.nanoTime();
+        if (!idle) {
+            idle = true;
+            idleSince = now;
+        } else if (now - idleSince >= IDLE_DEFRAGMENT_NANOS && blockPool.getReleasableSegments() > SPARE_SEGMENTS) {
+            blockPool.defragment(SPARE_SEGMENTS);
+        }
+    }
+
+    /**
+     * Reserves the block position every running sequence writes in the next step; when the pool
+     * is exhausted, sequences are preempted, and sequences that still cannot get a block are failed.
+     */
+    private void reserveStep() {
+        for (int i = running.size() - 1; i >= 0; i--) {
+            Sequence sequence = running.get(i);
+            int position = sequence.cachedLength();
+            if (reserve(sequence.blocks, position, position + 1)) {
+                continue;
+            }
+            if (preempt(victim(null))) {
+                // Start over, the positions already reserved are kept
+                i = running.size();
+            } else {
+                fail(sequence, new LlmInferenceException("Key/value cache memory exhausted"));
+                running.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Copies the running sequences, and the newly prefilled ones, into a new batch layout.
+     */
+    private void layout(List<Sequence> joining) {
+        running.addAll(joining);
+        relayout = false;
+        int length = 0;
+        for (Sequence sequence : running) {
+            length = Math.max(length, sequence.cachedLength());
+        }
+
+        batchCache.beginLayout(running.size(), length);
+        for (int slot = 0; slot < running.size(); slot++) {
+            Sequence sequence = running.get(slot);
+            batchCache.copyFrom(sequence.blocks, slot);
+            sequence.slot = slot;
+        }
+        batchCache.commitLayout();
+    }
+
+    /**
+     * Runs one decode step for every running sequence.
+     */
+    private void step() throws LlmInferenceException {
+        int batch = running.size();
+        int length = batchCache.getLength();
+        int maskLength = length + 1;
+        for (int slot = 0; slot < batch; slot++) {
+            Sequence sequence = running.get(slot);
+            inputIds.put(slot, sequence.lastToken());
+            positionIds.put(slot, sequence.cachedLength());
+            int padding = length - sequence.cachedLength();
+            int row = slot * maskLength;
+            for (int i = 0; i < maskLength; i++) {
+                attentionMask.put(row + i, i < padding ? 0L : 1L);
+            }
+        }
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        Map<String, OnnxTensor> outputs = new HashMap<>();
+        List<OnnxTensor> created = new ArrayList<>();
+        try {
+            OnnxTensor ids = model.longTensor(inputIds, batch, 1);
+            created.add(ids);
+            inputs.put(DecoderModel.INPUT_IDS, ids);
+            OnnxTensor positions = model.longTensor(positionIds, batch, 1);
+            created.add(positions);
+            inputs.put(DecoderModel.POSITION_IDS, positions);
+            OnnxTensor mask = model.longTensor(attentionMask, batch, maskLength);
+            created.add(mask);
+            inputs.put(DecoderModel.ATTENTION_MASK, mask);
+            OnnxTensor logitsView = model.logitsTensor(logits, batch, 1);
+            created.add(logitsView);
+            outputs.put(DecoderModel.LOGITS, logitsView);
+            batchCache.bind(inputs, outputs, created);
+
+            model.run(inputs, outputs, false);
+            batchCache.advance();
+            for (int slot = 0; slot < batch; slot++) {
+                Sequence sequence = running.get(slot);
+                batchCache.copyLastTo(slot, sequence.blocks, sequence.cachedLength());
+                sequence.blocks.setLength(sequence.cachedLength() + 1);
+            }
+        } catch (OrtException e) {
+            throw new LlmInferenceException("Batched forward pass failed", e);
+        } finally {
+            for (OnnxTensor tensor : created) {
+                tensor.close();
+            }
+        }
+
+        List<Sequence> finished = null;
+        for (int slot = 0; slot < batch; slot++) {
+            Sequence sequence = running.get(slot);
+            boolean continues;
+            try {
+                continues = sampleNext(sequence, logits, slot * model.getVocabSize());
+            } catch (LlmInferenceException | RuntimeException e) {
+                fail(sequence, e);
+                continues = false;
+            }
+            if (!continues) {
+                if (finished == null) {
+                    finished = new ArrayList<>();
+                }
+                finished.add(sequence);
+            }
+        }
+        if (finished != null) {
+            running.removeAll(finished);
+        }
+    }
+
+    /**
+     * Samples the next token of a sequence from a row of logits and appends it.
+     *
+     * @return true if the sequence continues
+     */
+    private boolean sampleNext(Sequence sequence, FloatBuffer rows, int offset) throws LlmInferenceException {
+        int token = sampler.sample(rows, offset, sequence.params, sequence.samplingState);
+        float logprob = sequence.params.needsLogprobs()
+                ? sampler.logProbability(rows, offset, sequence.params, sequence.samplingState, token) : Float.NaN;
+        if (sequence.params.getTopLogprobs() > 0) {
+            int count = sampler.topLogProbabilities(rows, offset, sequence.params, sequence.samplingState,
+                    sequence.params.getTopLogprobs(), topTokens, topLogprobs, 0);
+            sequence.listener.onTopLogprobs(topTokens, topLogprobs, 0, count);
+        }
+        return accept(sequence, token, logprob);
+    }
+
+    /**
+     * Appends a sampled token to a sequence and completes the sequence if it ends.
+     *
+     * @return true if the sequence continues
+     */
+    private boolean accept(Sequence sequence, int token, float logprob) throws LlmInferenceException {
+        sequence.tokens[sequence.length++] = token;
+        sequence.samplingState.accept(token);
+        sequence.generated++;
+
+        FinishReason finishReason = null;
+        if (modelConfig.isEos(token)) {
+            sequence.listener.onEndOfSequence(token, logprob);
+            finishReason = FinishReason.STOP;
+        } else if (!sequence.listener.onToken(token, logprob)) {
+            finishReason = FinishReason.STOP;
+        } else if (sequence.generated >= sequence.params.getMaxTokens() || sequence.length >= sequence.tokens.length) {
+            finishReason = FinishReason.LENGTH;
+        }
+        if (finishReason != null) {
+            release(sequence);
+            sequence.result.complete(finishReason);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reserves positions in a block table, evicting cached prefixes if the pool is exhausted.
+     */
+    private boolean reserve(BlockTable table, int from, int to) {
+        if (table.reserve(from, to)) {
+            return true;
+        }
+        return prefixCache != null
+                && prefixCache.evict(blockPool.blocksFor(to) - table.getNumBlocks() + 1) > 0
+                && table.reserve(from, to);
+    }
+
+    private void fail(Sequence sequence, Throwable error) {
+        release(sequence);
+        sequence.result.completeExceptionally(error);
+    }
+
+    /**
+     * Fails a sequence that is not prefilled yet together with its forks.
+     */
+    private void failGroup(Sequence sequence, Throwable error) {
+        fail(sequence, error);
+        for (Sequence fork : sequence.forks) {
+            fail(fork, error);
+        }
+    }
+
+    private void release(Sequence sequence) {
+        if (sequence.blocks != null) {
+            sequence.blocks.free();
+            sequence.blocks = null;
+        }
+        if (sequence.swap != null) {
+            swapSpace.release(sequence.swap);
+            sequence.swap = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.josmi.ort.engine;
+
+import org.josmi.api.LlmInferenceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the generation throughput of a decoder model on random prompts, e.g. to
+ * warm up a session, tune the batch size or compare execution providers.
+ * <p>
+ * End-of-sequence tokens are ignored so that every sequence generates the same
+ * number of tokens. A batch size of one runs a {@link NativeGenerator}; larger
+ * batches are decoded together by a {@link ContinuousBatchScheduler}, as the
+ * native engine does with that maximum batch size. Like the engine, a model
+ * without position_ids is always measured with a batch size of one.
+ */
+public class DecoderBenchmark {
+
+    public static final int DEFAULT_PROMPT_TOKENS = 128;
+    public static final int DEFAULT_GENERATED_TOKENS = 32;
+
+    private final DecoderModel model;
+    private final GenAIModelConfig modelConfig;
+    private final int promptTokens;
+    private final int generatedTokens;
+    private final GenerationParameters params;
+    private final Random random = new Random(42);
+
+    /**
+     * Constructs a new DecoderBenchmark.
+     *
+     * @param model the decoder model
+     * @param modelConfig the GenAI model configuration
+     * @param promptTokens the number of tokens of each prompt
+     * @param generatedTokens the number of tokens generated for each prompt
+     */
+    public DecoderBenchmark(DecoderModel model, GenAIModelConfig modelConfig, int promptTokens, int generatedTokens) {
+        this.model = model;
+        this.modelConfig = new GenAIModelConfig(new int[0], modelConfig.getContextLength(),
+                modelConfig.getVocabSize(), modelConfig.getNumKeyValueHeads(), modelConfig.getHeadSize());
+        this.promptTokens = promptTokens;
+        this.generatedTokens = generatedTokens;
+        this.params = new GenerationParameters(generatedTokens, 0.0, 1.0, 1.0);
+    }
+
+    /**
+     * Runs one round of generation of a single sequence, e.g. to warm up a new session before
+     * it serves requests.
+     *
+     * @throws LlmInferenceException if generation fails
+     */
+    public void warmUp() throws LlmInferenceException {
+        generate(new NativeGenerator(model, modelConfig, promptTokens + generatedTokens + 1));
+    }
+
+    /**
+     * Runs a warm-up round and a measured round of generation.
+     *
+     * @param batchSize the number of sequences generated together
+     * @return the throughput in generated tokens per second
+     * @throws LlmInferenceException if generation fails
+     */
+    public double measure(int batchSize) throws LlmInferenceException {
+        int capacity = promptTokens + generatedTokens + 1;
+        if (batchSize <= 1 || !model.hasPositionIds()) {
+            NativeGenerator generator = new NativeGenerator(model, modelConfig, capacity);
+            generate(generator);
+            long start = System.nanoTime();
+            int tokens = generate(generator);
+            return tokens * 1e9 / (System.nanoTime() - start);
+        }
+
+        int blockSize = KvBlockPool.DEFAULT_BLOCK_SIZE;
+        KvBlockPool blockPool = new KvBlockPool(model, blockSize,
+                KvBlockPool.blocksForBudget(model, blockSize, (long) batchSize * capacity * model.getKvTokenBytes()));
+        try (ContinuousBatchScheduler scheduler = new ContinuousBatchScheduler(model, modelConfig, batchSize,
+                capacity, blockPool, false)) {
+            generate(scheduler, batchSize);
+            long start = System.nanoTime();
+            int tokens = generate(scheduler, batchSize);
+            return tokens * 1e9 / (System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Measures the prompt processing throughput of a single sequence, after a warm-up prompt.
+     *
+     * @return the throughput in prompt tokens per second
+     * @throws LlmInferenceException if the forward pass fails
+     */
+    public double measurePrefill() throws LlmInferenceException {
+        NativeGenerator generator = new NativeGenerator(model, modelConfig, promptTokens + generatedTokens + 1);
+        generator.prefill(randomPrompt());
+        long start = System.nanoTime();
+        generator.prefill(randomPrompt());
+        return promptTokens * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Measures the token generation throughput of a single sequence, excluding its prompt, after
+     * a warm-up round.
+     *
+     * @return the throughput in generated tokens per second
+     * @throws LlmInferenceException if generation fails
+     */
+    public double measureDecode() throws LlmInferenceException {
+        NativeGenerator generator = new NativeGenerator(model, modelConfig, promptTokens + generatedTokens + 1);
+        generate(generator);
+        // The first token is sampled from the prefill logits
+        long[] firstToken = new long[1];
+        int[] tokens = new int[1];
+        generator.generate(randomPrompt(), params, token -> {
+            if (tokens[0]++ == 0) {
+                firstToken[0] = System.nanoTime();
+            }
+            return true;
+        });
+        return (tokens[0] - 1) * 1e9 / (System.nanoTime() - firstToken[0]);
+    }
+
+    private int generate(NativeGenerator generator) throws LlmInferenceException {
+        int[] tokens = new int[1];
+        generator.generate(randomPrompt(), params, token -> ++tokens[0] > 0);
+        return tokens[0];
+    }
+
+    private int generate(ContinuousBatchScheduler scheduler, int batchSize) throws LlmInferenceException {
+        AtomicInteger tokens = new AtomicInteger();
+        List<CompletableFuture<FinishReason>> results = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            results.add(scheduler.submit(randomPrompt(), params, token -> tokens.incrementAndGet() > 0));
+        }
+        try {
+            for (CompletableFuture<FinishReason> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw new LlmInferenceException("Batched generation failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LlmInferenceException("Interrupted while waiting for generation", e);
+        }
+        return tokens.get();
+    }
+
+    private int[] randomPrompt() {
+        int[] prompt = new int[promptTokens];
+        for (int i = 0; i < prompt.length; i++) {
+            prompt[i] = random.nextInt(model.getVocabSize());
+        }
+        return prompt;
+    }
+}
@@ -0,0 +1,321 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import org.josmi.api.LlmInferenceException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Describes the inputs and outputs of a decoder-only ONNX language model
+ * (input_ids, attention_mask, optional position_ids, past_key_values.N.key/value
+ * in and logits, present.N.key/value out) and creates tensor views over
+ * caller-owned direct buffers, so that no tensor data is allocated per step.
+ */
+public class DecoderModel {
+
+    public static final String INPUT_IDS = "input_ids";
+    public static final String ATTENTION_MASK = "attention_mask";
+    public static final String POSITION_IDS = "position_ids";
+    public static final String LOGITS = "logits";
+
+    private static final Pattern PAST_PATTERN = Pattern.compile("past_key_values\\.(\\d+)\\.(key|value)");
+    private static final Pattern PRESENT_PATTERN = Pattern.compile("present[^.]*\\.(\\d+)\\.(key|value)");
+
+    private final OrtEnvironment environment;
+    private final OrtSession session;
+    private final int numLayers;
+    private final int numKvHeads;
+    private final int headDim;
+    private final int vocabSize;
+    private final OnnxJavaType kvType;
+    private final boolean hasPositionIds;
+    private final String[] pastNames;
+    private final String[] presentNames;
+    private OrtSession.RunOptions prefillRunOptions;
+
+    private DecoderModel(OrtEnvironment environment, OrtSession session, int numLayers, int numKvHeads,
+                         int headDim, int vocabSize, OnnxJavaType kvType, boolean hasPositionIds,
+                         String[] pastNames, String[] presentNames) {
+        this.environment = environment;
+        this.session = session;
+        this.numLayers = numLayers;
+        this.numKvHeads = numKvHeads;
+        this.headDim = headDim;
+        this.vocabSize = vocabSize;
+        this.kvType = kvType;
+        this.hasPositionIds = hasPositionIds;
+        this.pastNames = pastNames;
+        this.presentNames = presentNames;
+    }
+
+    /**
+     * Inspects a session and describes its decoder inputs and outputs.
+     *
+     * @param environment the ONNX Runtime environment
+     * @param session the session of a decoder-only model
+     * @param modelConfig the GenAI model configuration, used for dimensions the graph leaves symbolic
+     * @return the decoder model description
+     * @throws LlmInferenceException if the session is not a supported decoder model
+     */
+    public static DecoderModel inspect(OrtEnvironment environment, OrtSession session, GenAIModelConfig modelConfig)
+            throws LlmInferenceException {
+        try {
+            Map<String, NodeInfo> inputs = session.getInputInfo();
+            Map<String, NodeInfo> outputs = session.getOutputInfo();
+
+            if (!inputs.containsKey(INPUT_IDS) || !inputs.containsKey(ATTENTION_MASK) || !outputs.containsKey(LOGITS)) {
+                throw new LlmInferenceException("Model does not expose input_ids, attention_mask and logits");
+            }
+
+            int numLayers = 0;
+            for (String name : inputs.keySet()) {
+                Matcher matcher = PAST_PATTERN.matcher(name);
+                if (matcher.matches()) {
+                    numLayers = Math.max(numLayers, Integer.parseInt(matcher.group(1)) + 1);
+                }
+            }
+            if (numLayers == 0) {
+                throw new LlmInferenceException("Model does not expose past_key_values inputs");
+            }
+
+            String[] pastNames = new String[numLayers * 2];
+            String[] presentNames = new String[numLayers * 2];
+            for (int layer = 0; layer < numLayers; layer++) {
+                pastNames[layer * 2] = "past_key_values." + layer + ".key";
+                pastNames[layer * 2 + 1] = "past_key_values." + layer + ".value";
+            }
+            for (String name : outputs.keySet()) {
+                Matcher matcher = PRESENT_PATTERN.matcher(name);
+                if (matcher.matches()) {
+                    int layer = Integer.parseInt(matcher.group(1));
+                    if (layer < numLayers) {
+                        presentNames[layer * 2 + ("key".equals(matcher.group(2)) ? 0 : 1)] = name;
+                    }
+                }
+            }
+            for (int i = 0; i < pastNames.length; i++) {
+                if (!inputs.containsKey(pastNames[i]) || presentNames[i] == null) {
+                    throw new LlmInferenceException("Missing key/value cache tensor for layer " + (i / 2));
+                }
+            }
+
+            TensorInfo pastInfo = (TensorInfo) inputs.get(pastNames[0]).getInfo();
+            long[] pastShape = pastInfo.getShape();
+            int numKvHeads = pastShape[1] > 0 ? (int) pastShape[1] : modelConfig.getNumKeyValueHeads();
+            int headDim = pastShape[3] > 0 ? (int) pastShape[3] : modelConfig.getHeadSize();
+            if (numKvHeads <= 0 || headDim <= 0) {
+                throw new LlmInferenceException("Cannot determine key/value cache dimensions");
+            }
+
+            TensorInfo logitsInfo = (TensorInfo) outputs.get(LOGITS).getInfo();
+            if (logitsInfo.type != OnnxJavaType.FLOAT) {
+                throw new LlmInferenceException("Unsupported logits type: " + logitsInfo.type);
+            }
+            long[] logitsShape = logitsInfo.getShape();
+            int vocabSize = logitsShape[2] > 0 ? (int) logitsShape[2] : modelConfig.getVocabSize();
+            if (vocabSize <= 0) {
+                throw new LlmInferenceException("Cannot determine vocabulary size");
+            }
+
+            return new DecoderModel(environment, session, numLayers, numKvHeads, headDim, vocabSize,
+                    pastInfo.type, inputs.containsKey(POSITION_IDS), pastNames, presentNames);
+        } catch (OrtException e) {
+            throw new LlmInferenceException("Failed to inspect decoder model", e);
+        }
+    }
+
+    /**
+     * Sets the run options of prompt prefill passes. The options are owned by the caller and must stay open while the model is used.
+     *
+     * @param runOptions the run options, or null for the defaults
+     */
+    public void setPrefillRunOptions(OrtSession.RunOptions runOptions) {
+        this.prefillRunOptions = runOptions;
+    }
+
+    /**
+     * Runs a forward pass into pinned outputs.
+     *
+     * @param inputs the input tensors
+     * @param outputs the pinned output tensors
+     * @param prefill whether the pass prefills prompt tokens
+     * @throws OrtException if the pass fails
+     */
+    public void run(Map<String, OnnxTensor> inputs, Map<String, OnnxTensor> outputs, boolean prefill)
+            throws OrtException {
+        run(inputs, outputs, prefill, null);
+    }
+
+    /**
+     * Runs a forward pass into pinned outputs with the given run options, e.g. with LoRA adapters
+     * activated. These options replace the prefill run options.
+     *
+     * @param inputs the input tensors
+     * @param outputs the pinned output tensors
+     * @param prefill whether the pass prefills prompt tokens
+     * @param runOptions the run options, or null for the model's own
+     * @throws OrtException if the pass fails
+     */
+    public void run(Map<String, OnnxTensor> inputs, Map<String, OnnxTensor> outputs, boolean prefill,
+                    OrtSession.RunOptions runOptions) throws OrtException {
+        if (runOptions == null && prefill) {
+            runOptions = prefillRunOptions;
+        }
+        if (runOptions != null) {
+            session.run(inputs, Collections.emptySet(), outputs, runOptions).close();
+        } else {
+            session.run(inputs, outputs).close();
+        }
+    }
+
+    public OrtEnvironment getEnvironment() {
+        return environment;
+    }
+
+    public OrtSession getSession() {
+        return session;
+    }
+
+    public int getNumLayers() {
+        return numLayers;
+    }
+
+    public int getNumKvHeads() {
+        return numKvHeads;
+    }
+
+    public int getHeadDim() {
+        return headDim;
+    }
+
+    public int getVocabSize() {
+        return vocabSize;
+    }
+
+    public OnnxJavaType getKvType() {
+        return kvType;
+    }
+
+    public boolean hasPositionIds() {
+        return hasPositionIds;
+    }
+
+    /**
+     * Gets the number of key/value cache tensors (two per layer).
+     *
+     * @return the number of cache tensors
+     */
+    public int getNumKvTensors() {
+        return pastNames.length;
+    }
+
+    /**
+     * Gets the input name of a cache tensor, ordered as layer 0 key, layer 0 value, layer 1 key...
+     *
+     * @param index the cache tensor index
+     * @return the input name
+     */
+    public String getPastName(int index) {
+        return pastNames[index];
+    }
+
+    /**
+     * Gets the output name of a cache tensor, ordered as {@link #getPastName(int)}.
+     *
+     * @param index the cache tensor index
+     * @return the output name
+     */
+    public String getPresentName(int index) {
+        return presentNames[index];
+    }
+
+    /**
+     * Gets the size in bytes of one token position of one head in one cache tensor.
+     *
+     * @return the row size in bytes
+     */
+    public int getKvRowBytes() {
+        return headDim * kvType.size;
+    }
+
+    /**
+     * Gets the size in bytes of one token position in one cache tensor, across all heads.
+     *
+     * @return the token size in bytes
+     */
+    public long getKvTokenBytes() {
+        return (long) numKvHeads * getKvRowBytes();
+    }
+
+    /**
+     * Allocates a direct buffer in native byte order.
+     *
+     * @param bytes the capacity in bytes
+     * @return the buffer
+     */
+    public static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Buffer too large: " + bytes + " bytes");
+        }
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Creates a cache tensor of shape [batch, heads, length, headDim] over the start of a buffer.
+     *
+     * @param buffer the backing buffer
+     * @param batch the batch size
+     * @param length the number of token positions
+     * @return the tensor view
+     * @throws OrtException if the tensor cannot be created
+     */
+    public OnnxTensor kvTensor(ByteBuffer buffer, int batch, int length) throws OrtException {
+        ByteBuffer view = buffer.duplicate();
+        view.clear().limit((int) (batch * length * getKvTokenBytes()));
+        return OnnxTensor.createTensor(environment, view.slice().order(ByteOrder.nativeOrder()),
+                new long[]{batch, numKvHeads, length, headDim}, kvType);
+    }
+
+    /**
+     * Creates a logits tensor of shape [batch, length, vocab] over the start of a buffer.
+     *
+     * @param buffer the backing buffer
+     * @param batch the batch size
+     * @param length the number of token positions
+     * @return the tensor view
+     * @throws OrtException if the tensor cannot be created
+     */
+    public OnnxTensor logitsTensor(FloatBuffer buffer, int batch, int length) throws OrtException {
+        FloatBuffer view = buffer.duplicate();
+        view.clear().limit(batch * length * vocabSize);
+        return OnnxTensor.createTensor(environment, view.slice(), new long[]{batch, length, vocabSize});
+    }
+
+    /**
+     * Creates an int64 tensor of shape [batch, length] over the start of a buffer.
+     *
+     * @param buffer the backing buffer
+     * @param batch the batch size
+     * @param length the row length
+     * @return the tensor view
+     * @throws OrtException if the tensor cannot be created
+     */
+    public OnnxTensor longTensor(LongBuffer buffer, int batch, int length) throws OrtException {
+        LongBuffer view = buffer.duplicate();
+        view.clear().limit(batch * length);
+        return OnnxTensor.createTensor(environment, view.slice(), new long[]{batch, length});
+    }
+}
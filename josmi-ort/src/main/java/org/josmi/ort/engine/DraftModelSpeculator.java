@@ -0,0 +1,78 @@
+package org.josmi.ort.engine;
+
+import org.josmi.api.LlmInferenceException;
+
+import java.util.Random;
+
+/**
+ * Speculator that proposes tokens with a smaller draft model sharing the target's tokenizer.
+ * <p>
+ * The draft model runs in its own {@link NativeGenerator} and keeps a key/value
+ * cache of the committed sequence; after a verification the cache is truncated
+ * to the tokens that were kept, so only new tokens are fed on the next proposal.
+ * Proposals are sampled with the request parameters and their distributions are
+ * kept for rejection sampling. Penalties that read the token counts of the sequence
+ * and output constraints are left out of the proposals: rejection sampling against the
+ * target distribution, which has them, keeps the output exact.
+ */
+public class DraftModelSpeculator implements Speculator {
+
+    private final NativeGenerator draft;
+    private final Sampler sampler;
+    private final float[][] distributions;
+
+    /**
+     * Constructs a new DraftModelSpeculator.
+     *
+     * @param draftModel the draft decoder model
+     * @param draftConfig the GenAI model configuration of the draft model
+     * @param targetVocabSize the vocabulary size of the target model
+     * @param capacity the maximum number of tokens of a sequence
+     * @param maxTokens the maximum number of tokens proposed at once
+     */
+    public DraftModelSpeculator(DecoderModel draftModel, GenAIModelConfig draftConfig, int targetVocabSize,
+                                int capacity, int maxTokens) {
+        if (draftModel.getVocabSize() > targetVocabSize) {
+            throw new IllegalArgumentException("Draft vocabulary of " + draftModel.getVocabSize()
+                    + " tokens exceeds the target vocabulary of " + targetVocabSize);
+        }
+        this.draft = new NativeGenerator(draftModel, draftConfig, capacity);
+        this.sampler = new Sampler(draftModel.getVocabSize());
+        this.distributions = new float[maxTokens][targetVocabSize];
+    }
+
+    @Override
+    public void reset() {
+        draft.getKvCache().reset();
+    }
+
+    @Override
+    public int propose(int[] tokens, int length, int maxTokens, GenerationParameters params, Random random)
+            throws LlmInferenceException {
+        int count = Math.min(maxTokens, distributions.length);
+        if (count <= 0) {
+            return 0;
+        }
+
+        // Catch up with the tokens committed since the last proposal
+        int offset = draft.extend(tokens, draft.getKvCache().getLength(), length);
+        for (int i = 0; i < count; i++) {
+            sampler.distribution(draft.getLogits(), offset, params, null, distributions[i]);
+            tokens[length + i] = sampler.sample(distributions[i], random);
+            if (i + 1 < count) {
+                offset = draft.extend(tokens, length + i, length + i + 1);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public float[] getDistribution(int index) {
+        return distributions[index];
+    }
+
+    @Override
+    public void commit(int length) {
+        draft.getKvCache().truncate(Math.min(draft.getKvCache().getLength(), length));
+    }
+}
@@ -0,0 +1,32 @@
+package org.josmi.ort.engine;
+
+/**
+ * Reason why the generation of a sequence ended.
+ */
+public enum FinishReason {
+
+    /**
+     * The model produced an end-of-sequence token.
+     */
+    STOP("stop"),
+
+    /**
+     * The maximum number of tokens or the context length was reached.
+     */
+    LENGTH("length");
+
+    private final String value;
+
+    FinishReason(String value) {
+        this.value = value;
+    }
+
+    /**
+     * Gets the value reported in response metadata.
+     *
+     * @return the metadata value
+     */
+    public String getValue() {
+        return value;
+    }
+}
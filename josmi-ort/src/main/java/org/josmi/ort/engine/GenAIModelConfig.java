@@ -0,0 +1,120 @@
+package org.josmi.ort.engine;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.josmi.api.LlmInferenceException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Model properties read from the genai_config.json file that ships with
+ * ONNX Runtime GenAI model directories.
+ */
+public class GenAIModelConfig {
+
+    public static final String FILE_NAME = "genai_config.json";
+
+    private static final int DEFAULT_CONTEXT_LENGTH = 2048;
+
+    private final int[] eosTokenIds;
+    private final int contextLength;
+    private final int vocabSize;
+    private final int numKeyValueHeads;
+    private final int headSize;
+
+    /**
+     * Constructs a new GenAIModelConfig.
+     *
+     * @param eosTokenIds the end-of-sequence token ids
+     * @param contextLength the maximum context length of the model
+     * @param vocabSize the vocabulary size, or 0 if unknown
+     * @param numKeyValueHeads the number of key/value heads, or 0 if unknown
+     * @param headSize the attention head size, or 0 if unknown
+     */
+    public GenAIModelConfig(int[] eosTokenIds, int contextLength, int vocabSize, int numKeyValueHeads, int headSize) {
+        this.eosTokenIds = eosTokenIds;
+        this.contextLength = contextLength;
+        this.vocabSize = vocabSize;
+        this.numKeyValueHeads = numKeyValueHeads;
+        this.headSize = headSize;
+    }
+
+    /**
+     * Loads the configuration from a model directory.
+     * If the directory does not contain a genai_config.json file, defaults are returned.
+     *
+     * @param modelDirectory the model directory
+     * @return the model configuration
+     * @throws LlmInferenceException if the configuration file cannot be parsed
+     */
+    public static GenAIModelConfig load(Path modelDirectory) throws LlmInferenceException {
+        Path configFile = modelDirectory.resolve(FILE_NAME);
+        if (!Files.isRegularFile(configFile)) {
+            return new GenAIModelConfig(new int[0], DEFAULT_CONTEXT_LENGTH, 0, 0, 0);
+        }
+
+        try {
+            JsonNode model = new ObjectMapper().readTree(configFile.toFile()).path("model");
+
+            JsonNode eos = model.path("eos_token_id");
+            int[] eosTokenIds;
+            if (eos.isArray()) {
+                eosTokenIds = new int[eos.size()];
+                for (int i = 0; i < eos.size(); i++) {
+                    eosTokenIds[i] = eos.get(i).asInt();
+                }
+            } else if (eos.isNumber()) {
+                eosTokenIds = new int[]{eos.asInt()};
+            } else {
+                eosTokenIds = new int[0];
+            }
+
+            JsonNode decoder = model.path("decoder");
+            return new GenAIModelConfig(
+                    eosTokenIds,
+                    model.path("context_length").asInt(DEFAULT_CONTEXT_LENGTH),
+                    model.path("vocab_size").asInt(0),
+                    decoder.path("num_key_value_heads").asInt(0),
+                    decoder.path("head_size").asInt(0));
+        } catch (IOException e) {
+            throw new LlmInferenceException("Failed to read " + configFile, e);
+        }
+    }
+
+    public int[] getEosTokenIds() {
+        return eosTokenIds;
+    }
+
+    public int getContextLength() {
+        return contextLength;
+    }
+
+    public int getVocabSize() {
+        return vocabSize;
+    }
+
+    public int getNumKeyValueHeads() {
+        return numKeyValueHeads;
+    }
+
+    public int getHeadSize() {
+        return headSize;
+    }
+
+    /**
+     * Checks whether a token ends the sequence.
+     *
+     * @param token the token id
+     * @return true if the token is an end-of-sequence token
+     */
+    public boolean isEos(int token) {
+        for (int eos : eosTokenIds) {
+            if (eos == token) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,83 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.genai.GenAIException;
+import ai.onnxruntime.genai.Model;
+import ai.onnxruntime.genai.Sequences;
+import ai.onnxruntime.genai.Tokenizer;
+import ai.onnxruntime.genai.TokenizerStream;
+import org.josmi.api.LlmInferenceException;
+
+/**
+ * TextTokenizer backed by the tokenizer files of an ONNX Runtime GenAI model directory.
+ * <p>
+ * The GenAI Java API only creates a tokenizer from a loaded model, so this loads the model
+ * weights of the directory a second time next to the session that runs them.
+ */
+public class GenAITokenizer implements TextTokenizer {
+
+    private final Model model;
+    private final Tokenizer tokenizer;
+
+    /**
+     * Constructs a new GenAITokenizer.
+     *
+     * @param modelPath the GenAI model directory
+     * @throws LlmInferenceException if the tokenizer cannot be loaded
+     */
+    public GenAITokenizer(String modelPath) throws LlmInferenceException {
+        try {
+            this.model = new Model(modelPath);
+            this.tokenizer = new Tokenizer(model);
+        } catch (GenAIException e) {
+            throw new LlmInferenceException("Failed to load tokenizer from " + modelPath, e);
+        }
+    }
+
+    @Override
+    public int[] encode(String text) throws LlmInferenceException {
+        try (Sequences sequences = tokenizer.encode(text)) {
+            return sequences.getSequence(0);
+        } catch (GenAIException e) {
+            throw new LlmInferenceException("Failed to encode text", e);
+        }
+    }
+
+    @Override
+    public String decode(int[] tokens) throws LlmInferenceException {
+        try {
+            return tokenizer.decode(tokens);
+        } catch (GenAIException e) {
+            throw new LlmInferenceException("Failed to decode tokens", e);
+        }
+    }
+
+    @Override
+    public TokenDecoder newDecoder() throws LlmInferenceException {
+        try {
+            TokenizerStream stream = tokenizer.createStream();
+            return new TokenDecoder() {
+                @Override
+                public String decode(int token) throws LlmInferenceException {
+                    try {
+                        return stream.decode(token);
+                    } catch (GenAIException e) {
+                        throw new LlmInferenceException("Failed to decode token " + token, e);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    stream.close();
+                }
+            };
+        } catch (GenAIException e) {
+            throw new LlmInferenceException("Failed to create tokenizer stream", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        tokenizer.close();
+        model.close();
+    }
+}
@@ -0,0 +1,779 @@
+package org.josmi.ort.engine;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.josmi.api.config.LlmConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generation settings of a single request, resolved from the request parameters
+ * with the service configuration as fallback.
+ * <p>
+ * Both the {@link LlmConfig} keys (e.g. "max.tokens") and the keys set by the
+ * request builders (e.g. "max_tokens") are accepted.
+ * <p>
+ * The penalties and the logit bias are turned into the {@link LogitsProcessor} chain of the
+ * request once, when the parameters are created.
+ * <p>
+ * An output constraint, a regular expression or a JSON schema (also as an OpenAI-style
+ * "response_format"), is kept as a regular expression; the engine compiles it for its
+ * vocabulary into a {@link TokenGrammar} with {@link #withGrammar(TokenGrammar)}.
+ * <p>
+ * Stop sequences ("stop", a string or a list of strings) are compiled into
+ * {@link StopSequences} once, when the parameters are created.
+ * <p>
+ * A request may ask for n completions ("n"), generated from one prefill of the prompt. With
+ * "best_of" above n, that many are generated and the n with the highest cumulative log
+ * probability are returned.
+ * <p>
+ * The priority orders requests for the batch scheduler: higher priorities are admitted first
+ * and may preempt running sequences of lower priority.
+ */
+public class GenerationParameters {
+
+    public static final int DEFAULT_MAX_TOKENS = 1024;
+
+    /**
+     * Maximum number of alternatives reported per token.
+     */
+    public static final int MAX_TOP_LOGPROBS = 20;
+
+    private static final LogitsProcessor[] NO_PROCESSORS = new LogitsProcessor[0];
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final int maxTokens;
+    private final double temperature;
+    private final double topP;
+    private final int topK;
+    private final double repetitionPenalty;
+    private final double presencePenalty;
+    private final double frequencyPenalty;
+    private final boolean seeded;
+    private final long seed;
+    private final LogitsProcessor[] logitsProcessors;
+    private final boolean usesTokenCounts;
+    private final String constraint;
+    private final TokenGrammar grammar;
+    private final StopSequences stopSequences;
+    private final int n;
+    private final int bestOf;
+    private final int numBeams;
+    private final double lengthPenalty;
+    private final boolean earlyStopping;
+    private final boolean logprobs;
+    private final int topLogprobs;
+    private final int priority;
+
+    /**
+     * Constructs a new GenerationParameters.
+     *
+     * @param maxTokens the maximum number of tokens to generate
+     * @param temperature the sampling temperature, 0 for greedy decoding
+     * @param topP the nucleus sampling probability mass
+     * @param repetitionPenalty the repetition penalty, 1 to disable
+     */
+    public GenerationParameters(int maxTokens, double temperature, double topP, double repetitionPenalty) {
+        this(maxTokens, temperature, topP, 0, repetitionPenalty);
+    }
+
+    /**
+     * Constructs a new GenerationParameters.
+     *
+     * @param maxTokens the maximum number of tokens to generate
+     * @param temperature the sampling temperature, 0 for greedy decoding
+     * @param topP the nucleus sampling probability mass
+     * @param topK the number of most likely tokens sampled from, 0 to disable
+     * @param repetitionPenalty the repetition penalty, 1 to disable
+     */
+    public GenerationParameters(int maxTokens, double temperature, double topP, int topK, double repetitionPenalty) {
+        this(builder().maxTokens(maxTokens).temperature(temperature).topP(topP).topK(topK)
+                .repetitionPenalty(repetitionPenalty));
+    }
+
+    private GenerationParameters(Builder builder) {
+        this.maxTokens = builder.maxTokens;
+        this.temperature = builder.temperature;
+        this.topP = builder.topP;
+        this.topK = builder.topK;
+        this.repetitionPenalty = builder.repetitionPenalty;
+        this.presencePenalty = builder.presencePenalty;
+        this.frequencyPenalty = builder.frequencyPenalty;
+        this.seeded = builder.seeded;
+        this.seed = builder.seed;
+        this.constraint = builder.constraint;
+        this.grammar = null;
+        this.stopSequences = builder.stopSequences;
+        if (builder.n < 1) {
+            throw new IllegalArgumentException("n must be at least 1, got " + builder.n);
+        }
+        if (builder.bestOf != 0 && builder.bestOf < builder.n) {
+            throw new IllegalArgumentException("best_of (" + builder.bestOf + ") must not be less than n ("
+                    + builder.n + ")");
+        }
+        if (builder.numBeams < 1) {
+            throw new IllegalArgumentException("num_beams must be at least 1, got " + builder.numBeams);
+        }
+        if (builder.numBeams > 1 && builder.n > builder.numBeams) {
+            throw new IllegalArgumentException("n (" + builder.n + ") must not exceed num_beams ("
+                    + builder.numBeams + ")");
+        }
+        if (builder.numBeams > 1 && builder.bestOf > builder.n) {
+            throw new IllegalArgumentException("best_of does not apply to beam search");
+        }
+        this.n = builder.n;
+        this.bestOf = Math.max(builder.n, builder.bestOf);
+        this.numBeams = builder.numBeams;
+        this.lengthPenalty = builder.lengthPenalty;
+        this.earlyStopping = builder.earlyStopping;
+        if (builder.topLogprobs < 0 || builder.topLogprobs > MAX_TOP_LOGPROBS) {
+            throw new IllegalArgumentException("top_logprobs must be between 0 and " + MAX_TOP_LOGPROBS + ", got "
+                    + builder.topLogprobs);
+        }
+        this.logprobs = builder.logprobs || builder.topLogprobs > 0;
+        this.topLogprobs = builder.topLogprobs;
+        this.priority = builder.priority;
+
+        List<LogitsProcessor> processors = new ArrayList<>();
+        if (builder.biasedTokens != null && builder.biasedTokens.length > 0) {
+            processors.add(new LogitBiasProcessor(builder.biasedTokens, builder.biases));
+        }
+        if (repetitionPenalty != 1.0) {
+            processors.add(new RepetitionPenaltyProcessor((float) repetitionPenalty));
+        }
+        if (presencePenalty != 0.0 || frequencyPenalty != 0.0) {
+            processors.add(new PresenceFrequencyPenaltyProcessor((float) presencePenalty, (float) frequencyPenalty));
+        }
+        this.logitsProcessors = processors.isEmpty() ? NO_PROCESSORS : processors.toArray(NO_PROCESSORS);
+        boolean counts = false;
+        for (LogitsProcessor processor : logitsProcessors) {
+            counts |= processor.usesTokenCounts();
+        }
+        this.usesTokenCounts = counts;
+    }
+
+    private GenerationParameters(GenerationParameters source, TokenGrammar grammar) {
+        this.maxTokens = source.maxTokens;
+        this.temperature = source.temperature;
+        this.topP = source.topP;
+        this.topK = source.topK;
+        this.repetitionPenalty = source.repetitionPenalty;
+        this.presencePenalty = source.presencePenalty;
+        this.frequencyPenalty = source.frequencyPenalty;
+        this.seeded = source.seeded;
+        this.seed = source.seed;
+        this.logitsProcessors = source.logitsProcessors;
+        this.usesTokenCounts = source.usesTokenCounts;
+        this.constraint = grammar.getPattern();
+        this.grammar = grammar;
+        this.stopSequences = source.stopSequences;
+        this.n = source.n;
+        this.bestOf = source.bestOf;
+        this.numBeams = source.numBeams;
+        this.lengthPenalty = source.lengthPenalty;
+        this.earlyStopping = source.earlyStopping;
+        this.logprobs = source.logprobs;
+        this.topLogprobs = source.topLogprobs;
+        this.priority = source.priority;
+    }
+
+    /**
+     * Resolves the generation parameters of a request.
+     *
+     * @param parameters the request parameters, may be null
+     * @param defaults the service configuration
+     * @return the resolved parameters
+     */
+    public static GenerationParameters from(Map<String, Object> parameters, Map<String, Object> defaults) {
+        Builder builder = builder()
+                .maxTokens((int) getNumber(parameters, defaults, DEFAULT_MAX_TOKENS, LlmConfig.MAX_TOKENS, "max_tokens"))
+                .temperature(getNumber(parameters, defaults, 0.0, LlmConfig.TEMPERATURE))
+                .topP(getNumber(parameters, defaults, 1.0, LlmConfig.TOP_P, "top_p"))
+                .topK((int) getNumber(parameters, defaults, 0, LlmConfig.TOP_K, "top_k"))
+                .repetitionPenalty(getNumber(parameters, defaults, 1.0, LlmConfig.REPETITION_PENALTY,
+                        "repetition_penalty"))
+                .presencePenalty(getNumber(parameters, defaults, 0.0, LlmConfig.PRESENCE_PENALTY, "presence_penalty"))
+                .frequencyPenalty(getNumber(parameters, defaults, 0.0, LlmConfig.FREQUENCY_PENALTY,
+                        "frequency_penalty"))
+                .n((int) getNumber(parameters, defaults, 1, LlmConfig.N))
+                .bestOf((int) getNumber(parameters, defaults, 0, LlmConfig.BEST_OF, "best_of"))
+                .numBeams((int) getNumber(parameters, defaults, 1, LlmConfig.NUM_BEAMS, "num_beams"))
+                .lengthPenalty(getNumber(parameters, defaults, 1.0, LlmConfig.LENGTH_PENALTY, "length_penalty"))
+                .priority((int) getNumber(parameters, defaults, 0, LlmConfig.PRIORITY));
+        Object earlyStopping = lookup(parameters, LlmConfig.EARLY_STOPPING, "early_stopping");
+        if (earlyStopping == null) {
+            earlyStopping = lookup(defaults, LlmConfig.EARLY_STOPPING, "early_stopping");
+        }
+        if (earlyStopping != null) {
+            builder.earlyStopping(Boolean.parseBoolean(earlyStopping.toString()));
+        }
+        Object logprobs = lookup(parameters, LlmConfig.LOGPROBS);
+        if (logprobs == null) {
+            logprobs = lookup(defaults, LlmConfig.LOGPROBS);
+        }
+        if (logprobs instanceof Number) {
+            // The completions API takes the number of alternatives
+            builder.logprobs(true).topLogprobs(((Number) logprobs).intValue());
+        } else if (logprobs != null) {
+            builder.logprobs(Boolean.parseBoolean(logprobs.toString()));
+        }
+        int topLogprobs = (int) getNumber(parameters, defaults, -1, LlmConfig.TOP_LOGPROBS, "top_logprobs");
+        if (topLogprobs >= 0) {
+            builder.topLogprobs(topLogprobs);
+        }
+        Object seed = lookup(parameters, LlmConfig.SEED);
+        if (seed == null) {
+            seed = lookup(defaults, LlmConfig.SEED);
+        }
+        if (seed instanceof Number) {
+            builder.seed(((Number) seed).longValue());
+        } else if (seed != null) {
+            try {
+                builder.seed(Long.parseLong(seed.toString().trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed seed: " + seed);
+            }
+        }
+        Object logitBias = lookup(parameters, LlmConfig.LOGIT_BIAS, "logit_bias");
+        if (logitBias == null) {
+            logitBias = lookup(defaults, LlmConfig.LOGIT_BIAS, "logit_bias");
+        }
+        if (logitBias != null) {
+            builder.logitBias(logitBias);
+        }
+
+        Object stop = lookup(parameters, LlmConfig.STOP);
+        if (stop == null) {
+            stop = lookup(defaults, LlmConfig.STOP);
+        }
+        if (stop != null) {
+            builder.stop(stop);
+        }
+
+        Object regex = lookup(parameters, LlmConfig.REGEX);
+        Object jsonSchema = lookup(parameters, LlmConfig.JSON_SCHEMA, "json_schema");
+        Object responseFormat = lookup(parameters, LlmConfig.RESPONSE_FORMAT, "response_format");
+        if (regex == null && jsonSchema == null && responseFormat == null) {
+            regex = lookup(defaults, LlmConfig.REGEX);
+            jsonSchema = lookup(defaults, LlmConfig.JSON_SCHEMA, "json_schema");
+            responseFormat = lookup(defaults, LlmConfig.RESPONSE_FORMAT, "response_format");
+        }
+        if (regex != null) {
+            builder.regex(regex.toString());
+        } else if (jsonSchema != null) {
+            builder.jsonSchema(jsonSchema);
+        } else if (responseFormat != null) {
+            builder.responseFormat(responseFormat);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates a builder of generation parameters, with the defaults of greedy decoding.
+     *
+     * @return a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Looks a numeric value up in the request parameters, then in the defaults, under any of the given keys.
+     *
+     * @param parameters the request parameters, may be null
+     * @param defaults the service configuration, may be null
+     * @param defaultValue the value to return if no key is found
+     * @param keys the keys to look up
+     * @return the value
+     */
+    public static double getNumber(Map<String, Object> parameters, Map<String, Object> defaults, double defaultValue,
+                                   String... keys) {
+        Object value = lookup(parameters, keys);
+        if (value == null) {
+            value = lookup(defaults, keys);
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Looks a value up under any of the given keys.
+     *
+     * @param map the map to search, may be null
+     * @param keys the keys to look up
+     * @return the first value found, or null
+     */
+    public static Object lookup(Map<String, Object> map, String... keys) {
+        if (map == null) {
+            return null;
+        }
+        for (String key : keys) {
+            Object value = map.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    public double getTemperature() {
+        return temperature;
+    }
+
+    public double getTopP() {
+        return topP;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public double getRepetitionPenalty() {
+        return repetitionPenalty;
+    }
+
+    public double getPresencePenalty() {
+        return presencePenalty;
+    }
+
+    public double getFrequencyPenalty() {
+        return frequencyPenalty;
+    }
+
+    /**
+     * Checks whether the request sets a random seed, which makes its sampling reproducible.
+     *
+     * @return true if a seed is set
+     */
+    public boolean hasSeed() {
+        return seeded;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Gets the logits processors of the request, in the order they run.
+     *
+     * @return the logits processors, possibly none
+     */
+    public LogitsProcessor[] getLogitsProcessors() {
+        return logitsProcessors;
+    }
+
+    /**
+     * Checks whether any logits processor reads the token counts of the sequence.
+     *
+     * @return true if token counts must be kept
+     */
+    public boolean usesTokenCounts() {
+        return usesTokenCounts;
+    }
+
+    /**
+     * Gets the output constraint of the request.
+     *
+     * @return the regular expression the output must match, or null if the output is free
+     */
+    public String getConstraint() {
+        return constraint;
+    }
+
+    /**
+     * Gets the compiled output constraint.
+     *
+     * @return the grammar, or null if the output is free or the constraint is not compiled yet
+     */
+    public TokenGrammar getGrammar() {
+        return grammar;
+    }
+
+    /**
+     * Returns these parameters with the output constraint compiled for a vocabulary.
+     *
+     * @param grammar the compiled constraint
+     * @return the parameters with the grammar
+     */
+    public GenerationParameters withGrammar(TokenGrammar grammar) {
+        return new GenerationParameters(this, grammar);
+    }
+
+    /**
+     * Gets the stop sequences of the request.
+     *
+     * @return the compiled stop sequences, or null if generation only ends at an end-of-sequence token
+     */
+    public StopSequences getStopSequences() {
+        return stopSequences;
+    }
+
+    /**
+     * Gets the number of completions returned.
+     *
+     * @return the number of completions
+     */
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * Gets the number of completions generated, of which the best {@link #getN()} are returned.
+     *
+     * @return the number of sequences generated, at least n
+     */
+    public int getBestOf() {
+        return bestOf;
+    }
+
+    /**
+     * Gets the number of beams of beam search.
+     *
+     * @return the number of beams, 1 for sampling or greedy decoding
+     */
+    public int getNumBeams() {
+        return numBeams;
+    }
+
+    /**
+     * Gets the exponent of the length that beam search divides the log probability of a finished
+     * sequence by: above 0 favours longer sequences, below 0 shorter ones.
+     *
+     * @return the length penalty
+     */
+    public double getLengthPenalty() {
+        return lengthPenalty;
+    }
+
+    /**
+     * Checks whether beam search stops as soon as num_beams sequences are finished, rather than
+     * once no running beam can still score better than the finished ones.
+     *
+     * @return true for early stopping
+     */
+    public boolean isEarlyStopping() {
+        return earlyStopping;
+    }
+
+    /**
+     * Checks whether the response reports the log probabilities of the generated tokens.
+     *
+     * @return true if the request asks for log probabilities
+     */
+    public boolean isLogprobs() {
+        return logprobs;
+    }
+
+    /**
+     * Gets the number of most likely alternatives reported at every generated token.
+     *
+     * @return the number of alternatives, 0 for none
+     */
+    public int getTopLogprobs() {
+        return topLogprobs;
+    }
+
+    /**
+     * Gets the scheduling priority of the request.
+     *
+     * @return the priority, higher first, 0 by default
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Checks whether the log probabilities of the generated tokens are computed, which costs
+     * one more pass over the vocabulary per token.
+     *
+     * @return true if tokens are reported with their log probabilities
+     */
+    public boolean needsLogprobs() {
+        return bestOf > n || logprobs;
+    }
+
+    /**
+     * Checks whether the next token is always the most likely one.
+     *
+     * @return true for greedy decoding
+     */
+    public boolean isGreedy() {
+        return temperature <= 0.0;
+    }
+
+    /**
+     * Builder of generation parameters.
+     */
+    public static class Builder {
+        private int maxTokens = DEFAULT_MAX_TOKENS;
+        private double temperature;
+        private double topP = 1.0;
+        private int topK;
+        private double repetitionPenalty = 1.0;
+        private double presencePenalty;
+        private double frequencyPenalty;
+        private boolean seeded;
+        private long seed;
+        private int[] biasedTokens;
+        private float[] biases;
+        private String constraint;
+        private StopSequences stopSequences;
+        private int n = 1;
+        private int bestOf;
+        private int numBeams = 1;
+        private double lengthPenalty = 1.0;
+        private boolean earlyStopping;
+        private boolean logprobs;
+        private int topLogprobs;
+        private int priority;
+
+        public Builder maxTokens(int maxTokens) {
+            this.maxTokens = maxTokens;
+            return this;
+        }
+
+        public Builder temperature(double temperature) {
+            this.temperature = temperature;
+            return this;
+        }
+
+        public Builder topP(double topP) {
+            this.topP = topP;
+            return this;
+        }
+
+        public Builder topK(int topK) {
+            this.topK = topK;
+            return this;
+        }
+
+        public Builder repetitionPenalty(double repetitionPenalty) {
+            this.repetitionPenalty = repetitionPenalty;
+            return this;
+        }
+
+        public Builder presencePenalty(double presencePenalty) {
+            this.presencePenalty = presencePenalty;
+            return this;
+        }
+
+        public Builder frequencyPenalty(double frequencyPenalty) {
+            this.frequencyPenalty = frequencyPenalty;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seeded = true;
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Sets the biases added to the logits of tokens.
+         *
+         * @param tokens the biased tokens
+         * @param biases the bias of each token
+         * @return this builder
+         */
+        public Builder logitBias(int[] tokens, float[] biases) {
+            this.biasedTokens = tokens;
+            this.biases = biases;
+            return this;
+        }
+
+        /**
+         * Sets the biases added to the logits of tokens, from a map of token ids to biases
+         * (the OpenAI "logit_bias" format) or a string of "id:bias" pairs separated by ','.
+         *
+         * @param logitBias the biases
+         * @return this builder
+         * @throws IllegalArgumentException if an entry is malformed
+         */
+        public Builder logitBias(Object logitBias) {
+            List<String[]> entries = new ArrayList<>();
+            if (logitBias instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) logitBias).entrySet()) {
+                    entries.add(new String[]{String.valueOf(entry.getKey()), String.valueOf(entry.getValue())});
+                }
+            } else {
+                for (String pair : logitBias.toString().split(",")) {
+                    if (!pair.trim().isEmpty()) {
+                        entries.add(pair.split(":", 2));
+                    }
+                }
+            }
+            int[] tokens = new int[entries.size()];
+            float[] values = new float[entries.size()];
+            for (int i = 0; i < tokens.length; i++) {
+                String[] entry = entries.get(i);
+                try {
+                    tokens[i] = Integer.parseInt(entry[0].trim());
+                    values[i] = Float.parseFloat(entry[1].trim());
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("Malformed logit bias entry: " + String.join(":", entry));
+                }
+            }
+            return logitBias(tokens, values);
+        }
+
+        /**
+         * Constrains the output to the full matches of a regular expression.
+         *
+         * @param regex the regular expression, in the syntax of {@link CharacterAutomaton}
+         * @return this builder
+         */
+        public Builder regex(String regex) {
+            this.constraint = regex;
+            return this;
+        }
+
+        /**
+         * Constrains the output to JSON valid against a schema.
+         *
+         * @param schema the JSON schema, as JSON text or a map
+         * @return this builder
+         * @throws IllegalArgumentException if the schema is malformed or unsupported
+         */
+        public Builder jsonSchema(Object schema) {
+            this.constraint = JsonSchemaRegex.toRegex(schema);
+            return this;
+        }
+
+        /**
+         * Constrains the output with an OpenAI-style response format: {"type": "json_object"}
+         * for any JSON object, {"type": "json_schema", "json_schema": {"schema": ...}} for
+         * JSON valid against a schema, or {"type": "text"} for free text.
+         *
+         * @param responseFormat the response format, as JSON text or a map
+         * @return this builder
+         * @throws IllegalArgumentException if the format is malformed or unsupported
+         */
+        public Builder responseFormat(Object responseFormat) {
+            JsonNode format;
+            try {
+                format = responseFormat instanceof Map ? MAPPER.valueToTree(responseFormat)
+                        : MAPPER.readTree(responseFormat.toString());
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Malformed response format: " + responseFormat);
+            }
+            String type = format.path("type").asText("");
+            switch (type) {
+                case "text":
+                    this.constraint = null;
+                    return this;
+                case "json_object":
+                    this.constraint = JsonSchemaRegex.anyObject();
+                    return this;
+                case "json_schema":
+                    JsonNode schema = format.path("json_schema").path("schema");
+                    if (schema.isMissingNode()) {
+                        schema = format.path("schema");
+                    }
+                    if (schema.isMissingNode()) {
+                        throw new IllegalArgumentException("Response format json_schema has no schema");
+                    }
+                    return jsonSchema(schema);
+                default:
+                    throw new IllegalArgumentException("Unsupported response format type: " + type);
+            }
+        }
+
+        /**
+         * Sets the sequences that end generation, which are left out of the generated text.
+         *
+         * @param stop a stop sequence, or a collection or array of them
+         * @return this builder
+         */
+        public Builder stop(Object stop) {
+            this.stopSequences = StopSequences.of(stop);
+            return this;
+        }
+
+        public Builder n(int n) {
+            this.n = n;
+            return this;
+        }
+
+        /**
+         * Sets the number of completions generated, of which the n with the highest cumulative
+         * log probability are returned.
+         *
+         * @param bestOf the number of sequences generated, 0 for n
+         * @return this builder
+         */
+        public Builder bestOf(int bestOf) {
+            this.bestOf = bestOf;
+            return this;
+        }
+
+        /**
+         * Sets the number of beams: above 1, the n most likely sequences found by beam search are
+         * returned instead of sampled ones.
+         *
+         * @param numBeams the number of beams
+         * @return this builder
+         */
+        public Builder numBeams(int numBeams) {
+            this.numBeams = numBeams;
+            return this;
+        }
+
+        public Builder lengthPenalty(double lengthPenalty) {
+            this.lengthPenalty = lengthPenalty;
+            return this;
+        }
+
+        public Builder earlyStopping(boolean earlyStopping) {
+            this.earlyStopping = earlyStopping;
+            return this;
+        }
+
+        public Builder logprobs(boolean logprobs) {
+            this.logprobs = logprobs;
+            return this;
+        }
+
+        /**
+         * Sets the number of most likely alternatives reported at every generated token, which
+         * implies log probabilities.
+         *
+         * @param topLogprobs the number of alternatives, at most {@link #MAX_TOP_LOGPROBS}
+         * @return this builder
+         */
+        public Builder topLogprobs(int topLogprobs) {
+            this.topLogprobs = topLogprobs;
+            return this;
+        }
+
+        /**
+         * Sets the scheduling priority: with continuous batching, requests of higher priority are
+         * admitted first and may preempt running sequences of lower priority.
+         *
+         * @param priority the priority, higher first
+         * @return this builder
+         */
+        public Builder priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public GenerationParameters build() {
+            return new GenerationParameters(this);
+        }
+    }
+}
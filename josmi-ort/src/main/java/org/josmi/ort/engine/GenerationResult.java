@@ -0,0 +1,96 @@
+package org.josmi.ort.engine;
+
+import org.josmi.api.model.TokenLogprobs;
+
+/**
+ * Outcome of generating a single sequence with the native engine.
+ */
+public class GenerationResult {
+
+    private final String text;
+    private final int promptTokens;
+    private final int completionTokens;
+    private final FinishReason finishReason;
+    private final double cumulativeLogprob;
+    private final TokenLogprobs logprobs;
+
+    /**
+     * Constructs a new GenerationResult.
+     *
+     * @param text the generated text
+     * @param promptTokens the number of prompt tokens
+     * @param completionTokens the number of generated tokens
+     * @param finishReason the reason why generation ended
+     */
+    public GenerationResult(String text, int promptTokens, int completionTokens, FinishReason finishReason) {
+        this(text, promptTokens, completionTokens, finishReason, Double.NaN);
+    }
+
+    /**
+     * Constructs a new GenerationResult.
+     *
+     * @param text the generated text
+     * @param promptTokens the number of prompt tokens
+     * @param completionTokens the number of generated tokens
+     * @param finishReason the reason why generation ended
+     * @param cumulativeLogprob the sum of the log probabilities of the generated tokens, or NaN if not computed
+     */
+    public GenerationResult(String text, int promptTokens, int completionTokens, FinishReason finishReason,
+                            double cumulativeLogprob) {
+        this(text, promptTokens, completionTokens, finishReason, cumulativeLogprob, null);
+    }
+
+    /**
+     * Constructs a new GenerationResult.
+     *
+     * @param text the generated text
+     * @param promptTokens the number of prompt tokens
+     * @param completionTokens the number of generated tokens
+     * @param finishReason the reason why generation ended
+     * @param cumulativeLogprob the sum of the log probabilities of the generated tokens, or NaN if not computed
+     * @param logprobs the log probabilities of the generated tokens, or null if not requested
+     */
+    public GenerationResult(String text, int promptTokens, int completionTokens, FinishReason finishReason,
+                            double cumulativeLogprob, TokenLogprobs logprobs) {
+        this.text = text;
+        this.promptTokens = promptTokens;
+        this.completionTokens = completionTokens;
+        this.finishReason = finishReason;
+        this.cumulativeLogprob = cumulativeLogprob;
+        this.logprobs = logprobs;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getCompletionTokens() {
+        return completionTokens;
+    }
+
+    public FinishReason getFinishReason() {
+        return finishReason;
+    }
+
+    /**
+     * Gets the sum of the log probabilities of the generated tokens, which ranks best-of completions.
+     *
+     * @return the cumulative log probability, or NaN if it was not computed
+     */
+    public double getCumulativeLogprob() {
+        return cumulativeLogprob;
+    }
+
+    /**
+     * Gets the log probabilities of the generated tokens, if the request asked for them.
+     *
+     * @return the token log probabilities, or null
+     */
+    public TokenLogprobs getLogprobs() {
+        return logprobs;
+    }
+}
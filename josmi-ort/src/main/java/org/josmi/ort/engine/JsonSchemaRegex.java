@@ -0,0 +1,327 @@
+package org.josmi.ort.engine;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a JSON schema into a regular expression matching the JSON texts valid against it,
+ * for a {@link CharacterAutomaton}.
+ * <p>
+ * Objects list their properties in the order of the schema, required ones always and optional
+ * ones possibly, with no additional properties. Supported keywords are type (single or a list),
+ * properties, required, items, minItems, maxItems, enum, const, anyOf, oneOf, a single-schema
+ * allOf, $ref to #/$defs and #/definitions, and for strings minLength, maxLength, pattern
+ * (matched against the whole raw string) and the formats date, time, date-time and uuid.
+ * A schema without a type matches any JSON value nested up to {@value #MAX_ANY_DEPTH} levels;
+ * recursive references are followed up to {@value #MAX_REFERENCE_DEPTH} levels.
+ * <p>
+ * A single space is allowed around structural characters, so that models can format the JSON
+ * the way they were trained to without running off into unbounded whitespace.
+ */
+public final class JsonSchemaRegex {
+
+    /**
+     * Nesting depth of the objects and arrays of a value with no schema.
+     */
+    public static final int MAX_ANY_DEPTH = 3;
+
+    /**
+     * Maximum number of nested expansions of one reference.
+     */
+    public static final int MAX_REFERENCE_DEPTH = 4;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String WHITESPACE = "[ ]?";
+    private static final String STRING_CHARACTER = "(?:[^\"\\\\\\x00-\\x1F]|\\\\[\"\\\\/bfnrt]|\\\\u[0-9a-fA-F]{4})";
+    private static final String STRING = "\"" + STRING_CHARACTER + "*\"";
+    private static final String INTEGER = "-?(?:0|[1-9][0-9]*)";
+    private static final String NUMBER = INTEGER + "(?:\\.[0-9]+)?(?:[eE][+-]?[0-9]+)?";
+    private static final String BOOLEAN = "(?:true|false)";
+    private static final String NULL = "null";
+    private static final String DATE = "[0-9]{4}-(?:0[1-9]|1[0-2])-(?:0[1-9]|[12][0-9]|3[01])";
+    private static final String TIME = "(?:[01][0-9]|2[0-3]):[0-5][0-9]:[0-5][0-9](?:\\.[0-9]+)?"
+            + "(?:Z|[+-](?:[01][0-9]|2[0-3]):[0-5][0-9])?";
+    private static final String UUID = "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}";
+
+    private final JsonNode root;
+    private final Map<String, Integer> referenceDepths = new HashMap<>();
+
+    private JsonSchemaRegex(JsonNode root) {
+        this.root = root;
+    }
+
+    /**
+     * Converts a JSON schema.
+     *
+     * @param schema the schema, as JSON text, a map or a {@link JsonNode}
+     * @return the regular expression
+     * @throws IllegalArgumentException if the schema is malformed or uses unsupported features
+     */
+    public static String toRegex(Object schema) {
+        JsonNode node;
+        if (schema instanceof JsonNode) {
+            node = (JsonNode) schema;
+        } else if (schema instanceof Map) {
+            node = MAPPER.valueToTree(schema);
+        } else {
+            try {
+                node = MAPPER.readTree(schema.toString());
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Malformed JSON schema: " + e.getOriginalMessage());
+            }
+        }
+        if (!node.isObject() && !node.isBoolean()) {
+            throw new IllegalArgumentException("JSON schema must be an object");
+        }
+        return new JsonSchemaRegex(node).convert(node);
+    }
+
+    /**
+     * Gets the regular expression of any JSON object, the "json_object" response format.
+     *
+     * @return the regular expression
+     */
+    public static String anyObject() {
+        return object(MAX_ANY_DEPTH);
+    }
+
+    private String convert(JsonNode schema) {
+        if (schema.isBoolean()) {
+            if (!schema.booleanValue()) {
+                throw new IllegalArgumentException("Schema 'false' matches no value");
+            }
+            return any(MAX_ANY_DEPTH);
+        }
+        if (schema.has("$ref")) {
+            return reference(schema.get("$ref").asText());
+        }
+        if (schema.has("const")) {
+            return literal(schema.get("const"));
+        }
+        if (schema.has("enum")) {
+            List<String> values = new ArrayList<>();
+            for (JsonNode value : schema.get("enum")) {
+                values.add(literal(value));
+            }
+            return alternation(values);
+        }
+        for (String keyword : new String[]{"anyOf", "oneOf"}) {
+            if (schema.has(keyword)) {
+                List<String> alternatives = new ArrayList<>();
+                for (JsonNode alternative : schema.get(keyword)) {
+                    alternatives.add(convert(alternative));
+                }
+                return alternation(alternatives);
+            }
+        }
+        if (schema.has("allOf")) {
+            if (schema.get("allOf").size() != 1) {
+                throw new IllegalArgumentException("allOf is only supported with a single schema");
+            }
+            return convert(schema.get("allOf").get(0));
+        }
+
+        JsonNode type = schema.get("type");
+        if (type == null) {
+            if (schema.has("properties")) {
+                return object(schema);
+            }
+            if (schema.has("items")) {
+                return array(schema);
+            }
+            return any(MAX_ANY_DEPTH);
+        }
+        if (type.isArray()) {
+            List<String> alternatives = new ArrayList<>();
+            for (JsonNode single : type) {
+                alternatives.add(typed(single.asText(), schema));
+            }
+            return alternation(alternatives);
+        }
+        return typed(type.asText(), schema);
+    }
+
+    private String typed(String type, JsonNode schema) {
+        switch (type) {
+            case "object":
+                return schema.has("properties") ? object(schema) : object(MAX_ANY_DEPTH);
+            case "array":
+                return array(schema);
+            case "string":
+                return string(schema);
+            case "integer":
+                return INTEGER;
+            case "number":
+                return NUMBER;
+            case "boolean":
+                return BOOLEAN;
+            case "null":
+                return NULL;
+            default:
+                throw new IllegalArgumentException("Unsupported JSON schema type: " + type);
+        }
+    }
+
+    private String reference(String reference) {
+        String[] prefixes = {"#/$defs/", "#/definitions/"};
+        for (String prefix : prefixes) {
+            if (reference.startsWith(prefix)) {
+                JsonNode target = root.path(prefix.substring(2, prefix.length() - 1))
+                        .path(reference.substring(prefix.length()));
+                if (target.isMissingNode()) {
+                    break;
+                }
+                int depth = referenceDepths.getOrDefault(reference, 0);
+                if (depth >= MAX_REFERENCE_DEPTH) {
+                    throw new IllegalArgumentException("Reference " + reference + " nests deeper than "
+                            + MAX_REFERENCE_DEPTH + " levels");
+                }
+                referenceDepths.put(reference, depth + 1);
+                try {
+                    return convert(target);
+                } finally {
+                    referenceDepths.put(reference, depth);
+                }
+            }
+        }
+        if ("#".equals(reference)) {
+            throw new IllegalArgumentException("Recursive reference to the root schema is not supported");
+        }
+        throw new IllegalArgumentException("Unresolvable JSON schema reference: " + reference);
+    }
+
+    private String object(JsonNode schema) {
+        JsonNode properties = schema.get("properties");
+        List<String> members = new ArrayList<>();
+        List<Boolean> required = new ArrayList<>();
+        List<String> requiredNames = new ArrayList<>();
+        for (JsonNode name : schema.path("required")) {
+            requiredNames.add(name.asText());
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = properties.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            members.add(quote(MAPPER.valueToTree(field.getKey()).toString()) + WHITESPACE + ":" + WHITESPACE
+                    + convert(field.getValue()));
+            required.add(requiredNames.contains(field.getKey()));
+        }
+
+        // One alternative per member that can come first: all members before it are optional
+        List<String> alternatives = new ArrayList<>();
+        boolean anyRequired = required.contains(Boolean.TRUE);
+        for (int first = 0; first < members.size(); first++) {
+            StringBuilder alternative = new StringBuilder(members.get(first));
+            for (int next = first + 1; next < members.size(); next++) {
+                String member = "," + WHITESPACE + members.get(next);
+                alternative.append(required.get(next) ? member : "(?:" + member + ")?");
+            }
+            alternatives.add(alternative.toString());
+            if (required.get(first)) {
+                break;
+            }
+        }
+        String body = alternatives.isEmpty() ? "" : alternation(alternatives);
+        if (!anyRequired && !alternatives.isEmpty()) {
+            body = "(?:" + body + ")?";
+        }
+        return "\\{" + WHITESPACE + body + WHITESPACE + "\\}";
+    }
+
+    private String array(JsonNode schema) {
+        String item = schema.has("items") ? convert(schema.get("items")) : any(MAX_ANY_DEPTH - 1);
+        int min = schema.path("minItems").asInt(0);
+        int max = schema.has("maxItems") ? schema.get("maxItems").asInt() : -1;
+        if (max == 0) {
+            return "\\[" + WHITESPACE + "\\]";
+        }
+        String rest = "(?:," + WHITESPACE + item + ")";
+        String quantifier = "{" + Math.max(0, min - 1) + "," + (max < 0 ? "" : Integer.toString(max - 1)) + "}";
+        String items = item + rest + quantifier;
+        if (min == 0) {
+            items = "(?:" + items + ")?";
+        }
+        return "\\[" + WHITESPACE + items + WHITESPACE + "\\]";
+    }
+
+    private String string(JsonNode schema) {
+        if (schema.has("pattern")) {
+            return "\"(?:" + schema.get("pattern").asText() + ")\"";
+        }
+        String format = schema.path("format").asText("");
+        switch (format) {
+            case "date":
+                return "\"" + DATE + "\"";
+            case "time":
+                return "\"" + TIME + "\"";
+            case "date-time":
+                return "\"" + DATE + "T" + TIME + "\"";
+            case "uuid":
+                return "\"" + UUID + "\"";
+            default:
+                break;
+        }
+        int min = schema.path("minLength").asInt(0);
+        int max = schema.has("maxLength") ? schema.get("maxLength").asInt() : -1;
+        if (min == 0 && max < 0) {
+            return STRING;
+        }
+        return "\"" + STRING_CHARACTER + "{" + min + "," + (max < 0 ? "" : Integer.toString(max)) + "}\"";
+    }
+
+    /**
+     * Gets the regular expression of any JSON value, with objects and arrays nested up to a depth.
+     */
+    private static String any(int depth) {
+        List<String> alternatives = new ArrayList<>();
+        alternatives.add(STRING);
+        alternatives.add(NUMBER);
+        alternatives.add(BOOLEAN);
+        alternatives.add(NULL);
+        if (depth > 0) {
+            alternatives.add(object(depth));
+            String value = any(depth - 1);
+            alternatives.add("\\[" + WHITESPACE + "(?:" + value + "(?:," + WHITESPACE + value + ")*)?" + WHITESPACE
+                    + "\\]");
+        }
+        return alternation(alternatives);
+    }
+
+    private static String object(int depth) {
+        String member = STRING + WHITESPACE + ":" + WHITESPACE + any(depth - 1);
+        return "\\{" + WHITESPACE + "(?:" + member + "(?:," + WHITESPACE + member + ")*)?" + WHITESPACE + "\\}";
+    }
+
+    private static String literal(JsonNode value) {
+        return quote(value.toString());
+    }
+
+    private static String alternation(List<String> alternatives) {
+        return alternatives.size() == 1 ? alternatives.get(0) : "(?:" + String.join("|", alternatives) + ")";
+    }
+
+    /**
+     * Escapes the characters of a text that have a meaning in a regular expression.
+     *
+     * @param text the text
+     * @return the regular expression matching the text
+     */
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ("\\^$.|?*+()[]{}/-".indexOf(c) >= 0) {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.toString();
+    }
+}
@@ -0,0 +1,420 @@
+package org.josmi.ort.engine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Off-heap pool of fixed-size key/value cache blocks.
+ * <p>
+ * A block holds {@code blockSize} token positions of every cache tensor, laid out
+ * as [tensor, heads, blockSize, headDim] so that the positions of one head are
+ * contiguous. Sequences map their positions to blocks through a {@link BlockTable}
+ * and take blocks on demand, so memory follows the tokens actually cached rather
+ * than the maximum length of every sequence. Blocks are reference counted, which
+ * lets several tables share a block until one of them writes to it
+ * (copy-on-write).
+ * <p>
+ * Memory is allocated in segments of direct buffers up to the block budget;
+ * {@link #defragment(int)} moves used blocks to the lowest ids and drops the segments
+ * left empty. A dropped segment is only freed once the garbage collector collects its
+ * buffer, so the pool keeps spare segments rather than dropping and reallocating them
+ * between bursts of requests. The pool is not thread-safe.
+ */
+public class KvBlockPool {
+
+    /**
+     * Default number of token positions per block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Holder of block ids that must be rewritten when blocks move.
+     */
+    public interface BlockHolder {
+
+        /**
+         * Rewrites the held block ids after a defragmentation.
+         *
+         * @param mapping the new id of every old block id
+         */
+        void remap(int[] mapping);
+    }
+
+    private final int numTensors;
+    private final int numHeads;
+    private final int rowBytes;
+    private final int blockSize;
+    private final int maxBlocks;
+    private final int blockBytes;
+    private final int blocksPerSegment;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private final int[] refCounts;
+    private final List<BlockHolder> holders = new ArrayList<>();
+    private int[] freeBlocks;
+    private int freeCount;
+    private int usedBlocks;
+
+    /**
+     * Constructs a new KvBlockPool for a decoder model.
+     *
+     * @param model the decoder model
+     * @param blockSize the number of token positions per block
+     * @param maxBlocks the maximum number of blocks
+     */
+    public KvBlockPool(DecoderModel model, int blockSize, int maxBlocks) {
+        this(model.getNumKvTensors(), model.getNumKvHeads(), model.getKvRowBytes(), blockSize, maxBlocks);
+    }
+
+    /**
+     * Constructs a new KvBlockPool.
+     *
+     * @param numTensors the number of cache tensors (two per layer)
+     * @param numHeads the number of key/value heads
+     * @param rowBytes the size in bytes of one head at one position
+     * @param blockSize the number of token positions per block
+     * @param maxBlocks the maximum number of blocks
+     */
+    public KvBlockPool(int numTensors, int numHeads, int rowBytes, int blockSize, int maxBlocks) {
+        this(numTensors, numHeads, rowBytes, blockSize, maxBlocks, SEGMENT_BYTES);
+    }
+
+    KvBlockPool(int numTensors, int numHeads, int rowBytes, int blockSize, int maxBlocks, long segmentBytes) {
+        long bytes = (long) numTensors * numHeads * blockSize * rowBytes;
+        if (blockSize <= 0 || maxBlocks <= 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid block size " + blockSize + " or block count " + maxBlocks);
+        }
+        this.numTensors = numTensors;
+        this.numHeads = numHeads;
+        this.rowBytes = rowBytes;
+        this.blockSize = blockSize;
+        this.maxBlocks = maxBlocks;
+        this.blockBytes = (int) bytes;
+        this.blocksPerSegment = (int) Math.max(1, Math.min(maxBlocks, segmentBytes / blockBytes));
+        this.refCounts = new int[maxBlocks];
+        this.freeBlocks = new int[0];
+    }
+
+    /**
+     * Computes the number of blocks that fit in a memory budget.
+     *
+     * @param model the decoder model
+     * @param blockSize the number of token positions per block
+     * @param budgetBytes the memory budget in bytes
+     * @return the number of blocks, at least one
+     */
+    public static int blocksForBudget(DecoderModel model, int blockSize, long budgetBytes) {
+        long blockBytes = blockSize * model.getKvTokenBytes();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / blockBytes));
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    public int getNumTensors() {
+        return numTensors;
+    }
+
+    public int getNumHeads() {
+        return numHeads;
+    }
+
+    public int getRowBytes() {
+        return rowBytes;
+    }
+
+    public int getBlockBytes() {
+        return blockBytes;
+    }
+
+    public int getUsedBlocks() {
+        return usedBlocks;
+    }
+
+    /**
+     * Gets the number of blocks that can still be allocated, including blocks of segments not allocated yet.
+     *
+     * @return the number of available blocks
+     */
+    public int getAvailableBlocks() {
+        return maxBlocks - usedBlocks;
+    }
+
+    /**
+     * Gets the off-heap memory currently allocated by the pool.
+     *
+     * @return the allocated bytes
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (ByteBuffer segment : segments) {
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Computes the number of blocks needed for a number of token positions.
+     *
+     * @param tokens the number of token positions
+     * @return the number of blocks
+     */
+    public int blocksFor(int tokens) {
+        return (tokens + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Registers a holder whose block ids are rewritten by {@link #defragment()}.
+     *
+     * @param holder the block holder
+     */
+    public void register(BlockHolder holder) {
+        holders.add(holder);
+    }
+
+    /**
+     * Unregisters a block holder.
+     *
+     * @param holder the block holder
+     */
+    public void unregister(BlockHolder holder) {
+        holders.remove(holder);
+    }
+
+    /**
+     * Allocates a block with a reference count of one.
+     *
+     * @return the block id, or -1 if the pool is exhausted
+     */
+    public int allocate() {
+        if (freeCount == 0 && !grow()) {
+            return -1;
+        }
+        int block = freeBlocks[--freeCount];
+        refCounts[block] = 1;
+        usedBlocks++;
+        return block;
+    }
+
+    /**
+     * Adds a reference to a block, sharing it with another holder.
+     *
+     * @param block the block id
+     */
+    public void retain(int block) {
+        if (refCounts[block] <= 0) {
+            throw new IllegalStateException("Block " + block + " is not allocated");
+        }
+        refCounts[block]++;
+    }
+
+    /**
+     * Drops a reference to a block and frees it when no reference is left.
+     *
+     * @param block the block id
+     */
+    public void release(int block) {
+        if (refCounts[block] <= 0) {
+            throw new IllegalStateException("Block " + block + " is not allocated");
+        }
+        if (--refCounts[block] == 0) {
+            freeBlocks[freeCount++] = block;
+            usedBlocks--;
+        }
+    }
+
+    public int getRefCount(int block) {
+        return refCounts[block];
+    }
+
+    /**
+     * Makes a block writable by its holder: a shared block is copied to a new block and the
+     * reference to the shared one is dropped.
+     *
+     * @param block the block id
+     * @return the block to write to, or -1 if the block is shared and the pool is exhausted
+     */
+    public int copyOnWrite(int block) {
+        if (refCounts[block] == 1) {
+            return block;
+        }
+        int copy = allocate();
+        if (copy < 0) {
+            return -1;
+        }
+        ByteBuffer source = view(block);
+        view(copy).put(source);
+        release(block);
+        return copy;
+    }
+
+    /**
+     * Gets the number of allocated segments that a defragmentation would leave empty.
+     *
+     * @return the number of segments beyond those the used blocks need
+     */
+    public int getReleasableSegments() {
+        return segments.size() - (usedBlocks + blocksPerSegment - 1) / blocksPerSegment;
+    }
+
+    /**
+     * Moves the used blocks to the lowest ids, rewrites the registered holders and drops all
+     * the segments left empty.
+     *
+     * @return the number of blocks moved
+     */
+    public int defragment() {
+        return defragment(0);
+    }
+
+    /**
+     * Moves the used blocks to the lowest ids, rewrites the registered holders and drops the
+     * segments left empty, but for a number of spare ones.
+     *
+     * @param spareSegments the number of empty segments to keep for later allocations
+     * @return the number of blocks moved
+     */
+    public int defragment(int spareSegments) {
+        int capacity = segments.size() * blocksPerSegment;
+        int[] mapping = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mapping[i] = refCounts[i] > 0 ? i : -1;
+        }
+
+        // Move the highest used blocks into the lowest free ones
+        int moved = 0;
+        int low = 0;
+        int high = capacity - 1;
+        while (true) {
+            while (low < high && refCounts[low] > 0) {
+                low++;
+            }
+            while (high > low && refCounts[high] == 0) {
+                high--;
+            }
+            if (low >= high) {
+                break;
+            }
+            view(low).put(view(high));
+            refCounts[low] = refCounts[high];
+            refCounts[high] = 0;
+            mapping[high] = low;
+            moved++;
+        }
+
+        if (moved > 0) {
+            for (BlockHolder holder : holders) {
+                holder.remap(mapping);
+            }
+        }
+
+        // Drop the trailing segments that hold no used block, their memory is freed by the garbage collector
+        int keep = (usedBlocks + blocksPerSegment - 1) / blocksPerSegment + spareSegments;
+        while (segments.size() > keep) {
+            segments.remove(segments.size() - 1);
+        }
+        rebuildFreeList();
+        return moved;
+    }
+
+    /**
+     * Copies positions of one block and tensor into a buffer with a [heads, length, headDim] layout.
+     *
+     * @param block the block id
+     * @param tensor the cache tensor index
+     * @param blockPos the first position within the block
+     * @param count the number of positions
+     * @param target the target buffer
+     * @param targetOffset the byte offset in the target of the first position of head 0
+     * @param targetHeadStride the byte distance between heads in the target
+     */
+    public void copyOut(int block, int tensor, int blockPos, int count,
+                        ByteBuffer target, long targetOffset, long targetHeadStride) {
+        ByteBuffer from = segment(block).duplicate();
+        ByteBuffer to = target.duplicate();
+        int bytes = count * rowBytes;
+        for (int head = 0; head < numHeads; head++) {
+            int source = offset(block, tensor, head, blockPos);
+            from.limit(source + bytes).position(source);
+            int destination = (int) (targetOffset + head * targetHeadStride);
+            to.limit(destination + bytes).position(destination);
+            to.put(from);
+        }
+    }
+
+    /**
+     * Copies positions of every head from a buffer with a [heads, length, headDim] layout into one block and tensor.
+     *
+     * @param source the source buffer
+     * @param sourceOffset the byte offset in the source of the first position of head 0
+     * @param sourceHeadStride the byte distance between heads in the source
+     * @param block the block id, which must not be shared
+     * @param tensor the cache tensor index
+     * @param blockPos the first position within the block
+     * @param count the number of positions
+     */
+    public void copyIn(ByteBuffer source, long sourceOffset, long sourceHeadStride,
+                       int block, int tensor, int blockPos, int count) {
+        ByteBuffer from = source.duplicate();
+        ByteBuffer to = segment(block).duplicate();
+        int bytes = count * rowBytes;
+        for (int head = 0; head < numHeads; head++) {
+            int position = (int) (sourceOffset + head * sourceHeadStride);
+            from.limit(position + bytes).position(position);
+            int destination = offset(block, tensor, head, blockPos);
+            to.limit(destination + bytes).position(destination);
+            to.put(from);
+        }
+    }
+
+    private boolean grow() {
+        int capacity = segments.size() * blocksPerSegment;
+        if (capacity >= maxBlocks) {
+            return false;
+        }
+        int blocks = Math.min(blocksPerSegment, maxBlocks - capacity);
+        segments.add(DecoderModel.allocate((long) blocks * blockBytes));
+        rebuildFreeList();
+        return true;
+    }
+
+    /**
+     * Lists the free blocks of the allocated segments so that the lowest ids are allocated first.
+     */
+    private void rebuildFreeList() {
+        int capacity = Math.min(maxBlocks, segments.size() * blocksPerSegment);
+        if (freeBlocks.length < capacity) {
+            freeBlocks = Arrays.copyOf(freeBlocks, capacity);
+        }
+        freeCount = 0;
+        for (int block = capacity - 1; block >= 0; block--) {
+            if (refCounts[block] == 0) {
+                freeBlocks[freeCount++] = block;
+            }
+        }
+    }
+
+    private ByteBuffer segment(int block) {
+        return segments.get(block / blocksPerSegment);
+    }
+
+    private ByteBuffer view(int block) {
+        ByteBuffer view = segment(block).duplicate();
+        int start = (block % blocksPerSegment) * blockBytes;
+        view.limit(start + blockBytes).position(start);
+        return view;
+    }
+
+    private int offset(int block, int tensor, int head, int blockPos) {
+        return (block % blocksPerSegment) * blockBytes
+                + ((tensor * numHeads + head) * blockSize + blockPos) * rowBytes;
+    }
+}
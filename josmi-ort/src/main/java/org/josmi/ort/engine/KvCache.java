@@ -0,0 +1,233 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Key/value cache of a single sequence.
+ * <p>
+ * Decoder models read the past cache and write a present cache that is one step
+ * longer, so the cache keeps two direct buffers per tensor and swaps them after
+ * every forward pass. The present buffers are bound as pinned outputs, which
+ * makes ONNX Runtime write into them instead of allocating new tensors. Buffers
+ * start small and grow geometrically up to the capacity, so a cache only holds
+ * memory for the positions its sequences actually reached.
+ */
+public class KvCache {
+
+    /**
+     * Number of token positions the buffers are first allocated for.
+     */
+    private static final int INITIAL_TOKENS = 256;
+
+    private final DecoderModel model;
+    private final int capacity;
+    private ByteBuffer[] past;
+    private ByteBuffer[] present;
+    private int length;
+
+    /**
+     * Constructs a new KvCache.
+     *
+     * @param model the decoder model
+     * @param capacity the maximum number of token positions
+     */
+    public KvCache(DecoderModel model, int capacity) {
+        this.model = model;
+        this.capacity = capacity;
+        this.past = new ByteBuffer[model.getNumKvTensors()];
+        this.present = new ByteBuffer[model.getNumKvTensors()];
+        long bytes = Math.min(capacity, INITIAL_TOKENS) * model.getKvTokenBytes();
+        for (int i = 0; i < past.length; i++) {
+            past[i] = DecoderModel.allocate(bytes);
+            present[i] = DecoderModel.allocate(bytes);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the buffer holding the cached positions of a cache tensor, laid out as [1, heads, length, headDim].
+     *
+     * @param index the cache tensor index
+     * @return the buffer
+     */
+    public ByteBuffer getBuffer(int index) {
+        return past[index];
+    }
+
+    /**
+     * Binds the past buffers as inputs and the present buffers as pinned outputs
+     * for a forward pass over the given number of new tokens.
+     *
+     * @param inputs the input map to fill
+     * @param outputs the pinned output map to fill
+     * @param newTokens the number of tokens fed in this pass
+     * @param created receives the created tensor views, which the caller must close
+     * @throws OrtException if a tensor view cannot be created
+     */
+    public void bind(Map<String, OnnxTensor> inputs, Map<String, OnnxTensor> outputs, int newTokens,
+                     List<OnnxTensor> created) throws OrtException {
+        if (length + newTokens > capacity) {
+            throw new IllegalStateException("Key/value cache capacity exceeded: " + (length + newTokens) + " > " + capacity);
+        }
+        ensureCapacity(present, length + newTokens);
+        for (int i = 0; i < past.length; i++) {
+            OnnxTensor in = model.kvTensor(past[i], 1, length);
+            created.add(in);
+            inputs.put(model.getPastName(i), in);
+            OnnxTensor out = model.kvTensor(present[i], 1, length + newTokens);
+            created.add(out);
+            outputs.put(model.getPresentName(i), out);
+        }
+    }
+
+    /**
+     * Commits a forward pass: the present buffers become the past.
+     *
+     * @param newTokens the number of tokens fed in the pass
+     */
+    public void advance(int newTokens) {
+        ByteBuffer[] swap = past;
+        past = present;
+        present = swap;
+        length += newTokens;
+    }
+
+    /**
+     * Empties the cache so it can be reused for another sequence.
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * Drops the positions from a given length on, such as rejected speculative tokens.
+     *
+     * @param newLength the number of positions to keep
+     */
+    public void truncate(int newLength) {
+        if (newLength >= length) {
+            return;
+        }
+        // Heads are laid out with a stride of the cache length, so the kept rows are compacted
+        // into the spare buffers, which then become the past
+        ensureCapacity(present, newLength);
+        int heads = model.getNumKvHeads();
+        int rowBytes = model.getKvRowBytes();
+        for (int i = 0; i < past.length; i++) {
+            ByteBuffer from = past[i].duplicate();
+            ByteBuffer to = present[i].duplicate();
+            for (int head = 0; head < heads; head++) {
+                int source = head * length * rowBytes;
+                from.limit(source + newLength * rowBytes).position(source);
+                to.limit(to.capacity()).position(head * newLength * rowBytes);
+                to.put(from);
+            }
+        }
+        ByteBuffer[] swap = past;
+        past = present;
+        present = swap;
+        length = newLength;
+    }
+
+    /**
+     * Drops a range of positions, moving the later ones down to close the gap. Cached keys carry
+     * the rotation of their position, so with a rotary embedding the moved keys are rotated to
+     * their new positions; the values are position independent.
+     *
+     * @param from the first position to drop
+     * @param count the number of positions to drop
+     * @param rotary the rotary embedding of the model, or null to move keys unchanged
+     */
+    public void evict(int from, int count, RotaryEmbedding rotary) {
+        if (from < 0 || count < 0 || from + count > length) {
+            throw new IllegalArgumentException("Cannot evict positions [" + from + ", " + (from + count)
+                    + ") of a cache of " + length + " positions");
+        }
+        if (count == 0) {
+            return;
+        }
+        int newLength = length - count;
+        ensureCapacity(present, newLength);
+        int heads = model.getNumKvHeads();
+        int rowBytes = model.getKvRowBytes();
+        for (int i = 0; i < past.length; i++) {
+            ByteBuffer kept = past[i].duplicate();
+            ByteBuffer to = present[i].duplicate();
+            to.clear();
+            for (int head = 0; head < heads; head++) {
+                int start = head * length * rowBytes;
+                kept.limit(start + from * rowBytes).position(start);
+                to.put(kept);
+                kept.limit(start + length * rowBytes).position(start + (from + count) * rowBytes);
+                to.put(kept);
+            }
+            // Keys and values alternate, keys first
+            if (rotary != null && i % 2 == 0) {
+                rotary.shift(present[i], model.getKvType(), heads, newLength, model.getHeadDim(), from, newLength,
+                        -count);
+            }
+        }
+        ByteBuffer[] swap = past;
+        past = present;
+        present = swap;
+        length = newLength;
+    }
+
+    /**
+     * Writes cached positions to a block table; the positions must have been reserved in the table.
+     *
+     * @param table the block table
+     * @param from the first position to write
+     * @param count the number of positions
+     */
+    public void copyTo(BlockTable table, int from, int count) {
+        int rowBytes = model.getKvRowBytes();
+        for (int i = 0; i < past.length; i++) {
+            table.write(i, past[i], (long) from * rowBytes, (long) length * rowBytes, from, count);
+        }
+    }
+
+    /**
+     * Replaces the cache content with the first positions of a block table.
+     *
+     * @param table the block table
+     * @param count the number of positions to load
+     */
+    public void copyFrom(BlockTable table, int count) {
+        if (count > capacity) {
+            throw new IllegalStateException("Key/value cache capacity exceeded: " + count + " > " + capacity);
+        }
+        ensureCapacity(past, count);
+        int rowBytes = model.getKvRowBytes();
+        for (int i = 0; i < past.length; i++) {
+            table.read(i, 0, count, past[i], 0, (long) count * rowBytes);
+        }
+        length = count;
+    }
+
+    /**
+     * Grows buffers that cannot hold the given number of positions; their content is not kept.
+     */
+    private void ensureCapacity(ByteBuffer[] buffers, int tokens) {
+        long required = tokens * model.getKvTokenBytes();
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i].capacity() < required) {
+                long grown = Math.min((long) capacity, Math.max(tokens, 2L * buffers[i].capacity()
+                        / model.getKvTokenBytes())) * model.getKvTokenBytes();
+                buffers[i] = DecoderModel.allocate(grown);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.josmi.ort.engine;
+
+import org.josmi.api.LlmInferenceException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Host memory holding the key/value cache of preempted sequences.
+ * <p>
+ * A sequence swapped out of a {@link KvBlockPool} keeps only its cached positions, laid out as
+ * [tensor, heads, length, headDim] in one buffer, rather than whole blocks. Swapping it back in
+ * writes them to newly reserved blocks, so the sequence resumes where it stopped without
+ * recomputing its prompt or generated tokens.
+ * <p>
+ * Without a directory, swapped caches are heap buffers. With one, each is a temporary file
+ * mapped into memory, which the operating system writes out to disk under memory pressure. The
+ * file is unlinked as soon as it is mapped, but its disk space is held until the mapping is
+ * garbage-collected. The swapped bytes are bounded by a budget. The space is not thread-safe.
+ */
+public class KvSwapSpace {
+
+    /**
+     * Cached positions of one swapped sequence.
+     */
+    public static final class Entry {
+        private final ByteBuffer buffer;
+        private final int length;
+
+        private Entry(ByteBuffer buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        /**
+         * Gets the number of swapped positions.
+         *
+         * @return the number of cached positions of the sequence
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Gets the size of the swapped positions.
+         *
+         * @return the number of bytes held by the entry
+         */
+        public long getBytes() {
+            return buffer.capacity();
+        }
+    }
+
+    private final long maxBytes;
+    private final Path directory;
+    private long usedBytes;
+
+    /**
+     * Constructs a new KvSwapSpace.
+     *
+     * @param maxBytes the maximum number of bytes swapped at a time
+     * @param directory the directory of the memory-mapped swap files, or null for heap buffers
+     */
+    public KvSwapSpace(long maxBytes, Path directory) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the budget of the swap space.
+     *
+     * @return the maximum number of bytes swapped at a time
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the bytes held by the swapped sequences.
+     *
+     * @return the number of bytes swapped out and not released yet
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Gets the directory of the memory-mapped swap files.
+     *
+     * @return the directory, or null if swapped caches are heap buffers
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Copies the cached positions of a block table out of its pool. The table is left unchanged;
+     * the caller frees it to release its blocks.
+     *
+     * @param table the block table
+     * @return the swapped positions, or null if they do not fit in the budget
+     * @throws LlmInferenceException if the swap file cannot be created
+     */
+    public Entry swapOut(BlockTable table) throws LlmInferenceException {
+        KvBlockPool pool = table.getPool();
+        int length = table.getLength();
+        long headStride = (long) length * pool.getRowBytes();
+        long tensorStride = pool.getNumHeads() * headStride;
+        long bytes = pool.getNumTensors() * tensorStride;
+        if (bytes > Integer.MAX_VALUE || usedBytes + bytes > maxBytes) {
+            return null;
+        }
+
+        ByteBuffer buffer = allocate((int) bytes);
+        for (int tensor = 0; tensor < pool.getNumTensors(); tensor++) {
+            table.read(tensor, 0, length, buffer, tensor * tensorStride, headStride);
+        }
+        usedBytes += bytes;
+        return new Entry(buffer, length);
+    }
+
+    /**
+     * Writes swapped positions back to a block table and releases them. The positions must have
+     * been reserved in the table.
+     *
+     * @param entry the swapped positions
+     * @param table the block table
+     */
+    public void swapIn(Entry entry, BlockTable table) {
+        KvBlockPool pool = table.getPool();
+        long headStride = (long) entry.length * pool.getRowBytes();
+        long tensorStride = pool.getNumHeads() * headStride;
+        for (int tensor = 0; tensor < pool.getNumTensors(); tensor++) {
+            table.write(tensor, entry.buffer, tensor * tensorStride, headStride, 0, entry.length);
+        }
+        table.setLength(entry.length);
+        release(entry);
+    }
+
+    /**
+     * Releases swapped positions that are no longer needed, such as those of a failed sequence.
+     *
+     * @param entry the swapped positions
+     */
+    public void release(Entry entry) {
+        usedBytes -= entry.getBytes();
+    }
+
+    private ByteBuffer allocate(int bytes) throws LlmInferenceException {
+        if (directory == null) {
+            return ByteBuffer.allocate(bytes);
+        }
+        try {
+            Files.createDirectories(directory);
+            Path file = Files.createTempFile(directory, "josmi-kv-", ".swap");
+            // The file is unlinked when the channel closes right after mapping it; the mapping
+            // stays valid and keeps the disk space until the buffer is garbage-collected
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+        } catch (IOException e) {
+            throw new LlmInferenceException("Cannot create a key/value swap file in " + directory, e);
+        }
+    }
+}
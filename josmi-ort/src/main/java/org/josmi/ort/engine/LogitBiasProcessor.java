@@ -0,0 +1,39 @@
+package org.josmi.ort.engine;
+
+/**
+ * Adds a fixed bias to the scores of given tokens, e.g. -100 to ban a token or a large
+ * positive bias to force one.
+ */
+public class LogitBiasProcessor implements LogitsProcessor {
+
+    private final int[] tokens;
+    private final float[] biases;
+
+    /**
+     * Constructs a new LogitBiasProcessor.
+     *
+     * @param tokens the biased tokens
+     * @param biases the bias of each token
+     */
+    public LogitBiasProcessor(int[] tokens, float[] biases) {
+        if (tokens.length != biases.length) {
+            throw new IllegalArgumentException(tokens.length + " biased tokens but " + biases.length + " biases");
+        }
+        this.tokens = tokens.clone();
+        this.biases = biases.clone();
+    }
+
+    @Override
+    public void process(float[] scores, TokenCounts counts) {
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i] >= 0 && tokens[i] < scores.length) {
+                scores[tokens[i]] += biases[i];
+            }
+        }
+    }
+
+    @Override
+    public boolean usesTokenCounts() {
+        return false;
+    }
+}
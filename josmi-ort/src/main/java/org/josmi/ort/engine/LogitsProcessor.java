@@ -0,0 +1,29 @@
+package org.josmi.ort.engine;
+
+/**
+ * Adjusts the scores of a row of logits before a token is selected from them.
+ * <p>
+ * Processors are set up once per request from its {@link GenerationParameters} and run in
+ * order on every step. They keep no state of their own: what they need to know about the
+ * sequence is in its {@link TokenCounts}, so one processor serves any number of sequences.
+ * They work in place on primitive arrays and must not allocate.
+ */
+public interface LogitsProcessor {
+
+    /**
+     * Adjusts the scores of a step.
+     *
+     * @param scores the scores of the vocabulary, adjusted in place
+     * @param counts the token counts of the sequence, or null if the request needs none
+     */
+    void process(float[] scores, TokenCounts counts);
+
+    /**
+     * Checks whether the processor reads the token counts of the sequence.
+     *
+     * @return true if the processor needs token counts
+     */
+    default boolean usesTokenCounts() {
+        return true;
+    }
+}
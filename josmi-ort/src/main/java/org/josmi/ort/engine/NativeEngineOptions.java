@@ -0,0 +1,225 @@
+package org.josmi.ort.engine;
+
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+/**
+ * Settings of a {@link NativeGenerationEngine}.
+ */
+public class NativeEngineOptions {
+
+    public static final int DEFAULT_SPECULATIVE_TOKENS = 4;
+
+    private final int contextLength;
+    private final int maxBatchSize;
+    private final long kvCacheBytes;
+    private final int blockSize;
+    private final boolean prefixCaching;
+    private final int prefillChunk;
+    private final long kvSwapBytes;
+    private final Path kvSwapDirectory;
+    private final Supplier<Speculator> speculatorFactory;
+    private final int speculativeTokens;
+    private final AttentionSinkWindow attentionSinkWindow;
+
+    private NativeEngineOptions(Builder builder) {
+        this.contextLength = builder.contextLength;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.kvCacheBytes = builder.kvCacheBytes;
+        this.blockSize = builder.blockSize;
+        this.prefixCaching = builder.prefixCaching;
+        this.prefillChunk = builder.prefillChunk;
+        this.kvSwapBytes = builder.kvSwapBytes;
+        this.kvSwapDirectory = builder.kvSwapDirectory;
+        this.speculatorFactory = builder.speculatorFactory;
+        this.speculativeTokens = builder.speculativeTokens;
+        this.attentionSinkWindow = builder.attentionSinkWindow;
+    }
+
+    public int getContextLength() {
+        return contextLength;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getKvCacheBytes() {
+        return kvCacheBytes;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public boolean isPrefixCaching() {
+        return prefixCaching;
+    }
+
+    public int getPrefillChunk() {
+        return prefillChunk;
+    }
+
+    public long getKvSwapBytes() {
+        return kvSwapBytes;
+    }
+
+    public Path getKvSwapDirectory() {
+        return kvSwapDirectory;
+    }
+
+    public Supplier<Speculator> getSpeculatorFactory() {
+        return speculatorFactory;
+    }
+
+    public int getSpeculativeTokens() {
+        return speculativeTokens;
+    }
+
+    public AttentionSinkWindow getAttentionSinkWindow() {
+        return attentionSinkWindow;
+    }
+
+    /**
+     * Creates a new Builder.
+     *
+     * @return a new Builder instance
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder for NativeEngineOptions.
+     */
+    public static class Builder {
+        private int contextLength;
+        private int maxBatchSize = 1;
+        private long kvCacheBytes;
+        private int blockSize = KvBlockPool.DEFAULT_BLOCK_SIZE;
+        private boolean prefixCaching = true;
+        private int prefillChunk = NativeGenerator.DEFAULT_PREFILL_CHUNK;
+        private long kvSwapBytes;
+        private Path kvSwapDirectory;
+        private Supplier<Speculator> speculatorFactory;
+        private int speculativeTokens = DEFAULT_SPECULATIVE_TOKENS;
+        private AttentionSinkWindow attentionSinkWindow;
+
+        /**
+         * Sets the maximum number of tokens (prompt plus generated) of a sequence.
+         *
+         * @param contextLength the context length, 0 for the model's
+         * @return this Builder instance for method chaining
+         */
+        public Builder contextLength(int contextLength) {
+            this.contextLength = contextLength;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of sequences decoded together.
+         *
+         * @param maxBatchSize the maximum batch size, 1 to disable batching
+         * @return this Builder instance for method chaining
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets the memory budget of the key/value cache blocks of batched sequences.
+         *
+         * @param kvCacheBytes the budget in bytes, 0 for a full context per batch slot
+         * @return this Builder instance for method chaining
+         */
+        public Builder kvCacheBytes(long kvCacheBytes) {
+            this.kvCacheBytes = kvCacheBytes;
+            return this;
+        }
+
+        /**
+         * Sets the number of token positions per key/value cache block.
+         *
+         * @param blockSize the block size in tokens
+         * @return this Builder instance for method chaining
+         */
+        public Builder blockSize(int blockSize) {
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Sets whether batched sequences reuse the cached blocks of shared prompt prefixes.
+         *
+         * @param prefixCaching true to enable prefix caching
+         * @return this Builder instance for method chaining
+         */
+        public Builder prefixCaching(boolean prefixCaching) {
+            this.prefixCaching = prefixCaching;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of prompt tokens prefilled between two decode steps of the
+         * batched sequences. Smaller chunks keep token streaming smooth while long prompts arrive,
+         * larger ones prefill faster.
+         *
+         * @param prefillChunk the chunk size in tokens
+         * @return this Builder instance for method chaining
+         */
+        public Builder prefillChunk(int prefillChunk) {
+            this.prefillChunk = prefillChunk;
+            return this;
+        }
+
+        /**
+         * Enables preemption of batched sequences: the key/value cache of a preempted sequence is
+         * swapped out to host memory until it resumes.
+         *
+         * @param kvSwapBytes the memory budget of swapped caches in bytes, 0 to disable preemption
+         * @param kvSwapDirectory the directory of memory-mapped swap files, or null for heap memory
+         * @return this Builder instance for method chaining
+         */
+        public Builder kvSwap(long kvSwapBytes, Path kvSwapDirectory) {
+            this.kvSwapBytes = kvSwapBytes;
+            this.kvSwapDirectory = kvSwapDirectory;
+            return this;
+        }
+
+        /**
+         * Enables speculative decoding, which generates every sequence on its own generator.
+         *
+         * @param speculatorFactory creates the speculator of each generator
+         * @param speculativeTokens the maximum number of tokens proposed per forward pass
+         * @return this Builder instance for method chaining
+         */
+        public Builder speculation(Supplier<Speculator> speculatorFactory, int speculativeTokens) {
+            this.speculatorFactory = speculatorFactory;
+            this.speculativeTokens = speculativeTokens;
+            return this;
+        }
+
+        /**
+         * Bounds the key/value cache of every sequence to attention sinks and a sliding window of
+         * recent tokens, so sequences can run past the context length at constant memory. Each
+         * sequence is then generated on its own generator, without speculation.
+         *
+         * @param attentionSinkWindow the cache eviction policy, or null for caches of the full context
+         * @return this Builder instance for method chaining
+         */
+        public Builder attentionSinkWindow(AttentionSinkWindow attentionSinkWindow) {
+            this.attentionSinkWindow = attentionSinkWindow;
+            return this;
+        }
+
+        /**
+         * Builds a new NativeEngineOptions instance.
+         *
+         * @return a new NativeEngineOptions instance
+         */
+        public NativeEngineOptions build() {
+            return new NativeEngineOptions(this);
+        }
+    }
+}
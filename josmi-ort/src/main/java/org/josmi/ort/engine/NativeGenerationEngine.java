@@ -0,0 +1,484 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OrtSession;
+import org.josmi.api.LlmInferenceException;
+import org.josmi.api.model.TokenLogprobs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
+
+/**
+ * Text generation on top of {@link NativeGenerator}.
+ * <p>
+ * With a maximum batch size above one (and a model that takes position_ids),
+ * concurrent requests are decoded together by a {@link ContinuousBatchScheduler}.
+ * Otherwise generators, and the buffers they preallocate, are pooled and reused
+ * across requests; concurrent requests each borrow their own generator. Speculative
+ * decoding, which lowers the latency of a single stream, uses pooled generators, as do
+ * requests with their own run options (LoRA adapters).
+ * <p>
+ * Output constraints are compiled into {@link TokenGrammar}s for the vocabulary, which is
+ * decoded once, on the first constrained request. The most recently used grammars are kept,
+ * with the token masks of the states reached so far, so requests with the same schema reuse
+ * them.
+ * <p>
+ * Stop sequences are matched as each token is decoded, so generation ends on the token that
+ * completes one rather than running on to the end-of-sequence token; the stop sequence and
+ * anything decoded after it in the same token are left out of the text.
+ * <p>
+ * The n completions of a request (or best_of, of which the n with the highest cumulative log
+ * probability are kept) share one prefill of the prompt: they are forked into the running batch
+ * together, or generated one after the other on a pooled generator.
+ * <p>
+ * Log probabilities are reported per generated token in a {@link TokenLogprobs}. The text of
+ * the alternatives (top_logprobs) is taken from the decoded vocabulary, which is decoded on the
+ * first request that asks for them.
+ * <p>
+ * Requests with num_beams above one are decoded by a pooled {@link BeamSearchGenerator}, which
+ * runs the beams of the request as a batch of its own, outside of the shared running batch.
+ * <p>
+ * With an {@link AttentionSinkWindow}, every request is generated on a pooled generator whose
+ * cache keeps attention sinks and a window of recent tokens, so conversations can run on past
+ * the context length at constant memory and step cost. Beam search keeps its full cache, on the
+ * part of the prompt the window keeps.
+ */
+public class NativeGenerationEngine implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NativeGenerationEngine.class);
+
+    /**
+     * Number of compiled output constraints kept.
+     */
+    public static final int MAX_CACHED_GRAMMARS = 32;
+
+    /**
+     * Interval at which a request waiting for the scheduler checks that the scheduler thread still runs.
+     */
+    private static final long SCHEDULER_CHECK_MS = 1000;
+
+    private final DecoderModel model;
+    private final GenAIModelConfig modelConfig;
+    private final TextTokenizer tokenizer;
+    private final NativeEngineOptions options;
+    private final int contextLength;
+    private final Deque<NativeGenerator> idleGenerators = new ConcurrentLinkedDeque<>();
+    private final Deque<BeamSearchGenerator> idleBeamSearchers = new ConcurrentLinkedDeque<>();
+    private final ContinuousBatchScheduler scheduler;
+    private final AttentionSinkWindow window;
+    private final long kvCacheBytes;
+    // In access order, least recently used first
+    private final Map<String, TokenGrammar> grammars = new LinkedHashMap<String, TokenGrammar>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenGrammar> eldest) {
+            return size() > MAX_CACHED_GRAMMARS;
+        }
+    };
+    private TokenVocabulary vocabulary;
+
+    /**
+     * Constructs a new NativeGenerationEngine.
+     *
+     * @param model the decoder model
+     * @param modelConfig the GenAI model configuration
+     * @param tokenizer the tokenizer, owned and closed by the engine
+     * @param options the engine settings
+     */
+    public NativeGenerationEngine(DecoderModel model, GenAIModelConfig modelConfig, TextTokenizer tokenizer,
+                                  NativeEngineOptions options) {
+        this.model = model;
+        this.modelConfig = modelConfig;
+        this.tokenizer = tokenizer;
+        this.options = options;
+        this.contextLength = options.getContextLength() > 0 ? options.getContextLength()
+                : modelConfig.getContextLength();
+
+        AttentionSinkWindow window = options.getAttentionSinkWindow();
+        if (window != null && window.getRotary() != null && !RotaryEmbedding.supports(model.getKvType())) {
+            logger.warn("Cannot move cached keys of type {}, the attention sink window is disabled", model.getKvType());
+            window = null;
+        } else if (window != null && window.getCapacity() > contextLength) {
+            logger.warn("Attention sink window of {} tokens exceeds the context length, reduced to {}",
+                    window.getCapacity(), contextLength);
+            window = new AttentionSinkWindow(window.getSinkTokens(), contextLength - window.getSinkTokens(),
+                    window.getRotary());
+        }
+        this.window = window;
+
+        int maxBatchSize = options.getMaxBatchSize();
+        if (maxBatchSize > 1 && window != null) {
+            logger.info("Attention sink windows generate each sequence on its own, continuous batching is disabled");
+            maxBatchSize = 1;
+        } else if (maxBatchSize > 1 && !model.hasPositionIds()) {
+            logger.warn("Model does not take position_ids, continuous batching is disabled");
+            maxBatchSize = 1;
+        } else if (maxBatchSize > 1 && options.getSpeculatorFactory() != null) {
+            logger.info("Speculative decoding generates each sequence on its own, continuous batching is disabled");
+            maxBatchSize = 1;
+        }
+        if (maxBatchSize > 1) {
+            long kvCacheBytes = options.getKvCacheBytes() > 0 ? options.getKvCacheBytes()
+                    : (long) maxBatchSize * contextLength * model.getKvTokenBytes();
+            int blockSize = options.getBlockSize();
+            KvBlockPool blockPool = new KvBlockPool(model, blockSize,
+                    KvBlockPool.blocksForBudget(model, blockSize, kvCacheBytes));
+            KvSwapSpace swapSpace = options.getKvSwapBytes() > 0
+                    ? new KvSwapSpace(options.getKvSwapBytes(), options.getKvSwapDirectory()) : null;
+            this.scheduler = new ContinuousBatchScheduler(model, modelConfig, maxBatchSize, contextLength,
+                    blockPool, options.isPrefixCaching(), options.getPrefillChunk(), swapSpace);
+            this.kvCacheBytes = (long) blockPool.getMaxBlocks() * blockPool.getBlockBytes();
+        } else {
+            this.scheduler = null;
+            this.kvCacheBytes = (long) (window != null ? window.getCapacity() : contextLength)
+                    * model.getKvTokenBytes();
+        }
+        logger.info("Native engine ready: {} layers, {} kv heads, head dim {}, vocab {}, context {}, max batch {}",
+                model.getNumLayers(), model.getNumKvHeads(), model.getHeadDim(), model.getVocabSize(), contextLength,
+                maxBatchSize);
+    }
+
+    public DecoderModel getModel() {
+        return model;
+    }
+
+    /**
+     * Gets the off-heap memory the engine may take for the KV cache: the block pool budget with
+     * continuous batching, otherwise the cache of one sequence of the full context length, or of
+     * the attention sink window.
+     *
+     * @return the KV cache memory in bytes
+     */
+    public long getKvCacheBytes() {
+        return kvCacheBytes;
+    }
+
+    /**
+     * Generates a continuation of a prompt.
+     *
+     * @param prompt the prompt text
+     * @param params the generation parameters
+     * @return the generation result
+     * @throws LlmInferenceException if generation fails
+     */
+    public GenerationResult generate(String prompt, GenerationParameters params) throws LlmInferenceException {
+        return generate(prompt, params, null);
+    }
+
+    /**
+     * Generates a continuation of a prompt with the given run options, e.g. with a LoRA adapter
+     * activated. As the options of a forward pass apply to every sequence in it, a request with
+     * its own run options is generated on a pooled generator rather than in the shared batch.
+     *
+     * @param prompt the prompt text
+     * @param params the generation parameters
+     * @param runOptions the run options of the request, or null for the model's own
+     * @return the generation result, the best one if the request asks for several completions
+     * @throws LlmInferenceException if generation fails
+     */
+    public GenerationResult generate(String prompt, GenerationParameters params, OrtSession.RunOptions runOptions)
+            throws LlmInferenceException {
+        return generateChoices(prompt, params, runOptions).get(0);
+    }
+
+    /**
+     * Generates the completions a request asks for (see {@link GenerationParameters#getN()}).
+     *
+     * @param prompt the prompt text
+     * @param params the generation parameters
+     * @param runOptions the run options of the request, or null for the model's own
+     * @return n generation results, with the highest cumulative log probability first if best_of exceeds n,
+     *         or the most likely first with beam search
+     * @throws LlmInferenceException if generation fails
+     */
+    public List<GenerationResult> generateChoices(String prompt, GenerationParameters params,
+                                                  OrtSession.RunOptions runOptions) throws LlmInferenceException {
+        params = compileConstraint(params);
+        int[] promptTokens = tokenizer.encode(prompt);
+        TextCollector[] collectors = new TextCollector[params.getBestOf()];
+        IntFunction<String> topTokenTexts = params.getTopLogprobs() > 0 ? topTokenTexts() : null;
+        try {
+            for (int i = 0; i < collectors.length; i++) {
+                collectors[i] = new TextCollector(tokenizer.newDecoder(), params.getStopSequences(),
+                        params.isLogprobs() ? TokenLogprobs.builder(params.getTopLogprobs()) : null, topTokenTexts);
+            }
+            FinishReason[] finishReasons;
+            if (params.getNumBeams() > 1) {
+                finishReasons = generateBeamSearch(window != null ? window.retainPrompt(promptTokens) : promptTokens,
+                        params, collectors, runOptions);
+            } else if (scheduler != null && runOptions == null) {
+                finishReasons = generateBatched(promptTokens, params, collectors);
+            } else {
+                finishReasons = generatePooled(promptTokens, params, collectors, runOptions);
+            }
+
+            List<GenerationResult> results = new ArrayList<>(collectors.length);
+            for (int i = 0; i < collectors.length; i++) {
+                results.add(collectors[i].toResult(promptTokens.length, finishReasons[i]));
+            }
+            if (params.getBestOf() > params.getN()) {
+                results.sort(Comparator.comparingDouble(GenerationResult::getCumulativeLogprob).reversed());
+            }
+            return results.subList(0, params.getN());
+        } finally {
+            for (TextCollector collector : collectors) {
+                if (collector != null) {
+                    collector.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates on a generator borrowed from the pool.
+     */
+    private FinishReason[] generatePooled(int[] promptTokens, GenerationParameters params, TextCollector[] collectors,
+                                          OrtSession.RunOptions runOptions) throws LlmInferenceException {
+        NativeGenerator generator = idleGenerators.poll();
+        if (generator == null) {
+            generator = newGenerator();
+        }
+        generator.setRunOptions(runOptions);
+        try {
+            return generator.generate(promptTokens, params, collectors);
+        } finally {
+            generator.setRunOptions(null);
+            idleGenerators.push(generator);
+        }
+    }
+
+    /**
+     * Searches the best sequences on a beam search generator borrowed from the pool.
+     */
+    private FinishReason[] generateBeamSearch(int[] promptTokens, GenerationParameters params,
+                                              TextCollector[] collectors, OrtSession.RunOptions runOptions)
+            throws LlmInferenceException {
+        BeamSearchGenerator generator = idleBeamSearchers.poll();
+        if (generator == null) {
+            generator = new BeamSearchGenerator(model, modelConfig, contextLength);
+        }
+        generator.setRunOptions(runOptions);
+        try {
+            return generator.generate(promptTokens, params, collectors);
+        } finally {
+            generator.setRunOptions(null);
+            idleBeamSearchers.push(generator);
+        }
+    }
+
+    /**
+     * Compiles the output constraint of a request, or takes it from the cache.
+     *
+     * @param params the generation parameters
+     * @return the parameters with the compiled constraint
+     * @throws LlmInferenceException if the constraint cannot be compiled
+     */
+    private GenerationParameters compileConstraint(GenerationParameters params) throws LlmInferenceException {
+        if (params.getConstraint() == null || params.getGrammar() != null) {
+            return params;
+        }
+        synchronized (grammars) {
+            TokenGrammar grammar = grammars.get(params.getConstraint());
+            if (grammar == null) {
+                long start = System.currentTimeMillis();
+                try {
+                    grammar = new TokenGrammar(params.getConstraint(), vocabulary());
+                } catch (IllegalArgumentException e) {
+                    throw new LlmInferenceException("Invalid output constraint: " + e.getMessage(), e);
+                }
+                logger.debug("Compiled output constraint in {} ms", System.currentTimeMillis() - start);
+                grammars.put(params.getConstraint(), grammar);
+            }
+            return params.withGrammar(grammar);
+        }
+    }
+
+    /**
+     * Gets the decoded vocabulary, decoding it on first use.
+     */
+    private TokenVocabulary vocabulary() throws LlmInferenceException {
+        synchronized (grammars) {
+            if (vocabulary == null) {
+                vocabulary = TokenVocabulary.load(tokenizer, model.getVocabSize(), modelConfig.getEosTokenIds());
+            }
+            return vocabulary;
+        }
+    }
+
+    /**
+     * Gets the text of tokens reported as alternatives: their text in the vocabulary, or what the
+     * tokenizer decodes them to alone, e.g. for end-of-sequence tokens.
+     */
+    private IntFunction<String> topTokenTexts() throws LlmInferenceException {
+        TokenVocabulary decoded = vocabulary();
+        return token -> {
+            String text = decoded.getText(token);
+            if (text == null) {
+                try {
+                    text = tokenizer.decode(new int[]{token});
+                } catch (LlmInferenceException e) {
+                    text = "";
+                }
+            }
+            return text;
+        };
+    }
+
+    private NativeGenerator newGenerator() {
+        if (window != null) {
+            return new NativeGenerator(model, modelConfig, window);
+        }
+        if (options.getSpeculatorFactory() == null) {
+            return new NativeGenerator(model, modelConfig, contextLength);
+        }
+        return new NativeGenerator(model, modelConfig, contextLength, NativeGenerator.DEFAULT_PREFILL_CHUNK,
+                options.getSpeculatorFactory().get(), options.getSpeculativeTokens());
+    }
+
+    /**
+     * Generates through the scheduler and waits for the sequences to finish.
+     */
+    private FinishReason[] generateBatched(int[] promptTokens, GenerationParameters params,
+                                           TextCollector[] collectors) throws LlmInferenceException {
+        try {
+            List<CompletableFuture<FinishReason>> results = scheduler.submit(promptTokens, params, collectors);
+            FinishReason[] finishReasons = new FinishReason[results.size()];
+            for (int i = 0; i < finishReasons.length; i++) {
+                finishReasons[i] = await(results.get(i));
+            }
+            return finishReasons;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LlmInferenceException) {
+                throw (LlmInferenceException) e.getCause();
+            }
+            throw new LlmInferenceException("Batched generation failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LlmInferenceException("Interrupted while waiting for generation", e);
+        }
+    }
+
+    /**
+     * Waits for a sequence of the scheduler, which may run for long, as long as the scheduler thread
+     * runs; a sequence left incomplete by the end of the thread is failed instead of waited for.
+     */
+    private FinishReason await(CompletableFuture<FinishReason> result)
+            throws ExecutionException, InterruptedException, LlmInferenceException {
+        while (true) {
+            try {
+                return result.get(SCHEDULER_CHECK_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (!scheduler.isRunning() && !result.isDone()) {
+                    throw new LlmInferenceException("Scheduler is closed");
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the tokens of a sequence into its text, and stops the sequence at the first stop sequence.
+     */
+    private static final class TextCollector implements TokenListener, AutoCloseable {
+        private final TextTokenizer.TokenDecoder decoder;
+        private final StopSequences stopSequences;
+        private final StringBuilder text = new StringBuilder();
+        private final TokenLogprobs.Builder logprobs;
+        private final IntFunction<String> topTokenTexts;
+        // The alternatives of the next token
+        private final int[] topTokens = new int[GenerationParameters.MAX_TOP_LOGPROBS];
+        private final float[] topLogprobs = new float[GenerationParameters.MAX_TOP_LOGPROBS];
+        private int topCount;
+        private int stopState;
+        private int completionTokens;
+        private double cumulativeLogprob;
+
+        private TextCollector(TextTokenizer.TokenDecoder decoder, StopSequences stopSequences,
+                              TokenLogprobs.Builder logprobs, IntFunction<String> topTokenTexts) {
+            this.decoder = decoder;
+            this.stopSequences = stopSequences;
+            this.logprobs = logprobs;
+            this.topTokenTexts = topTokenTexts;
+            this.stopState = stopSequences != null ? stopSequences.getInitialState() : 0;
+        }
+
+        @Override
+        public void onTopLogprobs(int[] tokens, float[] logprobs, int start, int count) {
+            System.arraycopy(tokens, start, topTokens, 0, count);
+            System.arraycopy(logprobs, start, topLogprobs, 0, count);
+            topCount = count;
+        }
+
+        @Override
+        public boolean onToken(int token) throws LlmInferenceException {
+            return onToken(token, Float.NaN);
+        }
+
+        @Override
+        public boolean onToken(int token, float logprob) throws LlmInferenceException {
+            completionTokens++;
+            cumulativeLogprob += logprob;
+            int start = text.length();
+            String piece = decoder.decode(token);
+            text.append(piece);
+            if (logprobs != null) {
+                logprobs.add(piece, logprob);
+                for (int i = 0; i < topCount; i++) {
+                    logprobs.addTop(topTokenTexts.apply(topTokens[i]), topLogprobs[i]);
+                }
+                topCount = 0;
+            }
+            if (stopSequences == null) {
+                return true;
+            }
+            for (int i = start; i < text.length(); i++) {
+                stopState = stopSequences.step(stopState, text.charAt(i));
+                int matchLength = stopSequences.getMatchLength(stopState);
+                if (matchLength > 0) {
+                    text.setLength(i + 1 - matchLength);
+                    if (logprobs != null) {
+                        // The tokens of the stop sequence are left out with its text
+                        logprobs.truncateText(text.length());
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onEndOfSequence(int token, float logprob) {
+            // Counts towards the ranking of best-of completions, so that ending is not free
+            cumulativeLogprob += logprob;
+        }
+
+        private GenerationResult toResult(int promptTokens, FinishReason finishReason) {
+            return new GenerationResult(text.toString(), promptTokens, completionTokens, finishReason,
+                    cumulativeLogprob, logprobs != null ? logprobs.build() : null);
+        }
+
+        @Override
+        public void close() {
+            decoder.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        idleGenerators.clear();
+        idleBeamSearchers.clear();
+        tokenizer.close();
+    }
+}
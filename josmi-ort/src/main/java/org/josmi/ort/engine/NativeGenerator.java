@@ -0,0 +1,502 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import org.josmi.api.LlmInferenceException;
+
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Autoregressive decode loop that drives an {@link OrtSession} directly.
+ * <p>
+ * All tensor data (input ids, attention mask, position ids, key/value cache and
+ * logits) lives in direct buffers allocated once when the generator is created;
+ * each forward pass only wraps them in tensor views and binds the outputs as
+ * pinned outputs. A generator processes one sequence at a time and can be reused
+ * for further sequences up to its capacity.
+ * <p>
+ * With a {@link Speculator}, every step feeds the last token together with the
+ * speculated continuation and verifies the proposals against the logits of the
+ * same pass by rejection sampling, so several tokens can be committed per forward
+ * pass without changing the output distribution. Rejected positions are then
+ * truncated from the cache.
+ * <p>
+ * Tokens that the output constraint of a request forces are committed without sampling and
+ * fed together with the last sampled token, so a fixed stretch of a constrained output, such
+ * as the property names of a JSON schema, takes one forward pass instead of one per token.
+ * <p>
+ * Several completions of one prompt are generated one after the other from a single prefill:
+ * the cache is cut back to the prompt and the logits of its last position are restored for
+ * each of them.
+ * <p>
+ * With an {@link AttentionSinkWindow}, the cache is bounded: positions are evicted from the
+ * middle of the sequence as it grows, so generation only ends at max_tokens or the
+ * end-of-sequence token, and prompts longer than the cache are cut to the tokens it keeps.
+ */
+public class NativeGenerator {
+
+    /**
+     * Maximum number of prompt tokens fed in one forward pass, which bounds the logits buffer.
+     */
+    public static final int DEFAULT_PREFILL_CHUNK = 128;
+
+    private final DecoderModel model;
+    private final GenAIModelConfig modelConfig;
+    private final int capacity;
+    private final int prefillChunk;
+    private final KvCache kvCache;
+    private final LongBuffer inputIds;
+    private final LongBuffer attentionMask;
+    private final LongBuffer positionIds;
+    private final FloatBuffer logits;
+    private final Sampler sampler;
+    private final SamplingState state;
+    private final int[] tokens;
+    private final Speculator speculator;
+    private final int speculativeTokens;
+    private final float[] targetDistribution;
+    private final float[] draftLogprobs;
+    // Alternatives reported with each committed token: a slot per accepted proposal, then one for the sampled token
+    private final int[] topTokens;
+    private final float[] topLogprobs;
+    private final int[] topCounts;
+    private final int[] forcedTop = new int[1];
+    private final float[] forcedTopLogprob = new float[1];
+    private final AttentionSinkWindow window;
+    // Whether positions of the current prompt were evicted, so it must be prefilled again for another continuation
+    private boolean evicted;
+    private OrtSession.RunOptions runOptions;
+
+    /**
+     * Constructs a new NativeGenerator.
+     *
+     * @param model the decoder model
+     * @param modelConfig the GenAI model configuration
+     * @param capacity the maximum number of tokens (prompt plus generated) of a sequence
+     */
+    public NativeGenerator(DecoderModel model, GenAIModelConfig modelConfig, int capacity) {
+        this(model, modelConfig, capacity, DEFAULT_PREFILL_CHUNK);
+    }
+
+    /**
+     * Constructs a new NativeGenerator.
+     *
+     * @param model the decoder model
+     * @param modelConfig the GenAI model configuration
+     * @param capacity the maximum number of tokens (prompt plus generated) of a sequence
+     * @param prefillChunk the maximum number of prompt tokens fed in one forward pass
+     */
+    public NativeGenerator(DecoderModel model, GenAIModelConfig modelConfig, int capacity, int prefillChunk) {
+        this(model, modelConfig, capacity, prefillChunk, null, 0);
+    }
+
+    /**
+     * Constructs a new NativeGenerator with speculative decoding.
+     *
+     * @param model the decoder model
+     * @param modelConfig the GenAI model configuration
+     * @param capacity the maximum number of tokens (prompt plus generated) of a sequence
+     * @param prefillChunk the maximum number of tokens fed in one forward pass
+     * @param speculator the source of speculative tokens, used by this generator only, or null
+     * @param speculativeTokens the maximum number of tokens verified per forward pass, besides the last token
+     */
+    public NativeGenerator(DecoderModel model, GenAIModelConfig modelConfig, int capacity, int prefillChunk,
+                           Speculator speculator, int speculativeTokens) {
+        this(model, modelConfig, capacity, prefillChunk, speculator, speculativeTokens, null);
+    }
+
+    /**
+     * Constructs a new NativeGenerator whose cache keeps attention sinks and a sliding window of
+     * recent tokens, for sequences of any length.
+     *
+     * @param model the decoder model
+     * @param modelConfig the GenAI model configuration
+     * @param window the cache eviction policy
+     */
+    public NativeGenerator(DecoderModel model, GenAIModelConfig modelConfig, AttentionSinkWindow window) {
+        this(model, modelConfig, window.getCapacity(), DEFAULT_PREFILL_CHUNK, null, 0, window);
+    }
+
+    private NativeGenerator(DecoderModel model, GenAIModelConfig modelConfig, int capacity, int prefillChunk,
+                            Speculator speculator, int speculativeTokens, AttentionSinkWindow window) {
+        this.model = model;
+        this.modelConfig = modelConfig;
+        this.capacity = capacity;
+        this.window = window;
+        // A full pass must fit once the window is evicted
+        this.prefillChunk = Math.max(1, Math.min(prefillChunk, window != null ? window.getWindowTokens() : capacity));
+        this.kvCache = new KvCache(model, capacity);
+        this.inputIds = DecoderModel.allocate((long) this.prefillChunk * Long.BYTES).asLongBuffer();
+        this.positionIds = DecoderModel.allocate((long) this.prefillChunk * Long.BYTES).asLongBuffer();
+        this.attentionMask = DecoderModel.allocate((long) capacity * Long.BYTES).asLongBuffer();
+        for (int i = 0; i < capacity; i++) {
+            attentionMask.put(i, 1L);
+        }
+        this.logits = DecoderModel.allocate((long) this.prefillChunk * model.getVocabSize() * Float.BYTES).asFloatBuffer();
+        this.sampler = new Sampler(model.getVocabSize());
+        this.state = new SamplingState(model.getVocabSize());
+        // With a window, the tokens of a pass are appended before the cache is evicted to make room for them
+        this.tokens = new int[window != null ? capacity + this.prefillChunk : capacity];
+        this.speculator = speculator;
+        // The last token and the proposals must fit in one pass
+        this.speculativeTokens = speculator != null ? Math.min(speculativeTokens, this.prefillChunk - 1) : 0;
+        this.targetDistribution = speculator != null ? new float[model.getVocabSize()] : null;
+        this.draftLogprobs = speculator != null ? new float[this.speculativeTokens] : null;
+        this.topCounts = new int[this.speculativeTokens + 1];
+        this.topTokens = new int[topCounts.length * GenerationParameters.MAX_TOP_LOGPROBS];
+        this.topLogprobs = new float[topCounts.length * GenerationParameters.MAX_TOP_LOGPROBS];
+    }
+
+    /**
+     * Sets the run options of the forward passes of this generator, e.g. with a LoRA adapter
+     * activated. The options are owned by the caller and must stay open while they are set.
+     *
+     * @param runOptions the run options, or null for the model's own
+     */
+    public void setRunOptions(OrtSession.RunOptions runOptions) {
+        this.runOptions = runOptions;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the key/value cache holding the positions processed so far.
+     *
+     * @return the key/value cache
+     */
+    public KvCache getKvCache() {
+        return kvCache;
+    }
+
+    /**
+     * Gets the logits buffer written by the last forward pass.
+     *
+     * @return the logits buffer
+     */
+    public FloatBuffer getLogits() {
+        return logits;
+    }
+
+    /**
+     * Generates a continuation of a prompt.
+     *
+     * @param prompt the prompt token ids
+     * @param params the generation parameters
+     * @param listener the listener notified of every generated token
+     * @return the reason why generation ended
+     * @throws LlmInferenceException if generation fails
+     */
+    public FinishReason generate(int[] prompt, GenerationParameters params, TokenListener listener)
+            throws LlmInferenceException {
+        return generate(prompt, params, new TokenListener[]{listener})[0];
+    }
+
+    /**
+     * Generates several continuations of a prompt, which is prefilled once.
+     *
+     * @param prompt the prompt token ids
+     * @param params the generation parameters
+     * @param listeners the listeners notified of the generated tokens, one per continuation
+     * @return the reason why the generation of each continuation ended
+     * @throws LlmInferenceException if generation fails
+     */
+    public FinishReason[] generate(int[] prompt, GenerationParameters params, TokenListener[] listeners)
+            throws LlmInferenceException {
+        if (window != null) {
+            prompt = window.retainPrompt(prompt);
+        }
+        int offset = prefill(prompt);
+        float[] promptLogits = null;
+        if (listeners.length > 1) {
+            promptLogits = new float[model.getVocabSize()];
+            FloatBuffer row = logits.duplicate();
+            row.position(offset);
+            row.get(promptLogits);
+        }
+        FinishReason[] finishReasons = new FinishReason[listeners.length];
+        for (int sample = 0; sample < listeners.length; sample++) {
+            if (sample > 0 && evicted) {
+                offset = prefill(prompt);
+            } else if (sample > 0) {
+                kvCache.truncate(prompt.length);
+                FloatBuffer row = logits.duplicate();
+                row.position(0);
+                row.put(promptLogits);
+                offset = 0;
+            }
+            finishReasons[sample] = decode(prompt.length, offset, params, sample, listeners[sample]);
+        }
+        return finishReasons;
+    }
+
+    /**
+     * Generates one continuation of the prompt in tokens[0, promptLength), whose cache is filled.
+     *
+     * @param offset the offset in {@link #getLogits()} of the logits of the last prompt position
+     * @param sample the index of the continuation
+     */
+    private FinishReason decode(int promptLength, int offset, GenerationParameters params, int sample,
+                                TokenListener listener) throws LlmInferenceException {
+        if (speculator != null) {
+            speculator.reset();
+        }
+        state.reset(params, tokens, promptLength, sample);
+        boolean logprobs = params.needsLogprobs();
+        int topCount = params.getTopLogprobs();
+        int sampledSlot = speculativeTokens;
+        int length = promptLength;
+        int generated = 0;
+        int token = sampler.sample(logits, offset, params, state);
+        float logprob = logprobs ? sampler.logProbability(logits, offset, params, state, token) : Float.NaN;
+        findTop(offset, params, sampledSlot);
+
+        while (true) {
+            tokens[length++] = token;
+            state.accept(token);
+            generated++;
+            reportTop(listener, params, sampledSlot);
+            FinishReason finishReason = checkFinish(token, logprob, listener, params, generated, length);
+            if (finishReason != null) {
+                return finishReason;
+            }
+
+            // Tokens the output constraint forces join the same pass without sampling
+            int fed = 1;
+            int forced;
+            while (fed < prefillChunk && (forced = state.getForcedToken()) >= 0) {
+                tokens[length++] = forced;
+                state.accept(forced);
+                generated++;
+                fed++;
+                if (topCount > 0) {
+                    forcedTop[0] = forced;
+                    listener.onTopLogprobs(forcedTop, forcedTopLogprob, 0, 1);
+                }
+                finishReason = checkFinish(forced, logprobs ? 0f : Float.NaN, listener, params, generated, length);
+                if (finishReason != null) {
+                    return finishReason;
+                }
+            }
+
+            int proposed = 0;
+            int maxProposed = fed > 1 ? 0 : Math.min(speculativeTokens,
+                    Math.min(params.getMaxTokens() - generated, capacity - length - 1));
+            if (maxProposed > 0) {
+                proposed = speculator.propose(tokens, length, maxProposed, params, state.getRandom());
+            }
+            if (window != null && length + proposed > capacity) {
+                length -= window.evict(kvCache, tokens, length, length + proposed - capacity);
+                evicted = true;
+            }
+            forward(tokens, length - fed, fed + proposed, false);
+
+            // Keep proposals while the target model agrees, then draw the next token
+            int accepted = 0;
+            token = -1;
+            while (accepted < proposed && token < 0) {
+                token = verify(accepted, length + accepted, params);
+                if (token < 0) {
+                    if (logprobs) {
+                        draftLogprobs[accepted] = sampler.logProbability(logits, accepted * model.getVocabSize(),
+                                params, state, tokens[length + accepted]);
+                        findTop(accepted * model.getVocabSize(), params, accepted);
+                    }
+                    // Later proposals are verified with the penalties of the accepted ones
+                    state.accept(tokens[length + accepted]);
+                    accepted++;
+                }
+            }
+            for (int i = 0; i < accepted; i++) {
+                int draftToken = tokens[length++];
+                generated++;
+                reportTop(listener, params, i);
+                finishReason = checkFinish(draftToken, logprobs ? draftLogprobs[i] : Float.NaN, listener, params,
+                        generated, length);
+                if (finishReason != null) {
+                    return finishReason;
+                }
+            }
+            int row = (fed - 1 + accepted) * model.getVocabSize();
+            if (token < 0) {
+                row = (fed - 1 + proposed) * model.getVocabSize();
+                token = sampler.sample(logits, row, params, state);
+            }
+            logprob = logprobs ? sampler.logProbability(logits, row, params, state, token) : Float.NaN;
+            findTop(row, params, sampledSlot);
+            if (proposed > 0) {
+                kvCache.truncate(length);
+                speculator.commit(length);
+            }
+        }
+    }
+
+    /**
+     * Resets the cache and runs the prompt through the model, in chunks that fit the logits buffer.
+     *
+     * @param prompt the prompt token ids
+     * @return the offset in {@link #getLogits()} of the logits of the last prompt position
+     * @throws LlmInferenceException if the prompt is empty or too long, or the forward pass fails
+     */
+    public int prefill(int[] prompt) throws LlmInferenceException {
+        kvCache.reset();
+        evicted = false;
+        return prefill(prompt, 0);
+    }
+
+    /**
+     * Runs the prompt positions that are not in the cache yet through the model, in chunks that
+     * fit the logits buffer.
+     *
+     * @param prompt the prompt token ids
+     * @param cachedLength the number of leading prompt positions already in the cache
+     *                     (see {@link KvCache#copyFrom(BlockTable, int)})
+     * @return the offset in {@link #getLogits()} of the logits of the last prompt position
+     * @throws LlmInferenceException if the prompt is empty or too long, or the forward pass fails
+     */
+    public int prefill(int[] prompt, int cachedLength) throws LlmInferenceException {
+        if (prompt.length == 0) {
+            throw new LlmInferenceException("Prompt is empty");
+        }
+        if (prompt.length >= capacity) {
+            throw new LlmInferenceException("Prompt of " + prompt.length + " tokens exceeds the context length of "
+                    + capacity);
+        }
+        if (cachedLength >= prompt.length || kvCache.getLength() != cachedLength) {
+            throw new IllegalStateException("Cache holds " + kvCache.getLength() + " positions, expected "
+                    + cachedLength + " of a " + prompt.length + " token prompt");
+        }
+
+        System.arraycopy(prompt, 0, tokens, 0, prompt.length);
+        return extend(tokens, cachedLength, prompt.length);
+    }
+
+    /**
+     * Runs tokens that directly follow the cached positions through the model, in chunks that fit
+     * the logits buffer.
+     *
+     * @param source the sequence tokens
+     * @param from the first position to feed, which must equal the cache length
+     * @param to the end of the positions to feed
+     * @return the offset in {@link #getLogits()} of the logits of the last fed position
+     * @throws LlmInferenceException if the forward pass fails
+     */
+    public int extend(int[] source, int from, int to) throws LlmInferenceException {
+        if (from != kvCache.getLength() || to <= from || to > capacity) {
+            throw new IllegalStateException("Cannot feed positions [" + from + ", " + to + ") to a cache of "
+                    + kvCache.getLength() + " positions");
+        }
+        int lastRow = 0;
+        for (int start = from; start < to; start += prefillChunk) {
+            int count = Math.min(prefillChunk, to - start);
+            forward(source, start, count, true);
+            lastRow = count - 1;
+        }
+        return lastRow * model.getVocabSize();
+    }
+
+    /**
+     * Finds the alternatives of a token at a row of the logits into a slot, if the request asks for them.
+     */
+    private void findTop(int offset, GenerationParameters params, int slot) {
+        int count = params.getTopLogprobs();
+        if (count > 0) {
+            topCounts[slot] = sampler.topLogProbabilities(logits, offset, params, state, count, topTokens, topLogprobs,
+                    slot * count);
+        }
+    }
+
+    private void reportTop(TokenListener listener, GenerationParameters params, int slot) {
+        int count = params.getTopLogprobs();
+        if (count > 0) {
+            listener.onTopLogprobs(topTokens, topLogprobs, slot * count, topCounts[slot]);
+        }
+    }
+
+    /**
+     * Checks whether a committed token ends the sequence, notifying the listener otherwise.
+     */
+    private FinishReason checkFinish(int token, float logprob, TokenListener listener, GenerationParameters params,
+                                     int generated, int length) throws LlmInferenceException {
+        if (modelConfig.isEos(token)) {
+            listener.onEndOfSequence(token, logprob);
+            return FinishReason.STOP;
+        }
+        if (!listener.onToken(token, logprob)) {
+            return FinishReason.STOP;
+        }
+        if (generated >= params.getMaxTokens() || (window == null && length >= capacity)) {
+            return FinishReason.LENGTH;
+        }
+        return null;
+    }
+
+    /**
+     * Verifies the proposal at tokens[position] against a row of the last forward pass.
+     *
+     * @return -1 if the proposal is accepted, otherwise the token replacing it
+     */
+    private int verify(int row, int position, GenerationParameters params) {
+        int proposal = tokens[position];
+        int offset = row * model.getVocabSize();
+        if (params.isGreedy()) {
+            int best = sampler.sample(logits, offset, params, state);
+            return best == proposal ? -1 : best;
+        }
+        sampler.distribution(logits, offset, params, state, targetDistribution);
+        float[] draftDistribution = speculator.getDistribution(row);
+        float draftProbability = draftDistribution != null ? draftDistribution[proposal] : 1f;
+        if (sampler.acceptDraft(targetDistribution[proposal], draftProbability, state.getRandom())) {
+            return -1;
+        }
+        return sampler.sampleResidual(targetDistribution, draftDistribution, proposal, state.getRandom());
+    }
+
+    /**
+     * Runs one forward pass over source[start, start + count), which must directly follow the cached positions.
+     */
+    private void forward(int[] source, int start, int count, boolean prefill) throws LlmInferenceException {
+        int total = kvCache.getLength() + count;
+        for (int i = 0; i < count; i++) {
+            inputIds.put(i, source[start + i]);
+            positionIds.put(i, start + i);
+        }
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        Map<String, OnnxTensor> outputs = new HashMap<>();
+        List<OnnxTensor> created = new ArrayList<>();
+        try {
+            OnnxTensor ids = model.longTensor(inputIds, 1, count);
+            created.add(ids);
+            inputs.put(DecoderModel.INPUT_IDS, ids);
+            OnnxTensor mask = model.longTensor(attentionMask, 1, total);
+            created.add(mask);
+            inputs.put(DecoderModel.ATTENTION_MASK, mask);
+            if (model.hasPositionIds()) {
+                OnnxTensor positions = model.longTensor(positionIds, 1, count);
+                created.add(positions);
+                inputs.put(DecoderModel.POSITION_IDS, positions);
+            }
+            OnnxTensor logitsView = model.logitsTensor(logits, 1, count);
+            created.add(logitsView);
+            outputs.put(DecoderModel.LOGITS, logitsView);
+            kvCache.bind(inputs, outputs, count, created);
+
+            model.run(inputs, outputs, prefill, runOptions);
+            kvCache.advance(count);
+        } catch (OrtException e) {
+            throw new LlmInferenceException("Forward pass failed", e);
+        } finally {
+            for (OnnxTensor tensor : created) {
+                tensor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.josmi.ort.engine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of computed key/value blocks indexed by the token prefix they hold.
+ * <p>
+ * The cache is a radix tree whose edges are full blocks of tokens: the path from
+ * the root to a node spells a prompt prefix, and the node holds a reference to the
+ * block with the key/value entries of its last {@code blockSize} tokens. A new
+ * sequence starts from the blocks of its longest cached prefix, shared
+ * copy-on-write, and only prefills the remaining tokens. When the pool runs out
+ * of blocks, the least recently used leaves that no sequence references are
+ * evicted. The cache is not thread-safe.
+ */
+public class PrefixCache implements KvBlockPool.BlockHolder {
+
+    private final KvBlockPool pool;
+    private final int blockSize;
+    private final Node root = new Node(null, null, -1);
+
+    /**
+     * All nodes in least recently used order; ancestors are touched after their
+     * descendants so leaves come first.
+     */
+    private final Set<Node> lru = new LinkedHashSet<>();
+
+    /**
+     * Constructs a new, empty PrefixCache registered with its pool.
+     *
+     * @param pool the block pool
+     */
+    public PrefixCache(KvBlockPool pool) {
+        this.pool = pool;
+        this.blockSize = pool.getBlockSize();
+        pool.register(this);
+    }
+
+    /**
+     * Gets the number of blocks held by the cache.
+     *
+     * @return the number of cached blocks
+     */
+    public int getCachedBlocks() {
+        return lru.size();
+    }
+
+    /**
+     * Creates a block table that shares the blocks of the longest cached prefix of a prompt.
+     *
+     * @param prompt the prompt token ids
+     * @param maxLength the maximum number of positions to take from the cache
+     * @return a new table, whose length is the number of cached positions (a multiple of the block size)
+     */
+    public BlockTable match(int[] prompt, int maxLength) {
+        BlockTable table = new BlockTable(pool);
+        Node node = root;
+        int length = 0;
+        while (length + blockSize <= maxLength) {
+            Node child = node.children.get(new TokenKey(prompt, length, blockSize));
+            if (child == null) {
+                break;
+            }
+            table.append(child.block);
+            node = child;
+            length += blockSize;
+        }
+        table.setLength(length);
+        touch(node);
+        return table;
+    }
+
+    /**
+     * Adds the full blocks of a prefilled prompt to the cache.
+     *
+     * @param prompt the prompt token ids
+     * @param table the block table holding the prompt positions
+     */
+    public void insert(int[] prompt, BlockTable table) {
+        Node node = root;
+        int fullBlocks = Math.min(prompt.length, table.getLength()) / blockSize;
+        for (int index = 0; index < fullBlocks; index++) {
+            TokenKey key = new TokenKey(prompt, index * blockSize, blockSize);
+            Node child = node.children.get(key);
+            if (child == null) {
+                int block = table.getBlock(index);
+                pool.retain(block);
+                child = new Node(node, key, block);
+                node.children.put(key, child);
+            }
+            node = child;
+        }
+        touch(node);
+    }
+
+    /**
+     * Evicts least recently used blocks that no sequence references. A parent is always more
+     * recent than its children, so a node left childless is visited later in the same pass.
+     *
+     * @param blocks the number of blocks to free
+     * @return the number of blocks freed
+     */
+    public int evict(int blocks) {
+        int freed = 0;
+        Iterator<Node> iterator = lru.iterator();
+        while (freed < blocks && iterator.hasNext()) {
+            Node node = iterator.next();
+            if (node.children.isEmpty() && pool.getRefCount(node.block) == 1) {
+                iterator.remove();
+                node.parent.children.remove(node.key);
+                pool.release(node.block);
+                freed++;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Evicts all blocks that no sequence references.
+     */
+    public void clear() {
+        evict(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void remap(int[] mapping) {
+        for (Node node : lru) {
+            node.block = mapping[node.block];
+        }
+    }
+
+    /**
+     * Marks a node and its ancestors as used, descendants before ancestors.
+     */
+    private void touch(Node node) {
+        for (; node != root; node = node.parent) {
+            lru.remove(node);
+            lru.add(node);
+        }
+    }
+
+    private static final class Node {
+
+        private final Node parent;
+        private final TokenKey key;
+        private final Map<TokenKey, Node> children = new HashMap<>();
+        private int block;
+
+        private Node(Node parent, TokenKey key, int block) {
+            this.parent = parent;
+            this.key = key;
+            this.block = block;
+        }
+    }
+
+    /**
+     * The token ids of one block.
+     */
+    private static final class TokenKey {
+
+        private final int[] tokens;
+        private final int hash;
+
+        private TokenKey(int[] source, int offset, int length) {
+            this.tokens = Arrays.copyOfRange(source, offset, offset + length);
+            this.hash = Arrays.hashCode(tokens);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TokenKey && Arrays.equals(tokens, ((TokenKey) o).tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.josmi.ort.engine;
+
+/**
+ * Presence and frequency penalties, as in the OpenAI API: the score of each token that was
+ * generated is lowered by the presence penalty once, and by the frequency penalty for every
+ * time it was generated. Prompt tokens are not penalized.
+ */
+public class PresenceFrequencyPenaltyProcessor implements LogitsProcessor {
+
+    private final float presencePenalty;
+    private final float frequencyPenalty;
+
+    /**
+     * Constructs a new PresenceFrequencyPenaltyProcessor.
+     *
+     * @param presencePenalty the penalty of a token that was generated
+     * @param frequencyPenalty the penalty of every occurrence of a generated token
+     */
+    public PresenceFrequencyPenaltyProcessor(float presencePenalty, float frequencyPenalty) {
+        this.presencePenalty = presencePenalty;
+        this.frequencyPenalty = frequencyPenalty;
+    }
+
+    @Override
+    public void process(float[] scores, TokenCounts counts) {
+        for (int i = 0; i < counts.getDistinctCount(); i++) {
+            int token = counts.getDistinctToken(i);
+            int count = counts.getCount(token);
+            if (count > 0) {
+                scores[token] -= presencePenalty + frequencyPenalty * count;
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.josmi.ort.engine;
+
+import java.util.Random;
+
+/**
+ * Speculator that proposes tokens by copying them from earlier in the sequence.
+ * <p>
+ * The last n tokens (trying the longest n-gram first) are looked up in the
+ * prompt and the generated text; the tokens that followed their most recent
+ * earlier occurrence are proposed. This needs no draft model and pays off when
+ * the output copies spans of the input, as in extraction, editing or
+ * summarization with quotes. Proposals are deterministic.
+ */
+public class PromptLookupSpeculator implements Speculator {
+
+    public static final int DEFAULT_MAX_NGRAM = 3;
+
+    private final int maxNgram;
+    private final int minNgram;
+
+    /**
+     * Constructs a new PromptLookupSpeculator.
+     *
+     * @param maxNgram the longest n-gram to match
+     * @param minNgram the shortest n-gram to match
+     */
+    public PromptLookupSpeculator(int maxNgram, int minNgram) {
+        this.maxNgram = Math.max(1, maxNgram);
+        this.minNgram = Math.max(1, Math.min(minNgram, this.maxNgram));
+    }
+
+    @Override
+    public void reset() {
+        // Proposals only depend on the tokens passed in
+    }
+
+    @Override
+    public int propose(int[] tokens, int length, int maxTokens, GenerationParameters params, Random random) {
+        for (int n = Math.min(maxNgram, length - 1); n >= minNgram; n--) {
+            int start = findPrevious(tokens, length, n);
+            if (start >= 0) {
+                // Copy the tokens that followed the match, as far as they are known
+                int count = Math.min(maxTokens, length - start);
+                System.arraycopy(tokens, start, tokens, length, count);
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public float[] getDistribution(int index) {
+        return null;
+    }
+
+    @Override
+    public void commit(int length) {
+        // Nothing is cached between proposals
+    }
+
+    /**
+     * Finds the most recent earlier occurrence of the last n tokens.
+     *
+     * @return the position following the occurrence, or -1 if there is none
+     */
+    private static int findPrevious(int[] tokens, int length, int n) {
+        int suffix = length - n;
+        for (int end = length - 1; end >= n; end--) {
+            int i = 0;
+            while (i < n && tokens[end - n + i] == tokens[suffix + i]) {
+                i++;
+            }
+            if (i == n) {
+                return end;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,29 @@
+package org.josmi.ort.engine;
+
+/**
+ * Repetition penalty: the scores of the tokens that occur in the prompt or the generated tokens
+ * are divided by the penalty if positive, and multiplied by it if negative.
+ */
+public class RepetitionPenaltyProcessor implements LogitsProcessor {
+
+    private final float penalty;
+
+    /**
+     * Constructs a new RepetitionPenaltyProcessor.
+     *
+     * @param penalty the penalty, above 1 to discourage repetition
+     */
+    public RepetitionPenaltyProcessor(float penalty) {
+        this.penalty = penalty;
+    }
+
+    @Override
+    public void process(float[] scores, TokenCounts counts) {
+        for (int i = 0; i < counts.getDistinctCount(); i++) {
+            int token = counts.getDistinctToken(i);
+            if (counts.occurs(token)) {
+                scores[token] = scores[token] > 0 ? scores[token] / penalty : scores[token] * penalty;
+            }
+        }
+    }
+}
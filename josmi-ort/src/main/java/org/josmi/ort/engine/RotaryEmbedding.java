@@ -0,0 +1,238 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.platform.Fp16Conversions;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.josmi.api.LlmInferenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The rotary position embedding (RoPE) of a model, used to move cached keys to other positions.
+ * <p>
+ * Decoder models cache keys with the rotation of their position already applied. As the
+ * rotation of position p is the rotation of position q composed with that of p - q, a key can
+ * be moved from position p to position q by rotating it by q - p, without the hidden state it
+ * was computed from. The rotation applies to the first rotary dimensions of each head, in the
+ * half-split layout of Llama and most later models: dimension i is paired with dimension
+ * i + rotaryDim / 2.
+ * <p>
+ * The frequencies are read from the Hugging Face config.json of the model directory:
+ * rope_theta, partial_rotary_factor, and the "linear", "llama3" and "longrope" rope_scaling
+ * types. Scaling that depends on the sequence length (dynamic, and the long factors of
+ * longrope) is taken as it is within the original context, which a bounded cache stays in.
+ */
+public class RotaryEmbedding {
+
+    private static final Logger logger = LoggerFactory.getLogger(RotaryEmbedding.class);
+
+    public static final String FILE_NAME = "config.json";
+    public static final double DEFAULT_THETA = 10000.0;
+
+    // Model types whose positions are learned embeddings or attention biases, not key rotations
+    private static final Set<String> UNROTATED_MODEL_TYPES = new HashSet<>(Arrays.asList(
+            "gpt2", "gpt_bigcode", "gpt_neo", "opt", "bloom", "mpt"));
+
+    private final int rotaryDim;
+    private final double[] inverseFrequencies;
+
+    /**
+     * Constructs a new RotaryEmbedding with the frequencies theta^(-2i / rotaryDim).
+     *
+     * @param theta the base of the frequencies
+     * @param rotaryDim the number of rotated dimensions of a head, an even number
+     */
+    public RotaryEmbedding(double theta, int rotaryDim) {
+        this(inverseFrequencies(theta, rotaryDim));
+    }
+
+    /**
+     * Constructs a new RotaryEmbedding.
+     *
+     * @param inverseFrequencies the angle per position of each pair of rotated dimensions
+     */
+    public RotaryEmbedding(double[] inverseFrequencies) {
+        if (inverseFrequencies.length == 0) {
+            throw new IllegalArgumentException("No rotary dimensions");
+        }
+        this.rotaryDim = inverseFrequencies.length * 2;
+        this.inverseFrequencies = inverseFrequencies.clone();
+    }
+
+    /**
+     * Loads the rotary embedding of a model from the config.json file of its directory. If there
+     * is no such file, the Llama defaults are assumed: theta 10000 over the whole head.
+     *
+     * @param modelDirectory the model directory
+     * @param headDim the head dimension of the model
+     * @return the rotary embedding, or null if the model does not encode positions by rotating keys
+     * @throws LlmInferenceException if the configuration file cannot be parsed
+     */
+    public static RotaryEmbedding load(Path modelDirectory, int headDim) throws LlmInferenceException {
+        Path configFile = modelDirectory.resolve(FILE_NAME);
+        if (!Files.isRegularFile(configFile)) {
+            return new RotaryEmbedding(DEFAULT_THETA, headDim);
+        }
+        try {
+            JsonNode config = new ObjectMapper().readTree(configFile.toFile());
+            if (UNROTATED_MODEL_TYPES.contains(config.path("model_type").asText())
+                    || config.path("alibi").asBoolean(false)) {
+                return null;
+            }
+            double partialFactor = config.path("partial_rotary_factor").asDouble(config.path("rotary_pct").asDouble(1.0));
+            int rotaryDim = (int) (headDim * partialFactor) & ~1;
+            double[] frequencies = inverseFrequencies(config.path("rope_theta").asDouble(DEFAULT_THETA), rotaryDim);
+            JsonNode scaling = config.path("rope_scaling");
+            if (scaling.isObject()) {
+                scale(frequencies, scaling);
+            }
+            return new RotaryEmbedding(frequencies);
+        } catch (IOException e) {
+            throw new LlmInferenceException("Failed to read " + configFile, e);
+        }
+    }
+
+    private static double[] inverseFrequencies(double theta, int rotaryDim) {
+        double[] frequencies = new double[rotaryDim / 2];
+        for (int i = 0; i < frequencies.length; i++) {
+            frequencies[i] = Math.pow(theta, -2.0 * i / rotaryDim);
+        }
+        return frequencies;
+    }
+
+    /**
+     * Applies the frequency scaling of a rope_scaling configuration.
+     */
+    private static void scale(double[] frequencies, JsonNode scaling) {
+        String type = scaling.has("rope_type") ? scaling.path("rope_type").asText() : scaling.path("type").asText();
+        double factor = scaling.path("factor").asDouble(1.0);
+        switch (type) {
+            case "default":
+            case "dynamic":
+                // Dynamic scaling only departs from the default beyond the original context
+                break;
+            case "linear":
+                for (int i = 0; i < frequencies.length; i++) {
+                    frequencies[i] /= factor;
+                }
+                break;
+            case "llama3": {
+                double originalContext = scaling.path("original_max_position_embeddings").asDouble(8192);
+                double lowFactor = scaling.path("low_freq_factor").asDouble(1.0);
+                double highFactor = scaling.path("high_freq_factor").asDouble(4.0);
+                double lowWavelength = originalContext / lowFactor;
+                double highWavelength = originalContext / highFactor;
+                for (int i = 0; i < frequencies.length; i++) {
+                    double wavelength = 2 * Math.PI / frequencies[i];
+                    if (wavelength > lowWavelength) {
+                        frequencies[i] /= factor;
+                    } else if (wavelength >= highWavelength) {
+                        double smooth = (originalContext / wavelength - lowFactor) / (highFactor - lowFactor);
+                        frequencies[i] = (1 - smooth) * frequencies[i] / factor + smooth * frequencies[i];
+                    }
+                }
+                break;
+            }
+            case "longrope":
+            case "su": {
+                JsonNode shortFactor = scaling.path("short_factor");
+                for (int i = 0; i < frequencies.length && i < shortFactor.size(); i++) {
+                    frequencies[i] /= shortFactor.get(i).asDouble(1.0);
+                }
+                break;
+            }
+            default:
+                logger.warn("Unsupported rope_scaling type {}, cached keys are moved with unscaled frequencies", type);
+        }
+    }
+
+    public int getRotaryDim() {
+        return rotaryDim;
+    }
+
+    /**
+     * Checks whether cached keys of a type can be rotated.
+     *
+     * @param type the key/value cache element type
+     * @return true for float, float16 and bfloat16 caches
+     */
+    public static boolean supports(OnnxJavaType type) {
+        return type == OnnxJavaType.FLOAT || type == OnnxJavaType.FLOAT16 || type == OnnxJavaType.BFLOAT16;
+    }
+
+    /**
+     * Moves cached keys by a number of positions, in place. Safe to call concurrently on
+     * different buffers.
+     *
+     * @param keys the key buffer, laid out as [heads, length, headDim]
+     * @param type the element type
+     * @param heads the number of heads
+     * @param length the number of positions per head in the buffer
+     * @param headDim the head dimension
+     * @param from the first position to move
+     * @param to the end of the positions to move
+     * @param delta the number of positions to move by, negative to move keys towards the start
+     */
+    public void shift(ByteBuffer keys, OnnxJavaType type, int heads, int length, int headDim, int from, int to,
+                      int delta) {
+        if (rotaryDim > headDim) {
+            throw new IllegalArgumentException("Rotary dimension " + rotaryDim + " exceeds head dimension " + headDim);
+        }
+        int half = rotaryDim / 2;
+        float[] cos = new float[half];
+        float[] sin = new float[half];
+        float[] row = new float[rotaryDim];
+        for (int i = 0; i < half; i++) {
+            double angle = delta * inverseFrequencies[i];
+            cos[i] = (float) Math.cos(angle);
+            sin[i] = (float) Math.sin(angle);
+        }
+        int size = type.size;
+        for (int head = 0; head < heads; head++) {
+            for (int position = from; position < to; position++) {
+                int offset = ((head * length) + position) * headDim * size;
+                read(keys, type, offset, row);
+                for (int i = 0; i < half; i++) {
+                    float x = row[i];
+                    float y = row[i + half];
+                    row[i] = x * cos[i] - y * sin[i];
+                    row[i + half] = y * cos[i] + x * sin[i];
+                }
+                write(keys, type, offset, row);
+            }
+        }
+    }
+
+    private static void read(ByteBuffer keys, OnnxJavaType type, int offset, float[] row) {
+        for (int i = 0; i < row.length; i++) {
+            if (type == OnnxJavaType.FLOAT) {
+                row[i] = keys.getFloat(offset + i * Float.BYTES);
+            } else if (type == OnnxJavaType.FLOAT16) {
+                row[i] = Fp16Conversions.fp16ToFloat(keys.getShort(offset + i * Short.BYTES));
+            } else {
+                row[i] = Fp16Conversions.bf16ToFloat(keys.getShort(offset + i * Short.BYTES));
+            }
+        }
+    }
+
+    private static void write(ByteBuffer keys, OnnxJavaType type, int offset, float[] row) {
+        for (int i = 0; i < row.length; i++) {
+            if (type == OnnxJavaType.FLOAT) {
+                keys.putFloat(offset + i * Float.BYTES, row[i]);
+            } else if (type == OnnxJavaType.FLOAT16) {
+                keys.putShort(offset + i * Short.BYTES, Fp16Conversions.floatToFp16(row[i]));
+            } else {
+                keys.putShort(offset + i * Short.BYTES, Fp16Conversions.floatToBf16(row[i]));
+            }
+        }
+    }
+}
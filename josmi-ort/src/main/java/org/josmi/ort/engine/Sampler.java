@@ -0,0 +1,509 @@
+package org.josmi.ort.engine;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Selects the next token from a row of logits.
+ * A sampler keeps scratch arrays sized to the vocabulary and is not thread-safe. The state of
+ * each sequence, its random number generator and token counts, is in its {@link SamplingState}.
+ * <p>
+ * The {@link LogitsProcessor}s of the request, penalties and logit bias, run on the scores first.
+ * The {@link TokenMask} of a constrained sequence then removes the tokens its output constraint
+ * does not allow, and a token the constraint forces is returned without looking at the logits.
+ * <p>
+ * Sampling allocates nothing per step and never sorts the vocabulary. Temperature scaling is
+ * fused into the exponentiation of the softmax. Top-k takes the k best tokens with a bounded
+ * heap. Top-p works only on sorted top candidates: it starts from the best
+ * {@value #INITIAL_NUCLEUS_CANDIDATES} tokens and widens the candidates until their probability
+ * mass reaches top-p, which for peaked next-token distributions is almost always at once. With
+ * both set, top-p applies to the top-k tokens, renormalized.
+ */
+public class Sampler {
+
+    /**
+     * Number of best tokens a top-p nucleus is first searched in.
+     */
+    static final int INITIAL_NUCLEUS_CANDIDATES = 64;
+
+    private final int vocabSize;
+    private final float[] scores;
+    // Candidate tokens, best first, and their unnormalized probabilities
+    private final int[] candidates;
+    private final float[] weights;
+    private FloatBuffer source;
+    private FloatBuffer sourceView;
+
+    /**
+     * Constructs a new Sampler.
+     *
+     * @param vocabSize the vocabulary size
+     */
+    public Sampler(int vocabSize) {
+        this.vocabSize = vocabSize;
+        this.scores = new float[vocabSize];
+        this.candidates = new int[vocabSize];
+        this.weights = new float[vocabSize];
+    }
+
+    /**
+     * Selects the next token.
+     *
+     * @param logits the logits buffer
+     * @param offset the offset of the row to sample from
+     * @param params the generation parameters
+     * @param state the sampling state of the sequence
+     * @return the selected token id
+     */
+    public int sample(FloatBuffer logits, int offset, GenerationParameters params, SamplingState state) {
+        int forced = state.getForcedToken();
+        if (forced >= 0) {
+            return forced;
+        }
+        loadScores(logits, offset, params, state.getCounts(), state.getMask());
+        Random random = state.getRandom();
+        if (params.isGreedy()) {
+            return argmax();
+        }
+
+        float temperature = (float) params.getTemperature();
+        if (samplesWholeVocabulary(params)) {
+            // Temperature and softmax in one pass
+            float max = scores[argmax()];
+            double sum = 0.0;
+            for (int i = 0; i < vocabSize; i++) {
+                float p = (float) Math.exp((scores[i] - max) / temperature);
+                scores[i] = p;
+                sum += p;
+            }
+            double threshold = random.nextDouble() * sum;
+            double cumulative = 0.0;
+            for (int i = 0; i < vocabSize; i++) {
+                cumulative += scores[i];
+                if (cumulative >= threshold) {
+                    return i;
+                }
+            }
+            return vocabSize - 1;
+        }
+
+        int count = selectCandidates(params, temperature);
+        double sum = 0.0;
+        for (int i = 0; i < count; i++) {
+            sum += weights[i];
+        }
+        double threshold = random.nextDouble() * sum;
+        double cumulative = 0.0;
+        for (int i = 0; i < count; i++) {
+            cumulative += weights[i];
+            if (cumulative >= threshold) {
+                return candidates[i];
+            }
+        }
+        return candidates[0];
+    }
+
+    /**
+     * Computes the distribution {@link #sample} draws the next token from: a one-hot vector for
+     * greedy decoding, otherwise the temperature softmax restricted to the top-k tokens and the
+     * top-p nucleus.
+     *
+     * @param logits the logits buffer
+     * @param offset the offset of the row
+     * @param params the generation parameters
+     * @param state the sampling state of the sequence, or null to leave out the processors that read
+     *              token counts and the output constraint
+     * @param probabilities receives the probabilities of the first vocabulary-size tokens
+     */
+    public void distribution(FloatBuffer logits, int offset, GenerationParameters params, SamplingState state,
+                             float[] probabilities) {
+        int forced = state != null ? state.getForcedToken() : -1;
+        if (forced >= 0) {
+            Arrays.fill(probabilities, 0, vocabSize, 0f);
+            probabilities[forced] = 1f;
+            return;
+        }
+        loadScores(logits, offset, params, state != null ? state.getCounts() : null,
+                state != null ? state.getMask() : null);
+        if (params.isGreedy()) {
+            Arrays.fill(probabilities, 0, vocabSize, 0f);
+            probabilities[argmax()] = 1f;
+            return;
+        }
+
+        float temperature = (float) params.getTemperature();
+        if (samplesWholeVocabulary(params)) {
+            float max = scores[argmax()];
+            double sum = 0.0;
+            for (int i = 0; i < vocabSize; i++) {
+                float p = (float) Math.exp((scores[i] - max) / temperature);
+                probabilities[i] = p;
+                sum += p;
+            }
+            float scale = (float) (1.0 / sum);
+            for (int i = 0; i < vocabSize; i++) {
+                probabilities[i] *= scale;
+            }
+            return;
+        }
+
+        int count = selectCandidates(params, temperature);
+        double sum = 0.0;
+        for (int i = 0; i < count; i++) {
+            sum += weights[i];
+        }
+        float scale = (float) (1.0 / sum);
+        Arrays.fill(probabilities, 0, vocabSize, 0f);
+        for (int i = 0; i < count; i++) {
+            probabilities[candidates[i]] = weights[i] * scale;
+        }
+    }
+
+    /**
+     * Computes the log probability of a token under the scores it is sampled from: the logits
+     * after the logits processors and the output constraint, before temperature, top-k and top-p.
+     * A token the output constraint forces has log probability 0. Must be called before the token
+     * is accepted by the sampling state.
+     *
+     * @param logits the logits buffer
+     * @param offset the offset of the row
+     * @param params the generation parameters
+     * @param state the sampling state of the sequence
+     * @param token the token id
+     * @return the natural logarithm of the probability of the token
+     */
+    public float logProbability(FloatBuffer logits, int offset, GenerationParameters params, SamplingState state,
+                                int token) {
+        if (state.getForcedToken() == token) {
+            return 0f;
+        }
+        loadScores(logits, offset, params, state.getCounts(), state.getMask());
+        float max = scores[argmax()];
+        double sum = 0.0;
+        for (int i = 0; i < vocabSize; i++) {
+            sum += Math.exp(scores[i] - max);
+        }
+        return (float) (scores[token] - max - Math.log(sum));
+    }
+
+    /**
+     * Computes the log probabilities of every token, as {@link #logProbability} does for one.
+     *
+     * @param logits the logits buffer
+     * @param offset the offset of the row
+     * @param params the generation parameters
+     * @param state the sampling state of the sequence
+     * @param logprobs receives the log probabilities of the first vocabulary-size tokens
+     */
+    public void logProbabilities(FloatBuffer logits, int offset, GenerationParameters params, SamplingState state,
+                                 float[] logprobs) {
+        int forced = state.getForcedToken();
+        if (forced >= 0) {
+            Arrays.fill(logprobs, 0, vocabSize, Float.NEGATIVE_INFINITY);
+            logprobs[forced] = 0f;
+            return;
+        }
+        loadScores(logits, offset, params, state.getCounts(), state.getMask());
+        float max = scores[argmax()];
+        double sum = 0.0;
+        for (int i = 0; i < vocabSize; i++) {
+            sum += Math.exp(scores[i] - max);
+        }
+        float normalizer = (float) (max + Math.log(sum));
+        for (int i = 0; i < vocabSize; i++) {
+            logprobs[i] = scores[i] - normalizer;
+        }
+    }
+
+    /**
+     * Finds the most likely tokens at a position and their log probabilities, as
+     * {@link #logProbability} computes them.
+     *
+     * @param logits the logits buffer
+     * @param offset the offset of the row
+     * @param params the generation parameters
+     * @param state the sampling state of the sequence
+     * @param count the number of tokens to find
+     * @param tokens receives the token ids, most likely first, from index start
+     * @param logprobs receives the log probabilities, from index start
+     * @param start the first index written
+     * @return the number of tokens found, fewer than count if fewer tokens are allowed
+     */
+    public int topLogProbabilities(FloatBuffer logits, int offset, GenerationParameters params, SamplingState state,
+                                   int count, int[] tokens, float[] logprobs, int start) {
+        int forced = state.getForcedToken();
+        if (forced >= 0) {
+            tokens[start] = forced;
+            logprobs[start] = 0f;
+            return 1;
+        }
+        loadScores(logits, offset, params, state.getCounts(), state.getMask());
+        float max = scores[argmax()];
+        double sum = 0.0;
+        for (int i = 0; i < vocabSize; i++) {
+            sum += Math.exp(scores[i] - max);
+        }
+        float normalizer = (float) (max + Math.log(sum));
+        int found = selectTop(scores, vocabSize, count, tokens, logprobs, start);
+        for (int i = start; i < start + found; i++) {
+            logprobs[i] -= normalizer;
+        }
+        return found;
+    }
+
+    /**
+     * Selects the largest finite values of an array by insertion into a sorted window, which
+     * takes one comparison for most values when count is small.
+     *
+     * @param values the values
+     * @param size the number of values
+     * @param count the number of values to select
+     * @param indices receives the indices of the selected values, largest first, from index start
+     * @param selected receives the selected values, from index start
+     * @param start the first index written
+     * @return the number of values selected
+     */
+    static int selectTop(float[] values, int size, int count, int[] indices, float[] selected, int start) {
+        if (count <= 0) {
+            return 0;
+        }
+        int found = 0;
+        for (int i = 0; i < size; i++) {
+            float value = values[i];
+            if (value == Float.NEGATIVE_INFINITY || (found == count && value <= selected[start + found - 1])) {
+                continue;
+            }
+            int j = found < count ? found++ : found - 1;
+            while (j > 0 && selected[start + j - 1] < value) {
+                selected[start + j] = selected[start + j - 1];
+                indices[start + j] = indices[start + j - 1];
+                j--;
+            }
+            selected[start + j] = value;
+            indices[start + j] = i;
+        }
+        return found;
+    }
+
+    /**
+     * Draws a token from a probability distribution.
+     *
+     * @param probabilities the probabilities, which need not be normalized
+     * @param random the random number generator of the sequence
+     * @return the selected token id
+     */
+    public int sample(float[] probabilities, Random random) {
+        double sum = 0.0;
+        for (int i = 0; i < vocabSize; i++) {
+            sum += probabilities[i];
+        }
+        double threshold = random.nextDouble() * sum;
+        double cumulative = 0.0;
+        int last = 0;
+        for (int i = 0; i < vocabSize; i++) {
+            if (probabilities[i] > 0) {
+                cumulative += probabilities[i];
+                last = i;
+                if (cumulative >= threshold) {
+                    return i;
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Decides whether a speculative draft token is kept: it is accepted with probability
+     * min(1, p / q), which preserves the target distribution.
+     *
+     * @param targetProbability the probability p of the token under the target model
+     * @param draftProbability the probability q with which the token was proposed
+     * @param random the random number generator of the sequence
+     * @return true if the token is accepted
+     */
+    public boolean acceptDraft(float targetProbability, float draftProbability, Random random) {
+        return targetProbability >= draftProbability
+                || random.nextFloat() * draftProbability < targetProbability;
+    }
+
+    /**
+     * Draws the replacement of a rejected draft token from the residual distribution max(0, p - q).
+     *
+     * @param target the target distribution p, overwritten with the residual
+     * @param draft the draft distribution q, or null if the draft token was proposed deterministically
+     * @param draftToken the rejected draft token
+     * @param random the random number generator of the sequence
+     * @return the selected token id
+     */
+    public int sampleResidual(float[] target, float[] draft, int draftToken, Random random) {
+        boolean any = false;
+        if (draft == null) {
+            target[draftToken] = 0f;
+            for (int i = 0; i < vocabSize && !any; i++) {
+                any = target[i] > 0;
+            }
+        } else {
+            for (int i = 0; i < vocabSize; i++) {
+                float residual = target[i] - draft[i];
+                target[i] = residual > 0 ? residual : 0f;
+                any |= residual > 0;
+            }
+        }
+        return any ? sample(target, random) : draftToken;
+    }
+
+    private boolean samplesWholeVocabulary(GenerationParameters params) {
+        return (params.getTopK() <= 0 || params.getTopK() >= vocabSize) && params.getTopP() >= 1.0;
+    }
+
+    /**
+     * Copies a row of logits into the scores, runs the logits processors on them and applies the mask.
+     */
+    private void loadScores(FloatBuffer logits, int offset, GenerationParameters params, TokenCounts counts,
+                            TokenMask mask) {
+        // Reuse the view of the buffer, which stays the same across the steps of a sequence
+        if (logits != source) {
+            source = logits;
+            sourceView = logits.duplicate();
+        }
+        sourceView.position(offset);
+        sourceView.get(scores, 0, vocabSize);
+
+        for (LogitsProcessor processor : params.getLogitsProcessors()) {
+            if (counts != null || !processor.usesTokenCounts()) {
+                processor.process(scores, counts);
+            }
+        }
+        if (mask != null) {
+            mask.apply(scores, weights);
+        }
+    }
+
+    /**
+     * Selects the tokens sampled from: the top-k tokens, cut to the top-p nucleus.
+     *
+     * @param params the generation parameters
+     * @param temperature the temperature
+     * @return the number of candidates, best first in candidates, with their unnormalized probabilities in weights
+     */
+    private int selectCandidates(GenerationParameters params, float temperature) {
+        int topK = params.getTopK() > 0 ? Math.min(params.getTopK(), vocabSize) : vocabSize;
+        double topP = params.getTopP();
+
+        if (topK < vocabSize) {
+            // Top-p, if set, applies to the renormalized top-k tokens
+            selectTop(topK, temperature);
+            if (topP >= 1.0) {
+                return topK;
+            }
+            double total = 0.0;
+            for (int i = 0; i < topK; i++) {
+                total += weights[i];
+            }
+            return nucleus(topK, topP * total);
+        }
+
+        // The mass of the nucleus is relative to the whole vocabulary
+        float max = scores[argmax()];
+        double total = 0.0;
+        for (int i = 0; i < vocabSize; i++) {
+            total += Math.exp((scores[i] - max) / temperature);
+        }
+        double threshold = topP * total;
+        int count = Math.min(INITIAL_NUCLEUS_CANDIDATES, vocabSize);
+        while (true) {
+            selectTop(count, temperature);
+            int kept = nucleus(count, threshold);
+            if (kept < count || count == vocabSize) {
+                return kept;
+            }
+            count = (int) Math.min(vocabSize, 4L * count);
+        }
+    }
+
+    /**
+     * Counts the best candidates whose mass first reaches a threshold.
+     *
+     * @param count the number of candidates
+     * @param threshold the mass to reach
+     * @return the number of candidates kept, or count if they do not reach the threshold
+     */
+    private int nucleus(int count, double threshold) {
+        double cumulative = 0.0;
+        for (int i = 0; i < count; i++) {
+            cumulative += weights[i];
+            if (cumulative >= threshold) {
+                return i + 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Selects the n best scoring tokens into candidates, best first, with a bounded min-heap,
+     * and computes their unnormalized probabilities into weights.
+     *
+     * @param n the number of tokens
+     * @param temperature the temperature
+     */
+    private void selectTop(int n, float temperature) {
+        for (int i = 0; i < n; i++) {
+            candidates[i] = i;
+        }
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(i, n);
+        }
+        // The root is the worst of the best n so far
+        float worst = scores[candidates[0]];
+        for (int token = n; token < vocabSize; token++) {
+            if (scores[token] > worst) {
+                candidates[0] = token;
+                siftDown(0, n);
+                worst = scores[candidates[0]];
+            }
+        }
+        // Heap sort: moving each minimum to the end leaves the best first
+        for (int end = n - 1; end > 0; end--) {
+            int minimum = candidates[0];
+            candidates[0] = candidates[end];
+            candidates[end] = minimum;
+            siftDown(0, end);
+        }
+
+        float max = scores[candidates[0]];
+        for (int i = 0; i < n; i++) {
+            weights[i] = (float) Math.exp((scores[candidates[i]] - max) / temperature);
+        }
+    }
+
+    private void siftDown(int index, int size) {
+        int token = candidates[index];
+        float score = scores[token];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && scores[candidates[child + 1]] < scores[candidates[child]]) {
+                child++;
+            }
+            if (scores[candidates[child]] >= score) {
+                break;
+            }
+            candidates[index] = candidates[child];
+            index = child;
+        }
+        candidates[index] = token;
+    }
+
+    private int argmax() {
+        int best = 0;
+        for (int i = 1; i < vocabSize; i++) {
+            if (scores[i] > scores[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
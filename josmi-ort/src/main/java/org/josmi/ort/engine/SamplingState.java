@@ -0,0 +1,153 @@
+package org.josmi.ort.engine;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sampling state of one sequence: its random number generator, seeded from the request if it
+ * sets a seed, the {@link TokenCounts} its penalties read and the state of its output
+ * constraint in the request's {@link TokenGrammar}.
+ * <p>
+ * A state is reused from sequence to sequence, and token counts are only kept for requests
+ * with logits processors that read them. As every sequence draws from its own generator, a
+ * seeded request gives the same output whichever requests it is batched with. The completions
+ * of a request with n above one are seeded apart.
+ */
+public class SamplingState {
+
+    // Spreads the seeds of the completions of a request
+    private static final long SEED_INCREMENT = 0x9E3779B97F4A7C15L;
+
+    private final int vocabSize;
+    private final Random random = new Random();
+    private TokenCounts counts;
+    private boolean counting;
+    private TokenGrammar grammar;
+    private int grammarState;
+
+    /**
+     * Constructs a new SamplingState.
+     *
+     * @param vocabSize the vocabulary size
+     */
+    public SamplingState(int vocabSize) {
+        this.vocabSize = vocabSize;
+    }
+
+    /**
+     * Starts a new sequence.
+     *
+     * @param params the generation parameters of the sequence
+     * @param prompt the prompt tokens
+     * @param promptLength the number of prompt tokens
+     */
+    public void reset(GenerationParameters params, int[] prompt, int promptLength) {
+        reset(params, prompt, promptLength, 0);
+    }
+
+    /**
+     * Starts a new sequence, one of the completions of a request.
+     *
+     * @param params the generation parameters of the sequence
+     * @param prompt the prompt tokens
+     * @param promptLength the number of prompt tokens
+     * @param sample the index of the completion, which the seed of the request is mixed with
+     */
+    public void reset(GenerationParameters params, int[] prompt, int promptLength, int sample) {
+        random.setSeed(params.hasSeed() ? params.getSeed() + sample * SEED_INCREMENT
+                : ThreadLocalRandom.current().nextLong());
+        if (counts != null) {
+            counts.reset();
+        }
+        counting = params.usesTokenCounts();
+        if (counting) {
+            if (counts == null) {
+                counts = new TokenCounts(vocabSize);
+            }
+            counts.addPrompt(prompt, promptLength);
+        }
+        grammar = params.getGrammar();
+        grammarState = grammar != null ? grammar.getInitialState() : 0;
+    }
+
+    /**
+     * Continues from the state of another sequence of the same request, e.g. the beam a new beam
+     * extends. The random number generator is not copied.
+     *
+     * @param source the state to copy
+     */
+    public void copyFrom(SamplingState source) {
+        counting = source.counting;
+        if (counting) {
+            if (counts == null) {
+                counts = new TokenCounts(vocabSize);
+            }
+            counts.copyFrom(source.counts);
+        }
+        grammar = source.grammar;
+        grammarState = source.grammarState;
+    }
+
+    /**
+     * Records a token appended to the sequence.
+     *
+     * @param token the token
+     * @throws IllegalStateException if the output constraint does not allow the token
+     */
+    public void accept(int token) {
+        if (counting) {
+            counts.add(token);
+        }
+        if (grammar != null) {
+            int next = grammar.advance(grammarState, token);
+            if (next < 0) {
+                throw new IllegalStateException("Token " + token + " violates the output constraint");
+            }
+            grammarState = next;
+        }
+    }
+
+    /**
+     * Removes a token from the end of the sequence, e.g. a rejected speculative token. Only the
+     * token counts are rolled back: tokens are checked against the output constraint when they
+     * are accepted, so constrained sequences never remove tokens.
+     *
+     * @param token the token
+     */
+    public void reject(int token) {
+        if (counting) {
+            counts.remove(token);
+        }
+    }
+
+    /**
+     * Gets the tokens the output constraint allows next.
+     *
+     * @return the mask, or null if the sequence is not constrained
+     */
+    public TokenMask getMask() {
+        return grammar != null ? grammar.getMask(grammarState) : null;
+    }
+
+    /**
+     * Gets the token the output constraint forces next, which is taken without sampling.
+     *
+     * @return the forced token id, or -1 if the next token is sampled
+     */
+    public int getForcedToken() {
+        return grammar != null ? grammar.getForcedToken(grammarState) : -1;
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Gets the token counts of the sequence.
+     *
+     * @return the token counts, or null if the logits processors of the sequence read none
+     */
+    public TokenCounts getCounts() {
+        return counting ? counts : null;
+    }
+}
@@ -0,0 +1,78 @@
+package org.josmi.ort.engine;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * State of a sequence handled by the {@link ContinuousBatchScheduler}.
+ */
+class Sequence {
+
+    final int[] tokens;
+    final int promptLength;
+    final GenerationParameters params;
+    final TokenListener listener;
+    final SamplingState samplingState;
+    final int sample;
+    final CompletableFuture<FinishReason> result = new CompletableFuture<>();
+
+    /**
+     * Number of valid entries in tokens; all but the last one are in the key/value cache.
+     */
+    int length;
+    int generated;
+
+    /**
+     * Slot of the sequence in the current batch layout.
+     */
+    int slot = -1;
+
+    /**
+     * Blocks holding the cached positions, once the sequence is prefilled.
+     */
+    BlockTable blocks;
+
+    /**
+     * Other completions of the same prompt, which share the blocks of its prefill.
+     */
+    Sequence[] forks = new Sequence[0];
+
+    /**
+     * Cached positions of a preempted sequence, while they are swapped out of the block pool.
+     */
+    KvSwapSpace.Entry swap;
+
+    /**
+     * Submission number, which orders sequences of equal priority.
+     */
+    long order;
+
+    Sequence(int[] prompt, GenerationParameters params, TokenListener listener, int capacity, int vocabSize,
+             int sample) {
+        this.tokens = new int[Math.min(capacity, prompt.length + Math.max(1, params.getMaxTokens()))];
+        System.arraycopy(prompt, 0, tokens, 0, prompt.length);
+        this.promptLength = prompt.length;
+        this.params = params;
+        this.listener = listener;
+        this.length = prompt.length;
+        this.samplingState = new SamplingState(vocabSize);
+        this.sample = sample;
+        samplingState.reset(params, prompt, prompt.length, sample);
+    }
+
+    /**
+     * Gets the number of positions in the key/value cache.
+     *
+     * @return the number of cached positions
+     */
+    int cachedLength() {
+        return length - 1;
+    }
+
+    int priority() {
+        return params.getPriority();
+    }
+
+    int lastToken() {
+        return tokens[length - 1];
+    }
+}
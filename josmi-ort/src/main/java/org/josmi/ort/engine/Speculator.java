@@ -0,0 +1,49 @@
+package org.josmi.ort.engine;
+
+import org.josmi.api.LlmInferenceException;
+
+import java.util.Random;
+
+/**
+ * Source of speculative tokens that the target model verifies in one forward pass.
+ * <p>
+ * A speculator belongs to one {@link NativeGenerator} and follows the sequence it
+ * generates: it proposes tokens after the committed ones and is told how many
+ * tokens were kept after each verification.
+ */
+public interface Speculator {
+
+    /**
+     * Forgets the previous sequence.
+     */
+    void reset();
+
+    /**
+     * Proposes continuation tokens of a sequence.
+     *
+     * @param tokens the sequence tokens; proposals are written at tokens[length, length + count)
+     * @param length the number of committed tokens
+     * @param maxTokens the maximum number of tokens to propose
+     * @param params the generation parameters
+     * @param random the random number generator of the sequence, for sampled proposals
+     * @return the number of proposed tokens, possibly zero
+     * @throws LlmInferenceException if the proposal fails
+     */
+    int propose(int[] tokens, int length, int maxTokens, GenerationParameters params, Random random)
+            throws LlmInferenceException;
+
+    /**
+     * Gets the distribution a proposal was drawn from, for rejection sampling.
+     *
+     * @param index the index of the proposal in the last {@link #propose} call
+     * @return the probabilities over the target vocabulary, or null if proposals are deterministic
+     */
+    float[] getDistribution(int index);
+
+    /**
+     * Records the outcome of a verification.
+     *
+     * @param length the number of committed tokens; proposals beyond it were rejected
+     */
+    void commit(int length);
+}
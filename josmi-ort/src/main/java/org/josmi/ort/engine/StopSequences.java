@@ -0,0 +1,180 @@
+package org.josmi.ort.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The stop sequences of a request, compiled into an Aho-Corasick automaton over characters.
+ * <p>
+ * The state of a sequence is a state of the automaton, advanced by every character of the
+ * generated text as it is decoded, so finding the first stop sequence costs a constant
+ * amortized time per character however many stop sequences there are, and no text is scanned
+ * twice. Where several stop sequences end at the same character, the longest one, which
+ * starts first, is the match. An automaton is immutable and shared by the sequences of a
+ * request.
+ */
+public final class StopSequences {
+
+    private final List<String> sequences;
+    // The trie of the sequences: the children of a state are a list linked through nextSibling
+    private final char[] character;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] failure;
+    // Length of the longest sequence that ends with the text of a state, 0 if none
+    private final int[] matchLength;
+
+    private StopSequences(List<String> sequences) {
+        this.sequences = Collections.unmodifiableList(sequences);
+        int capacity = 1;
+        for (String sequence : sequences) {
+            capacity += sequence.length();
+        }
+        this.character = new char[capacity];
+        this.firstChild = new int[capacity];
+        this.nextSibling = new int[capacity];
+        this.failure = new int[capacity];
+        this.matchLength = new int[capacity];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+
+        int states = 1;
+        for (String sequence : sequences) {
+            int state = 0;
+            for (int i = 0; i < sequence.length(); i++) {
+                int child = child(state, sequence.charAt(i));
+                if (child < 0) {
+                    child = states++;
+                    character[child] = sequence.charAt(i);
+                    nextSibling[child] = firstChild[state];
+                    firstChild[state] = child;
+                }
+                state = child;
+            }
+            matchLength[state] = sequence.length();
+        }
+
+        // Breadth first, so the failure state of a state is complete before its children's
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child = firstChild[0]; child >= 0; child = nextSibling[child]) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            if (matchLength[state] == 0) {
+                matchLength[state] = matchLength[failure[state]];
+            }
+            for (int child = firstChild[state]; child >= 0; child = nextSibling[child]) {
+                failure[child] = state == 0 ? 0 : step(failure[state], character[child]);
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Compiles stop sequences.
+     *
+     * @param value a stop sequence, or a collection or array of them
+     * @return the automaton, or null if there is no non-empty stop sequence
+     */
+    public static StopSequences of(Object value) {
+        List<String> sequences = new ArrayList<>();
+        if (value instanceof Collection) {
+            for (Object sequence : (Collection<?>) value) {
+                add(sequences, sequence);
+            }
+        } else if (value instanceof Object[]) {
+            for (Object sequence : (Object[]) value) {
+                add(sequences, sequence);
+            }
+        } else {
+            add(sequences, value);
+        }
+        return sequences.isEmpty() ? null : new StopSequences(sequences);
+    }
+
+    private static void add(List<String> sequences, Object sequence) {
+        if (sequence != null && !sequence.toString().isEmpty() && !sequences.contains(sequence.toString())) {
+            sequences.add(sequence.toString());
+        }
+    }
+
+    /**
+     * Gets the stop sequences.
+     *
+     * @return the distinct non-empty stop sequences
+     */
+    public List<String> getSequences() {
+        return sequences;
+    }
+
+    /**
+     * Gets the state of a sequence before any text is generated.
+     *
+     * @return the initial state
+     */
+    public int getInitialState() {
+        return 0;
+    }
+
+    /**
+     * Advances a state by a character of the generated text.
+     *
+     * @param state the state
+     * @param c the character
+     * @return the next state
+     */
+    public int step(int state, char c) {
+        while (true) {
+            int child = child(state, c);
+            if (child >= 0) {
+                return child;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = failure[state];
+        }
+    }
+
+    /**
+     * Gets the length of the stop sequence the text of a state ends with.
+     *
+     * @param state the state
+     * @return the length of the longest stop sequence ending at the last character, or 0 if none
+     */
+    public int getMatchLength(int state) {
+        return matchLength[state];
+    }
+
+    /**
+     * Finds the first stop sequence in a text, e.g. one generated without early termination.
+     *
+     * @param text the text
+     * @return the index where the first stop sequence starts, or -1 if there is none
+     */
+    public int indexIn(CharSequence text) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, text.charAt(i));
+            if (matchLength[state] > 0) {
+                return i + 1 - matchLength[state];
+            }
+        }
+        return -1;
+    }
+
+    private int child(int state, char c) {
+        for (int child = firstChild[state]; child >= 0; child = nextSibling[child]) {
+            if (character[child] == c) {
+                return child;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,62 @@
+package org.josmi.ort.engine;
+
+import org.josmi.api.LlmInferenceException;
+
+/**
+ * Converts between text and token ids for the native generation engine.
+ */
+public interface TextTokenizer extends AutoCloseable {
+
+    /**
+     * Encodes text into token ids.
+     *
+     * @param text the text to encode
+     * @return the token ids
+     * @throws LlmInferenceException if the text cannot be encoded
+     */
+    int[] encode(String text) throws LlmInferenceException;
+
+    /**
+     * Decodes token ids into text.
+     *
+     * @param tokens the token ids
+     * @return the decoded text
+     * @throws LlmInferenceException if the tokens cannot be decoded
+     */
+    String decode(int[] tokens) throws LlmInferenceException;
+
+    /**
+     * Creates a decoder that turns a stream of token ids into text fragments.
+     *
+     * @return a new streaming decoder
+     * @throws LlmInferenceException if the decoder cannot be created
+     */
+    TokenDecoder newDecoder() throws LlmInferenceException;
+
+    /**
+     * Releases the resources held by this tokenizer.
+     */
+    @Override
+    void close();
+
+    /**
+     * Incremental decoder for a single token stream.
+     */
+    interface TokenDecoder extends AutoCloseable {
+
+        /**
+         * Decodes the next token of the stream.
+         *
+         * @param token the token id
+         * @return the text fragment, possibly empty while a multi-token character is incomplete
+         * @throws LlmInferenceException if the token cannot be decoded
+         */
+        String decode(int token) throws LlmInferenceException;
+
+        /**
+         * Releases the resources held by this decoder.
+         */
+        @Override
+        void close();
+    }
+}
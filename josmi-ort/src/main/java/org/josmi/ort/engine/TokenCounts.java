@@ -0,0 +1,147 @@
+package org.josmi.ort.engine;
+
+import java.util.Arrays;
+
+/**
+ * Occurrences of the tokens of a sequence, updated as tokens are generated so that penalties
+ * never rescan the sequence.
+ * <p>
+ * The counts are dense arrays over the vocabulary, but the tokens that occur are also kept in
+ * a list, so that penalties and {@link #reset()} only visit those: a step costs as much as the
+ * number of distinct tokens, not the length of the sequence or the size of the vocabulary.
+ */
+public class TokenCounts {
+
+    private static final int INITIAL_DISTINCT_CAPACITY = 256;
+
+    // Occurrences among the generated tokens
+    private final int[] counts;
+    private final boolean[] inPrompt;
+    // Whether the token is in the distinct list, which may keep tokens whose generated occurrences were removed
+    private final boolean[] listed;
+    private int[] distinct = new int[INITIAL_DISTINCT_CAPACITY];
+    private int distinctCount;
+
+    /**
+     * Constructs a new TokenCounts.
+     *
+     * @param vocabSize the vocabulary size
+     */
+    public TokenCounts(int vocabSize) {
+        this.counts = new int[vocabSize];
+        this.inPrompt = new boolean[vocabSize];
+        this.listed = new boolean[vocabSize];
+    }
+
+    /**
+     * Forgets the previous sequence.
+     */
+    public void reset() {
+        for (int i = 0; i < distinctCount; i++) {
+            int token = distinct[i];
+            counts[token] = 0;
+            inPrompt[token] = false;
+            listed[token] = false;
+        }
+        distinctCount = 0;
+    }
+
+    /**
+     * Replaces the counts with those of another sequence.
+     *
+     * @param source the counts to copy
+     */
+    public void copyFrom(TokenCounts source) {
+        reset();
+        for (int i = 0; i < source.distinctCount; i++) {
+            int token = source.distinct[i];
+            counts[token] = source.counts[token];
+            inPrompt[token] = source.inPrompt[token];
+            list(token);
+        }
+    }
+
+    /**
+     * Records the tokens of a prompt.
+     *
+     * @param tokens the prompt tokens
+     * @param length the number of prompt tokens
+     */
+    public void addPrompt(int[] tokens, int length) {
+        for (int i = 0; i < length; i++) {
+            int token = tokens[i];
+            inPrompt[token] = true;
+            list(token);
+        }
+    }
+
+    /**
+     * Records a generated token.
+     *
+     * @param token the token
+     */
+    public void add(int token) {
+        counts[token]++;
+        list(token);
+    }
+
+    /**
+     * Removes a generated token, e.g. a speculative token that was rolled back.
+     *
+     * @param token the token
+     */
+    public void remove(int token) {
+        if (counts[token] > 0) {
+            counts[token]--;
+        }
+    }
+
+    private void list(int token) {
+        if (!listed[token]) {
+            listed[token] = true;
+            if (distinctCount == distinct.length) {
+                distinct = Arrays.copyOf(distinct, 2 * distinct.length);
+            }
+            distinct[distinctCount++] = token;
+        }
+    }
+
+    /**
+     * Gets the number of distinct tokens recorded since the last reset.
+     *
+     * @return the number of distinct tokens
+     */
+    public int getDistinctCount() {
+        return distinctCount;
+    }
+
+    /**
+     * Gets a distinct recorded token. The token may no longer occur if its generated occurrences were removed.
+     *
+     * @param index the index, less than {@link #getDistinctCount()}
+     * @return the token
+     */
+    public int getDistinctToken(int index) {
+        return distinct[index];
+    }
+
+    /**
+     * Gets the number of times a token was generated.
+     *
+     * @param token the token
+     * @return the number of occurrences among the generated tokens
+     */
+    public int getCount(int token) {
+        return counts[token];
+    }
+
+    /**
+     * Checks whether a token occurs in the prompt or the generated tokens.
+     *
+     * @param token the token
+     * @return true if the token occurs
+     */
+    public boolean occurs(int token) {
+        return inPrompt[token] || counts[token] > 0;
+    }
+}
@@ -0,0 +1,188 @@
+package org.josmi.ort.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Output constraint compiled for a vocabulary: a {@link CharacterAutomaton} whose states carry
+ * the {@link TokenMask} of the tokens that keep the text a prefix of a match.
+ * <p>
+ * The state of a sequence is a state of the automaton, advanced by the text of every token the
+ * sequence commits. The mask of a state is computed by walking the vocabulary trie against the
+ * automaton the first time a sequence reaches the state, and kept for every later sequence with
+ * the same grammar. End-of-sequence tokens are allowed in accepting states only.
+ * <p>
+ * Where the constraint leaves no choice, e.g. the property names and punctuation of a JSON
+ * schema, tokens are forced instead of sampled: if a state allows a single token, or the
+ * automaton can only continue with a fixed text, the longest token that spells the beginning
+ * of that text is forced. The token that reaches the end of the fixed text is still sampled, so
+ * that the model can pick a token that also spans what follows. A grammar is thread-safe.
+ */
+public class TokenGrammar {
+
+    /**
+     * Maximum length of the fixed text looked at for a forced token.
+     */
+    private static final int MAX_FORCED_TEXT = 256;
+
+    private final String pattern;
+    private final CharacterAutomaton automaton;
+    private final TokenVocabulary vocabulary;
+    private final AtomicReferenceArray<StateTokens> stateTokens;
+
+    /**
+     * The tokens of a state, computed when a sequence first reaches it.
+     */
+    private static final class StateTokens {
+        private final TokenMask mask;
+        private final int forcedToken;
+
+        private StateTokens(TokenMask mask, int forcedToken) {
+            this.mask = mask;
+            this.forcedToken = forcedToken;
+        }
+    }
+
+    /**
+     * Constructs a new TokenGrammar.
+     *
+     * @param pattern the regular expression the output must match
+     * @param vocabulary the vocabulary of the model
+     * @throws IllegalArgumentException if the expression cannot be compiled
+     */
+    public TokenGrammar(String pattern, TokenVocabulary vocabulary) {
+        this.pattern = pattern;
+        this.automaton = CharacterAutomaton.compile(pattern);
+        this.vocabulary = vocabulary;
+        this.stateTokens = new AtomicReferenceArray<>(automaton.getStateCount());
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public int getInitialState() {
+        return automaton.getInitialState();
+    }
+
+    /**
+     * Checks whether the text of a state is a full match, so the sequence may end.
+     *
+     * @param state the state
+     * @return true if the state is accepting
+     */
+    public boolean isAccepting(int state) {
+        return automaton.isAccepting(state);
+    }
+
+    /**
+     * Advances a state by a token.
+     *
+     * @param state the state
+     * @param token the token id
+     * @return the next state, or -1 if the token is not allowed
+     */
+    public int advance(int state, int token) {
+        if (vocabulary.isEos(token)) {
+            return automaton.isAccepting(state) ? state : -1;
+        }
+        String text = vocabulary.getText(token);
+        return text != null ? automaton.step(state, text) : -1;
+    }
+
+    /**
+     * Gets the tokens allowed in a state.
+     *
+     * @param state the state
+     * @return the mask of the allowed tokens
+     */
+    public TokenMask getMask(int state) {
+        return tokens(state).mask;
+    }
+
+    /**
+     * Gets the token a state forces.
+     *
+     * @param state the state
+     * @return the forced token id, or -1 if the next token is sampled
+     */
+    public int getForcedToken(int state) {
+        return tokens(state).forcedToken;
+    }
+
+    private StateTokens tokens(int state) {
+        StateTokens tokens = stateTokens.get(state);
+        if (tokens == null) {
+            // Racing sequences may compute the same tokens, which is harmless
+            tokens = computeTokens(state);
+            stateTokens.set(state, tokens);
+        }
+        return tokens;
+    }
+
+    private StateTokens computeTokens(int state) {
+        int[] allowed = new int[vocabulary.getSize() + vocabulary.getEosTokenIds().length];
+        int count = 0;
+        int[] states = new int[vocabulary.getMaxDepth() + 1];
+        states[0] = state;
+        int nodes = vocabulary.getNodeCount();
+        for (int node = 0; node < nodes; ) {
+            int depth = vocabulary.getNodeDepth(node);
+            int next = automaton.step(states[depth - 1], vocabulary.getNodeCharacter(node));
+            if (next < 0) {
+                // No token starting with this prefix is allowed
+                node = vocabulary.getSubtreeEnd(node);
+                continue;
+            }
+            states[depth] = next;
+            for (int i = vocabulary.getTokenStart(node); i < vocabulary.getTokenEnd(node); i++) {
+                allowed[count++] = vocabulary.getSortedToken(i);
+            }
+            node++;
+        }
+        // A state no token can continue from ends the sequence rather than forcing an arbitrary token
+        if (automaton.isAccepting(state) || count == 0) {
+            for (int token : vocabulary.getEosTokenIds()) {
+                if (token >= 0 && token < vocabulary.getSize()) {
+                    allowed[count++] = token;
+                }
+            }
+        }
+        Arrays.sort(allowed, 0, count);
+
+        int forcedToken = count == 1 ? allowed[0] : longestForcedToken(state);
+        return new StateTokens(new TokenMask(allowed, count, vocabulary.getSize()), forcedToken);
+    }
+
+    /**
+     * Finds the longest token whose text is a proper prefix of the fixed text a state must continue with.
+     */
+    private int longestForcedToken(int state) {
+        StringBuilder text = new StringBuilder();
+        int c;
+        while (text.length() < MAX_FORCED_TEXT && (c = automaton.getForcedCharacter(state)) >= 0) {
+            text.append((char) c);
+            state = automaton.step(state, (char) c);
+        }
+
+        int forcedToken = -1;
+        // Descend the trie along the text: the children of a node follow it in preorder
+        int node = 0;
+        int end = vocabulary.getNodeCount();
+        for (int depth = 0; depth < text.length() - 1 && node < end; depth++) {
+            char next = text.charAt(depth);
+            while (node < end && vocabulary.getNodeCharacter(node) != next) {
+                node = vocabulary.getSubtreeEnd(node);
+            }
+            if (node >= end) {
+                break;
+            }
+            if (vocabulary.getTokenStart(node) < vocabulary.getTokenEnd(node)) {
+                forcedToken = vocabulary.getSortedToken(vocabulary.getTokenStart(node));
+            }
+            end = vocabulary.getSubtreeEnd(node);
+            node++;
+        }
+        return forcedToken;
+    }
+}
@@ -0,0 +1,54 @@
+package org.josmi.ort.engine;
+
+import org.josmi.api.LlmInferenceException;
+
+/**
+ * Listener notified of every token generated for a sequence.
+ */
+public interface TokenListener {
+
+    /**
+     * Called when a token has been generated.
+     *
+     * @param token the token id
+     * @return true to continue generating, false to stop
+     * @throws LlmInferenceException if the token cannot be processed
+     */
+    boolean onToken(int token) throws LlmInferenceException;
+
+    /**
+     * Called when a token has been generated, with its log probability if the generation
+     * parameters ask for it (see {@link GenerationParameters#needsLogprobs()}).
+     *
+     * @param token the token id
+     * @param logprob the log probability of the token, or NaN if it is not computed
+     * @return true to continue generating, false to stop
+     * @throws LlmInferenceException if the token cannot be processed
+     */
+    default boolean onToken(int token, float logprob) throws LlmInferenceException {
+        return onToken(token);
+    }
+
+    /**
+     * Called before {@link #onToken(int, float)} or {@link #onEndOfSequence(int, float)} with the
+     * most likely tokens at the position of the token, if the generation parameters ask for them
+     * (see {@link GenerationParameters#getTopLogprobs()}). The arrays are only valid during the call.
+     *
+     * @param tokens the token ids, most likely first
+     * @param logprobs the log probabilities of the tokens
+     * @param start the index of the first token
+     * @param count the number of tokens
+     */
+    default void onTopLogprobs(int[] tokens, float[] logprobs, int start, int count) {
+    }
+
+    /**
+     * Called when the model produced an end-of-sequence token, which ends the sequence without
+     * being passed to {@link #onToken(int)}.
+     *
+     * @param token the end-of-sequence token id
+     * @param logprob the log probability of the token, or NaN if it is not computed
+     */
+    default void onEndOfSequence(int token, float logprob) {
+    }
+}
@@ -0,0 +1,84 @@
+package org.josmi.ort.engine;
+
+import java.util.Arrays;
+
+/**
+ * The tokens allowed in one state of a {@link TokenGrammar}.
+ * <p>
+ * A mask lists whichever is shorter, the allowed or the forbidden tokens, so that applying it
+ * costs as much as the smaller of the two: a state inside a JSON string allows almost every
+ * token, a state between JSON members only a handful.
+ */
+public final class TokenMask {
+
+    private final boolean allowList;
+    private final int[] tokens;
+    private final int allowedCount;
+
+    /**
+     * Constructs a new TokenMask.
+     *
+     * @param allowed the allowed tokens, in increasing order
+     * @param count the number of allowed tokens
+     * @param vocabSize the vocabulary size
+     */
+    TokenMask(int[] allowed, int count, int vocabSize) {
+        this.allowedCount = count;
+        this.allowList = count <= vocabSize - count;
+        if (allowList) {
+            this.tokens = Arrays.copyOf(allowed, count);
+        } else {
+            this.tokens = new int[vocabSize - count];
+            int forbidden = 0;
+            int next = 0;
+            for (int token = 0; token < vocabSize; token++) {
+                if (next < count && allowed[next] == token) {
+                    next++;
+                } else {
+                    tokens[forbidden++] = token;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of allowed tokens.
+     *
+     * @return the number of allowed tokens
+     */
+    public int getAllowedCount() {
+        return allowedCount;
+    }
+
+    /**
+     * Checks whether a token is allowed.
+     *
+     * @param token the token id
+     * @return true if the token is allowed
+     */
+    public boolean allows(int token) {
+        return (Arrays.binarySearch(tokens, token) >= 0) == allowList;
+    }
+
+    /**
+     * Sets the scores of the forbidden tokens to negative infinity.
+     *
+     * @param scores the scores of the vocabulary
+     * @param scratch scratch space at least as long as the allowed tokens
+     */
+    public void apply(float[] scores, float[] scratch) {
+        if (!allowList) {
+            for (int token : tokens) {
+                scores[token] = Float.NEGATIVE_INFINITY;
+            }
+            return;
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            scratch[i] = scores[tokens[i]];
+        }
+        Arrays.fill(scores, Float.NEGATIVE_INFINITY);
+        for (int i = 0; i < tokens.length; i++) {
+            scores[tokens[i]] = scratch[i];
+        }
+    }
+}
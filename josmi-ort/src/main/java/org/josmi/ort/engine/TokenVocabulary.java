@@ -0,0 +1,228 @@
+package org.josmi.ort.engine;
+
+import org.josmi.api.LlmInferenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The text of every token of a model, arranged as a character trie for {@link TokenGrammar}.
+ * <p>
+ * The trie is stored as flat arrays in preorder, each node with its character, its depth and
+ * the end of its subtree, so that walking the whole vocabulary against an automaton is one
+ * pass over the arrays that skips the subtree of every prefix the automaton rejects. Tokens
+ * sharing a prefix are visited once for the prefix.
+ * <p>
+ * Tokens without text of their own, such as special tokens and the pieces of a multi-byte
+ * character, are left out, as is every end-of-sequence token: constraints allow those only
+ * where the text may end.
+ */
+public class TokenVocabulary {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenVocabulary.class);
+
+    private final int size;
+    private final String[] texts;
+    private final int[] eosTokenIds;
+    private final boolean[] eos;
+    private final int nodeCount;
+    private final int maxDepth;
+    private final char[] nodeCharacter;
+    private final int[] nodeDepth;
+    private final int[] subtreeEnd;
+    // Tokens whose text ends at node n are sortedTokens[tokenStart[n], tokenEnd[n])
+    private final int[] tokenStart;
+    private final int[] tokenEnd;
+    private final int[] sortedTokens;
+
+    /**
+     * Constructs a new TokenVocabulary.
+     *
+     * @param texts the text of each token id, null for tokens without text
+     * @param eosTokenIds the end-of-sequence token ids
+     */
+    public TokenVocabulary(String[] texts, int[] eosTokenIds) {
+        this.size = texts.length;
+        this.texts = texts.clone();
+        this.eosTokenIds = eosTokenIds.clone();
+        this.eos = new boolean[size];
+        for (int token : eosTokenIds) {
+            if (token >= 0 && token < size) {
+                eos[token] = true;
+                this.texts[token] = null;
+            }
+        }
+
+        Integer[] order = new Integer[size];
+        int count = 0;
+        long characters = 0;
+        for (int token = 0; token < size; token++) {
+            if (this.texts[token] != null && this.texts[token].isEmpty()) {
+                this.texts[token] = null;
+            }
+            if (this.texts[token] != null) {
+                order[count++] = token;
+                characters += this.texts[token].length();
+            }
+        }
+        String[] sortedTexts = this.texts;
+        Arrays.sort(order, 0, count, Comparator.comparing(token -> sortedTexts[token]));
+
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, characters);
+        char[] character = new char[capacity];
+        int[] depth = new int[capacity];
+        int[] end = new int[capacity];
+        int[] firstToken = new int[capacity];
+        int[] lastToken = new int[capacity];
+        this.sortedTokens = new int[count];
+        // Nodes on the path of the previous text, by depth - 1
+        int[] path = new int[16];
+        int pathLength = 0;
+        int nodes = 0;
+        int deepest = 0;
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int token = order[i];
+            String text = this.texts[token];
+            int common = 0;
+            int limit = Math.min(text.length(), previous.length());
+            while (common < limit && text.charAt(common) == previous.charAt(common)) {
+                common++;
+            }
+            // Close the subtrees the new text leaves
+            while (pathLength > common) {
+                end[path[--pathLength]] = nodes;
+            }
+            for (int d = common; d < text.length(); d++) {
+                character[nodes] = text.charAt(d);
+                depth[nodes] = d + 1;
+                if (pathLength == path.length) {
+                    path = Arrays.copyOf(path, path.length * 2);
+                }
+                path[pathLength++] = nodes;
+                nodes++;
+            }
+            // In text order, a text is never a proper prefix of the previous one, and the tokens
+            // of equal texts are consecutive
+            int node = path[pathLength - 1];
+            if (lastToken[node] == 0) {
+                firstToken[node] = i;
+            }
+            lastToken[node] = i + 1;
+            sortedTokens[i] = token;
+            deepest = Math.max(deepest, text.length());
+            previous = text;
+        }
+        while (pathLength > 0) {
+            end[path[--pathLength]] = nodes;
+        }
+
+        this.nodeCount = nodes;
+        this.maxDepth = deepest;
+        this.nodeCharacter = Arrays.copyOf(character, nodes);
+        this.nodeDepth = Arrays.copyOf(depth, nodes);
+        this.subtreeEnd = Arrays.copyOf(end, nodes);
+        this.tokenStart = Arrays.copyOf(firstToken, nodes);
+        this.tokenEnd = Arrays.copyOf(lastToken, nodes);
+    }
+
+    /**
+     * Decodes every token of a vocabulary with a tokenizer.
+     * <p>
+     * Each token is decoded after an anchor token and the anchor's text is removed, so that
+     * tokenizers that drop the leading space of the first token still report it.
+     *
+     * @param tokenizer the tokenizer
+     * @param vocabSize the vocabulary size of the model
+     * @param eosTokenIds the end-of-sequence token ids
+     * @return the vocabulary
+     * @throws LlmInferenceException if the anchor token cannot be encoded
+     */
+    public static TokenVocabulary load(TextTokenizer tokenizer, int vocabSize, int[] eosTokenIds)
+            throws LlmInferenceException {
+        long start = System.currentTimeMillis();
+        int[] anchorTokens = tokenizer.encode("a");
+        if (anchorTokens.length == 0) {
+            throw new LlmInferenceException("Tokenizer encodes no token for the vocabulary anchor");
+        }
+        int anchor = anchorTokens[anchorTokens.length - 1];
+        String anchorText = tokenizer.decode(new int[]{anchor});
+        String[] texts = new String[vocabSize];
+        int[] pair = {anchor, 0};
+        for (int token = 0; token < vocabSize; token++) {
+            try {
+                pair[1] = token;
+                String text = tokenizer.decode(pair);
+                texts[token] = text.startsWith(anchorText) ? text.substring(anchorText.length())
+                        : tokenizer.decode(new int[]{token});
+            } catch (LlmInferenceException e) {
+                // Ids beyond the tokenizer's vocabulary, which some models pad their embeddings with
+                texts[token] = null;
+            }
+            if (texts[token] != null && texts[token].indexOf('\uFFFD') >= 0) {
+                // An incomplete multi-byte character has no text of its own
+                texts[token] = null;
+            }
+        }
+        TokenVocabulary vocabulary = new TokenVocabulary(texts, eosTokenIds);
+        logger.info("Decoded vocabulary of {} tokens into {} trie nodes in {} ms", vocabSize,
+                vocabulary.nodeCount, System.currentTimeMillis() - start);
+        return vocabulary;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the text of a token.
+     *
+     * @param token the token id
+     * @return the text, or null if the token has no text of its own or ends the sequence
+     */
+    public String getText(int token) {
+        return token >= 0 && token < size ? texts[token] : null;
+    }
+
+    public int[] getEosTokenIds() {
+        return eosTokenIds;
+    }
+
+    public boolean isEos(int token) {
+        return token >= 0 && token < size && eos[token];
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    char getNodeCharacter(int node) {
+        return nodeCharacter[node];
+    }
+
+    int getNodeDepth(int node) {
+        return nodeDepth[node];
+    }
+
+    int getSubtreeEnd(int node) {
+        return subtreeEnd[node];
+    }
+
+    int getTokenStart(int node) {
+        return tokenStart[node];
+    }
+
+    int getTokenEnd(int node) {
+        return tokenEnd[node];
+    }
+
+    int getSortedToken(int index) {
+        return sortedTokens[index];
+    }
+}
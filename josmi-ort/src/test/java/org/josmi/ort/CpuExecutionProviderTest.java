@@ -0,0 +1,29 @@
+package org.josmi.ort;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link CpuExecutionProvider}.
+ */
+public class CpuExecutionProviderTest {
+
+    @Test
+    public void testParseInOrderOfPreference() {
+        assertEquals(Arrays.asList(CpuExecutionProvider.XNNPACK, CpuExecutionProvider.DNNL,
+                CpuExecutionProvider.DEFAULT), CpuExecutionProvider.parse("xnnpack, DNNL,xnnpack"));
+        assertEquals(Arrays.asList(CpuExecutionProvider.DEFAULT, CpuExecutionProvider.DNNL),
+                CpuExecutionProvider.parse("cpu,dnnl"));
+    }
+
+    @Test
+    public void testParseIgnoresOtherDevices() {
+        assertEquals(Collections.singletonList(CpuExecutionProvider.DEFAULT), CpuExecutionProvider.parse("CUDA"));
+        assertEquals(Arrays.asList(CpuExecutionProvider.DNNL, CpuExecutionProvider.DEFAULT),
+                CpuExecutionProvider.parse("DirectML,dnnl"));
+    }
+}
@@ -0,0 +1,133 @@
+package org.josmi.ort;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxTensorLike;
+import ai.onnxruntime.OrtEnvironment;
+import org.josmi.api.LlmInferenceException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ExternalWeights}, on hand-built model protos.
+ */
+public class ExternalWeightsTest {
+
+    private static final int FLOAT = 1;
+    private static final String DATA_FILE = "model.onnx.data";
+
+    @Test
+    public void testMapsExternalInitializers(@TempDir Path directory) throws Exception {
+        ProtoWriter graph = new ProtoWriter()
+                .string(2, "graph")
+                // Unpacked dims, with an explicit offset and length
+                .message(5, external("weight", false, new long[]{4, 256}, 1024 * Float.BYTES, 4096L))
+                // Packed dims, without a length
+                .message(5, external("packed", true, new long[]{2, 256}, 2048 * Float.BYTES, null))
+                // No offset: the data starts at the beginning of the file
+                .message(5, external("tied", true, new long[]{256}, null, null))
+                // Left to ONNX Runtime: inline, too small, or longer than a buffer can map
+                .message(5, new ProtoWriter().varint(1, 512).varint(2, FLOAT).string(8, "inline")
+                        .bytes(9, new byte[512 * Float.BYTES]))
+                .message(5, external("small", false, new long[]{4}, 0, null))
+                .message(5, external("huge", true, new long[]{1L << 20, 1L << 10}, 0, null))
+                .fixed32(99, 7);
+        ProtoWriter model = new ProtoWriter()
+                .varint(1, 8)
+                .string(2, "test")
+                .message(7, graph)
+                .message(8, new ProtoWriter().string(1, "").varint(2, 13));
+        Path modelFile = directory.resolve("model.onnx");
+        Files.write(modelFile, model.toByteArray());
+        writeData(directory.resolve(DATA_FILE), 3072);
+
+        try (ExternalWeights weights = ExternalWeights.map(OrtEnvironment.getEnvironment(), modelFile)) {
+            Map<String, OnnxTensorLike> initializers = weights.getInitializers();
+            assertEquals(3, weights.getCount());
+            assertEquals(3, initializers.size());
+            assertEquals((1024 + 512 + 256) * Float.BYTES, weights.getMappedBytes());
+
+            assertTensor(initializers.get("weight"), new long[]{4, 256}, 1024);
+            assertTensor(initializers.get("packed"), new long[]{2, 256}, 2048);
+            assertTensor(initializers.get("tied"), new long[]{256}, 0);
+            assertFalse(initializers.containsKey("inline"));
+            assertFalse(initializers.containsKey("small"));
+            assertFalse(initializers.containsKey("huge"));
+        }
+    }
+
+    @Test
+    public void testModelWithoutExternalData(@TempDir Path directory) throws Exception {
+        Path modelFile = directory.resolve("model.onnx");
+        Files.write(modelFile, new ProtoWriter().varint(1, 8).message(7, new ProtoWriter().string(2, "graph"))
+                .toByteArray());
+        try (ExternalWeights weights = ExternalWeights.map(OrtEnvironment.getEnvironment(), modelFile)) {
+            assertEquals(0, weights.getCount());
+            assertEquals(0, weights.getMappedBytes());
+        }
+    }
+
+    @Test
+    public void testMissingDataFile(@TempDir Path directory) throws Exception {
+        Path modelFile = directory.resolve("model.onnx");
+        Files.write(modelFile, new ProtoWriter().message(7, new ProtoWriter()
+                .message(5, external("weight", false, new long[]{256}, null, null))).toByteArray());
+        assertThrows(LlmInferenceException.class,
+                () -> ExternalWeights.map(OrtEnvironment.getEnvironment(), modelFile));
+    }
+
+    /**
+     * Builds a float TensorProto stored in the data file.
+     */
+    private static ProtoWriter external(String name, boolean packedDims, long[] dims, Integer offset, Long length) {
+        ProtoWriter tensor = new ProtoWriter();
+        if (packedDims) {
+            tensor.packed(1, dims);
+        } else {
+            for (long dim : dims) {
+                tensor.varint(1, dim);
+            }
+        }
+        tensor.varint(2, FLOAT).string(8, name);
+        tensor.message(13, entry("location", DATA_FILE));
+        if (offset != null) {
+            tensor.message(13, entry("offset", Integer.toString(offset)));
+        }
+        if (length != null) {
+            tensor.message(13, entry("length", Long.toString(length)));
+        }
+        return tensor.varint(14, 1);
+    }
+
+    private static ProtoWriter entry(String key, String value) {
+        return new ProtoWriter().string(1, key).string(2, value);
+    }
+
+    /**
+     * Writes floats whose values are their indices.
+     */
+    private static void writeData(Path file, int floats) throws Exception {
+        ByteBuffer data = ByteBuffer.allocate(floats * Float.BYTES).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < floats; i++) {
+            data.putFloat(i);
+        }
+        Files.write(file, data.array());
+    }
+
+    private static void assertTensor(OnnxTensorLike initializer, long[] shape, int firstValue) throws Exception {
+        OnnxTensor tensor = (OnnxTensor) initializer;
+        assertArrayEquals(shape, tensor.getInfo().getShape());
+        FloatBuffer values = tensor.getFloatBuffer();
+        for (int i = 0; i < values.capacity(); i++) {
+            assertEquals(firstValue + i, values.get(i));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.josmi.ort;
+
+import org.josmi.api.LlmInferenceException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link LoraAdapterCache}.
+ */
+public class LoraAdapterCacheTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Records the adapters loaded and unloaded.
+     */
+    private static class RecordingBackend implements LoraAdapterCache.Backend<String> {
+        final List<String> loaded = new ArrayList<>();
+        final List<String> unloaded = new ArrayList<>();
+
+        @Override
+        public synchronized String load(String name, Path file) {
+            loaded.add(name);
+            return file.getFileName().toString();
+        }
+
+        @Override
+        public synchronized void unload(String name, String adapter) {
+            unloaded.add(name);
+        }
+    }
+
+    private void createAdapters(String... names) throws Exception {
+        for (String name : names) {
+            Files.createFile(directory.resolve(name + LoraAdapterCache.FILE_EXTENSION));
+        }
+    }
+
+    @Test
+    public void testLoadsOnceAndEvictsLeastRecentlyUsed() throws Exception {
+        createAdapters("a", "b", "c");
+        RecordingBackend backend = new RecordingBackend();
+        LoraAdapterCache<String> cache = new LoraAdapterCache<>(directory, Collections.emptyMap(), 2, backend);
+
+        try (LoraAdapterCache.Lease<String> lease = cache.acquire("a")) {
+            assertEquals("a.onnx_adapter", lease.getAdapter());
+        }
+        cache.acquire("b").close();
+        cache.acquire("a").close();
+        assertEquals(Arrays.asList("a", "b"), backend.loaded);
+
+        cache.acquire("c").close();
+        assertEquals(Collections.singletonList("b"), backend.unloaded);
+        assertEquals(Arrays.asList("a", "c"), cache.getResidentAdapters());
+
+        cache.close();
+        assertEquals(Arrays.asList("b", "a", "c"), backend.unloaded);
+    }
+
+    @Test
+    public void testAdapterInUseIsNotUnloaded() throws Exception {
+        createAdapters("a", "b");
+        RecordingBackend backend = new RecordingBackend();
+        LoraAdapterCache<String> cache = new LoraAdapterCache<>(directory, Collections.emptyMap(), 1, backend);
+
+        LoraAdapterCache.Lease<String> a = cache.acquire("a");
+        LoraAdapterCache.Lease<String> b = cache.acquire("b");
+        assertTrue(backend.unloaded.isEmpty());
+
+        a.close();
+        assertEquals(Collections.singletonList("a"), backend.unloaded);
+        b.close();
+        assertEquals(Collections.singletonList("b"), cache.getResidentAdapters());
+    }
+
+    @Test
+    public void testUnknownAdapters() throws Exception {
+        Path file = Files.createFile(directory.resolve("custom.bin"));
+        Map<String, Path> files = LoraAdapterCache.parseFiles("custom=" + file);
+        LoraAdapterCache<String> cache = new LoraAdapterCache<>(directory, files, 4, new RecordingBackend());
+
+        cache.acquire("custom").close();
+        assertThrows(LlmInferenceException.class, () -> cache.acquire("missing"));
+        assertThrows(LlmInferenceException.class, () -> cache.acquire("../custom"));
+        assertThrows(LlmInferenceException.class, () -> LoraAdapterCache.parseFiles("custom"));
+    }
+
+    @Test
+    public void testFailedLoadCanBeRetried() throws Exception {
+        createAdapters("a");
+        int[] attempts = new int[1];
+        LoraAdapterCache<String> cache = new LoraAdapterCache<>(directory, Collections.emptyMap(), 4,
+                new LoraAdapterCache.Backend<String>() {
+                    @Override
+                    public String load(String name, Path file) throws Exception {
+                        if (attempts[0]++ == 0) {
+                            throw new IllegalStateException("Corrupt adapter");
+                        }
+                        return name;
+                    }
+
+                    @Override
+                    public void unload(String name, String adapter) {
+                    }
+                });
+
+        assertThrows(LlmInferenceException.class, () -> cache.acquire("a"));
+        cache.acquire("a").close();
+        assertEquals(Collections.singletonList("a"), cache.getResidentAdapters());
+    }
+}
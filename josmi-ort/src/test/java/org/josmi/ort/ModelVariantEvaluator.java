@@ -0,0 +1,210 @@
+package org.josmi.ort;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import org.josmi.api.LlmInferenceException;
+import org.josmi.ort.engine.DecoderBenchmark;
+import org.josmi.ort.engine.DecoderModel;
+import org.josmi.ort.engine.GenAIModelConfig;
+import org.josmi.ort.engine.GenAITokenizer;
+import org.josmi.ort.engine.NativeGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the trade-off between the variants of a model: prefill and decode throughput,
+ * the resident memory added by a session, and the perplexity on an evaluation text
+ * relative to the most precise variant (fp32 if present).
+ * <p>
+ * Run it as a tool from the test classpath to write the report that the "fastest" and
+ * "accuracy-floor" variant policies read:
+ * <pre>
+ * java org.josmi.ort.ModelVariantEvaluator &lt;model-dir&gt; &lt;evaluation-text&gt; [threads]
+ * </pre>
+ */
+public class ModelVariantEvaluator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelVariantEvaluator.class);
+
+    static final int MAX_PERPLEXITY_WINDOW = 1024;
+
+    private final OrtEnvironment environment;
+    private final int threads;
+
+    /**
+     * Constructs a new ModelVariantEvaluator.
+     *
+     * @param environment the ONNX Runtime environment
+     * @param threads the number of intra-op threads of the sessions, 0 for the default
+     */
+    public ModelVariantEvaluator(OrtEnvironment environment, int threads) {
+        this.environment = environment;
+        this.threads = threads;
+    }
+
+    /**
+     * Measures the variants of a model. Variants that cannot be run are logged and left out.
+     *
+     * @param root the root model directory of the variants
+     * @param variants the variants, most precise first
+     * @param evaluationTokens the token ids of the evaluation text
+     * @return the report
+     */
+    public ModelVariantReport evaluate(Path root, List<ModelVariant> variants, int[] evaluationTokens) {
+        List<ModelVariantReport.Entry> entries = new ArrayList<>();
+        double referencePerplexity = 0;
+        for (ModelVariant variant : variants) {
+            String id = variant.getId(root);
+            logger.info("Evaluating model variant {}", variant);
+            long residentBefore = residentBytes();
+            try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+                if (threads > 0) {
+                    options.setIntraOpNumThreads(threads);
+                }
+                try (OrtSession session = environment.createSession(
+                        variant.getDirectory().resolve(variant.getModelFile()).toString(), options)) {
+                    GenAIModelConfig modelConfig = GenAIModelConfig.load(variant.getDirectory());
+                    DecoderModel model = DecoderModel.inspect(environment, session, modelConfig);
+                    DecoderBenchmark benchmark = new DecoderBenchmark(model, modelConfig,
+                            DecoderBenchmark.DEFAULT_PROMPT_TOKENS, DecoderBenchmark.DEFAULT_GENERATED_TOKENS);
+                    double prefill = benchmark.measurePrefill();
+                    double decode = benchmark.measureDecode();
+                    double perplexity = measurePerplexity(model, modelConfig, evaluationTokens);
+                    long residentAfter = residentBytes();
+                    if (referencePerplexity == 0) {
+                        referencePerplexity = perplexity;
+                    }
+                    entries.add(new ModelVariantReport.Entry(id, variant.getPrecision(), variant.getSizeBytes(),
+                            residentBefore >= 0 ? Math.max(0, residentAfter - residentBefore) : -1, prefill, decode,
+                            perplexity, perplexity / referencePerplexity - 1));
+                }
+            } catch (OrtException | LlmInferenceException e) {
+                logger.warn("Failed to evaluate model variant {}: {}", id, e.getMessage());
+            }
+        }
+        return new ModelVariantReport(entries);
+    }
+
+    /**
+     * Reads the resident memory of the process on Linux.
+     *
+     * @return the resident memory in bytes, or -1 if unknown
+     */
+    static long residentBytes() {
+        Path status = Paths.get("/proc/self/status");
+        try {
+            if (Files.isReadable(status)) {
+                for (String line : Files.readAllLines(status)) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.debug("Cannot read {}", status, e);
+        }
+        return -1;
+    }
+
+    /**
+     * Measures the perplexity of a model on a text, in windows of up to the context length
+     * (at most {@link #MAX_PERPLEXITY_WINDOW} tokens) that each start with an empty cache.
+     *
+     * @param model the decoder model
+     * @param modelConfig the GenAI model configuration
+     * @param tokens the token ids of the text
+     * @return the perplexity, the exponential of the mean negative log-likelihood of each token
+     *         given the previous ones in its window
+     * @throws LlmInferenceException if the text has fewer than two tokens, or the forward pass fails
+     */
+    static double measurePerplexity(DecoderModel model, GenAIModelConfig modelConfig, int[] tokens)
+            throws LlmInferenceException {
+        if (tokens.length < 2) {
+            throw new LlmInferenceException("Perplexity requires at least two tokens");
+        }
+        int window = Math.min(MAX_PERPLEXITY_WINDOW, modelConfig.getContextLength() - 1);
+        int chunk = NativeGenerator.DEFAULT_PREFILL_CHUNK;
+        NativeGenerator generator = new NativeGenerator(model, modelConfig, window + 1, chunk);
+        FloatBuffer logits = generator.getLogits();
+        int vocabSize = model.getVocabSize();
+
+        double negativeLogLikelihood = 0;
+        int predicted = 0;
+        for (int windowStart = 0; windowStart < tokens.length - 1; windowStart += window) {
+            int[] text = Arrays.copyOfRange(tokens, windowStart, Math.min(tokens.length, windowStart + window));
+            for (int start = 0; start < text.length - 1; start += chunk) {
+                int end = Math.min(text.length, start + chunk);
+                if (start == 0) {
+                    generator.prefill(Arrays.copyOf(text, end));
+                } else {
+                    generator.extend(text, start, end);
+                }
+                // Row i holds the distribution of the token following position start + i
+                for (int row = 0; start + row + 1 < text.length && row < end - start; row++) {
+                    negativeLogLikelihood -= logProbability(logits, row * vocabSize, vocabSize,
+                            text[start + row + 1]);
+                    predicted++;
+                }
+            }
+        }
+        return Math.exp(negativeLogLikelihood / predicted);
+    }
+
+    private static double logProbability(FloatBuffer logits, int offset, int vocabSize, int token) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < vocabSize; i++) {
+            max = Math.max(max, logits.get(offset + i));
+        }
+        double sum = 0;
+        for (int i = 0; i < vocabSize; i++) {
+            sum += Math.exp(logits.get(offset + i) - max);
+        }
+        return logits.get(offset + token) - max - Math.log(sum);
+    }
+
+    /**
+     * Evaluates the variants of a model directory, prints the report and writes it to the directory.
+     *
+     * @param args the model directory, the evaluation text file and optionally the number of threads
+     * @throws Exception if the variants cannot be evaluated
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: ModelVariantEvaluator <model-dir> <evaluation-text> [threads]");
+            System.out.println("  model-dir: directory holding the model variants");
+            System.out.println("  evaluation-text: text file the perplexity is measured on");
+            return;
+        }
+
+        Path root = Paths.get(args[0]);
+        String text = new String(Files.readAllBytes(Paths.get(args[1])), StandardCharsets.UTF_8);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        List<ModelVariant> variants = ModelVariant.discover(root);
+        if (variants.isEmpty()) {
+            System.err.println("No model variants found in " + root);
+            return;
+        }
+        // The variants of a model share its tokenizer
+        int[] evaluationTokens;
+        try (GenAITokenizer tokenizer = new GenAITokenizer(variants.get(0).getDirectory().toString())) {
+            evaluationTokens = tokenizer.encode(text);
+        }
+
+        ModelVariantReport report = new ModelVariantEvaluator(OrtEnvironment.getEnvironment(), threads)
+                .evaluate(root, variants, evaluationTokens);
+        System.out.print(report);
+        report.store(root.resolve(ModelVariantReport.FILE_NAME));
+    }
+}
@@ -0,0 +1,167 @@
+package org.josmi.ort;
+
+import org.josmi.api.LlmInferenceException;
+import org.josmi.ort.ModelVariant.Precision;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ModelVariant} discovery and selection, over a directory of dummy model files.
+ */
+public class ModelVariantTest {
+
+    private static final String INT4 = "cpu-int4-rtn-block-32/decoder.onnx";
+
+    @TempDir
+    Path root;
+
+    private List<ModelVariant> variants;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // ONNX files of the model directory, one with external data
+        write(root.resolve("model.onnx"), 400);
+        write(root.resolve("model.onnx.data"), 600);
+        write(root.resolve("model_fp16.onnx"), 500);
+        write(root.resolve("model_int8.onnx"), 250);
+        write(root.resolve("README.md"), 10);
+        // A GenAI model directory naming its decoder
+        Path int4 = Files.createDirectory(root.resolve("cpu-int4-rtn-block-32"));
+        writeGenAIConfig(int4, "decoder.onnx");
+        write(int4.resolve("decoder.onnx"), 120);
+        write(int4.resolve("embeddings.onnx"), 30);
+        // A GenAI model directory with a single ONNX file
+        Path fp16 = Files.createDirectory(root.resolve("gpu-fp16"));
+        writeGenAIConfig(fp16, null);
+        write(fp16.resolve("model.onnx"), 450);
+        // Ignored: no GenAI configuration, or no decoder named among several files
+        Path other = Files.createDirectory(root.resolve("other"));
+        write(other.resolve("model_int4.onnx"), 100);
+        Path ambiguous = Files.createDirectory(root.resolve("ambiguous-int4"));
+        writeGenAIConfig(ambiguous, null);
+        write(ambiguous.resolve("a.onnx"), 10);
+        write(ambiguous.resolve("b.onnx"), 10);
+
+        variants = ModelVariant.discover(root);
+    }
+
+    @Test
+    public void testDiscover() {
+        // Most precise first, then by identifier
+        assertEquals(Arrays.asList("model.onnx", "gpu-fp16/model.onnx", "model_fp16.onnx", "model_int8.onnx", INT4),
+                ids(variants));
+        assertEquals(Arrays.asList(Precision.FP32, Precision.FP16, Precision.FP16, Precision.INT8, Precision.INT4),
+                variants.stream().map(ModelVariant::getPrecision).collect(Collectors.toList()));
+        // The size includes the external data
+        assertEquals(1000, variants.get(0).getSizeBytes());
+        assertEquals(120, variant(INT4).getSizeBytes());
+        assertEquals(root.resolve("cpu-int4-rtn-block-32"), variant(INT4).getDirectory());
+        assertEquals("decoder.onnx", variant(INT4).getModelFile());
+    }
+
+    @Test
+    public void testDetectPrecision() throws Exception {
+        assertEquals(Precision.FP32, Precision.detect("model.onnx"));
+        assertEquals(Precision.FP32, Precision.detect("model_fp32.onnx"));
+        assertEquals(Precision.FP16, Precision.detect("model-half.onnx"));
+        assertEquals(Precision.INT8, Precision.detect("model_quantized.onnx"));
+        assertEquals(Precision.INT4, Precision.detect("Phi-3-mini-4k-instruct-cpu-int4-rtn-block-32-acc-level-4"));
+        // The narrowest marker wins
+        assertEquals(Precision.INT4, Precision.detect("model_q4f16.onnx"));
+        assertEquals(Precision.INT8, Precision.detect("fp16 model_int8.onnx"));
+        // Markers are whole words
+        assertEquals(Precision.FP32, Precision.detect("print4.onnx"));
+
+        assertEquals(Precision.INT8, Precision.fromName(" INT8 "));
+        assertThrows(LlmInferenceException.class, () -> Precision.fromName("bf16"));
+    }
+
+    @Test
+    public void testSelectSmallest() throws Exception {
+        assertEquals(INT4, select(ModelVariant.POLICY_SMALLEST, null, null));
+    }
+
+    @Test
+    public void testSelectFastest() throws Exception {
+        // Without measurements, the narrowest precision
+        assertEquals(INT4, select(ModelVariant.POLICY_FASTEST, null, null));
+        assertEquals("model.onnx", ModelVariant.select(root, variants.subList(0, 3), "Fastest", null, null)
+                .getId(root));
+
+        // With measurements, the highest decode throughput of the measured variants
+        assertEquals("model_int8.onnx", select(ModelVariant.POLICY_FASTEST, null, report()));
+    }
+
+    @Test
+    public void testSelectWithinPrecisionFloor() throws Exception {
+        assertEquals("model_int8.onnx", select(ModelVariant.POLICY_ACCURACY_FLOOR, "int8", null));
+        assertEquals("model.onnx", select(ModelVariant.POLICY_ACCURACY_FLOOR, "fp16", null));
+        assertEquals(INT4, select(ModelVariant.POLICY_ACCURACY_FLOOR, "int4", null));
+        assertThrows(LlmInferenceException.class, () -> select(ModelVariant.POLICY_ACCURACY_FLOOR, "bf16", null));
+    }
+
+    @Test
+    public void testSelectWithinPerplexityFloor(@TempDir Path reports) throws Exception {
+        // The report survives a round trip through its file
+        Path file = reports.resolve(ModelVariantReport.FILE_NAME);
+        report().store(file);
+        ModelVariantReport report = ModelVariantReport.load(file);
+
+        assertEquals("model_int8.onnx", select(ModelVariant.POLICY_ACCURACY_FLOOR, "0.05", report));
+        // The measured throughput decides, not the precision
+        assertEquals("model_int8.onnx", select(ModelVariant.POLICY_ACCURACY_FLOOR, "0.5", report));
+        // Unmeasured variants do not qualify
+        assertEquals("model.onnx", select(ModelVariant.POLICY_ACCURACY_FLOOR, "0.01", report));
+        assertThrows(LlmInferenceException.class, () -> select(ModelVariant.POLICY_ACCURACY_FLOOR, "-0.01", report));
+        assertThrows(LlmInferenceException.class, () -> select(ModelVariant.POLICY_ACCURACY_FLOOR, "0.05", null));
+    }
+
+    @Test
+    public void testSelectErrors() {
+        assertThrows(LlmInferenceException.class, () -> select("best", null, null));
+        assertThrows(LlmInferenceException.class, () -> ModelVariant.select(root, Collections.emptyList(),
+                ModelVariant.POLICY_FASTEST, null, null));
+    }
+
+    private static ModelVariantReport report() {
+        return new ModelVariantReport(Arrays.asList(
+                new ModelVariantReport.Entry("model.onnx", Precision.FP32, 1000, -1, 200, 10, 8.0, 0.0),
+                new ModelVariantReport.Entry("model_int8.onnx", Precision.INT8, 250, -1, 150, 30, 8.1, 0.02),
+                new ModelVariantReport.Entry(INT4, Precision.INT4, 120, -1, 120, 25, 9.0, 0.12)));
+    }
+
+    private String select(String policy, String accuracyFloor, ModelVariantReport report)
+            throws LlmInferenceException {
+        return ModelVariant.select(root, variants, policy, accuracyFloor, report).getId(root);
+    }
+
+    private ModelVariant variant(String id) {
+        return variants.stream().filter(variant -> variant.getId(root).equals(id)).findFirst().get();
+    }
+
+    private List<String> ids(List<ModelVariant> variants) {
+        return variants.stream().map(variant -> variant.getId(root)).collect(Collectors.toList());
+    }
+
+    private static void write(Path file, int size) throws IOException {
+        Files.write(file, new byte[size]);
+    }
+
+    private static void writeGenAIConfig(Path directory, String decoder) throws IOException {
+        String filename = decoder != null ? ",\"filename\":\"" + decoder + "\"" : "";
+        Files.write(directory.resolve("genai_config.json"),
+                ("{\"model\":{\"decoder\":{\"session_options\":{}" + filename + "},\"context_length\":64}}")
+                        .getBytes());
+    }
+}
@@ -0,0 +1,64 @@
+package org.josmi.ort;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes protobuf messages field by field, to build ONNX models in tests.
+ */
+public final class ProtoWriter {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    public ProtoWriter varint(int field, long value) {
+        writeVarint((long) field << 3);
+        writeVarint(value);
+        return this;
+    }
+
+    public ProtoWriter fixed32(int field, int value) {
+        writeVarint((long) field << 3 | 5);
+        for (int i = 0; i < 4; i++) {
+            out.write(value >>> (8 * i));
+        }
+        return this;
+    }
+
+    public ProtoWriter bytes(int field, byte[] value) {
+        writeVarint((long) field << 3 | 2);
+        writeVarint(value.length);
+        out.write(value, 0, value.length);
+        return this;
+    }
+
+    public ProtoWriter string(int field, String value) {
+        return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ProtoWriter message(int field, ProtoWriter message) {
+        return bytes(field, message.toByteArray());
+    }
+
+    /**
+     * Writes repeated varints as one packed field.
+     */
+    public ProtoWriter packed(int field, long... values) {
+        ProtoWriter packed = new ProtoWriter();
+        for (long value : values) {
+            packed.writeVarint(value);
+        }
+        return bytes(field, packed.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
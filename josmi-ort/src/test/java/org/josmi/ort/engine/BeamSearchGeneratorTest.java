@@ -0,0 +1,197 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtSession;
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BeamSearchGenerator}.
+ */
+public class BeamSearchGeneratorTest {
+
+    private static final int VOCAB_SIZE = 4;
+
+    @Test
+    public void testBeamSearchParameters() {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("num_beams", 4);
+        parameters.put("n", 2);
+        parameters.put("length_penalty", 0.5);
+        parameters.put("early_stopping", "true");
+        GenerationParameters params = GenerationParameters.from(parameters, null);
+        assertEquals(4, params.getNumBeams());
+        assertEquals(0.5, params.getLengthPenalty());
+        assertTrue(params.isEarlyStopping());
+        parameters.put("n", 5);
+        assertThrows(IllegalArgumentException.class, () -> GenerationParameters.from(parameters, null));
+    }
+
+    @Test
+    public void testBeamInheritsPenalties() {
+        // A beam continuing another one starts from its penalties
+        GenerationParameters penalized = GenerationParameters.builder().repetitionPenalty(2.0).numBeams(2).build();
+        SamplingState parent = new SamplingState(VOCAB_SIZE);
+        parent.reset(penalized, new int[]{0, 3}, 1);
+        parent.accept(1);
+        SamplingState child = new SamplingState(VOCAB_SIZE);
+        child.reset(penalized, new int[]{2}, 1);
+        child.copyFrom(parent);
+        child.accept(2);
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        float[] logprobs = new float[VOCAB_SIZE];
+        sampler.logProbabilities(logits(2f, 2f, 2f, 2f), 0, penalized, child, logprobs);
+        float[] expected = softmax(1f, 1f, 1f, 2f);
+        for (int token = 0; token < VOCAB_SIZE; token++) {
+            assertEquals(Math.log(expected[token]), logprobs[token], 1e-5);
+            assertEquals(logprobs[token], sampler.logProbability(logits(2f, 2f, 2f, 2f), 0, penalized, child, token),
+                    1e-6);
+        }
+    }
+
+    @Test
+    public void testLengthNormalisation() {
+        assertEquals(-6.0, BeamSearchGenerator.normalize(-6.0, 4, penalty(0.0)), 1e-12);
+        assertEquals(-1.5, BeamSearchGenerator.normalize(-6.0, 4, penalty(1.0)), 1e-12);
+        assertEquals(-3.0, BeamSearchGenerator.normalize(-6.0, 4, penalty(0.5)), 1e-12);
+        // An empty sequence is not divided by zero
+        assertEquals(-2.0, BeamSearchGenerator.normalize(-2.0, 0, penalty(1.0)), 1e-12);
+
+        // A positive penalty favours the longer of two sequences of the same mean log probability
+        assertTrue(BeamSearchGenerator.normalize(-8.0, 8, penalty(2.0))
+                > BeamSearchGenerator.normalize(-4.0, 4, penalty(2.0)));
+    }
+
+    @Test
+    public void testHypothesesKeptByScore() {
+        List<BeamSearchGenerator.Hypothesis> finished = new ArrayList<>();
+        BeamSearchGenerator.Hypothesis worst = hypothesis(-3.0);
+        BeamSearchGenerator.Hypothesis best = hypothesis(-1.0);
+        BeamSearchGenerator.Hypothesis middle = hypothesis(-2.0);
+        BeamSearchGenerator.addHypothesis(finished, 2, worst);
+        BeamSearchGenerator.addHypothesis(finished, 2, best);
+        assertEquals(Arrays.asList(best, worst), finished);
+
+        // A better hypothesis pushes out the worst kept one, a worse one is dropped
+        BeamSearchGenerator.addHypothesis(finished, 2, middle);
+        assertEquals(Arrays.asList(best, middle), finished);
+        BeamSearchGenerator.addHypothesis(finished, 2, hypothesis(-4.0));
+        assertEquals(Arrays.asList(best, middle), finished);
+
+        // Ties keep the hypothesis found first
+        BeamSearchGenerator.Hypothesis tie = hypothesis(-1.0);
+        BeamSearchGenerator.addHypothesis(finished, 2, tie);
+        assertEquals(Arrays.asList(best, tie), finished);
+    }
+
+    @Test
+    public void testSearchEnds() {
+        GenerationParameters params = penalty(1.0);
+        List<BeamSearchGenerator.Hypothesis> finished = new ArrayList<>();
+        BeamSearchGenerator.addHypothesis(finished, 2, hypothesis(-1.0));
+        // Fewer finished hypotheses than beams
+        assertFalse(BeamSearchGenerator.isDone(finished, 2, 0.0, 10, params));
+
+        BeamSearchGenerator.addHypothesis(finished, 2, hypothesis(-2.0));
+        // The best running beam, -10 / 4 = -2.5, cannot beat the worst kept hypothesis
+        assertTrue(BeamSearchGenerator.isDone(finished, 2, -10.0, 4, params));
+        // It still can, -6 / 4 = -1.5
+        assertFalse(BeamSearchGenerator.isDone(finished, 2, -6.0, 4, params));
+
+        // With early stopping, num_beams finished hypotheses end the search
+        GenerationParameters early = GenerationParameters.builder().lengthPenalty(1.0).earlyStopping(true).build();
+        assertTrue(BeamSearchGenerator.isDone(finished, 2, -6.0, 4, early));
+        assertFalse(BeamSearchGenerator.isDone(finished, 3, -6.0, 4, early));
+    }
+
+    @Test
+    public void testBestBeamsOfToyDecoder() throws Exception {
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        try (OrtSession session = environment.createSession(ToyDecoder.build(), new OrtSession.SessionOptions())) {
+            // The end of sequence token is outside the vocabulary, so every beam runs to max_tokens
+            GenAIModelConfig modelConfig = new GenAIModelConfig(new int[]{ToyDecoder.VOCAB + 1}, 256,
+                    ToyDecoder.VOCAB, 0, 0);
+            DecoderModel model = DecoderModel.inspect(environment, session, modelConfig);
+            int[] prompt = {3, 1, 4, 1, 5, 9, 2, 6};
+            int maxTokens = 20;
+
+            List<Integer> greedy = new ArrayList<>();
+            NativeGenerator generator = new NativeGenerator(model, modelConfig, 256);
+            generator.generate(prompt, GenerationParameters.builder().maxTokens(maxTokens).temperature(0).build(),
+                    token -> greedy.add(token));
+
+            GenerationParameters params = GenerationParameters.builder()
+                    .maxTokens(maxTokens)
+                    .numBeams(3)
+                    .n(3)
+                    .build();
+            List<List<Integer>> beams = new ArrayList<>();
+            double[] scores = new double[3];
+            TokenListener[] listeners = new TokenListener[3];
+            for (int i = 0; i < listeners.length; i++) {
+                List<Integer> tokens = new ArrayList<>();
+                beams.add(tokens);
+                int beam = i;
+                listeners[i] = new TokenListener() {
+                    @Override
+                    public boolean onToken(int token) {
+                        return tokens.add(token);
+                    }
+
+                    @Override
+                    public boolean onToken(int token, float logprob) {
+                        scores[beam] += logprob;
+                        return onToken(token);
+                    }
+                };
+            }
+            FinishReason[] reasons = new BeamSearchGenerator(model, modelConfig, 256).generate(prompt, params,
+                    listeners);
+
+            // Every step of the toy decoder has one likely token, so the greedy sequence is the best
+            assertArrayEquals(new FinishReason[]{FinishReason.LENGTH, FinishReason.LENGTH, FinishReason.LENGTH},
+                    reasons);
+            assertEquals(greedy, beams.get(0));
+            for (List<Integer> beam : beams) {
+                assertEquals(maxTokens, beam.size());
+            }
+            assertNotEquals(beams.get(0), beams.get(1));
+            assertNotEquals(beams.get(1), beams.get(2));
+            assertNotEquals(beams.get(0), beams.get(2));
+            assertTrue(scores[0] > scores[1]);
+            assertTrue(scores[1] >= scores[2]);
+        }
+    }
+
+    private static GenerationParameters penalty(double lengthPenalty) {
+        return GenerationParameters.builder().lengthPenalty(lengthPenalty).build();
+    }
+
+    private static BeamSearchGenerator.Hypothesis hypothesis(double score) {
+        return new BeamSearchGenerator.Hypothesis(new int[0], new float[0], score, 0, 0f);
+    }
+
+    private static float[] softmax(float... scores) {
+        float[] probabilities = new float[scores.length];
+        double sum = 0;
+        for (float score : scores) {
+            sum += Math.exp(score);
+        }
+        for (int i = 0; i < scores.length; i++) {
+            probabilities[i] = (float) (Math.exp(scores[i]) / sum);
+        }
+        return probabilities;
+    }
+
+    private static FloatBuffer logits(float... values) {
+        return FloatBuffer.wrap(values);
+    }
+}
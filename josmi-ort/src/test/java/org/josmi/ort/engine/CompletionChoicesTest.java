@@ -0,0 +1,86 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the sampling of several completions of one request, with n and best_of.
+ */
+public class CompletionChoicesTest {
+
+    private static final int VOCAB_SIZE = 4;
+
+    @Test
+    public void testCompletionParameters() {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("temperature", 1.0);
+        parameters.put("n", 2);
+        parameters.put("best_of", 3);
+        GenerationParameters params = GenerationParameters.from(parameters, null);
+        assertEquals(2, params.getN());
+        assertEquals(3, params.getBestOf());
+        // Ranking the completions needs their log probabilities
+        assertTrue(params.needsLogprobs());
+        parameters.put("best_of", 1);
+        assertThrows(IllegalArgumentException.class, () -> GenerationParameters.from(parameters, null));
+    }
+
+    @Test
+    public void testSeedOfEveryCompletion() {
+        GenerationParameters params = GenerationParameters.builder().temperature(1.0).seed(1234).n(3).build();
+
+        // Each completion draws from its own seed, the first from the seed of the request
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        SamplingState[] states = new SamplingState[3];
+        for (int sample = 0; sample < states.length; sample++) {
+            states[sample] = new SamplingState(VOCAB_SIZE);
+            states[sample].reset(params, new int[]{0}, 1, sample);
+        }
+        SamplingState single = state(params);
+        boolean differ = false;
+        for (int i = 0; i < 64; i++) {
+            int first = sampler.sample(logits(1f, 1f, 1f, 1f), 0, params, states[0]);
+            assertEquals(sampler.sample(logits(1f, 1f, 1f, 1f), 0, params, single), first);
+            differ |= sampler.sample(logits(1f, 1f, 1f, 1f), 0, params, states[1]) != first;
+        }
+        assertTrue(differ);
+    }
+
+    @Test
+    public void testLogProbabilityBeforeTemperature() {
+        GenerationParameters hot = GenerationParameters.builder().temperature(2.0).build();
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        float[] expected = softmax(2f, 1f, 0f, -1f);
+        for (int token = 0; token < VOCAB_SIZE; token++) {
+            assertEquals(Math.log(expected[token]),
+                    sampler.logProbability(logits(2f, 1f, 0f, -1f), 0, hot, state(hot), token), 1e-5);
+        }
+    }
+
+    private static SamplingState state(GenerationParameters params) {
+        SamplingState state = new SamplingState(VOCAB_SIZE);
+        state.reset(params, new int[]{0}, 1);
+        return state;
+    }
+
+    private static float[] softmax(float... scores) {
+        float[] probabilities = new float[scores.length];
+        double sum = 0;
+        for (float score : scores) {
+            sum += Math.exp(score);
+        }
+        for (int i = 0; i < scores.length; i++) {
+            probabilities[i] = (float) (Math.exp(scores[i]) / sum);
+        }
+        return probabilities;
+    }
+
+    private static FloatBuffer logits(float... values) {
+        return FloatBuffer.wrap(values);
+    }
+}
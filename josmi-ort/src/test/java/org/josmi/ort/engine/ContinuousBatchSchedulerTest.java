@@ -0,0 +1,69 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the chunked prefill of {@link ContinuousBatchScheduler}.
+ */
+public class ContinuousBatchSchedulerTest {
+
+    private static final int BLOCK_SIZE = 4;
+
+    @Test
+    public void testPrefillChunksAfterCachedPrefix() {
+        // A cached prefix of 2 blocks, not a multiple of the chunk size
+        assertEquals(Arrays.asList(8, 11, 14, 15), chunkBounds(8, 15, 3));
+        // A cached prefix of 1 block in chunks larger than a block
+        assertEquals(Arrays.asList(4, 10, 16, 17), chunkBounds(4, 17, 6));
+        // A single chunk when the rest of the prompt fits
+        assertEquals(Arrays.asList(8, 10), chunkBounds(8, 10, 512));
+        // Without a cached prefix
+        assertEquals(Arrays.asList(0, 5, 7), chunkBounds(0, 7, 5));
+    }
+
+    @Test
+    public void testPrefillChunksOfMatchedPrompt() {
+        KvBlockPool pool = new KvBlockPool(2, 1, 4, BLOCK_SIZE, 16);
+        PrefixCache cache = new PrefixCache(pool);
+        int[] cached = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        BlockTable first = new BlockTable(pool);
+        assertTrue(first.reserve(0, cached.length));
+        first.setLength(cached.length);
+        cache.insert(cached, first);
+
+        int[] prompt = {1, 2, 3, 4, 5, 6, 7, 8, 10, 11, 12, 13, 14, 15};
+        BlockTable matched = cache.match(prompt, prompt.length - 1);
+        int from = matched.getLength();
+        assertEquals(8, from);
+
+        // The chunks cover every uncached prompt position once, and no more than a chunk at a time
+        int chunk = 5;
+        List<Integer> bounds = chunkBounds(from, prompt.length, chunk);
+        assertEquals(Arrays.asList(8, 13, 14), bounds);
+        for (int i = 1; i < bounds.size(); i++) {
+            int size = bounds.get(i) - bounds.get(i - 1);
+            assertTrue(size > 0 && size <= chunk);
+        }
+        matched.free();
+        first.free();
+    }
+
+    /**
+     * Gets the start of every chunk of a prompt prefilled from a cached prefix, and the prompt length.
+     */
+    private static List<Integer> chunkBounds(int cached, int promptLength, int chunk) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(cached);
+        for (int from = cached; from < promptLength; ) {
+            from = ContinuousBatchScheduler.prefillChunkEnd(from, promptLength, chunk);
+            bounds.add(from);
+        }
+        return bounds;
+    }
+}
@@ -0,0 +1,164 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KvBlockPool} and {@link BlockTable}.
+ */
+public class KvBlockPoolTest {
+
+    // Two tensors, two heads, 4-byte rows, 4 positions per block
+    private static final int TENSORS = 2;
+    private static final int HEADS = 2;
+    private static final int ROW_BYTES = 4;
+    private static final int BLOCK_SIZE = 4;
+
+    @Test
+    public void testAllocateAndRelease() {
+        KvBlockPool pool = new KvBlockPool(TENSORS, HEADS, ROW_BYTES, BLOCK_SIZE, 3);
+        int a = pool.allocate();
+        int b = pool.allocate();
+        int c = pool.allocate();
+        assertTrue(a >= 0 && b >= 0 && c >= 0);
+        assertEquals(-1, pool.allocate());
+        assertEquals(0, pool.getAvailableBlocks());
+
+        pool.retain(b);
+        pool.release(b);
+        assertEquals(0, pool.getAvailableBlocks());
+        pool.release(b);
+        assertEquals(1, pool.getAvailableBlocks());
+        assertEquals(b, pool.allocate());
+        assertThrows(IllegalStateException.class, () -> {
+            pool.release(a);
+            pool.release(a);
+        });
+    }
+
+    @Test
+    public void testWriteAndReadAcrossBlocks() {
+        KvBlockPool pool = new KvBlockPool(TENSORS, HEADS, ROW_BYTES, BLOCK_SIZE, 8);
+        BlockTable table = new BlockTable(pool);
+        int length = 10;
+        assertTrue(table.reserve(0, length));
+        assertEquals(3, table.getNumBlocks());
+
+        for (int tensor = 0; tensor < TENSORS; tensor++) {
+            table.write(tensor, sequence(tensor, length), 0, (long) length * ROW_BYTES, 0, length);
+        }
+        table.setLength(length);
+
+        for (int tensor = 0; tensor < TENSORS; tensor++) {
+            ByteBuffer target = buffer(length);
+            table.read(tensor, 0, length, target, 0, (long) length * ROW_BYTES);
+            assertEquals(sequence(tensor, length), target);
+        }
+    }
+
+    @Test
+    public void testForkCopiesSharedBlockOnWrite() {
+        KvBlockPool pool = new KvBlockPool(TENSORS, HEADS, ROW_BYTES, BLOCK_SIZE, 8);
+        BlockTable parent = new BlockTable(pool);
+        int length = 6;
+        assertTrue(parent.reserve(0, length));
+        for (int tensor = 0; tensor < TENSORS; tensor++) {
+            parent.write(tensor, sequence(tensor, length), 0, (long) length * ROW_BYTES, 0, length);
+        }
+        parent.setLength(length);
+
+        BlockTable child = parent.fork(length);
+        assertEquals(2, pool.getUsedBlocks());
+        assertEquals(2, pool.getRefCount(parent.getBlock(1)));
+
+        // Writing position 6 touches the shared second block, which gets copied
+        assertTrue(child.reserve(length, length + 1));
+        assertEquals(3, pool.getUsedBlocks());
+        assertNotEquals(parent.getBlock(1), child.getBlock(1));
+        assertEquals(parent.getBlock(0), child.getBlock(0));
+
+        ByteBuffer target = buffer(length);
+        child.read(0, 0, length, target, 0, (long) length * ROW_BYTES);
+        assertEquals(sequence(0, length), target);
+
+        child.free();
+        parent.free();
+        assertEquals(0, pool.getUsedBlocks());
+    }
+
+    @Test
+    public void testDefragmentRemapsTables() {
+        KvBlockPool pool = new KvBlockPool(TENSORS, HEADS, ROW_BYTES, BLOCK_SIZE, 8);
+        BlockTable first = new BlockTable(pool);
+        BlockTable second = new BlockTable(pool);
+        assertTrue(first.reserve(0, 8));
+        int length = 8;
+        assertTrue(second.reserve(0, length));
+        for (int tensor = 0; tensor < TENSORS; tensor++) {
+            second.write(tensor, sequence(tensor, length), 0, (long) length * ROW_BYTES, 0, length);
+        }
+        second.setLength(length);
+        first.free();
+
+        assertEquals(2, pool.defragment());
+        assertTrue(second.getBlock(0) < 2 && second.getBlock(1) < 2);
+        for (int tensor = 0; tensor < TENSORS; tensor++) {
+            ByteBuffer target = buffer(length);
+            second.read(tensor, 0, length, target, 0, (long) length * ROW_BYTES);
+            assertEquals(sequence(tensor, length), target);
+        }
+
+        second.free();
+        pool.defragment();
+        assertEquals(0, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void testDefragmentKeepsSpareSegments() {
+        int blockBytes = TENSORS * HEADS * BLOCK_SIZE * ROW_BYTES;
+        // Two blocks per segment
+        KvBlockPool pool = new KvBlockPool(TENSORS, HEADS, ROW_BYTES, BLOCK_SIZE, 8, 2L * blockBytes);
+        BlockTable table = new BlockTable(pool);
+        assertTrue(table.reserve(0, 8 * BLOCK_SIZE));
+        assertEquals(8L * blockBytes, pool.getAllocatedBytes());
+        assertEquals(0, pool.getReleasableSegments());
+
+        table.free();
+        BlockTable kept = new BlockTable(pool);
+        assertTrue(kept.reserve(0, BLOCK_SIZE));
+        assertEquals(3, pool.getReleasableSegments());
+        pool.defragment(1);
+        assertEquals(4L * blockBytes, pool.getAllocatedBytes());
+        assertEquals(1, pool.getReleasableSegments());
+
+        // The spare segment serves the next allocations without growing the pool
+        BlockTable next = new BlockTable(pool);
+        assertTrue(next.reserve(0, 3 * BLOCK_SIZE));
+        assertEquals(4L * blockBytes, pool.getAllocatedBytes());
+        next.free();
+        kept.free();
+        pool.defragment();
+        assertEquals(0, pool.getAllocatedBytes());
+    }
+
+    private static ByteBuffer buffer(int length) {
+        return ByteBuffer.allocateDirect(HEADS * length * ROW_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Creates a [heads, length] buffer of distinct int rows.
+     */
+    private static ByteBuffer sequence(int tensor, int length) {
+        ByteBuffer buffer = buffer(length);
+        for (int head = 0; head < HEADS; head++) {
+            for (int position = 0; position < length; position++) {
+                buffer.putInt((head * length + position) * ROW_BYTES, tensor * 1000 + head * 100 + position);
+            }
+        }
+        return buffer;
+    }
+}
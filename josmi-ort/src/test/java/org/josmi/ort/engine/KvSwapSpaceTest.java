@@ -0,0 +1,100 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KvSwapSpace}.
+ */
+public class KvSwapSpaceTest {
+
+    // Two tensors, two heads, 4-byte rows, 4 positions per block
+    private static final int TENSORS = 2;
+    private static final int HEADS = 2;
+    private static final int ROW_BYTES = 4;
+    private static final int BLOCK_SIZE = 4;
+
+    @Test
+    public void testSwapOutAndIn() throws Exception {
+        swapOutAndIn(null);
+    }
+
+    @Test
+    public void testSwapOutAndInMemoryMapped(@TempDir Path directory) throws Exception {
+        swapOutAndIn(directory);
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        KvBlockPool pool = new KvBlockPool(TENSORS, HEADS, ROW_BYTES, BLOCK_SIZE, 8);
+        BlockTable table = filledTable(pool, 6);
+        // 6 positions of 2 tensors and 2 heads
+        KvSwapSpace swapSpace = new KvSwapSpace(6 * TENSORS * HEADS * ROW_BYTES, null);
+
+        KvSwapSpace.Entry entry = swapSpace.swapOut(table);
+        assertNotNull(entry);
+        assertEquals(swapSpace.getMaxBytes(), swapSpace.getUsedBytes());
+        assertNull(swapSpace.swapOut(table));
+        swapSpace.release(entry);
+        assertEquals(0, swapSpace.getUsedBytes());
+    }
+
+    private static void swapOutAndIn(Path directory) throws Exception {
+        KvBlockPool pool = new KvBlockPool(TENSORS, HEADS, ROW_BYTES, BLOCK_SIZE, 8);
+        int length = 6;
+        BlockTable table = filledTable(pool, length);
+        KvSwapSpace swapSpace = new KvSwapSpace(1024, directory);
+
+        KvSwapSpace.Entry entry = swapSpace.swapOut(table);
+        assertEquals(length, entry.getLength());
+        assertEquals((long) length * TENSORS * HEADS * ROW_BYTES, entry.getBytes());
+        table.free();
+        assertEquals(0, pool.getUsedBlocks());
+
+        // The positions come back in other blocks
+        BlockTable resumed = new BlockTable(pool);
+        assertTrue(pool.allocate() >= 0);
+        assertTrue(resumed.reserve(0, length + 1));
+        swapSpace.swapIn(entry, resumed);
+        assertEquals(length, resumed.getLength());
+        assertEquals(0, swapSpace.getUsedBytes());
+        for (int tensor = 0; tensor < TENSORS; tensor++) {
+            ByteBuffer target = buffer(length);
+            resumed.read(tensor, 0, length, target, 0, (long) length * ROW_BYTES);
+            assertEquals(sequence(tensor, length), target);
+        }
+    }
+
+    private static BlockTable filledTable(KvBlockPool pool, int length) {
+        BlockTable table = new BlockTable(pool);
+        assertTrue(table.reserve(0, length));
+        for (int tensor = 0; tensor < TENSORS; tensor++) {
+            table.write(tensor, sequence(tensor, length), 0, (long) length * ROW_BYTES, 0, length);
+        }
+        table.setLength(length);
+        return table;
+    }
+
+    private static ByteBuffer buffer(int length) {
+        return ByteBuffer.allocateDirect(HEADS * length * ROW_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Creates a [heads, length] buffer of distinct int rows.
+     */
+    private static ByteBuffer sequence(int tensor, int length) {
+        ByteBuffer buffer = buffer(length);
+        for (int head = 0; head < HEADS; head++) {
+            for (int position = 0; position < length; position++) {
+                buffer.putInt((head * length + position) * ROW_BYTES, tensor * 1000 + head * 100 + position);
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,267 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtSession;
+import org.josmi.api.LlmInferenceException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Behavioral tests of the native engine on a toy decoder: greedy generation with continuous
+ * batching must produce the same text as the pooled generators, one sequence at a time.
+ *
+ * The next token of the {@link ToyDecoder} depends on every attended cached position, so a cache
+ * laid out, padded, chunked or swapped wrongly changes the generated text.
+ */
+public class NativeGenerationEngineTest {
+
+    private static final int VOCAB = ToyDecoder.VOCAB;
+    private static final int CONTEXT_LENGTH = 4096;
+
+    private static OrtSession session;
+    private static DecoderModel model;
+    private static GenAIModelConfig modelConfig;
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        session = environment.createSession(ToyDecoder.build(), new OrtSession.SessionOptions());
+        // The end of sequence token is outside the vocabulary, so generation stops at max_tokens
+        modelConfig = new GenAIModelConfig(new int[]{VOCAB + 1}, CONTEXT_LENGTH, VOCAB, 0, 0);
+        model = DecoderModel.inspect(environment, session, modelConfig);
+    }
+
+    @AfterAll
+    public static void tearDown() throws Exception {
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testBatchedGenerationMatchesPooled() throws Exception {
+        List<String> prompts = prompts(300, 301, 5, 1000, 17);
+        List<String> expected = generatePooled(prompts, 50);
+        // Token by token, in chunks not aligned to the blocks, and the whole prompt at once
+        for (int chunk : new int[]{1, 7, CONTEXT_LENGTH}) {
+            NativeEngineOptions options = NativeEngineOptions.builder()
+                    .contextLength(CONTEXT_LENGTH)
+                    .maxBatchSize(4)
+                    .prefillChunk(chunk)
+                    .build();
+            assertEquals(expected, generateConcurrently(options, prompts, 50), "prefill chunk " + chunk);
+        }
+    }
+
+    @Test
+    public void testBatchedChoicesMatchPooled() throws Exception {
+        String prompt = prompts(300).get(0);
+        String expected = generatePooled(prompts(300), 50).get(0);
+        NativeEngineOptions options = NativeEngineOptions.builder()
+                .contextLength(CONTEXT_LENGTH)
+                .maxBatchSize(4)
+                .build();
+        Map<String, Object> parameters = greedy(50);
+        parameters.put("n", 6);
+        try (NativeGenerationEngine engine = new NativeGenerationEngine(model, modelConfig, new ToyTokenizer(),
+                options)) {
+            // More completions than the batch holds, so the prompt is prefilled for two groups
+            List<GenerationResult> choices = engine.generateChoices(prompt,
+                    GenerationParameters.from(parameters, null), null);
+            assertEquals(6, choices.size());
+            for (GenerationResult choice : choices) {
+                assertEquals(expected, choice.getText());
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixCachingMatchesPooled() throws Exception {
+        // Prompts sharing a prefix of several blocks, one of them repeated whole
+        String prefix = prompts(200).get(0);
+        List<String> prompts = new ArrayList<>();
+        for (String suffix : prompts(3, 40, 41, 3)) {
+            prompts.add(prefix + suffix);
+        }
+        prompts.add(prefix);
+        List<String> expected = generatePooled(prompts, 40);
+        NativeEngineOptions options = NativeEngineOptions.builder()
+                .contextLength(CONTEXT_LENGTH)
+                .maxBatchSize(4)
+                .prefixCaching(true)
+                .prefillChunk(32)
+                .build();
+        assertEquals(expected, generateConcurrently(options, prompts, 40));
+    }
+
+    @Test
+    public void testPreemptedGenerationMatchesPooled(@TempDir Path swapDirectory) throws Exception {
+        List<String> prompts = prompts(200, 180, 210, 190, 150);
+        List<String> expected = generatePooled(prompts, 100);
+        // Every sequence fits the cache on its own, but fewer than two fit together
+        long kvCacheBytes = 500L * model.getKvTokenBytes();
+        for (Path directory : new Path[]{null, swapDirectory}) {
+            NativeEngineOptions options = NativeEngineOptions.builder()
+                    .contextLength(CONTEXT_LENGTH)
+                    .maxBatchSize(4)
+                    .kvCacheBytes(kvCacheBytes)
+                    .blockSize(16)
+                    .kvSwap(4 * kvCacheBytes, directory)
+                    .prefillChunk(64)
+                    .build();
+            assertEquals(expected, generateConcurrently(options, prompts, 100), "swap directory " + directory);
+        }
+    }
+
+    @Test
+    public void testCloseFailsQueuedSequences() throws Exception {
+        KvBlockPool blockPool = new KvBlockPool(model, 16, 1024);
+        ContinuousBatchScheduler scheduler = new ContinuousBatchScheduler(model, modelConfig, 2, CONTEXT_LENGTH,
+                blockPool, false, 64);
+        GenerationParameters parameters = GenerationParameters.from(greedy(CONTEXT_LENGTH - 100), null);
+        int[] prompt = new ToyTokenizer().encode(prompts(50).get(0));
+
+        CountDownLatch started = new CountDownLatch(2);
+        List<CompletableFuture<FinishReason>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(scheduler.submit(prompt, parameters, token -> {
+                started.countDown();
+                return true;
+            }));
+        }
+        // Two sequences run, the other two wait for a slot in the batch
+        assertTrue(started.await(30, TimeUnit.SECONDS));
+        scheduler.close();
+        assertFalse(scheduler.isRunning());
+
+        for (CompletableFuture<FinishReason> result : results) {
+            assertClosed(result);
+        }
+        assertClosed(scheduler.submit(prompt, parameters, token -> true));
+    }
+
+    private static void assertClosed(CompletableFuture<FinishReason> result) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(30, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof LlmInferenceException);
+        assertEquals("Scheduler is closed", e.getCause().getMessage());
+    }
+
+    private static List<String> generatePooled(List<String> prompts, int maxTokens) throws Exception {
+        NativeEngineOptions options = NativeEngineOptions.builder()
+                .contextLength(CONTEXT_LENGTH)
+                .build();
+        GenerationParameters parameters = GenerationParameters.from(greedy(maxTokens), null);
+        List<String> texts = new ArrayList<>();
+        try (NativeGenerationEngine engine = new NativeGenerationEngine(model, modelConfig, new ToyTokenizer(),
+                options)) {
+            for (String prompt : prompts) {
+                texts.add(engine.generate(prompt, parameters).getText());
+            }
+        }
+        return texts;
+    }
+
+    private static List<String> generateConcurrently(NativeEngineOptions options, List<String> prompts,
+                                                     int maxTokens) throws Exception {
+        GenerationParameters parameters = GenerationParameters.from(greedy(maxTokens), null);
+        ExecutorService executor = Executors.newFixedThreadPool(prompts.size());
+        try (NativeGenerationEngine engine = new NativeGenerationEngine(model, modelConfig, new ToyTokenizer(),
+                options)) {
+            List<Future<String>> futures = new ArrayList<>();
+            for (String prompt : prompts) {
+                futures.add(executor.submit(() -> engine.generate(prompt, parameters).getText()));
+            }
+            List<String> texts = new ArrayList<>();
+            for (Future<String> future : futures) {
+                texts.add(future.get(60, TimeUnit.SECONDS));
+            }
+            return texts;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Map<String, Object> greedy(int maxTokens) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("max_tokens", maxTokens);
+        parameters.put("temperature", 0);
+        return parameters;
+    }
+
+    /**
+     * Creates prompts of random tokens, in the text format of {@link ToyTokenizer}.
+     */
+    private static List<String> prompts(int... lengths) {
+        List<String> prompts = new ArrayList<>();
+        for (int length : lengths) {
+            Random random = new Random(length);
+            StringBuilder prompt = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                prompt.append(random.nextInt(VOCAB)).append(' ');
+            }
+            prompts.add(prompt.toString());
+        }
+        return prompts;
+    }
+
+    /**
+     * Tokenizes text of token ids separated by spaces.
+     */
+    private static class ToyTokenizer implements TextTokenizer {
+
+        @Override
+        public int[] encode(String text) {
+            String[] words = text.trim().split(" +");
+            int[] tokens = new int[words.length];
+            for (int i = 0; i < words.length; i++) {
+                tokens[i] = Integer.parseInt(words[i]);
+            }
+            return tokens;
+        }
+
+        @Override
+        public String decode(int[] tokens) {
+            StringBuilder text = new StringBuilder();
+            for (int token : tokens) {
+                text.append(token).append(' ');
+            }
+            return text.toString();
+        }
+
+        @Override
+        public TokenDecoder newDecoder() {
+            return new TokenDecoder() {
+                @Override
+                public String decode(int token) {
+                    return token + " ";
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link PrefixCache}.
+ */
+public class PrefixCacheTest {
+
+    private static final int BLOCK_SIZE = 4;
+
+    @Test
+    public void testMatchSharesFullPrefixBlocks() {
+        KvBlockPool pool = new KvBlockPool(2, 1, 4, BLOCK_SIZE, 16);
+        PrefixCache cache = new PrefixCache(pool);
+        int[] prompt = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+        BlockTable first = prefilled(pool, cache, prompt);
+        assertEquals(2, cache.getCachedBlocks());
+
+        int[] other = {1, 2, 3, 4, 5, 6, 7, 8, 11, 12, 13};
+        BlockTable second = cache.match(other, other.length - 1);
+        assertEquals(8, second.getLength());
+        assertEquals(first.getBlock(0), second.getBlock(0));
+        assertEquals(first.getBlock(1), second.getBlock(1));
+        assertEquals(3, pool.getRefCount(first.getBlock(0)));
+
+        // The last prompt token is never taken from the cache
+        BlockTable exact = cache.match(new int[]{1, 2, 3, 4, 5, 6, 7, 8}, 7);
+        assertEquals(4, exact.getLength());
+
+        BlockTable miss = cache.match(new int[]{9, 9, 9, 9, 9}, 4);
+        assertEquals(0, miss.getLength());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedUnreferencedLeaves() {
+        KvBlockPool pool = new KvBlockPool(2, 1, 4, BLOCK_SIZE, 16);
+        PrefixCache cache = new PrefixCache(pool);
+        int[] older = {1, 1, 1, 1, 2, 2, 2, 2, 0};
+        int[] newer = {1, 1, 1, 1, 3, 3, 3, 3, 0};
+        prefilled(pool, cache, older).free();
+        BlockTable active = prefilled(pool, cache, newer);
+        assertEquals(3, cache.getCachedBlocks());
+
+        // Only the leaf of the older prompt is unreferenced
+        assertEquals(1, cache.evict(3));
+        assertEquals(2, cache.getCachedBlocks());
+        BlockTable matched = cache.match(older, older.length - 1);
+        assertEquals(4, matched.getLength());
+
+        matched.free();
+        active.free();
+        cache.clear();
+        assertEquals(0, cache.getCachedBlocks());
+    }
+
+    /**
+     * Simulates the prefill of a prompt: matches the cache, takes blocks for the rest and inserts the prompt.
+     */
+    private static BlockTable prefilled(KvBlockPool pool, PrefixCache cache, int[] prompt) {
+        BlockTable table = cache.match(prompt, prompt.length - 1);
+        assertTrue(table.reserve(table.getLength(), prompt.length));
+        table.setLength(prompt.length);
+        cache.insert(prompt, table);
+        return table;
+    }
+}
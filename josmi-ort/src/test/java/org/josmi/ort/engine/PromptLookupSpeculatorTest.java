@@ -0,0 +1,53 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link PromptLookupSpeculator}.
+ */
+public class PromptLookupSpeculatorTest {
+
+    private static final GenerationParameters PARAMS = new GenerationParameters(16, 0, 1.0, 1.0);
+
+    @Test
+    public void testProposesContinuationOfLongestMatch() {
+        PromptLookupSpeculator speculator = new PromptLookupSpeculator(3, 1);
+        // "7 8 9" occurs earlier followed by 1 2 3; "9" alone occurs more recently followed by 5
+        int[] tokens = new int[32];
+        int length = fill(tokens, 7, 8, 9, 1, 2, 3, 9, 5, 7, 8, 9);
+
+        int count = speculator.propose(tokens, length, 3, PARAMS, null);
+        assertEquals(3, count);
+        assertArrayEquals(new int[]{1, 2, 3}, Arrays.copyOfRange(tokens, length, length + count));
+        assertNull(speculator.getDistribution(0));
+    }
+
+    @Test
+    public void testFallsBackToShorterNgramAndKnownTokens() {
+        PromptLookupSpeculator speculator = new PromptLookupSpeculator(3, 1);
+        int[] tokens = new int[32];
+        int length = fill(tokens, 4, 6, 5, 6);
+
+        // Only the unigram "6" matches, followed by the two known tokens 5 6
+        int count = speculator.propose(tokens, length, 4, PARAMS, null);
+        assertEquals(2, count);
+        assertArrayEquals(new int[]{5, 6}, Arrays.copyOfRange(tokens, length, length + count));
+    }
+
+    @Test
+    public void testNoMatch() {
+        PromptLookupSpeculator speculator = new PromptLookupSpeculator(3, 2);
+        int[] tokens = new int[32];
+        int length = fill(tokens, 1, 2, 3, 4, 2);
+        assertEquals(0, speculator.propose(tokens, length, 4, PARAMS, null));
+    }
+
+    private static int fill(int[] tokens, int... values) {
+        System.arraycopy(values, 0, tokens, 0, values.length);
+        return values.length;
+    }
+}
@@ -0,0 +1,93 @@
+package org.josmi.ort.engine;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.platform.Fp16Conversions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link RotaryEmbedding}.
+ */
+public class RotaryEmbeddingTest {
+
+    private static final int HEAD_DIM = 6;
+    private static final float[] KEY = {0.5f, -1f, 2f, 1.5f, 0.25f, -0.75f};
+
+    @Test
+    public void testShiftMovesKeysToEarlierPositions() {
+        // Two heads of positions 0, 100 and 101, with the last two moved to 1 and 2
+        RotaryEmbedding rotary = new RotaryEmbedding(10000.0, 4);
+        for (OnnxJavaType type : new OnnxJavaType[]{OnnxJavaType.FLOAT, OnnxJavaType.FLOAT16}) {
+            int[] positions = {0, 100, 101};
+            ByteBuffer keys = ByteBuffer.allocate(2 * positions.length * HEAD_DIM * type.size)
+                    .order(ByteOrder.nativeOrder());
+            for (int head = 0; head < 2; head++) {
+                for (int i = 0; i < positions.length; i++) {
+                    put(keys, type, (head * positions.length + i) * HEAD_DIM, rotate(KEY, positions[i], 4));
+                }
+            }
+            rotary.shift(keys, type, 2, positions.length, HEAD_DIM, 1, 3, -99);
+
+            float tolerance = type == OnnxJavaType.FLOAT ? 1e-4f : 2e-2f;
+            for (int head = 0; head < 2; head++) {
+                for (int i = 0; i < positions.length; i++) {
+                    float[] expected = rotate(KEY, i, 4);
+                    for (int d = 0; d < HEAD_DIM; d++) {
+                        assertEquals(expected[d], get(keys, type, (head * positions.length + i) * HEAD_DIM + d),
+                                tolerance, type + " head " + head + " position " + i + " dim " + d);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLoadFromModelConfig(@TempDir Path directory) throws Exception {
+        assertEquals(HEAD_DIM, RotaryEmbedding.load(directory, HEAD_DIM).getRotaryDim());
+
+        Files.write(directory.resolve(RotaryEmbedding.FILE_NAME),
+                "{\"rope_theta\": 500000.0, \"partial_rotary_factor\": 0.5}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, RotaryEmbedding.load(directory, HEAD_DIM).getRotaryDim());
+
+        Files.write(directory.resolve(RotaryEmbedding.FILE_NAME),
+                "{\"model_type\": \"gpt2\"}".getBytes(StandardCharsets.UTF_8));
+        assertNull(RotaryEmbedding.load(directory, HEAD_DIM));
+    }
+
+    /**
+     * Applies the rotation of a position to a vector, in the half-split layout.
+     */
+    private static float[] rotate(float[] x, int position, int rotaryDim) {
+        float[] rotated = x.clone();
+        int half = rotaryDim / 2;
+        for (int i = 0; i < half; i++) {
+            double angle = position * Math.pow(10000.0, -2.0 * i / rotaryDim);
+            rotated[i] = (float) (x[i] * Math.cos(angle) - x[i + half] * Math.sin(angle));
+            rotated[i + half] = (float) (x[i + half] * Math.cos(angle) + x[i] * Math.sin(angle));
+        }
+        return rotated;
+    }
+
+    private static void put(ByteBuffer buffer, OnnxJavaType type, int index, float[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (type == OnnxJavaType.FLOAT) {
+                buffer.putFloat((index + i) * Float.BYTES, values[i]);
+            } else {
+                buffer.putShort((index + i) * Short.BYTES, Fp16Conversions.floatToFp16(values[i]));
+            }
+        }
+    }
+
+    private static float get(ByteBuffer buffer, OnnxJavaType type, int index) {
+        return type == OnnxJavaType.FLOAT ? buffer.getFloat(index * Float.BYTES)
+                : Fp16Conversions.fp16ToFloat(buffer.getShort(index * Short.BYTES));
+    }
+}
@@ -0,0 +1,115 @@
+package org.josmi.ort.engine;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Measures the time {@link Sampler} takes to select a token, so that it can be compared with
+ * the time of a forward pass.
+ * <p>
+ * The logits are drawn like those of a language model: mostly noise, with a few dozen
+ * clearly preferred tokens. Run it as a tool from the test classpath over vocabulary sizes of
+ * real models:
+ * <pre>
+ * java org.josmi.ort.engine.SamplerBenchmark [vocab-size...]
+ * </pre>
+ * The JIT compiles the sampler for the settings measured first, so for exact figures of one
+ * setting measure it in a JVM of its own.
+ */
+public class SamplerBenchmark {
+
+    public static final int[] DEFAULT_VOCAB_SIZES = {32_000, 50_257, 128_256, 151_936};
+
+    private static final int ROWS = 16;
+    private static final int WARM_UP_STEPS = 2_000;
+    private static final int MEASURED_STEPS = 2_000;
+
+    private final int vocabSize;
+    private final FloatBuffer logits;
+    private final Sampler sampler;
+    private final int[] history = new int[256];
+    private final SamplingState state;
+
+    /**
+     * Constructs a new SamplerBenchmark on random logits.
+     *
+     * @param vocabSize the vocabulary size
+     */
+    public SamplerBenchmark(int vocabSize) {
+        this.vocabSize = vocabSize;
+        this.logits = DecoderModel.allocate((long) ROWS * vocabSize * Float.BYTES).asFloatBuffer();
+        this.sampler = new Sampler(vocabSize);
+        this.state = new SamplingState(vocabSize);
+        Random random = new Random(42);
+        for (int row = 0; row < ROWS; row++) {
+            for (int i = 0; i < vocabSize; i++) {
+                logits.put(row * vocabSize + i, (float) random.nextGaussian() * 2f);
+            }
+            for (int i = 0; i < 32; i++) {
+                logits.put(row * vocabSize + random.nextInt(vocabSize), 10f + (float) random.nextGaussian() * 2f);
+            }
+        }
+        for (int i = 0; i < history.length; i++) {
+            history[i] = random.nextInt(vocabSize);
+        }
+    }
+
+    /**
+     * Measures the mean time of a sampling step after a warm-up.
+     *
+     * @param params the generation parameters
+     * @return the time of a step in microseconds
+     */
+    public double measure(GenerationParameters params) {
+        run(params, WARM_UP_STEPS);
+        long start = System.nanoTime();
+        run(params, MEASURED_STEPS);
+        return (System.nanoTime() - start) / 1e3 / MEASURED_STEPS;
+    }
+
+    private int run(GenerationParameters params, int steps) {
+        // The history stands for the prompt, with penalties applying to its tokens
+        state.reset(params, history, history.length);
+        int checksum = 0;
+        for (int step = 0; step < steps; step++) {
+            checksum += sampler.sample(logits, (step % ROWS) * vocabSize, params, state);
+        }
+        return checksum;
+    }
+
+    public static void main(String[] args) {
+        int[] vocabSizes = DEFAULT_VOCAB_SIZES;
+        if (args.length > 0) {
+            vocabSizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                vocabSizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        String[] names = {"greedy", "temperature", "top-k 50", "top-p 0.9", "top-k 50, top-p 0.9",
+                "repetition penalty, top-p 0.9"};
+        GenerationParameters[] settings = {
+                new GenerationParameters(1, 0.0, 1.0, 1.0),
+                new GenerationParameters(1, 0.8, 1.0, 1.0),
+                new GenerationParameters(1, 0.8, 1.0, 50, 1.0),
+                new GenerationParameters(1, 0.8, 0.9, 1.0),
+                new GenerationParameters(1, 0.8, 0.9, 50, 1.0),
+                new GenerationParameters(1, 0.8, 0.9, 0, 1.1)};
+
+        System.out.printf("%-32s", "us per step");
+        for (int vocabSize : vocabSizes) {
+            System.out.printf("%12d", vocabSize);
+        }
+        System.out.println();
+        SamplerBenchmark[] benchmarks = new SamplerBenchmark[vocabSizes.length];
+        for (int i = 0; i < vocabSizes.length; i++) {
+            benchmarks[i] = new SamplerBenchmark(vocabSizes[i]);
+        }
+        for (int s = 0; s < settings.length; s++) {
+            System.out.printf("%-32s", names[s]);
+            for (SamplerBenchmark benchmark : benchmarks) {
+                System.out.printf("%12.1f", benchmark.measure(settings[s]));
+            }
+            System.out.println();
+        }
+    }
+}
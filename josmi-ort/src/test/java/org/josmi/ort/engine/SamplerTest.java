@@ -0,0 +1,234 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link Sampler}.
+ */
+public class SamplerTest {
+
+    private static final int VOCAB_SIZE = 4;
+    private static final GenerationParameters SAMPLING = new GenerationParameters(16, 1.0, 1.0, 1.0);
+
+    @Test
+    public void testGreedyDistributionIsOneHot() {
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        float[] probabilities = new float[VOCAB_SIZE];
+        sampler.distribution(logits(0.5f, 3f, 1f, -2f), 0, new GenerationParameters(16, 0, 1.0, 1.0), null,
+                probabilities);
+        assertArrayEquals(new float[]{0f, 1f, 0f, 0f}, probabilities);
+    }
+
+    @Test
+    public void testTopPKeepsNucleus() {
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        float[] probabilities = new float[VOCAB_SIZE];
+        // Softmax of these logits is about 0.64, 0.24, 0.09, 0.03
+        sampler.distribution(logits(2f, 1f, 0f, -1f), 0, new GenerationParameters(16, 1.0, 0.8, 1.0), null,
+                probabilities);
+        assertEquals(0f, probabilities[2]);
+        assertEquals(0f, probabilities[3]);
+        assertEquals(1f, probabilities[0] + probabilities[1], 1e-5f);
+        assertEquals(Math.E, probabilities[0] / probabilities[1], 1e-4);
+    }
+
+    @Test
+    public void testTopKKeepsBestTokens() {
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        float[] probabilities = new float[VOCAB_SIZE];
+        sampler.distribution(logits(0f, 2f, -1f, 1f), 0, new GenerationParameters(16, 1.0, 1.0, 2, 1.0), null,
+                probabilities);
+        assertEquals(0f, probabilities[0]);
+        assertEquals(0f, probabilities[2]);
+        assertEquals(1f, probabilities[1] + probabilities[3], 1e-5f);
+        assertEquals(Math.E, probabilities[1] / probabilities[3], 1e-4);
+        for (int i = 0; i < 100; i++) {
+            int token = sampler.sample(logits(0f, 2f, -1f, 1f), 0, new GenerationParameters(16, 1.0, 1.0, 2, 1.0),
+                    state(new GenerationParameters(16, 1.0, 1.0, 2, 1.0)));
+            assertTrue(token == 1 || token == 3);
+        }
+    }
+
+    @Test
+    public void testTopPMatchesSortedVocabulary() {
+        int vocabSize = 5000;
+        Random random = new Random(7);
+        float[] values = new float[vocabSize];
+        for (int i = 0; i < vocabSize; i++) {
+            values[i] = (float) random.nextGaussian() * 2f;
+        }
+        Sampler sampler = new Sampler(vocabSize);
+        float[] probabilities = new float[vocabSize];
+        // A wide nucleus needs more than the initial candidates
+        for (double topP : new double[]{0.1, 0.5, 0.95}) {
+            sampler.distribution(logits(values), 0, new GenerationParameters(16, 0.7, topP, 1.0),
+                    null, probabilities);
+            assertArrayEquals(nucleus(values, 0.7, topP), probabilities, 1e-6f);
+        }
+    }
+
+    @Test
+    public void testRejectionSamplingPreservesTargetDistribution() {
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        float[] target = new float[VOCAB_SIZE];
+        sampler.distribution(logits(1f, 0f, 2f, 0.5f), 0, SAMPLING, null, target);
+        float[] draft = {0.1f, 0.6f, 0.1f, 0.2f};
+
+        Random random = new Random(3);
+        int samples = 200_000;
+        int[] counts = new int[VOCAB_SIZE];
+        float[] residual = new float[VOCAB_SIZE];
+        for (int i = 0; i < samples; i++) {
+            int proposal = sampler.sample(draft, random);
+            int token = proposal;
+            if (!sampler.acceptDraft(target[proposal], draft[proposal], random)) {
+                System.arraycopy(target, 0, residual, 0, VOCAB_SIZE);
+                token = sampler.sampleResidual(residual, draft, proposal, random);
+            }
+            counts[token]++;
+        }
+        for (int token = 0; token < VOCAB_SIZE; token++) {
+            assertEquals(target[token], counts[token] / (double) samples, 0.01, "token " + token);
+        }
+    }
+
+    @Test
+    public void testDeterministicProposalPreservesTargetDistribution() {
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        float[] target = new float[VOCAB_SIZE];
+        sampler.distribution(logits(1f, 0f, 2f, 0.5f), 0, SAMPLING, null, target);
+
+        Random random = new Random(3);
+        int samples = 200_000;
+        int[] counts = new int[VOCAB_SIZE];
+        float[] residual = new float[VOCAB_SIZE];
+        for (int i = 0; i < samples; i++) {
+            int token = 1;
+            if (!sampler.acceptDraft(target[1], 1f, random)) {
+                System.arraycopy(target, 0, residual, 0, VOCAB_SIZE);
+                token = sampler.sampleResidual(residual, null, 1, random);
+            }
+            counts[token]++;
+        }
+        for (int token = 0; token < VOCAB_SIZE; token++) {
+            assertEquals(target[token], counts[token] / (double) samples, 0.01, "token " + token);
+        }
+    }
+
+    @Test
+    public void testPenaltiesUseTokenCounts() {
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        GenerationParameters params = GenerationParameters.builder().temperature(1.0).repetitionPenalty(2.0)
+                .presencePenalty(0.5).frequencyPenalty(0.25).build();
+        SamplingState state = new SamplingState(VOCAB_SIZE);
+        // Token 0 is in the prompt, token 1 was generated twice and token 2 once
+        state.reset(params, new int[]{0, 3}, 1);
+        state.accept(1);
+        state.accept(1);
+        state.accept(2);
+
+        float[] probabilities = new float[VOCAB_SIZE];
+        sampler.distribution(logits(2f, 2f, -1f, 0f), 0, params, state, probabilities);
+        // Expected scores: 2 / 2, 2 / 2 - 0.5 - 2 * 0.25, -1 * 2 - 0.5 - 0.25, 0
+        float[] expected = softmax(1f, 0f, -2.75f, 0f);
+        assertArrayEquals(expected, probabilities, 1e-6f);
+
+        // Rolling back token 2 leaves it unpenalized
+        state.reject(2);
+        sampler.distribution(logits(2f, 2f, -1f, 0f), 0, params, state, probabilities);
+        assertArrayEquals(softmax(1f, 0f, -1f, 0f), probabilities, 1e-6f);
+
+        // A new sequence starts from no counts
+        state.reset(params, new int[]{3}, 1);
+        sampler.distribution(logits(2f, 2f, -1f, 0f), 0, params, state, probabilities);
+        assertArrayEquals(softmax(2f, 2f, -1f, 0f), probabilities, 1e-6f);
+    }
+
+    @Test
+    public void testLogitBias() {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("logit_bias", Collections.singletonMap("1", -100));
+        GenerationParameters params = GenerationParameters.from(parameters, null);
+        assertFalse(params.usesTokenCounts());
+
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        SamplingState state = state(params);
+        assertNull(state.getCounts());
+        assertEquals(0, sampler.sample(logits(1f, 3f, 0f, -1f), 0, params, state));
+        assertThrows(IllegalArgumentException.class,
+                () -> GenerationParameters.from(Collections.singletonMap("logit_bias", "1=-100"), null));
+    }
+
+    @Test
+    public void testSeedMakesSamplingReproducible() {
+        GenerationParameters params = GenerationParameters.from(Collections.singletonMap("seed", 1234), null);
+        assertTrue(params.hasSeed());
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        int[] first = new int[64];
+        SamplingState state = state(params);
+        for (int i = 0; i < first.length; i++) {
+            first[i] = sampler.sample(logits(1f, 1f, 1f, 1f), 0, params, state);
+        }
+        state.reset(params, new int[]{0}, 1);
+        for (int i = 0; i < first.length; i++) {
+            assertEquals(first[i], sampler.sample(logits(1f, 1f, 1f, 1f), 0, params, state));
+        }
+    }
+
+    private static SamplingState state(GenerationParameters params) {
+        SamplingState state = new SamplingState(VOCAB_SIZE);
+        state.reset(params, new int[]{0}, 1);
+        return state;
+    }
+
+    private static float[] softmax(float... scores) {
+        float[] probabilities = new float[scores.length];
+        double sum = 0;
+        for (float score : scores) {
+            sum += Math.exp(score);
+        }
+        for (int i = 0; i < scores.length; i++) {
+            probabilities[i] = (float) (Math.exp(scores[i]) / sum);
+        }
+        return probabilities;
+    }
+
+    /**
+     * Computes the top-p distribution by sorting the whole vocabulary.
+     */
+    private static float[] nucleus(float[] logits, double temperature, double topP) {
+        double[] weights = new double[logits.length];
+        double total = 0;
+        for (int i = 0; i < logits.length; i++) {
+            weights[i] = Math.exp(logits[i] / temperature);
+            total += weights[i];
+        }
+        Integer[] order = IntStream.range(0, logits.length).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparingDouble(i -> -weights[i]));
+        float[] probabilities = new float[logits.length];
+        double cumulative = 0;
+        for (int i = 0; i < logits.length && cumulative < topP * total; i++) {
+            cumulative += weights[order[i]];
+            probabilities[order[i]] = (float) weights[order[i]];
+        }
+        for (int i = 0; i < logits.length; i++) {
+            probabilities[i] /= cumulative;
+        }
+        return probabilities;
+    }
+
+    private static FloatBuffer logits(float... values) {
+        return FloatBuffer.wrap(values);
+    }
+}
@@ -0,0 +1,53 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link StopSequences}.
+ */
+public class StopSequencesTest {
+
+    @Test
+    public void testFirstMatch() {
+        StopSequences stops = StopSequences.of(Arrays.asList("<|user|>", "\n\n", "ser", ""));
+        assertEquals(Arrays.asList("<|user|>", "\n\n", "ser"), stops.getSequences());
+        assertEquals(-1, stops.indexIn("Hello, <|use"));
+        assertEquals(5, stops.indexIn("Hello\n\nWorld"));
+        // "ser" ends before "<|user|>" does
+        assertEquals(6, stops.indexIn("Hi <|user|>"));
+        // Overlapping prefixes fall back to the longest proper suffix that is a prefix
+        assertEquals(2, StopSequences.of("aab").indexIn("aaaab"));
+        // Of the stop sequences ending at the same character, the longest is the match
+        assertEquals(0, StopSequences.of(new String[]{"b", "ab"}).indexIn("ab"));
+        assertNull(StopSequences.of(""));
+        assertNull(StopSequences.of(null));
+    }
+
+    @Test
+    public void testIncrementalMatching() {
+        StopSequences stops = StopSequences.of(new String[]{"</s>", "END"});
+        // The text arrives in pieces, as tokens are decoded
+        String[] pieces = {"The", " answer", "</", "s", ">", " more"};
+        StringBuilder text = new StringBuilder();
+        int state = stops.getInitialState();
+        int piece = 0;
+        int matchEnd = -1;
+        while (matchEnd < 0 && piece < pieces.length) {
+            int start = text.length();
+            text.append(pieces[piece++]);
+            for (int i = start; i < text.length() && matchEnd < 0; i++) {
+                state = stops.step(state, text.charAt(i));
+                if (stops.getMatchLength(state) > 0) {
+                    matchEnd = i + 1;
+                }
+            }
+        }
+        assertEquals(5, piece);
+        assertEquals(4, stops.getMatchLength(state));
+        assertEquals("The answer", text.substring(0, matchEnd - stops.getMatchLength(state)));
+    }
+}
@@ -0,0 +1,148 @@
+package org.josmi.ort.engine;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link TokenGrammar} and the automata it is compiled from.
+ */
+public class TokenGrammarTest {
+
+    private static final String SCHEMA = "{\"type\": \"object\", \"properties\": {"
+            + "\"name\": {\"type\": \"string\", \"maxLength\": 8},"
+            + "\"age\": {\"type\": \"integer\"},"
+            + "\"role\": {\"enum\": [\"admin\", \"user\"]}},"
+            + "\"required\": [\"name\", \"role\"]}";
+
+    // Token 0 ends the sequence
+    private static final String[] TEXTS = {null, "{", "}", "\"", ":", ",", " ", "\"name", "\":", "\"age", "\"role",
+            "a", "ab", "admin", "user", "\"user", "\"}", "1", "12", "-", "x", "\n", "{\"", "name"};
+    private static final int EOS = 0;
+
+    private static boolean matches(CharacterAutomaton automaton, String text) {
+        int state = automaton.step(automaton.getInitialState(), text);
+        return state >= 0 && automaton.isAccepting(state);
+    }
+
+    @Test
+    public void testRegexAutomaton() {
+        CharacterAutomaton automaton = CharacterAutomaton.compile("^-?\\d+(?:\\.\\d{1,2})?$");
+        assertTrue(matches(automaton, "42"));
+        assertTrue(matches(automaton, "-3.14"));
+        assertFalse(matches(automaton, "3.141"));
+        assertFalse(matches(automaton, "3."));
+        assertFalse(matches(automaton, "x"));
+
+        automaton = CharacterAutomaton.compile("(cat|dog)s?|[^a-z\\s]{2,}");
+        assertTrue(matches(automaton, "dogs"));
+        assertTrue(matches(automaton, "CAT"));
+        assertFalse(matches(automaton, "A"));
+        assertFalse(matches(automaton, "A B"));
+
+        // Every state the automaton enters can still complete a match
+        automaton = CharacterAutomaton.compile("ab|ac");
+        assertTrue(automaton.step(automaton.getInitialState(), 'b') < 0);
+        assertEquals('a', automaton.getForcedCharacter(automaton.getInitialState()));
+
+        assertThrows(IllegalArgumentException.class, () -> CharacterAutomaton.compile("(a"));
+        assertThrows(IllegalArgumentException.class, () -> CharacterAutomaton.compile("(a)\\1"));
+        assertThrows(IllegalArgumentException.class, () -> CharacterAutomaton.compile("[^\\x00-\\uffff]"));
+    }
+
+    @Test
+    public void testJsonSchema() {
+        CharacterAutomaton automaton = CharacterAutomaton.compile(JsonSchemaRegex.toRegex(SCHEMA));
+        assertTrue(matches(automaton, "{\"name\":\"ab\",\"role\":\"user\"}"));
+        assertTrue(matches(automaton, "{ \"name\": \"a\\\"b\", \"age\": -12, \"role\": \"admin\" }"));
+        assertFalse(matches(automaton, "{\"name\":\"ab\"}"));
+        assertFalse(matches(automaton, "{\"role\":\"user\",\"name\":\"ab\"}"));
+        assertFalse(matches(automaton, "{\"name\":\"abcdefghi\",\"role\":\"user\"}"));
+        assertFalse(matches(automaton, "{\"name\":\"ab\",\"age\":1.5,\"role\":\"user\"}"));
+
+        automaton = CharacterAutomaton.compile(JsonSchemaRegex.anyObject());
+        assertTrue(matches(automaton, "{\"a\": [1, {\"b\": null}], \"c\": \"d\"}"));
+        assertFalse(matches(automaton, "[1]"));
+
+        assertThrows(IllegalArgumentException.class, () -> JsonSchemaRegex.toRegex("{\"type\": \"date\"}"));
+        assertThrows(IllegalArgumentException.class, () -> JsonSchemaRegex.toRegex("{\"$ref\": \"#/$defs/x\"}"));
+    }
+
+    @Test
+    public void testMasksAndForcedTokens() {
+        TokenVocabulary vocabulary = new TokenVocabulary(TEXTS, new int[]{EOS});
+        TokenGrammar grammar = new TokenGrammar("\\{\"name\": \"a+\"\\}", vocabulary);
+
+        int state = grammar.getInitialState();
+        // "{\"" is the longest token inside the fixed text "{\"name\": \"a" that does not reach its end
+        TokenMask mask = grammar.getMask(state);
+        assertTrue(mask.allows(1));
+        assertTrue(mask.allows(22));
+        assertFalse(mask.allows(EOS));
+        assertFalse(mask.allows(2));
+        assertEquals(22, grammar.getForcedToken(state));
+
+        state = grammar.advance(state, 22);
+        assertEquals(23, grammar.getForcedToken(state));
+        state = grammar.advance(state, 23);
+        for (int token : new int[]{8, 6, 3}) {
+            assertEquals(token, grammar.getForcedToken(state));
+            state = grammar.advance(state, token);
+        }
+        // The token reaching the end of the fixed text is only forced if it is the only one allowed
+        assertEquals(11, grammar.getForcedToken(state));
+        state = grammar.advance(state, 11);
+        assertEquals(-1, grammar.getForcedToken(state));
+        assertTrue(grammar.getMask(state).allows(11));
+        assertFalse(grammar.getMask(state).allows(12));
+        assertEquals(-1, grammar.advance(state, 12));
+
+        state = grammar.advance(state, 16);
+        assertTrue(grammar.isAccepting(state));
+        assertEquals(EOS, grammar.getForcedToken(state));
+        assertEquals(1, grammar.getMask(state).getAllowedCount());
+    }
+
+    @Test
+    public void testConstrainedSamplingProducesValidJson() throws Exception {
+        // Single characters, as in real vocabularies, so that every prefix of a match can be spelled
+        String[] texts = Arrays.copyOf(TEXTS, TEXTS.length + 95);
+        for (int c = ' '; c <= '~'; c++) {
+            texts[TEXTS.length + c - ' '] = String.valueOf((char) c);
+        }
+        TokenVocabulary vocabulary = new TokenVocabulary(texts, new int[]{EOS});
+        TokenGrammar grammar = new TokenGrammar(JsonSchemaRegex.toRegex(SCHEMA), vocabulary);
+        GenerationParameters params = GenerationParameters.builder().temperature(1.0).seed(7).build()
+                .withGrammar(grammar);
+        Sampler sampler = new Sampler(texts.length);
+        FloatBuffer logits = FloatBuffer.allocate(texts.length);
+        Random random = new Random(42);
+        ObjectMapper mapper = new ObjectMapper();
+
+        for (int run = 0; run < 20; run++) {
+            SamplingState state = new SamplingState(texts.length);
+            state.reset(params, new int[]{1}, 1);
+            StringBuilder text = new StringBuilder();
+            for (int step = 0; step < 200; step++) {
+                for (int i = 0; i < texts.length; i++) {
+                    logits.put(i, (float) random.nextGaussian() * 3f);
+                }
+                int token = sampler.sample(logits, 0, params, state);
+                if (token == EOS) {
+                    break;
+                }
+                state.accept(token);
+                text.append(texts[token]);
+            }
+            JsonNode json = mapper.readTree(text.toString());
+            assertTrue(json.get("name").isTextual(), text.toString());
+            assertTrue(json.get("role").asText().matches("admin|user"), text.toString());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.josmi.ort.engine;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the token log probabilities and top alternatives reported with generated tokens.
+ */
+public class TopLogprobsTest {
+
+    private static final int VOCAB_SIZE = 4;
+
+    @Test
+    public void testLogprobsParameters() {
+        Map<String, Object> parameters = new HashMap<>();
+        // The completions API takes the number of alternatives in logprobs
+        parameters.put("logprobs", 2);
+        GenerationParameters params = GenerationParameters.from(parameters, null);
+        assertTrue(params.isLogprobs());
+        assertEquals(2, params.getTopLogprobs());
+        parameters.put("top_logprobs", GenerationParameters.MAX_TOP_LOGPROBS + 1);
+        assertThrows(IllegalArgumentException.class, () -> GenerationParameters.from(parameters, null));
+    }
+
+    @Test
+    public void testSelectTop() {
+        int[] indices = new int[5];
+        float[] selected = new float[5];
+        float[] values = {0.5f, Float.NEGATIVE_INFINITY, 2f, -1f, 2f};
+        // Disallowed tokens are never among the alternatives
+        assertEquals(3, Sampler.selectTop(values, values.length, 3, indices, selected, 1));
+        assertArrayEquals(new int[]{0, 2, 4, 0, 0}, indices);
+        assertEquals(0, Sampler.selectTop(values, values.length, 0, indices, selected, 0));
+
+        // Fewer allowed tokens than asked for
+        float[] masked = {Float.NEGATIVE_INFINITY, 1f, Float.NEGATIVE_INFINITY};
+        assertEquals(1, Sampler.selectTop(masked, masked.length, 2, indices, selected, 0));
+        assertEquals(1, indices[0]);
+        assertEquals(1f, selected[0]);
+    }
+
+    @Test
+    public void testTopLogProbabilities() {
+        // Log probabilities of the processed logits, before temperature
+        GenerationParameters tempered = GenerationParameters.builder().temperature(2.0).build();
+        Sampler sampler = new Sampler(VOCAB_SIZE);
+        int[] tokens = new int[2];
+        float[] logprobs = new float[2];
+        assertEquals(2, sampler.topLogProbabilities(logits(4f, 0f, 2f, 0f), 0, tempered, state(tempered), 2,
+                tokens, logprobs, 0));
+        float[] expected = softmax(4f, 0f, 2f, 0f);
+        assertArrayEquals(new int[]{0, 2}, tokens);
+        assertEquals(Math.log(expected[0]), logprobs[0], 1e-5);
+        assertEquals(Math.log(expected[2]), logprobs[1], 1e-5);
+    }
+
+    private static SamplingState state(GenerationParameters params) {
+        SamplingState state = new SamplingState(VOCAB_SIZE);
+        state.reset(params, new int[]{0}, 1);
+        return state;
+    }
+
+    private static float[] softmax(float... scores) {
+        float[] probabilities = new float[scores.length];
+        double sum = 0;
+        for (float score : scores) {
+            sum += Math.exp(score);
+        }
+        for (int i = 0; i < scores.length; i++) {
+            probabilities[i] = (float) (Math.exp(scores[i]) / sum);
+        }
+        return probabilities;
+    }
+
+    private static FloatBuffer logits(float... values) {
+        return FloatBuffer.wrap(values);
+    }
+}
@@ -0,0 +1,139 @@
+package org.josmi.ort.engine;
+
+import org.josmi.ort.ProtoWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A toy decoder model for tests, built as ONNX protobuf. The keys and values of a token are its
+ * embedding, whose first element is the token id, and the logits of every position are one-hot
+ * at (input token + attended positions + sum of the attended values of the first layer) mod vocab,
+ * so the generated text depends on every attended position of the cache.
+ */
+final class ToyDecoder {
+
+    static final int LAYERS = 2;
+    static final int HEADS = 2;
+    static final int HEAD_DIM = 3;
+    static final int VOCAB = 16;
+
+    private ToyDecoder() {
+    }
+
+    /**
+     * Builds the model.
+     *
+     * @return the serialized ModelProto
+     */
+    static byte[] build() {
+        float[] embedding = new float[VOCAB * HEADS * HEAD_DIM];
+        for (int token = 0; token < VOCAB; token++) {
+            embedding[token * HEADS * HEAD_DIM] = token;
+        }
+        ProtoWriter graph = new ProtoWriter()
+                .message(1, node("Gather", new String[]{"embedding", "input_ids"}, "tokens"))
+                .message(1, node("Reshape", new String[]{"tokens", "kv_shape"}, "heads"))
+                .message(1, node("Transpose", new String[]{"heads"}, "kv",
+                        new ProtoWriter().string(1, "perm").varint(8, 0).varint(8, 2).varint(8, 1).varint(8, 3)
+                                .varint(20, 7)));
+        for (int layer = 0; layer < LAYERS; layer++) {
+            for (String kind : new String[]{"key", "value"}) {
+                graph.message(1, node("Concat",
+                        new String[]{"past_key_values." + layer + "." + kind, "kv"}, "present." + layer + "." + kind,
+                        intAttribute("axis", 2)));
+            }
+        }
+        graph.message(1, node("Cast", new String[]{"attention_mask"}, "mask", intAttribute("to", 1)))
+                .message(1, node("Unsqueeze", new String[]{"mask", "axes_1_3"}, "mask_4d"))
+                .message(1, node("Mul", new String[]{"present.0.value", "mask_4d"}, "attended"))
+                .message(1, node("ReduceSum", new String[]{"attended", "axes_1_2_3"}, "value_sum",
+                        intAttribute("keepdims", 0)))
+                .message(1, node("Cast", new String[]{"value_sum"}, "value_sum_int", intAttribute("to", 7)))
+                .message(1, node("Unsqueeze", new String[]{"value_sum_int", "axes_1"}, "value_sum_2d"))
+                .message(1, node("ReduceSum", new String[]{"attention_mask", "axes_1"}, "attended_positions",
+                        intAttribute("keepdims", 1)))
+                .message(1, node("Add", new String[]{"input_ids", "attended_positions"}, "sum_1"))
+                .message(1, node("Add", new String[]{"sum_1", "value_sum_2d"}, "sum_2"))
+                .message(1, node("Mod", new String[]{"sum_2", "vocab"}, "next"))
+                .message(1, node("OneHot", new String[]{"next", "depth", "one_hot_values"}, "logits",
+                        intAttribute("axis", -1)))
+                .string(2, "toy")
+                .message(5, floatTensor("embedding", new long[]{VOCAB, HEADS * HEAD_DIM}, embedding))
+                .message(5, longTensor("kv_shape", new long[]{4}, 0, 0, HEADS, HEAD_DIM))
+                .message(5, longTensor("axes_1", new long[]{1}, 1))
+                .message(5, longTensor("axes_1_3", new long[]{2}, 1, 3))
+                .message(5, longTensor("axes_1_2_3", new long[]{3}, 1, 2, 3))
+                .message(5, longTensor("vocab", new long[0], VOCAB))
+                .message(5, longTensor("depth", new long[]{1}, VOCAB))
+                .message(5, floatTensor("one_hot_values", new long[]{2}, new float[]{0, 1}))
+                .message(11, valueInfo("input_ids", 7, "batch", "sequence"))
+                .message(11, valueInfo("attention_mask", 7, "batch", "total"))
+                .message(11, valueInfo("position_ids", 7, "batch", "sequence"));
+        for (int layer = 0; layer < LAYERS; layer++) {
+            graph.message(11, valueInfo("past_key_values." + layer + ".key", 1, "batch", HEADS, "past", HEAD_DIM))
+                    .message(11, valueInfo("past_key_values." + layer + ".value", 1, "batch", HEADS, "past",
+                            HEAD_DIM));
+        }
+        graph.message(12, valueInfo("logits", 1, "batch", "sequence", VOCAB));
+        for (int layer = 0; layer < LAYERS; layer++) {
+            graph.message(12, valueInfo("present." + layer + ".key", 1, "batch", HEADS, "total", HEAD_DIM))
+                    .message(12, valueInfo("present." + layer + ".value", 1, "batch", HEADS, "total", HEAD_DIM));
+        }
+        return new ProtoWriter()
+                .varint(1, 8)
+                .string(2, "toy")
+                .message(7, graph)
+                .message(8, new ProtoWriter().string(1, "").varint(2, 13))
+                .toByteArray();
+    }
+
+    private static ProtoWriter node(String op, String[] inputs, String output, ProtoWriter... attributes) {
+        ProtoWriter node = new ProtoWriter();
+        for (String input : inputs) {
+            node.string(1, input);
+        }
+        node.string(2, output).string(4, op);
+        for (ProtoWriter attribute : attributes) {
+            node.message(5, attribute);
+        }
+        return node;
+    }
+
+    private static ProtoWriter intAttribute(String name, long value) {
+        return new ProtoWriter().string(1, name).varint(3, value).varint(20, 2);
+    }
+
+    private static ProtoWriter floatTensor(String name, long[] dims, float[] values) {
+        ByteBuffer data = ByteBuffer.allocate(values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        data.asFloatBuffer().put(values);
+        return tensor(name, 1, dims, data.array());
+    }
+
+    private static ProtoWriter longTensor(String name, long[] dims, long... values) {
+        ByteBuffer data = ByteBuffer.allocate(values.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        data.asLongBuffer().put(values);
+        return tensor(name, 7, dims, data.array());
+    }
+
+    private static ProtoWriter tensor(String name, int type, long[] dims, byte[] data) {
+        ProtoWriter tensor = new ProtoWriter();
+        for (long dim : dims) {
+            tensor.varint(1, dim);
+        }
+        return tensor.varint(2, type).string(8, name).bytes(9, data);
+    }
+
+    /**
+     * Describes a tensor input or output; a dimension is a size or the name of a symbolic one.
+     */
+    private static ProtoWriter valueInfo(String name, int type, Object... dims) {
+        ProtoWriter shape = new ProtoWriter();
+        for (Object dim : dims) {
+            shape.message(1, dim instanceof Integer
+                    ? new ProtoWriter().varint(1, (Integer) dim) : new ProtoWriter().string(2, (String) dim));
+        }
+        ProtoWriter tensorType = new ProtoWriter().varint(1, type).message(2, shape);
+        return new ProtoWriter().string(1, name).message(2, new ProtoWriter().message(1, tensorType));
+    }
+}
@@ -0,0 +1,93 @@
+package org.josmi.rest.djl.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.josmi.api.model.TokenLogprobs;
+
+import java.util.List;
+
+/**
+ * DTO for the generation details of a DJL Serving response, returned when the request sets
+ * "details" (and "top_n_tokens" for alternatives).
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DjlServingDetailsDto {
+
+    @JsonProperty("tokens")
+    private List<DjlServingTokenDto> tokens;
+
+    @JsonProperty("top_tokens")
+    private List<List<DjlServingTokenDto>> topTokens;
+
+    /**
+     * Default constructor.
+     */
+    public DjlServingDetailsDto() {
+    }
+
+    /**
+     * Gets the generated tokens.
+     *
+     * @return the generated tokens
+     */
+    public List<DjlServingTokenDto> getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Sets the generated tokens.
+     *
+     * @param tokens the generated tokens
+     */
+    public void setTokens(List<DjlServingTokenDto> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Gets the most likely tokens at each position.
+     *
+     * @return the most likely tokens per generated token, or null
+     */
+    public List<List<DjlServingTokenDto>> getTopTokens() {
+        return topTokens;
+    }
+
+    /**
+     * Sets the most likely tokens at each position.
+     *
+     * @param topTokens the most likely tokens per generated token
+     */
+    public void setTopTokens(List<List<DjlServingTokenDto>> topTokens) {
+        this.topTokens = topTokens;
+    }
+
+    /**
+     * Converts the details to TokenLogprobs.
+     *
+     * @return new TokenLogprobs, or null if the tokens carry no log probabilities
+     */
+    public TokenLogprobs toTokenLogprobs() {
+        if (tokens == null || tokens.isEmpty() || tokens.get(0).getLogProb() == null) {
+            return null;
+        }
+        int topCount = 0;
+        if (topTokens != null) {
+            for (List<DjlServingTokenDto> top : topTokens) {
+                topCount = Math.max(topCount, top != null ? top.size() : 0);
+            }
+        }
+        TokenLogprobs.Builder builder = TokenLogprobs.builder(topCount);
+        for (int i = 0; i < tokens.size(); i++) {
+            DjlServingTokenDto token = tokens.get(i);
+            builder.add(token.getText(), token.getLogProb() != null ? token.getLogProb() : Float.NaN);
+            if (topTokens != null && i < topTokens.size() && topTokens.get(i) != null) {
+                for (DjlServingTokenDto top : topTokens.get(i)) {
+                    builder.addTop(top.getText(), top.getLogProb() != null ? top.getLogProb() : Float.NaN);
+                }
+            }
+        }
+        return builder.build();
+    }
+}
@@ -93,6 +93,7 @@ public class DjlServingRequestDto {
         
         // Copy parameters
         Map<String, Object> parameters = new HashMap<>(request.getParameters());
+        requestDetails(parameters);
         
         return new DjlServingRequestDto(prompt, parameters);
     }
@@ -110,10 +111,32 @@ public class DjlServingRequestDto {
         
         // Copy parameters
         Map<String, Object> parameters = new HashMap<>(request.getParameters());
+        requestDetails(parameters);
         
         return new DjlServingRequestDto(request.getPrompt(), parameters);
     }
 
+    /**
+     * Asks DJL Serving for the generation details, which carry the token log probabilities, if
+     * the request asks for log probabilities.
+     *
+     * @param parameters the request parameters to complete
+     */
+    private static void requestDetails(Map<String, Object> parameters) {
+        Object logprobs = parameters.get("logprobs");
+        Object topLogprobs = parameters.containsKey("top_logprobs") ? parameters.get("top_logprobs")
+                : parameters.get("top.logprobs");
+        if (logprobs instanceof Number && topLogprobs == null) {
+            topLogprobs = logprobs;
+        }
+        if (Boolean.parseBoolean(String.valueOf(logprobs)) || logprobs instanceof Number || topLogprobs != null) {
+            parameters.put("details", true);
+        }
+        if (topLogprobs instanceof Number && ((Number) topLogprobs).intValue() > 0) {
+            parameters.put("top_n_tokens", ((Number) topLogprobs).intValue());
+        }
+    }
+
     /**
      * Formats chat messages into a prompt string for DJL Serving.
      *
@@ -22,6 +22,9 @@ public class DjlServingResponseDto {
     @JsonProperty("metrics")
     private Map<String, Object> metrics;
 
+    @JsonProperty("details")
+    private DjlServingDetailsDto details;
+
     /**
      * Default constructor.
      */
@@ -76,6 +79,24 @@ public class DjlServingResponseDto {
         this.metrics = metrics;
     }
 
+    /**
+     * Gets the generation details.
+     *
+     * @return the generation details, or null if the request did not ask for them
+     */
+    public DjlServingDetailsDto getDetails() {
+        return details;
+    }
+
+    /**
+     * Sets the generation details.
+     *
+     * @param details the generation details
+     */
+    public void setDetails(DjlServingDetailsDto details) {
+        this.details = details;
+    }
+
     /**
      * Converts a DjlServingResponseDto to a ChatResponse.
      *
@@ -91,7 +112,7 @@ public class DjlServingResponseDto {
             metadata.putAll(metrics);
         }
         
-        return new ChatResponse(responseMessage, metadata);
+        return new ChatResponse(responseMessage, metadata, details != null ? details.toTokenLogprobs() : null);
     }
 
     /**
@@ -106,6 +127,6 @@ public class DjlServingResponseDto {
             metadata.putAll(metrics);
         }
         
-        return new CompletionResponse(data, metadata);
+        return new CompletionResponse(data, metadata, details != null ? details.toTokenLogprobs() : null);
     }
 }
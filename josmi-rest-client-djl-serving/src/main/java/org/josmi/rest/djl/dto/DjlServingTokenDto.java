@@ -0,0 +1,82 @@
+package org.josmi.rest.djl.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * DTO for a generated token in the details of a DJL Serving response.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DjlServingTokenDto {
+
+    @JsonProperty("id")
+    private Integer id;
+
+    @JsonProperty("text")
+    private String text;
+
+    @JsonProperty("log_prob")
+    private Float logProb;
+
+    /**
+     * Default constructor.
+     */
+    public DjlServingTokenDto() {
+    }
+
+    /**
+     * Gets the token id.
+     *
+     * @return the token id
+     */
+    public Integer getId() {
+        return id;
+    }
+
+    /**
+     * Sets the token id.
+     *
+     * @param id the token id
+     */
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    /**
+     * Gets the text of the token.
+     *
+     * @return the text of the token
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Sets the text of the token.
+     *
+     * @param text the text of the token
+     */
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Gets the log probability of the token.
+     *
+     * @return the log probability, or null if not reported
+     */
+    public Float getLogProb() {
+        return logProb;
+    }
+
+    /**
+     * Sets the log probability of the token.
+     *
+     * @param logProb the log probability
+     */
+    public void setLogProb(Float logProb) {
+        this.logProb = logProb;
+    }
+}
@@ -20,6 +20,9 @@ public class ChatResponseDto {
     @JsonProperty("metadata")
     private Map<String, Object> metadata;
 
+    @JsonProperty("logprobs")
+    private LogprobsDto logprobs;
+
     /**
      * Default constructor.
      */
@@ -74,6 +77,24 @@ public class ChatResponseDto {
         this.metadata = metadata;
     }
 
+    /**
+     * Gets the token log probabilities.
+     *
+     * @return the token log probabilities, or null if the backend did not report them
+     */
+    public LogprobsDto getLogprobs() {
+        return logprobs;
+    }
+
+    /**
+     * Sets the token log probabilities.
+     *
+     * @param logprobs the token log probabilities
+     */
+    public void setLogprobs(LogprobsDto logprobs) {
+        this.logprobs = logprobs;
+    }
+
     /**
      * Converts a ChatResponse to a ChatResponseDto.
      *
@@ -87,7 +108,9 @@ public class ChatResponseDto {
         
         MessageDto messageDto = MessageDto.fromMessage(response.getResponse());
         
-        return new ChatResponseDto(messageDto, new HashMap<>(response.getMetadata()));
+        ChatResponseDto dto = new ChatResponseDto(messageDto, new HashMap<>(response.getMetadata()));
+        dto.setLogprobs(LogprobsDto.fromTokenLogprobs(response.getLogprobs()));
+        return dto;
     }
 
     /**
@@ -98,6 +121,7 @@ public class ChatResponseDto {
     public ChatResponse toChatResponse() {
         Message message = response != null ? response.toMessage() : null;
         
-        return new ChatResponse(message, new HashMap<>(metadata));
+        return new ChatResponse(message, new HashMap<>(metadata),
+                logprobs != null ? logprobs.toTokenLogprobs() : null);
     }
 }
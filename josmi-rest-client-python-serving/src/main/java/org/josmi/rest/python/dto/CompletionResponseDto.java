@@ -19,6 +19,9 @@ public class CompletionResponseDto {
     @JsonProperty("metadata")
     private Map<String, Object> metadata;
 
+    @JsonProperty("logprobs")
+    private LogprobsDto logprobs;
+
     /**
      * Default constructor.
      */
@@ -73,6 +76,24 @@ public class CompletionResponseDto {
         this.metadata = metadata;
     }
 
+    /**
+     * Gets the token log probabilities.
+     *
+     * @return the token log probabilities, or null if the backend did not report them
+     */
+    public LogprobsDto getLogprobs() {
+        return logprobs;
+    }
+
+    /**
+     * Sets the token log probabilities.
+     *
+     * @param logprobs the token log probabilities
+     */
+    public void setLogprobs(LogprobsDto logprobs) {
+        this.logprobs = logprobs;
+    }
+
     /**
      * Converts a CompletionResponse to a CompletionResponseDto.
      *
@@ -84,7 +105,9 @@ public class CompletionResponseDto {
             return null;
         }
         
-        return new CompletionResponseDto(response.getText(), new HashMap<>(response.getMetadata()));
+        CompletionResponseDto dto = new CompletionResponseDto(response.getText(), new HashMap<>(response.getMetadata()));
+        dto.setLogprobs(LogprobsDto.fromTokenLogprobs(response.getLogprobs()));
+        return dto;
     }
 
     /**
@@ -93,6 +116,7 @@ public class CompletionResponseDto {
      * @return a new CompletionResponse
      */
     public CompletionResponse toCompletionResponse() {
-        return new CompletionResponse(text, new HashMap<>(metadata));
+        return new CompletionResponse(text, new HashMap<>(metadata),
+                logprobs != null ? logprobs.toTokenLogprobs() : null);
     }
 }
@@ -0,0 +1,103 @@
+package org.josmi.rest.python.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.josmi.api.model.TokenLogprobs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DTO for the token log probabilities of a response in the Python FastAPI backend, in the
+ * format of the OpenAI API.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class LogprobsDto {
+
+    @JsonProperty("content")
+    private List<TokenLogprobDto> content;
+
+    /**
+     * Default constructor.
+     */
+    public LogprobsDto() {
+        this.content = new ArrayList<>();
+    }
+
+    /**
+     * Constructs a new LogprobsDto with the specified tokens.
+     *
+     * @param content the log probabilities of the generated tokens
+     */
+    public LogprobsDto(List<TokenLogprobDto> content) {
+        this.content = content;
+    }
+
+    /**
+     * Gets the log probabilities of the generated tokens.
+     *
+     * @return the log probabilities of the generated tokens
+     */
+    public List<TokenLogprobDto> getContent() {
+        return content;
+    }
+
+    /**
+     * Sets the log probabilities of the generated tokens.
+     *
+     * @param content the log probabilities of the generated tokens
+     */
+    public void setContent(List<TokenLogprobDto> content) {
+        this.content = content;
+    }
+
+    /**
+     * Converts TokenLogprobs to a LogprobsDto.
+     *
+     * @param logprobs the TokenLogprobs to convert
+     * @return a new LogprobsDto, or null if logprobs is null
+     */
+    public static LogprobsDto fromTokenLogprobs(TokenLogprobs logprobs) {
+        if (logprobs == null) {
+            return null;
+        }
+        List<TokenLogprobDto> content = new ArrayList<>(logprobs.size());
+        for (int i = 0; i < logprobs.size(); i++) {
+            TokenLogprobDto token = new TokenLogprobDto(logprobs.getToken(i), logprobs.getLogprob(i));
+            if (logprobs.getTopCount() > 0) {
+                List<TokenLogprobDto> top = new ArrayList<>(logprobs.getTopCount());
+                for (int rank = 0; rank < logprobs.getTopCount() && logprobs.getTopToken(i, rank) != null; rank++) {
+                    top.add(new TokenLogprobDto(logprobs.getTopToken(i, rank), logprobs.getTopLogprob(i, rank)));
+                }
+                token.setTopLogprobs(top);
+            }
+            content.add(token);
+        }
+        return new LogprobsDto(content);
+    }
+
+    /**
+     * Converts this LogprobsDto to TokenLogprobs.
+     *
+     * @return new TokenLogprobs
+     */
+    public TokenLogprobs toTokenLogprobs() {
+        List<TokenLogprobDto> tokens = content != null ? content : new ArrayList<>();
+        int topCount = 0;
+        for (TokenLogprobDto token : tokens) {
+            if (token.getTopLogprobs() != null) {
+                topCount = Math.max(topCount, token.getTopLogprobs().size());
+            }
+        }
+        TokenLogprobs.Builder builder = TokenLogprobs.builder(topCount);
+        for (TokenLogprobDto token : tokens) {
+            builder.add(token.getToken(), token.getLogprob());
+            if (token.getTopLogprobs() != null) {
+                for (TokenLogprobDto top : token.getTopLogprobs()) {
+                    builder.addTop(top.getToken(), top.getLogprob());
+                }
+            }
+        }
+        return builder.build();
+    }
+}
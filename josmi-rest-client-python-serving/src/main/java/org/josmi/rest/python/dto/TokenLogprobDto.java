@@ -0,0 +1,94 @@
+package org.josmi.rest.python.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * DTO for the log probability of a generated token in the Python FastAPI backend, in the
+ * format of the OpenAI API.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TokenLogprobDto {
+
+    @JsonProperty("token")
+    private String token;
+
+    @JsonProperty("logprob")
+    private float logprob;
+
+    @JsonProperty("top_logprobs")
+    private List<TokenLogprobDto> topLogprobs;
+
+    /**
+     * Default constructor.
+     */
+    public TokenLogprobDto() {
+    }
+
+    /**
+     * Constructs a new TokenLogprobDto with the specified token and log probability.
+     *
+     * @param token the text of the token
+     * @param logprob the log probability of the token
+     */
+    public TokenLogprobDto(String token, float logprob) {
+        this.token = token;
+        this.logprob = logprob;
+    }
+
+    /**
+     * Gets the text of the token.
+     *
+     * @return the text of the token
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Sets the text of the token.
+     *
+     * @param token the text of the token
+     */
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Gets the log probability of the token.
+     *
+     * @return the log probability of the token
+     */
+    public float getLogprob() {
+        return logprob;
+    }
+
+    /**
+     * Sets the log probability of the token.
+     *
+     * @param logprob the log probability of the token
+     */
+    public void setLogprob(float logprob) {
+        this.logprob = logprob;
+    }
+
+    /**
+     * Gets the most likely alternatives at the position of the token.
+     *
+     * @return the alternatives, most likely first, or null
+     */
+    public List<TokenLogprobDto> getTopLogprobs() {
+        return topLogprobs;
+    }
+
+    /**
+     * Sets the most likely alternatives at the position of the token.
+     *
+     * @param topLogprobs the alternatives, most likely first
+     */
+    public void setTopLogprobs(List<TokenLogprobDto> topLogprobs) {
+        this.topLogprobs = topLogprobs;
+    }
+}